@@ -0,0 +1,152 @@
+package org.geoserver.slippymap;
+
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.WriteListener;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import org.geotools.util.logging.Logging;
+import org.springframework.security.core.context.SecurityContext;
+import org.springframework.security.core.context.SecurityContextHolder;
+
+/**
+ * Slippy map tile request handled asynchronously. The WMS request is forwarded on a thread of the
+ * executor of the {@link SlippyTilesController} into a {@link BufferedResponse}, the tile is then
+ * written with non-blocking I/O. No container thread is held while the tile is rendered or while
+ * a slow client reads it.
+ */
+class AsyncTileRequest implements Runnable, AsyncListener, WriteListener {
+
+    private static final Logger LOGGER = Logging.getLogger(AsyncTileRequest.class);
+
+    /** bytes written per write while the client is ready */
+    private static final int CHUNK_SIZE = 8192;
+
+    private final AsyncContext context;
+
+    private final String url;
+
+    /** the security context of the container thread, the forward does not run the filters */
+    private final SecurityContext securityContext;
+
+    private final AtomicBoolean completed = new AtomicBoolean();
+
+    private byte[] tile;
+
+    private int written;
+
+    AsyncTileRequest(AsyncContext context, String url) {
+        this.context = context;
+        this.url = url;
+        this.securityContext = SecurityContextHolder.getContext();
+    }
+
+    @Override
+    public void run() {
+        if (completed.get()) {
+            // timed out while queued
+            return;
+        }
+        SecurityContextHolder.setContext(securityContext);
+        try {
+            HttpServletRequest request = (HttpServletRequest) context.getRequest();
+            HttpServletResponse response = (HttpServletResponse) context.getResponse();
+            BufferedResponse buffered = new BufferedResponse(response);
+            request.getRequestDispatcher(url).forward(request, buffered);
+            if (buffered.getErrorStatus() != 0) {
+                fail(buffered.getErrorStatus(), buffered.getErrorMessage());
+                return;
+            }
+            tile = buffered.toByteArray();
+            response.setContentLength(tile.length);
+            response.getOutputStream().setWriteListener(this);
+        } catch (Exception e) {
+            if (!completed.get()) {
+                LOGGER.log(Level.WARNING, "slippy map tile request " + url + " failed", e);
+                fail(HttpServletResponse.SC_INTERNAL_SERVER_ERROR, null);
+            }
+        } finally {
+            SecurityContextHolder.clearContext();
+        }
+    }
+
+    /** Answers with 503, the executor does not accept further requests. */
+    void reject() {
+        fail(HttpServletResponse.SC_SERVICE_UNAVAILABLE, "too many slippy map tile requests");
+    }
+
+    @Override
+    public void onWritePossible() throws IOException {
+        if (completed.get()) {
+            return;
+        }
+        ServletOutputStream output = context.getResponse().getOutputStream();
+        while (output.isReady()) {
+            if (written == tile.length) {
+                complete();
+                return;
+            }
+            int length = Math.min(CHUNK_SIZE, tile.length - written);
+            output.write(tile, written, length);
+            written += length;
+        }
+    }
+
+    @Override
+    public void onError(Throwable t) {
+        LOGGER.log(Level.FINE, "writing slippy map tile " + url + " failed", t);
+        complete();
+    }
+
+    @Override
+    public void onComplete(AsyncEvent event) {
+        completed.set(true);
+    }
+
+    @Override
+    public void onTimeout(AsyncEvent event) {
+        fail(HttpServletResponse.SC_SERVICE_UNAVAILABLE, "slippy map tile request timed out");
+    }
+
+    @Override
+    public void onError(AsyncEvent event) {
+        complete();
+    }
+
+    @Override
+    public void onStartAsync(AsyncEvent event) {
+        // not restarted
+    }
+
+    private void fail(int status, String message) {
+        if (!completed.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            HttpServletResponse response = (HttpServletResponse) context.getResponse();
+            if (!response.isCommitted()) {
+                if (message != null) {
+                    response.sendError(status, message);
+                } else {
+                    response.sendError(status);
+                }
+            }
+        } catch (IOException | IllegalStateException e) {
+            LOGGER.log(Level.FINE, "cannot send error of slippy map tile " + url, e);
+        } finally {
+            context.complete();
+        }
+    }
+
+    private void complete() {
+        if (completed.compareAndSet(false, true)) {
+            context.complete();
+        }
+    }
+}
@@ -0,0 +1,233 @@
+package org.geoserver.slippymap;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.WriteListener;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpServletResponseWrapper;
+
+/**
+ * Response collecting the body in memory, so that it can be written to the client with
+ * non-blocking I/O once it is complete. Headers and the status are passed to the wrapped response,
+ * errors are recorded and sent by the caller. A detached response keeps the status and the content
+ * type and drops the other headers, e.g. for the tiles of a batch written into one response.
+ */
+class BufferedResponse extends HttpServletResponseWrapper {
+
+    private final ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+
+    private final boolean detached;
+
+    private int status = SC_OK;
+
+    private String contentType;
+
+    private ServletOutputStream output;
+
+    private PrintWriter writer;
+
+    private int errorStatus;
+
+    private String errorMessage;
+
+    BufferedResponse(HttpServletResponse response) {
+        this(response, false);
+    }
+
+    /**
+     * @param response the wrapped response
+     * @param detached whether the status and the headers are kept instead of passed on
+     */
+    BufferedResponse(HttpServletResponse response, boolean detached) {
+        super(response);
+        this.detached = detached;
+    }
+
+    @Override
+    public ServletOutputStream getOutputStream() {
+        if (output == null) {
+            output =
+                    new ServletOutputStream() {
+
+                        @Override
+                        public boolean isReady() {
+                            return true;
+                        }
+
+                        @Override
+                        public void setWriteListener(WriteListener writeListener) {
+                            throw new UnsupportedOperationException(
+                                    "the response is buffered, it is always ready");
+                        }
+
+                        @Override
+                        public void write(int b) {
+                            buffer.write(b);
+                        }
+
+                        @Override
+                        public void write(byte[] b, int off, int len) {
+                            buffer.write(b, off, len);
+                        }
+                    };
+        }
+        return output;
+    }
+
+    @Override
+    public PrintWriter getWriter() throws IOException {
+        if (writer == null) {
+            writer = new PrintWriter(new OutputStreamWriter(buffer, getCharacterEncoding()));
+        }
+        return writer;
+    }
+
+    @Override
+    public void flushBuffer() {
+        if (writer != null) {
+            writer.flush();
+        }
+    }
+
+    @Override
+    public boolean isCommitted() {
+        return false;
+    }
+
+    @Override
+    public void setBufferSize(int size) {
+        // the whole body is buffered
+    }
+
+    @Override
+    public void setContentLength(int len) {
+        // set from the buffered body
+    }
+
+    @Override
+    public void setContentLengthLong(long len) {
+        // set from the buffered body
+    }
+
+    @Override
+    public void setStatus(int sc) {
+        if (detached) {
+            status = sc;
+        } else {
+            super.setStatus(sc);
+        }
+    }
+
+    @Override
+    public int getStatus() {
+        return detached ? status : super.getStatus();
+    }
+
+    @Override
+    public void setContentType(String type) {
+        if (detached) {
+            contentType = type;
+        } else {
+            super.setContentType(type);
+        }
+    }
+
+    @Override
+    public String getContentType() {
+        return detached ? contentType : super.getContentType();
+    }
+
+    @Override
+    public void setHeader(String name, String value) {
+        if (!detached) {
+            super.setHeader(name, value);
+        }
+    }
+
+    @Override
+    public void addHeader(String name, String value) {
+        if (!detached) {
+            super.addHeader(name, value);
+        }
+    }
+
+    @Override
+    public void setIntHeader(String name, int value) {
+        if (!detached) {
+            super.setIntHeader(name, value);
+        }
+    }
+
+    @Override
+    public void addIntHeader(String name, int value) {
+        if (!detached) {
+            super.addIntHeader(name, value);
+        }
+    }
+
+    @Override
+    public void setDateHeader(String name, long date) {
+        if (!detached) {
+            super.setDateHeader(name, date);
+        }
+    }
+
+    @Override
+    public void addDateHeader(String name, long date) {
+        if (!detached) {
+            super.addDateHeader(name, date);
+        }
+    }
+
+    @Override
+    public void resetBuffer() {
+        if (writer != null) {
+            writer.flush();
+        }
+        buffer.reset();
+    }
+
+    @Override
+    public void reset() {
+        if (detached) {
+            status = SC_OK;
+            contentType = null;
+        } else {
+            super.reset();
+        }
+        resetBuffer();
+        errorStatus = 0;
+        errorMessage = null;
+    }
+
+    @Override
+    public void sendError(int sc) {
+        sendError(sc, null);
+    }
+
+    @Override
+    public void sendError(int sc, String msg) {
+        resetBuffer();
+        errorStatus = sc;
+        errorMessage = msg;
+    }
+
+    /** @return the status of the error sent, 0 if no error was sent */
+    int getErrorStatus() {
+        return errorStatus;
+    }
+
+    /** @return the message of the error sent, may be null */
+    String getErrorMessage() {
+        return errorMessage;
+    }
+
+    /** @return the buffered body */
+    byte[] toByteArray() {
+        flushBuffer();
+        return buffer.toByteArray();
+    }
+}
@@ -2,15 +2,24 @@ package org.geoserver.slippymap;
 
 import static org.geoserver.wms.mvt.MVTStreamingMapResponse.*;
 
+import java.io.DataOutputStream;
 import java.io.IOException;
 import java.io.UnsupportedEncodingException;
 import java.net.URLEncoder;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import javax.servlet.AsyncContext;
+import javax.servlet.DispatcherType;
 import javax.servlet.RequestDispatcher;
 import javax.servlet.ServletException;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 import org.geoserver.wms.GeneralisationLevel;
+import org.geoserver.wms.mvt.MVTCancellationToken;
+import org.geoserver.wms.mvt.MVTTileBatch;
 import org.geotools.api.referencing.ReferenceIdentifier;
 import org.geotools.api.referencing.crs.CoordinateReferenceSystem;
 import org.geotools.geometry.jts.JTS;
@@ -28,6 +37,9 @@ import org.springframework.web.bind.annotation.*;
 // @RequestMapping("/slippymap")
 public class SlippyTilesController {
 
+    /** mime type of the length prefixed tiles of a batch request */
+    public static final String BATCH_MIME_TYPE = "application/vnd.geoserver.tile-batch";
+
     private int defaultBuffer = 10;
     private String defaultFormat = "application/vnd.mapbox-vector-tile";
     private String defaultStyles = "";
@@ -35,6 +47,10 @@ public class SlippyTilesController {
     private Map<String, String> supportedOutputFormats;
     private Map<String, String> defaultTileSize;
 
+    private Executor asyncExecutor;
+    private long asyncTimeout = 60000;
+    private int maxBatchTiles = 64;
+
     @InitBinder
     public void initBinder(WebDataBinder dataBinder) {
         dataBinder.registerCustomEditor(
@@ -70,7 +86,16 @@ public class SlippyTilesController {
                     GeneralisationLevel gen_level,
             @RequestParam(value = PARAM_SMALL_GEOM_THRESHOLD, required = false)
                     Double small_geom_threshold,
+            @RequestParam(value = PARAM_SMALL_GEOM_ACCUMULATE, required = false)
+                    Double small_geom_accumulate,
             @RequestParam(value = AVOID_EMPTY_PROTO, required = false) Boolean avoid_empty_proto,
+            @RequestParam(value = PARAM_ATTRIBUTES, required = false) String attributes,
+            @RequestParam(value = PARAM_AGGREGATE, required = false) Double aggregate,
+            @RequestParam(value = PARAM_AGGREGATE_ATTRIBUTES, required = false)
+                    String aggregate_attributes,
+            @RequestParam(value = PARAM_COALESCE, required = false) String coalesce,
+            @RequestParam(value = PARAM_EXTENT, required = false) Integer extent,
+            @RequestParam(value = PARAM_PRIORITY, required = false) String priority,
             @RequestParam(value = "cql_filter", required = false) String cql_filter,
             @RequestParam(value = "bboxToBoundsViewparam", required = false, defaultValue = "false")
                     boolean bboxToBoundsViewparam,
@@ -118,35 +143,20 @@ public class SlippyTilesController {
         if (cql_filter != null) {
             sb.append("&CQL_FILTER=").append(cql_filter);
         }
-        boolean envAppended = false;
-        if (gen_factor != null) {
-            sb.append("&ENV=").append(PARAM_GENERALISATION_FACTOR).append(":").append(gen_factor);
-            envAppended = true;
-        }
-        if (gen_level != null) {
-            if (!envAppended) {
-                sb.append("&ENV=");
-                envAppended = true;
-            } else {
-                sb.append(";");
-            }
-            sb.append(PARAM_GENERALISATION_LEVEL).append(":").append(gen_level.getValue());
-        }
-        if (small_geom_threshold != null) {
-            if (!envAppended) {
-                sb.append("&ENV=");
-            } else {
-                sb.append(";");
-            }
-            sb.append(PARAM_SMALL_GEOM_THRESHOLD).append(":").append(small_geom_threshold);
-        }
-        if (avoid_empty_proto != null) {
-            if (!envAppended) {
-                sb.append("&ENV=");
-            } else {
-                sb.append(";");
-            }
-            sb.append(AVOID_EMPTY_PROTO).append(":").append(avoid_empty_proto);
+        StringBuilder env = new StringBuilder();
+        appendEnv(env, PARAM_GENERALISATION_FACTOR, gen_factor);
+        appendEnv(env, PARAM_GENERALISATION_LEVEL, gen_level != null ? gen_level.getValue() : null);
+        appendEnv(env, PARAM_SMALL_GEOM_THRESHOLD, small_geom_threshold);
+        appendEnv(env, PARAM_SMALL_GEOM_ACCUMULATE, small_geom_accumulate);
+        appendEnv(env, AVOID_EMPTY_PROTO, avoid_empty_proto);
+        appendEnv(env, PARAM_ATTRIBUTES, attributes);
+        appendEnv(env, PARAM_AGGREGATE, aggregate);
+        appendEnv(env, PARAM_AGGREGATE_ATTRIBUTES, aggregate_attributes);
+        appendEnv(env, PARAM_COALESCE, coalesce);
+        appendEnv(env, PARAM_EXTENT, extent);
+        appendEnv(env, PARAM_PRIORITY, priority);
+        if (env.length() > 0) {
+            sb.append("&ENV=").append(env);
         }
         // no view params, just encode bbox in viewparams param for geoserver request
         if (bboxToBoundsViewparam && viewParams == null) {
@@ -164,12 +174,219 @@ public class SlippyTilesController {
             }
             sb.append(buildBoundsViewparam(bbox));
         }
-        String url = sb.toString();
-        RequestDispatcher dispatcher =
-                request.getRequestDispatcher(response.encodeRedirectURL(url));
+        String url = response.encodeRedirectURL(sb.toString());
+        if (asyncExecutor != null
+                && request.isAsyncSupported()
+                && request.getDispatcherType() == DispatcherType.REQUEST) {
+            forwardAsync(request, response, url);
+            return;
+        }
+        RequestDispatcher dispatcher = request.getRequestDispatcher(url);
         dispatcher.forward(request, response);
     }
 
+    /**
+     * Answers a list or a range of tiles, e.g. the tiles of a viewport, in one response. The tiles
+     * are rendered one after the other like single tile requests and written as soon as they are
+     * rendered. Each tile is written as zoom level, column, row, HTTP status (ints), content type
+     * (modified UTF-8 with length prefix) and the length of the tile (int) followed by its bytes,
+     * all big endian. The tiles of one zoom level share their queries, see {@link MVTTileBatch}.
+     */
+    @RequestMapping(path = "/slippymap/{layers}/batch.{format}", method = RequestMethod.GET)
+    public void doGetSlippyWmsBatch(
+            @PathVariable String layers,
+            @PathVariable String format,
+            @RequestParam(value = "tiles", required = false) String tiles,
+            @RequestParam(value = "z", required = false) Integer z,
+            @RequestParam(value = "minCol", required = false) Long minCol,
+            @RequestParam(value = "minRow", required = false) Long minRow,
+            @RequestParam(value = "maxCol", required = false) Long maxCol,
+            @RequestParam(value = "maxRow", required = false) Long maxRow,
+            final HttpServletRequest request,
+            final HttpServletResponse response)
+            throws IOException, ServletException {
+        List<long[]> tileList;
+        try {
+            tileList =
+                    tiles != null
+                            ? parseTiles(tiles)
+                            : getTileRange(z, minCol, minRow, maxCol, maxRow);
+        } catch (IllegalArgumentException e) {
+            response.sendError(HttpServletResponse.SC_BAD_REQUEST, e.getMessage());
+            return;
+        }
+        MVTTileBatch batch = getTileBatch(tileList);
+        if (batch != null) {
+            batch.bind(request);
+        }
+        MVTCancellationToken cancellationToken = MVTCancellationToken.of(request);
+        response.setContentType(BATCH_MIME_TYPE);
+        DataOutputStream output =
+                new DataOutputStream(cancellationToken.watch(response.getOutputStream()));
+        try {
+            for (long[] tile : tileList) {
+                if (cancellationToken.isCancelled()) {
+                    break;
+                }
+                String path =
+                        "/slippymap/" + layers + "/" + tile[0] + "/" + tile[1] + "/" + tile[2];
+                BufferedResponse tileResponse = new BufferedResponse(response, true);
+                int status;
+                byte[] bytes;
+                try {
+                    request.getRequestDispatcher(path + "." + format)
+                            .forward(request, tileResponse);
+                    status =
+                            tileResponse.getErrorStatus() != 0
+                                    ? tileResponse.getErrorStatus()
+                                    : tileResponse.getStatus();
+                    bytes = tileResponse.toByteArray();
+                } catch (ServletException | RuntimeException e) {
+                    status = HttpServletResponse.SC_INTERNAL_SERVER_ERROR;
+                    bytes = String.valueOf(e.getMessage()).getBytes("UTF-8");
+                }
+                String contentType = tileResponse.getContentType();
+                output.writeInt((int) tile[0]);
+                output.writeInt((int) tile[1]);
+                output.writeInt((int) tile[2]);
+                output.writeInt(status);
+                output.writeUTF(contentType != null ? contentType : "");
+                output.writeInt(bytes.length);
+                output.write(bytes);
+                output.flush();
+            }
+        } finally {
+            request.removeAttribute(MVTTileBatch.REQUEST_ATTRIBUTE);
+        }
+    }
+
+    /**
+     * Parses a comma separated list of tiles, e.g. {@code 12/2196/1427,12/2197/1427}.
+     *
+     * @param tiles the tiles
+     * @return the zoom level, column and row of the tiles
+     */
+    private List<long[]> parseTiles(String tiles) {
+        List<long[]> tileList = new ArrayList<>();
+        for (String tile : tiles.split(",")) {
+            String[] parts = tile.trim().split("/");
+            if (parts.length != 3) {
+                throw new IllegalArgumentException("tile " + tile + " is not z/x/y");
+            }
+            try {
+                addTile(
+                        tileList,
+                        Integer.parseInt(parts[0]),
+                        Long.parseLong(parts[1]),
+                        Long.parseLong(parts[2]));
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("tile " + tile + " is not z/x/y");
+            }
+        }
+        return tileList;
+    }
+
+    /**
+     * Lists the tiles of a range, row by row.
+     *
+     * @return the zoom level, column and row of the tiles
+     */
+    private List<long[]> getTileRange(
+            Integer z, Long minCol, Long minRow, Long maxCol, Long maxRow) {
+        if (z == null || minCol == null || minRow == null || maxCol == null || maxRow == null) {
+            throw new IllegalArgumentException(
+                    "either tiles or z, minCol, minRow, maxCol and maxRow are required");
+        }
+        if (maxCol < minCol
+                || maxRow < minRow
+                || (maxCol - minCol + 1) * (maxRow - minRow + 1) > maxBatchTiles) {
+            throw new IllegalArgumentException(
+                    "the range must contain between 1 and " + maxBatchTiles + " tiles");
+        }
+        List<long[]> tileList = new ArrayList<>();
+        for (long row = minRow; row <= maxRow; row++) {
+            for (long col = minCol; col <= maxCol; col++) {
+                addTile(tileList, z, col, row);
+            }
+        }
+        return tileList;
+    }
+
+    private void addTile(List<long[]> tileList, int z, long x, long y) {
+        if (z < 0 || z > 30 || x < 0 || y < 0 || x >= 1L << z || y >= 1L << z) {
+            throw new IllegalArgumentException("tile " + z + "/" + x + "/" + y + " does not exist");
+        }
+        if (tileList.size() == maxBatchTiles) {
+            throw new IllegalArgumentException("more than " + maxBatchTiles + " tiles requested");
+        }
+        tileList.add(new long[] {z, x, y});
+    }
+
+    /**
+     * Builds the batch of the tiles sharing their queries. Tiles of different zoom levels and
+     * sparse tiles, whose range would be much larger than the tiles, do not share their queries.
+     *
+     * @param tileList the requested tiles
+     * @return the batch or null if the tiles are rendered independently
+     */
+    private MVTTileBatch getTileBatch(List<long[]> tileList) {
+        long[] first = tileList.get(0);
+        long minCol = first[1];
+        long minRow = first[2];
+        long maxCol = first[1];
+        long maxRow = first[2];
+        for (long[] tile : tileList) {
+            if (tile[0] != first[0]) {
+                return null;
+            }
+            minCol = Math.min(minCol, tile[1]);
+            minRow = Math.min(minRow, tile[2]);
+            maxCol = Math.max(maxCol, tile[1]);
+            maxRow = Math.max(maxRow, tile[2]);
+        }
+        MVTTileBatch batch = new MVTTileBatch((int) first[0], minCol, minRow, maxCol, maxRow);
+        return tileList.size() > 1 && batch.getSize() <= 2L * tileList.size() ? batch : null;
+    }
+
+    /**
+     * Forwards the WMS request on a thread of the async executor, releasing the container thread.
+     *
+     * @param request the slippy map request
+     * @param response the response
+     * @param url the WMS request
+     */
+    private void forwardAsync(
+            HttpServletRequest request, HttpServletResponse response, String url) {
+        AsyncContext context = request.startAsync(request, response);
+        context.setTimeout(asyncTimeout);
+        AsyncTileRequest tileRequest = new AsyncTileRequest(context, url);
+        context.addListener(tileRequest);
+        // stops rendering once the request completed, timed out or failed
+        context.addListener(MVTCancellationToken.of(request));
+        try {
+            asyncExecutor.execute(tileRequest);
+        } catch (RejectedExecutionException e) {
+            tileRequest.reject();
+        }
+    }
+
+    /**
+     * Appends a key value pair to the WMS ENV parameter value if the value is present.
+     *
+     * @param env the ENV parameter value built so far
+     * @param key the ENV key
+     * @param value the value, skipped if null
+     */
+    private void appendEnv(StringBuilder env, String key, Object value) {
+        if (value == null) {
+            return;
+        }
+        if (env.length() > 0) {
+            env.append(";");
+        }
+        env.append(key).append(":").append(value);
+    }
+
     private String buildBoundsViewparam(ReferencedEnvelope bbox)
             throws UnsupportedEncodingException {
         Polygon poly = JTS.toGeometry(bbox);
@@ -229,4 +446,46 @@ public class SlippyTilesController {
     public void setDefaultTileSize(Map<String, String> defaultTileSize) {
         this.defaultTileSize = defaultTileSize;
     }
+
+    public Executor getAsyncExecutor() {
+        return asyncExecutor;
+    }
+
+    /**
+     * Executor rendering the tiles of asynchronous requests. If set, the container thread is
+     * released while a tile is rendered and the tile is written with non-blocking I/O. Requires
+     * servlets and filters supporting asynchronous requests, otherwise requests are forwarded
+     * synchronously.
+     *
+     * @param asyncExecutor the executor, null for synchronous requests
+     */
+    public void setAsyncExecutor(Executor asyncExecutor) {
+        this.asyncExecutor = asyncExecutor;
+    }
+
+    public int getMaxBatchTiles() {
+        return maxBatchTiles;
+    }
+
+    /**
+     * Maximum number of tiles of a batch request.
+     *
+     * @param maxBatchTiles the number of tiles
+     */
+    public void setMaxBatchTiles(int maxBatchTiles) {
+        this.maxBatchTiles = maxBatchTiles;
+    }
+
+    public long getAsyncTimeout() {
+        return asyncTimeout;
+    }
+
+    /**
+     * Time after which an asynchronous request is answered with 503 and its rendering stopped.
+     *
+     * @param asyncTimeout the time in milliseconds
+     */
+    public void setAsyncTimeout(long asyncTimeout) {
+        this.asyncTimeout = asyncTimeout;
+    }
 }
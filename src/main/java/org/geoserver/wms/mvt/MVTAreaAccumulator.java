@@ -0,0 +1,76 @@
+package org.geoserver.wms.mvt;
+
+import java.util.HashMap;
+import java.util.Map;
+import org.locationtech.jts.geom.Envelope;
+import org.locationtech.jts.geom.Geometry;
+import org.locationtech.jts.geom.GeometryFactory;
+
+/**
+ * Accumulates the area of polygons skipped for being smaller than the small geometry threshold
+ * per grid cell in tile space. Once the accumulated area of a cell reaches the threshold a square
+ * of the accumulated area is returned, centered at the area weighted center of the skipped
+ * polygons. So dense layers of tiny polygons (buildings, parcels) do not leave empty areas at low
+ * zoom levels.
+ *
+ * <p>The grid is aligned to the tile origin, so cells in the buffer of adjacent tiles coincide.
+ */
+final class MVTAreaAccumulator {
+
+    private final GeometryFactory geometryFactory = new GeometryFactory();
+
+    private final double gridSize;
+
+    private final double threshold;
+
+    /** per cell the accumulated area and the area weighted sums of x and y */
+    private final Map<Long, double[]> cells = new HashMap<>();
+
+    /**
+     * Creates the accumulator.
+     *
+     * @param gridSize the cell size in tile units
+     * @param threshold the area a cell has to accumulate before a square is emitted
+     */
+    MVTAreaAccumulator(double gridSize, double threshold) {
+        this.gridSize = gridSize;
+        this.threshold = threshold;
+    }
+
+    /**
+     * Adds the area of a skipped polygon.
+     *
+     * @param envelope the envelope of the polygon in tile units, its center locates the cell
+     * @param area the area of the polygon itself in tile units, not the area of the envelope
+     * @return the square representing the accumulated area of the cell if the threshold has been
+     *     reached, null otherwise
+     */
+    Geometry add(Envelope envelope, double area) {
+        if (area <= 0) {
+            return null;
+        }
+        double x = (envelope.getMinX() + envelope.getMaxX()) / 2;
+        double y = (envelope.getMinY() + envelope.getMaxY()) / 2;
+        long cellX = (long) Math.floor(x / gridSize);
+        long cellY = (long) Math.floor(y / gridSize);
+        long key = (cellX << 32) ^ (cellY & 0xFFFFFFFFL);
+        double[] cell = cells.computeIfAbsent(key, k -> new double[3]);
+        cell[0] += area;
+        cell[1] += x * area;
+        cell[2] += y * area;
+        if (cell[0] < threshold) {
+            return null;
+        }
+        cells.remove(key);
+        double centerX = cell[1] / cell[0];
+        double centerY = cell[2] / cell[0];
+        // slightly enlarged, so rounding does not push the square below the threshold again
+        double halfSide = Math.sqrt(cell[0]) / 2 * (1 + 1e-6);
+        return geometryFactory.toGeometry(
+                new Envelope(
+                        centerX - halfSide,
+                        centerX + halfSide,
+                        centerY - halfSide,
+                        centerY + halfSide));
+    }
+}
@@ -0,0 +1,77 @@
+package org.geoserver.wms.mvt;
+
+/**
+ * Limits of a layer or a whole tile: maximum encoded bytes, maximum number of features and maximum
+ * number of vertices. Unset (null), zero or negative values mean unlimited.
+ */
+final class MVTBudget {
+
+    private final long maxBytes;
+
+    private final long maxFeatures;
+
+    private final long maxVertices;
+
+    private MVTBudget(long maxBytes, long maxFeatures, long maxVertices) {
+        this.maxBytes = maxBytes;
+        this.maxFeatures = maxFeatures;
+        this.maxVertices = maxVertices;
+    }
+
+    /**
+     * Creates a budget.
+     *
+     * @param maxBytes the maximum number of encoded bytes
+     * @param maxFeatures the maximum number of features
+     * @param maxVertices the maximum number of vertices
+     * @return the budget or null if no limit is set
+     */
+    static MVTBudget of(Integer maxBytes, Integer maxFeatures, Integer maxVertices) {
+        long bytes = maxBytes != null && maxBytes > 0 ? maxBytes : 0;
+        long features = maxFeatures != null && maxFeatures > 0 ? maxFeatures : 0;
+        long vertices = maxVertices != null && maxVertices > 0 ? maxVertices : 0;
+        if (bytes == 0 && features == 0 && vertices == 0) {
+            return null;
+        }
+        return new MVTBudget(bytes, features, vertices);
+    }
+
+    /**
+     * @param features the number of features
+     * @return true if the number of features reaches the limit
+     */
+    boolean isFeatureLimitReached(long features) {
+        return maxFeatures > 0 && features >= maxFeatures;
+    }
+
+    /**
+     * @param bytes the number of encoded bytes
+     * @param features the number of features
+     * @param vertices the number of vertices
+     * @return true if all values are within the limits
+     */
+    boolean fits(long bytes, long features, long vertices) {
+        return (maxBytes <= 0 || bytes <= maxBytes)
+                && (maxFeatures <= 0 || features <= maxFeatures)
+                && (maxVertices <= 0 || vertices <= maxVertices);
+    }
+
+    /**
+     * @param bytes the number of encoded bytes
+     * @param features the number of features
+     * @param vertices the number of vertices
+     * @return the share (0 to 1) of the values exceeding the limits, the maximum of all limits
+     */
+    double getExcess(long bytes, long features, long vertices) {
+        return Math.max(
+                excess(bytes, maxBytes),
+                Math.max(excess(features, maxFeatures), excess(vertices, maxVertices)));
+    }
+
+    private static double excess(long value, long max) {
+        if (max <= 0 || value <= max) {
+            return 0;
+        }
+        return (value - max) / (double) value;
+    }
+}
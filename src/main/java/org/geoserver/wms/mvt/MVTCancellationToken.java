@@ -0,0 +1,131 @@
+package org.geoserver.wms.mvt;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
+import javax.servlet.ServletRequest;
+import org.geoserver.platform.ClientStreamAbortedException;
+
+/**
+ * Signals that the client of a tile request is gone, e.g. because the user panned the map and the
+ * browser cancelled the request. Rendering checks the token between features and stops early,
+ * closing the feature iterators and with them the statements of the datastore.
+ *
+ * <p>The token of a request is kept as request attribute, so it survives forwards (e.g. of slippy
+ * map tile requests). It is cancelled when writing to the client fails (see {@link
+ * #watch(OutputStream)}) and, registered as {@link AsyncListener}, when an asynchronous request
+ * completes, times out or fails.
+ */
+public final class MVTCancellationToken implements AsyncListener {
+
+    /** name of the request attribute holding the token */
+    public static final String REQUEST_ATTRIBUTE = MVTCancellationToken.class.getName();
+
+    private volatile boolean cancelled;
+
+    /**
+     * Returns the token of the request, creating it if the request has none yet.
+     *
+     * @param request the request
+     * @return the token
+     */
+    public static MVTCancellationToken of(ServletRequest request) {
+        Object token = request.getAttribute(REQUEST_ATTRIBUTE);
+        if (token instanceof MVTCancellationToken) {
+            return (MVTCancellationToken) token;
+        }
+        MVTCancellationToken created = new MVTCancellationToken();
+        request.setAttribute(REQUEST_ATTRIBUTE, created);
+        return created;
+    }
+
+    /** Cancels the request. */
+    public void cancel() {
+        cancelled = true;
+    }
+
+    /** @return true if the request has been cancelled */
+    public boolean isCancelled() {
+        return cancelled;
+    }
+
+    /**
+     * @throws ClientStreamAbortedException if the request has been cancelled, ignored by the
+     *     dispatcher like other client aborts
+     */
+    public void checkCancelled() throws ClientStreamAbortedException {
+        if (cancelled) {
+            throw new ClientStreamAbortedException("tile request cancelled by the client");
+        }
+    }
+
+    /**
+     * Wraps the stream to the client, cancelling the request once writing fails.
+     *
+     * @param output the stream to the client
+     * @return the watched stream
+     */
+    public OutputStream watch(OutputStream output) {
+        return new FilterOutputStream(output) {
+
+            @Override
+            public void write(int b) throws IOException {
+                try {
+                    out.write(b);
+                } catch (IOException e) {
+                    cancel();
+                    throw e;
+                }
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                try {
+                    out.write(b, off, len);
+                } catch (IOException e) {
+                    cancel();
+                    throw e;
+                }
+            }
+
+            @Override
+            public void flush() throws IOException {
+                try {
+                    out.flush();
+                } catch (IOException e) {
+                    cancel();
+                    throw e;
+                }
+            }
+
+            @Override
+            public void close() throws IOException {
+                // the stream to the client is closed by the dispatcher
+                flush();
+            }
+        };
+    }
+
+    @Override
+    public void onComplete(AsyncEvent event) {
+        cancel();
+    }
+
+    @Override
+    public void onTimeout(AsyncEvent event) {
+        cancel();
+    }
+
+    @Override
+    public void onError(AsyncEvent event) {
+        cancel();
+    }
+
+    @Override
+    public void onStartAsync(AsyncEvent event) {
+        // the token stays registered for the new asynchronous cycle
+        event.getAsyncContext().addListener(this);
+    }
+}
@@ -0,0 +1,137 @@
+package org.geoserver.wms.mvt;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import org.geotools.api.feature.simple.SimpleFeature;
+import org.locationtech.jts.geom.Geometry;
+
+/**
+ * Thins out dense point layers by keeping at most a maximum number of features per grid cell in
+ * tile space. The features of a cell are chosen by a rank attribute (higher values first) or by a
+ * stable hash of the feature id.
+ *
+ * <p>Since the grid is aligned to the tile origin, every cell at zoom N+1 is a quarter of a cell at
+ * zoom N. A feature among the first features of a cell is also among the first features of the
+ * smaller cell it lies in, so a feature present at zoom N is also present at zoom N+1.
+ */
+final class MVTDensityFilter {
+
+    private final double gridSize;
+
+    private final int maxFeatures;
+
+    private final String rankAttribute;
+
+    /** the kept candidates per cell, the head of each queue is the least important candidate */
+    private final Map<Long, PriorityQueue<Candidate>> cells = new HashMap<>();
+
+    /**
+     * Creates the filter.
+     *
+     * @param gridSize the cell size in tile units
+     * @param maxFeatures the maximum number of features per cell
+     * @param rankAttribute the numeric attribute ranking the features, null to use the feature id
+     */
+    MVTDensityFilter(double gridSize, int maxFeatures, String rankAttribute) {
+        this.gridSize = gridSize;
+        this.maxFeatures = maxFeatures;
+        this.rankAttribute = rankAttribute;
+    }
+
+    /**
+     * Offers a feature located at the given tile coordinates. The feature is kept if it is among
+     * the most important ones of its cell, less important features of the cell are dropped.
+     *
+     * @param x the x coordinate in tile units
+     * @param y the y coordinate in tile units
+     * @param feature the feature
+     * @param geometryList the geometries of the feature produced by the style
+     */
+    void offer(double x, double y, SimpleFeature feature, List<Geometry> geometryList) {
+        long cellX = (long) Math.floor(x / gridSize);
+        long cellY = (long) Math.floor(y / gridSize);
+        long key = (cellX << 32) ^ (cellY & 0xFFFFFFFFL);
+        PriorityQueue<Candidate> cell = cells.computeIfAbsent(key, k -> new PriorityQueue<>());
+        Candidate candidate = new Candidate(feature, geometryList, getRank(feature));
+        if (cell.size() < maxFeatures) {
+            cell.add(candidate);
+        } else if (candidate.compareTo(cell.peek()) > 0) {
+            cell.poll();
+            cell.add(candidate);
+        }
+    }
+
+    private double getRank(SimpleFeature feature) {
+        if (rankAttribute == null) {
+            return 0;
+        }
+        Object rank = feature.getAttribute(rankAttribute);
+        return rank instanceof Number ? ((Number) rank).doubleValue() : Double.NEGATIVE_INFINITY;
+    }
+
+    /**
+     * Returns the kept features ordered by importance (most important first) and resets the
+     * filter.
+     *
+     * @return the kept features
+     */
+    List<Candidate> drain() {
+        List<Candidate> candidates = new ArrayList<>();
+        for (PriorityQueue<Candidate> cell : cells.values()) {
+            candidates.addAll(cell);
+        }
+        cells.clear();
+        candidates.sort(Collections.reverseOrder());
+        return candidates;
+    }
+
+    /**
+     * Stable hash of the feature id, independent of the JVM and of the zoom level.
+     *
+     * @param id the feature id
+     * @return the hash
+     */
+    static long hash(String id) {
+        long hash = 0xcbf29ce484222325L;
+        for (int i = 0; i < id.length(); i++) {
+            hash ^= id.charAt(i);
+            hash *= 0x100000001b3L;
+        }
+        return hash;
+    }
+
+    /** A kept feature and its geometries, ordered by rank, then id hash and id */
+    static final class Candidate implements Comparable<Candidate> {
+
+        final SimpleFeature feature;
+
+        final List<Geometry> geometryList;
+
+        private final double rank;
+
+        private final long hash;
+
+        Candidate(SimpleFeature feature, List<Geometry> geometryList, double rank) {
+            this.feature = feature;
+            this.geometryList = geometryList;
+            this.rank = rank;
+            this.hash = hash(feature.getID());
+        }
+
+        @Override
+        public int compareTo(Candidate other) {
+            int result = Double.compare(rank, other.rank);
+            if (result == 0) {
+                result = Long.compare(hash, other.hash);
+            }
+            if (result == 0) {
+                result = feature.getID().compareTo(other.feature.getID());
+            }
+            return result;
+        }
+    }
+}
@@ -0,0 +1,287 @@
+package org.geoserver.wms.mvt;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+import javax.xml.namespace.QName;
+import org.geoserver.catalog.Catalog;
+import org.geoserver.catalog.CatalogInfo;
+import org.geoserver.catalog.FeatureTypeInfo;
+import org.geoserver.catalog.LayerInfo;
+import org.geoserver.catalog.NamespaceInfo;
+import org.geoserver.catalog.StyleInfo;
+import org.geoserver.catalog.WorkspaceInfo;
+import org.geoserver.catalog.event.CatalogAddEvent;
+import org.geoserver.catalog.event.CatalogListener;
+import org.geoserver.catalog.event.CatalogModifyEvent;
+import org.geoserver.catalog.event.CatalogPostModifyEvent;
+import org.geoserver.catalog.event.CatalogRemoveEvent;
+import org.geoserver.wfs.TransactionEvent;
+import org.geoserver.wfs.TransactionListener;
+import org.geotools.util.logging.Logging;
+
+/**
+ * Remembers the tiles known to be empty per layer, style, user and zoom level, so requests for
+ * them do not query the layer again. Sparse layers (e.g. pipelines or rail) are empty in most
+ * tiles of their bounding box. The tiles are recorded when a rendered layer query returns no
+ * feature or by an offline coverage scan calling {@link #markEmpty(String, String, String, int,
+ * long, long, long)}. Layers are identified by their prefixed name, the tiles are kept per user as
+ * the access rules of the user may filter the features of the layer.
+ *
+ * <p>The tiles of a layer are forgotten when the layer is changed by a WFS transaction or in the
+ * catalog, and after {@link #setMaxAge(long)} to pick up changes made directly in the stores.
+ * Once more than {@link #setMaxEntries(int)} bitmaps are kept, the least recently used ones are
+ * evicted.
+ * Tiles are marked with the generation of the layer taken before its query, marks of queries
+ * that started before the layer was changed are dropped.
+ */
+public class MVTEmptyTileIndex implements TransactionListener, CatalogListener {
+
+    private static final Logger LOGGER = Logging.getLogger(MVTEmptyTileIndex.class);
+
+    /** separates the layer name, the style name, the zoom level and the user in the keys */
+    private static final char SEPARATOR = '/';
+
+    private final Catalog catalog;
+
+    /** bitmaps keyed by layer name, style name, zoom level and user */
+    private final Map<String, Entry> bitmaps = new ConcurrentHashMap<>();
+
+    /** number of invalidations per layer name */
+    private final Map<String, AtomicLong> invalidations = new ConcurrentHashMap<>();
+
+    /** number of invalidations of all layers */
+    private final AtomicLong clears = new AtomicLong();
+
+    private long maxAge = 3600;
+
+    private int maxEntries = 1000;
+
+    /** @param catalog the catalog notifying changed layers */
+    public MVTEmptyTileIndex(Catalog catalog) {
+        this.catalog = catalog;
+        catalog.addListener(this);
+    }
+
+    /**
+     * @param layerName the prefixed name of the layer
+     * @param styleName the name of the style rendering the layer
+     * @param user the name of the user, empty for anonymous requests
+     * @param zoomLevel the zoom level
+     * @param x the tile column
+     * @param y the tile row
+     * @return true if the layer is known to be empty in the tile
+     */
+    public boolean isEmpty(
+            String layerName, String styleName, String user, int zoomLevel, long x, long y) {
+        String key = key(layerName, styleName, user, zoomLevel);
+        Entry entry = bitmaps.get(key);
+        if (entry == null) {
+            return false;
+        }
+        if (System.currentTimeMillis() - entry.created > maxAge * 1000
+                || entry.generation != getGeneration(layerName)) {
+            bitmaps.remove(key, entry);
+            return false;
+        }
+        entry.lastAccess = System.currentTimeMillis();
+        return entry.bitmap.contains(x, y);
+    }
+
+    /**
+     * Returns the generation of the layer, it changes whenever the empty tiles of the layer are
+     * forgotten. It has to be taken before the layer is queried and passed to {@link
+     * #markEmpty(String, String, String, int, long, long, long)}.
+     *
+     * @param layerName the prefixed name of the layer
+     * @return the generation
+     */
+    public long getGeneration(String layerName) {
+        AtomicLong layerInvalidations = invalidations.get(layerName);
+        // both counters only grow, so does their sum
+        return clears.get() + (layerInvalidations != null ? layerInvalidations.get() : 0);
+    }
+
+    /**
+     * Records that the layer is empty in the tile, unless the layer was changed since the
+     * generation was taken.
+     *
+     * @param layerName the prefixed name of the layer
+     * @param styleName the name of the style rendering the layer
+     * @param user the name of the user, empty for anonymous requests
+     * @param zoomLevel the zoom level
+     * @param x the tile column
+     * @param y the tile row
+     * @param generation the generation of the layer taken before it was queried
+     */
+    public void markEmpty(
+            String layerName,
+            String styleName,
+            String user,
+            int zoomLevel,
+            long x,
+            long y,
+            long generation) {
+        bitmaps.compute(
+                key(layerName, styleName, user, zoomLevel),
+                (key, entry) -> {
+                    if (generation != getGeneration(layerName)) {
+                        LOGGER.fine("layer changed while querying, not marking " + layerName);
+                        return entry;
+                    }
+                    if (entry == null || entry.generation != generation) {
+                        entry = new Entry(zoomLevel, generation);
+                    }
+                    entry.bitmap.add(x, y);
+                    entry.lastAccess = System.currentTimeMillis();
+                    return entry;
+                });
+        evict();
+    }
+
+    /**
+     * Forgets the empty tiles of the layer.
+     *
+     * @param layerName the prefixed name of the layer
+     */
+    public void invalidate(String layerName) {
+        // marks of queries running now are dropped, entries created in between are outdated
+        invalidations.computeIfAbsent(layerName, k -> new AtomicLong()).incrementAndGet();
+        String prefix = layerName + SEPARATOR;
+        if (bitmaps.keySet().removeIf(key -> key.startsWith(prefix))) {
+            LOGGER.fine("forgot empty tiles of layer " + layerName);
+        }
+    }
+
+    /** Forgets all empty tiles. */
+    public void clear() {
+        clears.incrementAndGet();
+        bitmaps.clear();
+    }
+
+    public long getMaxAge() {
+        return maxAge;
+    }
+
+    /**
+     * Time after which the empty tiles of a layer and zoom level are forgotten, changes made
+     * without a WFS transaction are picked up after this time.
+     *
+     * @param maxAge the age in seconds
+     */
+    public void setMaxAge(long maxAge) {
+        this.maxAge = maxAge;
+    }
+
+    public int getMaxEntries() {
+        return maxEntries;
+    }
+
+    /**
+     * Maximum number of bitmaps (layer, style, zoom level and user) kept, the least recently used
+     * ones are evicted beyond.
+     *
+     * @param maxEntries the number of bitmaps
+     */
+    public void setMaxEntries(int maxEntries) {
+        this.maxEntries = maxEntries;
+    }
+
+    /** @return the number of bitmaps kept */
+    int size() {
+        return bitmaps.size();
+    }
+
+    private void evict() {
+        while (bitmaps.size() > maxEntries) {
+            Map.Entry<String, Entry> eldest = null;
+            for (Map.Entry<String, Entry> e : bitmaps.entrySet()) {
+                if (eldest == null || e.getValue().lastAccess < eldest.getValue().lastAccess) {
+                    eldest = e;
+                }
+            }
+            if (eldest == null) {
+                return;
+            }
+            bitmaps.remove(eldest.getKey(), eldest.getValue());
+        }
+    }
+
+    private static String key(String layerName, String styleName, String user, int zoomLevel) {
+        return layerName + SEPARATOR + styleName + SEPARATOR + zoomLevel + SEPARATOR + user;
+    }
+
+    @Override
+    public void dataStoreChange(TransactionEvent event) {
+        QName layerName = event.getLayerName();
+        FeatureTypeInfo featureType =
+                layerName != null
+                        ? catalog.getFeatureTypeByName(
+                                layerName.getNamespaceURI(), layerName.getLocalPart())
+                        : null;
+        if (featureType != null) {
+            invalidate(featureType.prefixedName());
+        } else {
+            clear();
+        }
+    }
+
+    @Override
+    public void handleAddEvent(CatalogAddEvent event) {}
+
+    @Override
+    public void handleRemoveEvent(CatalogRemoveEvent event) {
+        invalidate(event.getSource());
+    }
+
+    @Override
+    public void handleModifyEvent(CatalogModifyEvent event) {
+        // the source still has its name before a rename
+        invalidate(event.getSource());
+    }
+
+    @Override
+    public void handlePostModifyEvent(CatalogPostModifyEvent event) {
+        invalidate(event.getSource());
+    }
+
+    @Override
+    public void reloaded() {
+        clear();
+    }
+
+    private void invalidate(CatalogInfo info) {
+        if (info instanceof FeatureTypeInfo) {
+            invalidate(((FeatureTypeInfo) info).prefixedName());
+        } else if (info instanceof LayerInfo) {
+            invalidate(((LayerInfo) info).prefixedName());
+        } else if (info instanceof StyleInfo
+                || info instanceof WorkspaceInfo
+                || info instanceof NamespaceInfo) {
+            // styles are shared by layers, the filters of the style decide on empty tiles, and
+            // workspaces prefix the names of their layers
+            clear();
+        }
+    }
+
+    /**
+     * The bitmap of a layer, style, zoom level and user with its creation and last access time and
+     * its generation.
+     */
+    private static final class Entry {
+
+        final MVTTileBitmap bitmap;
+
+        final long created = System.currentTimeMillis();
+
+        volatile long lastAccess = created;
+
+        final long generation;
+
+        Entry(int zoomLevel, long generation) {
+            this.bitmap = new MVTTileBitmap(zoomLevel);
+            this.generation = generation;
+        }
+    }
+}
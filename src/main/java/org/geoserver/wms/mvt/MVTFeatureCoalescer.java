@@ -0,0 +1,115 @@
+package org.geoserver.wms.mvt;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Logger;
+import org.geotools.api.feature.simple.SimpleFeature;
+import org.geotools.util.logging.Logging;
+import org.locationtech.jts.geom.Geometry;
+import org.locationtech.jts.geom.GeometryFactory;
+import org.locationtech.jts.geom.LineString;
+import org.locationtech.jts.operation.linemerge.LineMerger;
+import org.locationtech.jts.operation.union.UnaryUnionOp;
+
+/**
+ * Coalesces lines and polygons of features sharing the values of key attributes into one feature
+ * per group. Lines are merged with a {@link LineMerger}, polygons are unioned (concatenated into a
+ * multi polygon if the union fails). The coalesced features carry the key attributes only, so at
+ * low zoom levels thousands of road segments with identical tags become a few features that are
+ * clipped and simplified once.
+ */
+final class MVTFeatureCoalescer {
+
+    private static final Logger LOGGER = Logging.getLogger(MVTFeatureCoalescer.class);
+
+    private final GeometryFactory geometryFactory = new GeometryFactory();
+
+    private final String[] keyAttributes;
+
+    /** the geometries per group, keyed by the values of the key attributes */
+    private final Map<List<Object>, Group> groups = new LinkedHashMap<>();
+
+    /**
+     * Creates the coalescer.
+     *
+     * @param keyAttributes the attributes whose values define the groups
+     */
+    MVTFeatureCoalescer(List<String> keyAttributes) {
+        this.keyAttributes = keyAttributes.toArray(new String[0]);
+    }
+
+    /**
+     * Adds the geometries of a feature to its group.
+     *
+     * @param feature the feature, source of the key attribute values
+     * @param geometries the lineal or polygonal geometries in tile units
+     */
+    void add(SimpleFeature feature, List<Geometry> geometries) {
+        Object[] key = new Object[keyAttributes.length];
+        for (int i = 0; i < keyAttributes.length; i++) {
+            key[i] = feature.getAttribute(keyAttributes[i]);
+        }
+        Group group = groups.computeIfAbsent(Arrays.asList(key), k -> new Group());
+        for (Geometry geometry : geometries) {
+            if (geometry.getDimension() == 1) {
+                group.lines.add(geometry);
+            } else {
+                group.polygons.add(geometry);
+            }
+        }
+    }
+
+    /**
+     * Writes one feature per group and geometry dimension to the encoder and resets the
+     * coalescer.
+     *
+     * @param encoder the encoder to write to
+     * @param layerName the name of the layer
+     * @return true if at least one feature has been written
+     */
+    boolean writeTo(VectorTileEncoder encoder, String layerName) {
+        boolean written = !groups.isEmpty();
+        for (Map.Entry<List<Object>, Group> entry : groups.entrySet()) {
+            Map<String, Object> attributeMap = new LinkedHashMap<>();
+            for (int i = 0; i < keyAttributes.length; i++) {
+                attributeMap.put(keyAttributes[i], entry.getKey().get(i));
+            }
+            Group group = entry.getValue();
+            if (!group.lines.isEmpty()) {
+                encoder.addFeature(layerName, attributeMap, null, mergeLines(group.lines));
+            }
+            if (!group.polygons.isEmpty()) {
+                encoder.addFeature(layerName, attributeMap, null, unionPolygons(group.polygons));
+            }
+        }
+        groups.clear();
+        return written;
+    }
+
+    private Geometry mergeLines(List<Geometry> lines) {
+        LineMerger merger = new LineMerger();
+        merger.add(lines);
+        List<LineString> merged = new ArrayList<>(merger.getMergedLineStrings());
+        return geometryFactory.buildGeometry(merged);
+    }
+
+    private Geometry unionPolygons(List<Geometry> polygons) {
+        try {
+            return UnaryUnionOp.union(polygons, geometryFactory);
+        } catch (RuntimeException e) {
+            LOGGER.fine("Polygons cannot be unioned, concatenating them: " + e.getMessage());
+            return geometryFactory.buildGeometry(polygons);
+        }
+    }
+
+    /** The lines and polygons of a group */
+    private static final class Group {
+
+        final List<Geometry> lines = new ArrayList<>();
+
+        final List<Geometry> polygons = new ArrayList<>();
+    }
+}
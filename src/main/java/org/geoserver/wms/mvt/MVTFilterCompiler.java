@@ -0,0 +1,445 @@
+package org.geoserver.wms.mvt;
+
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.function.Predicate;
+import org.geotools.api.feature.simple.SimpleFeature;
+import org.geotools.api.feature.simple.SimpleFeatureType;
+import org.geotools.api.feature.type.AttributeDescriptor;
+import org.geotools.api.filter.And;
+import org.geotools.api.filter.BinaryComparisonOperator;
+import org.geotools.api.filter.Filter;
+import org.geotools.api.filter.Not;
+import org.geotools.api.filter.Or;
+import org.geotools.api.filter.PropertyIsBetween;
+import org.geotools.api.filter.PropertyIsEqualTo;
+import org.geotools.api.filter.PropertyIsGreaterThan;
+import org.geotools.api.filter.PropertyIsGreaterThanOrEqualTo;
+import org.geotools.api.filter.PropertyIsLessThan;
+import org.geotools.api.filter.PropertyIsLessThanOrEqualTo;
+import org.geotools.api.filter.PropertyIsLike;
+import org.geotools.api.filter.PropertyIsNotEqualTo;
+import org.geotools.api.filter.PropertyIsNull;
+import org.geotools.api.filter.expression.Expression;
+import org.geotools.api.filter.expression.Function;
+import org.geotools.api.filter.expression.Literal;
+import org.geotools.api.filter.expression.PropertyName;
+import org.geotools.util.Converters;
+
+/**
+ * Compiles OGC filters into predicates bound to the attribute indices of a {@link
+ * SimpleFeatureType}. Literals are converted to the binding of the attribute once, so evaluating a
+ * feature neither looks up properties by name nor converts values.
+ *
+ * <p>Supported are comparisons between a property and literals (equals, not equals, ranges,
+ * between, IN lists as OR of equals or as in function, LIKE with a prefix pattern, is null) and
+ * their combination with AND / OR / NOT. Everything else, as well as values that cannot be
+ * compared directly at runtime, is evaluated by the generic {@link Filter#evaluate(Object)}.
+ */
+final class MVTFilterCompiler {
+
+    private MVTFilterCompiler() {}
+
+    /**
+     * Compiles the filter for features of the given type.
+     *
+     * @param filter the filter to compile
+     * @param schema the feature type the predicate is bound to, null to use the generic evaluation
+     * @return the predicate evaluating the filter, never null
+     */
+    static Predicate<SimpleFeature> compile(Filter filter, SimpleFeatureType schema) {
+        if (filter == null || filter == Filter.INCLUDE) {
+            return feature -> true;
+        }
+        if (filter == Filter.EXCLUDE) {
+            return feature -> false;
+        }
+        Predicate<SimpleFeature> predicate = schema != null ? compileFilter(filter, schema) : null;
+        return predicate != null ? predicate : filter::evaluate;
+    }
+
+    private static Predicate<SimpleFeature> compileFilter(Filter filter, SimpleFeatureType schema) {
+        if (filter instanceof And) {
+            List<Predicate<SimpleFeature>> children =
+                    compileChildren(((And) filter).getChildren(), schema);
+            return feature -> {
+                for (Predicate<SimpleFeature> child : children) {
+                    if (!child.test(feature)) {
+                        return false;
+                    }
+                }
+                return true;
+            };
+        }
+        if (filter instanceof Or) {
+            Predicate<SimpleFeature> in = compileInList((Or) filter, schema);
+            if (in != null) {
+                return in;
+            }
+            List<Predicate<SimpleFeature>> children =
+                    compileChildren(((Or) filter).getChildren(), schema);
+            return feature -> {
+                for (Predicate<SimpleFeature> child : children) {
+                    if (child.test(feature)) {
+                        return true;
+                    }
+                }
+                return false;
+            };
+        }
+        if (filter instanceof Not) {
+            return compile(((Not) filter).getFilter(), schema).negate();
+        }
+        if (filter instanceof PropertyIsEqualTo) {
+            Predicate<SimpleFeature> in = compileInFunction((PropertyIsEqualTo) filter, schema);
+            if (in != null) {
+                return in;
+            }
+        }
+        if (filter instanceof BinaryComparisonOperator) {
+            return compileComparison((BinaryComparisonOperator) filter, schema);
+        }
+        if (filter instanceof PropertyIsBetween) {
+            return compileBetween((PropertyIsBetween) filter, schema);
+        }
+        if (filter instanceof PropertyIsLike) {
+            return compileLike((PropertyIsLike) filter, schema);
+        }
+        if (filter instanceof PropertyIsNull) {
+            int index = getIndex(((PropertyIsNull) filter).getExpression(), schema);
+            if (index >= 0) {
+                return feature ->
+                        feature.getFeatureType() == schema
+                                ? feature.getAttribute(index) == null
+                                : filter.evaluate(feature);
+            }
+        }
+        return null;
+    }
+
+    private static List<Predicate<SimpleFeature>> compileChildren(
+            List<Filter> filters, SimpleFeatureType schema) {
+        List<Predicate<SimpleFeature>> children = new ArrayList<>(filters.size());
+        for (Filter child : filters) {
+            children.add(compile(child, schema));
+        }
+        return children;
+    }
+
+    private static Predicate<SimpleFeature> compileComparison(
+            BinaryComparisonOperator filter, SimpleFeatureType schema) {
+        Expression property = filter.getExpression1();
+        Expression literal = filter.getExpression2();
+        boolean swapped = false;
+        if (property instanceof Literal && literal instanceof PropertyName) {
+            property = filter.getExpression2();
+            literal = filter.getExpression1();
+            swapped = true;
+        }
+        int index = getIndex(property, schema);
+        Object value = getLiteral(literal, schema, index);
+        if (value == null) {
+            return null;
+        }
+        boolean stringValue = value instanceof String;
+        if (!filter.isMatchingCase() && stringValue) {
+            if (filter instanceof PropertyIsEqualTo || filter instanceof PropertyIsNotEqualTo) {
+                boolean equals = filter instanceof PropertyIsEqualTo;
+                String string = (String) value;
+                return new BoundPredicate(filter, schema, index) {
+                    @Override
+                    Boolean test(Object attribute) {
+                        return attribute instanceof String
+                                ? string.equalsIgnoreCase((String) attribute) == equals
+                                : null;
+                    }
+                };
+            }
+            return null;
+        }
+        final Comparison comparison = getComparison(filter, swapped);
+        if (comparison == null) {
+            return null;
+        }
+        return new BoundPredicate(filter, schema, index) {
+            @Override
+            Boolean test(Object attribute) {
+                Integer result = compareValues(attribute, value);
+                return result != null ? comparison.matches(result) : null;
+            }
+        };
+    }
+
+    private static Comparison getComparison(BinaryComparisonOperator filter, boolean swapped) {
+        if (filter instanceof PropertyIsEqualTo) {
+            return result -> result == 0;
+        }
+        if (filter instanceof PropertyIsNotEqualTo) {
+            return result -> result != 0;
+        }
+        if (filter instanceof PropertyIsLessThan) {
+            return swapped ? result -> result > 0 : result -> result < 0;
+        }
+        if (filter instanceof PropertyIsLessThanOrEqualTo) {
+            return swapped ? result -> result >= 0 : result -> result <= 0;
+        }
+        if (filter instanceof PropertyIsGreaterThan) {
+            return swapped ? result -> result < 0 : result -> result > 0;
+        }
+        if (filter instanceof PropertyIsGreaterThanOrEqualTo) {
+            return swapped ? result -> result <= 0 : result -> result >= 0;
+        }
+        return null;
+    }
+
+    private static Predicate<SimpleFeature> compileBetween(
+            PropertyIsBetween filter, SimpleFeatureType schema) {
+        int index = getIndex(filter.getExpression(), schema);
+        Object lower = getLiteral(filter.getLowerBoundary(), schema, index);
+        Object upper = getLiteral(filter.getUpperBoundary(), schema, index);
+        if (lower == null || upper == null) {
+            return null;
+        }
+        return new BoundPredicate(filter, schema, index) {
+            @Override
+            Boolean test(Object attribute) {
+                Integer lowerResult = compareValues(attribute, lower);
+                Integer upperResult = compareValues(attribute, upper);
+                if (lowerResult == null || upperResult == null) {
+                    return null;
+                }
+                return lowerResult >= 0 && upperResult <= 0;
+            }
+        };
+    }
+
+    /** Compiles LIKE filters with a pattern without wildcards or with a single trailing one. */
+    private static Predicate<SimpleFeature> compileLike(
+            PropertyIsLike filter, SimpleFeatureType schema) {
+        int index = getIndex(filter.getExpression(), schema);
+        String pattern = filter.getLiteral();
+        if (index < 0 || pattern == null) {
+            return null;
+        }
+        String wildCard = filter.getWildCard();
+        boolean prefix = wildCard != null && !wildCard.isEmpty() && pattern.endsWith(wildCard);
+        String text = prefix ? pattern.substring(0, pattern.length() - wildCard.length()) : pattern;
+        if (containsToken(text, wildCard)
+                || containsToken(text, filter.getSingleChar())
+                || containsToken(text, filter.getEscape())) {
+            return null;
+        }
+        boolean matchCase = filter.isMatchingCase();
+        return new BoundPredicate(filter, schema, index) {
+            @Override
+            Boolean test(Object attribute) {
+                String string = attribute.toString();
+                if (prefix) {
+                    return string.regionMatches(!matchCase, 0, text, 0, text.length());
+                }
+                return matchCase ? string.equals(text) : string.equalsIgnoreCase(text);
+            }
+        };
+    }
+
+    private static boolean containsToken(String text, String token) {
+        return token != null && !token.isEmpty() && text.contains(token);
+    }
+
+    /** Compiles an OR of equal comparisons of the same property into a set lookup. */
+    private static Predicate<SimpleFeature> compileInList(Or filter, SimpleFeatureType schema) {
+        int index = -1;
+        Set<Object> values = new HashSet<>();
+        for (Filter child : filter.getChildren()) {
+            if (!(child instanceof PropertyIsEqualTo)
+                    || !((PropertyIsEqualTo) child).isMatchingCase()) {
+                return null;
+            }
+            PropertyIsEqualTo equalTo = (PropertyIsEqualTo) child;
+            Expression property = equalTo.getExpression1();
+            Expression literal = equalTo.getExpression2();
+            if (property instanceof Literal) {
+                property = equalTo.getExpression2();
+                literal = equalTo.getExpression1();
+            }
+            int childIndex = getIndex(property, schema);
+            if (childIndex < 0 || (index >= 0 && childIndex != index)) {
+                return null;
+            }
+            index = childIndex;
+            Object value = getLiteral(literal, schema, index);
+            if (value == null) {
+                return null;
+            }
+            values.add(value);
+        }
+        return values.size() > 1 ? new InPredicate(filter, schema, index, values) : null;
+    }
+
+    /** Compiles {@code in(property, literal, ...) = true} into a set lookup. */
+    private static Predicate<SimpleFeature> compileInFunction(
+            PropertyIsEqualTo filter, SimpleFeatureType schema) {
+        Expression function = filter.getExpression1();
+        Expression result = filter.getExpression2();
+        if (function instanceof Literal) {
+            function = filter.getExpression2();
+            result = filter.getExpression1();
+        }
+        if (!(function instanceof Function)
+                || !(result instanceof Literal)
+                || !Boolean.TRUE.equals(((Literal) result).evaluate(null, Boolean.class))
+                || !((Function) function).getName().toLowerCase().matches("in\\d*")) {
+            return null;
+        }
+        List<Expression> parameters = ((Function) function).getParameters();
+        if (parameters.size() < 2) {
+            return null;
+        }
+        int index = getIndex(parameters.get(0), schema);
+        Set<Object> values = new HashSet<>();
+        for (Expression parameter : parameters.subList(1, parameters.size())) {
+            Object value = getLiteral(parameter, schema, index);
+            if (value == null) {
+                return null;
+            }
+            values.add(value);
+        }
+        return new InPredicate(filter, schema, index, values);
+    }
+
+    /**
+     * Returns the index of the attribute referenced by the expression.
+     *
+     * @return the index or -1 if the expression is not a property of the schema
+     */
+    private static int getIndex(Expression expression, SimpleFeatureType schema) {
+        if (!(expression instanceof PropertyName)) {
+            return -1;
+        }
+        return schema.indexOf(((PropertyName) expression).getPropertyName());
+    }
+
+    /**
+     * Converts the literal to the binding of the attribute. Numeric literals are only accepted if
+     * the binding represents them exactly, e.g. 0.1 for a Float attribute, but not 1.5 for an
+     * Integer one or 16777217 for a Float one.
+     *
+     * @return the converted literal or null if the conversion is not possible
+     */
+    private static Object getLiteral(Expression expression, SimpleFeatureType schema, int index) {
+        if (index < 0 || !(expression instanceof Literal)) {
+            return null;
+        }
+        Object value = ((Literal) expression).getValue();
+        if (value == null) {
+            return null;
+        }
+        AttributeDescriptor descriptor = schema.getDescriptor(index);
+        Object converted = Converters.convert(value, descriptor.getType().getBinding());
+        if (converted instanceof Number && !isExact(value, (Number) converted)) {
+            return null;
+        }
+        return converted instanceof Comparable ? converted : null;
+    }
+
+    /** Checks if the number converted from the literal value has the same decimal value. */
+    private static boolean isExact(Object value, Number converted) {
+        try {
+            BigDecimal literal = new BigDecimal(value.toString().trim());
+            return literal.compareTo(new BigDecimal(converted.toString())) == 0;
+        } catch (NumberFormatException e) {
+            // NaN, infinity or text the decimal parser does not accept
+            return false;
+        }
+    }
+
+    /**
+     * Compares the attribute value to the literal converted to the binding of the attribute.
+     *
+     * @return the comparison result or null if the values cannot be compared directly
+     */
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    static Integer compareValues(Object value, Object literal) {
+        if (value instanceof Comparable
+                && (literal.getClass().isInstance(value) || value.getClass().isInstance(literal))) {
+            return ((Comparable) value).compareTo(literal);
+        }
+        return null;
+    }
+
+    /** Evaluation of a comparison result */
+    private interface Comparison {
+        boolean matches(int result);
+    }
+
+    /**
+     * Predicate bound to an attribute index. Features of another type, null values and values
+     * that cannot be compared directly are evaluated by the original filter.
+     */
+    private abstract static class BoundPredicate implements Predicate<SimpleFeature> {
+
+        private final Filter filter;
+
+        private final SimpleFeatureType schema;
+
+        private final int index;
+
+        BoundPredicate(Filter filter, SimpleFeatureType schema, int index) {
+            this.filter = filter;
+            this.schema = schema;
+            this.index = index;
+        }
+
+        @Override
+        public boolean test(SimpleFeature feature) {
+            if (feature.getFeatureType() == schema) {
+                Object attribute = feature.getAttribute(index);
+                if (attribute != null) {
+                    Boolean result = test(attribute);
+                    if (result != null) {
+                        return result;
+                    }
+                }
+            }
+            return filter.evaluate(feature);
+        }
+
+        /**
+         * Evaluates the not null attribute value.
+         *
+         * @return the result or null if the generic evaluation has to be used
+         */
+        abstract Boolean test(Object attribute);
+    }
+
+    /** Set lookup for IN lists */
+    private static final class InPredicate extends BoundPredicate {
+
+        private final Set<Object> values;
+
+        /** the common type of the literals */
+        private final Class<?> type;
+
+        InPredicate(Filter filter, SimpleFeatureType schema, int index, Set<Object> values) {
+            super(filter, schema, index);
+            this.values = values;
+            Class<?> type = null;
+            for (Object value : values) {
+                Class<?> valueType = value.getClass();
+                type = type == null || type == valueType ? valueType : Object.class;
+            }
+            this.type = type;
+        }
+
+        @Override
+        Boolean test(Object attribute) {
+            // a lookup is only conclusive if the attribute has the type of the literals
+            return type != Object.class && type.isInstance(attribute)
+                    ? values.contains(attribute)
+                    : null;
+        }
+    }
+}
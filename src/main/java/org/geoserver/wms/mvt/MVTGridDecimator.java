@@ -0,0 +1,141 @@
+package org.geoserver.wms.mvt;
+
+import java.util.ArrayList;
+import java.util.List;
+import org.locationtech.jts.geom.Coordinate;
+import org.locationtech.jts.geom.Geometry;
+import org.locationtech.jts.geom.GeometryCollection;
+import org.locationtech.jts.geom.GeometryFactory;
+import org.locationtech.jts.geom.LineString;
+import org.locationtech.jts.geom.LinearRing;
+import org.locationtech.jts.geom.MultiLineString;
+import org.locationtech.jts.geom.MultiPolygon;
+import org.locationtech.jts.geom.Polygon;
+
+/**
+ * Cheap pre-decimation of geometries in tile space: consecutive vertices falling into the same
+ * cell of the encoding grid (the same pixel of the encoded tile) are dropped, since they would be
+ * encoded to the same position anyway. Rings collapsing to less than three distinct positions are
+ * removed, a polygon whose shell collapses is removed entirely.
+ *
+ * <p>This is a single linear pass, it is applied before the topology preserving simplification of
+ * huge geometries which is much more expensive.
+ */
+final class MVTGridDecimator {
+
+    private MVTGridDecimator() {}
+
+    /**
+     * Decimates the geometry.
+     *
+     * @param geometry the geometry in tile units
+     * @param cellSize the size of a grid cell in tile units
+     * @return the decimated geometry or null if the geometry collapsed
+     */
+    static Geometry decimate(Geometry geometry, double cellSize) {
+        GeometryFactory factory = geometry.getFactory();
+        if (geometry instanceof Polygon) {
+            return decimate((Polygon) geometry, cellSize);
+        }
+        if (geometry instanceof LinearRing) {
+            Coordinate[] ring = decimateRing(geometry.getCoordinates(), cellSize);
+            return ring != null ? factory.createLinearRing(ring) : null;
+        }
+        if (geometry instanceof LineString) {
+            return factory.createLineString(decimateLine(geometry.getCoordinates(), cellSize));
+        }
+        if (geometry instanceof GeometryCollection) {
+            List<Geometry> parts = new ArrayList<>();
+            for (int i = 0; i < geometry.getNumGeometries(); i++) {
+                Geometry part = decimate(geometry.getGeometryN(i), cellSize);
+                if (part != null) {
+                    parts.add(part);
+                }
+            }
+            if (parts.isEmpty()) {
+                return null;
+            }
+            if (geometry instanceof MultiPolygon) {
+                return factory.createMultiPolygon(parts.toArray(new Polygon[0]));
+            }
+            if (geometry instanceof MultiLineString) {
+                return factory.createMultiLineString(parts.toArray(new LineString[0]));
+            }
+            return factory.buildGeometry(parts);
+        }
+        // points cannot be decimated
+        return geometry;
+    }
+
+    private static Polygon decimate(Polygon polygon, double cellSize) {
+        GeometryFactory factory = polygon.getFactory();
+        Coordinate[] shell = decimateRing(polygon.getExteriorRing().getCoordinates(), cellSize);
+        if (shell == null) {
+            return null;
+        }
+        List<LinearRing> holes = new ArrayList<>();
+        for (int i = 0; i < polygon.getNumInteriorRing(); i++) {
+            Coordinate[] hole =
+                    decimateRing(polygon.getInteriorRingN(i).getCoordinates(), cellSize);
+            if (hole != null) {
+                holes.add(factory.createLinearRing(hole));
+            }
+        }
+        return factory.createPolygon(
+                factory.createLinearRing(shell), holes.toArray(new LinearRing[0]));
+    }
+
+    /** @return the decimated closed ring or null if less than three cells remain */
+    private static Coordinate[] decimateRing(Coordinate[] coordinates, double cellSize) {
+        if (coordinates.length < 4) {
+            return null;
+        }
+        // the closing coordinate is added again after the decimation
+        List<Coordinate> kept = decimate(coordinates, coordinates.length - 1, cellSize);
+        Coordinate first = kept.get(0);
+        if (kept.size() > 1 && sameCell(kept.get(kept.size() - 1), first, cellSize)) {
+            kept.remove(kept.size() - 1);
+        }
+        if (kept.size() < 3) {
+            return null;
+        }
+        kept.add(first);
+        return kept.toArray(new Coordinate[0]);
+    }
+
+    private static Coordinate[] decimateLine(Coordinate[] coordinates, double cellSize) {
+        if (coordinates.length < 3) {
+            return coordinates;
+        }
+        List<Coordinate> kept = decimate(coordinates, coordinates.length, cellSize);
+        Coordinate last = coordinates[coordinates.length - 1];
+        if (kept.get(kept.size() - 1) != last) {
+            // keep the end point, so lines still connect
+            if (kept.size() > 1) {
+                kept.set(kept.size() - 1, last);
+            } else {
+                kept.add(last);
+            }
+        }
+        return kept.toArray(new Coordinate[0]);
+    }
+
+    private static List<Coordinate> decimate(
+            Coordinate[] coordinates, int length, double cellSize) {
+        List<Coordinate> kept = new ArrayList<>();
+        Coordinate previous = null;
+        for (int i = 0; i < length; i++) {
+            Coordinate coordinate = coordinates[i];
+            if (previous == null || !sameCell(previous, coordinate, cellSize)) {
+                kept.add(coordinate);
+                previous = coordinate;
+            }
+        }
+        return kept;
+    }
+
+    private static boolean sameCell(Coordinate c1, Coordinate c2, double cellSize) {
+        return Math.round(c1.x / cellSize) == Math.round(c2.x / cellSize)
+                && Math.round(c1.y / cellSize) == Math.round(c2.y / cellSize);
+    }
+}
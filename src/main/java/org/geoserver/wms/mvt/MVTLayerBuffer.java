@@ -0,0 +1,111 @@
+package org.geoserver.wms.mvt;
+
+import org.locationtech.jts.geom.Envelope;
+import org.locationtech.jts.geom.Geometry;
+import org.locationtech.jts.geom.LineString;
+import org.locationtech.jts.geom.MultiLineString;
+import org.locationtech.jts.geom.MultiPoint;
+import org.locationtech.jts.geom.MultiPolygon;
+import org.locationtech.jts.geom.Point;
+import org.locationtech.jts.geom.Polygon;
+
+/**
+ * Buffers of a layer per geometry type in tile units (pixels of the unbuffered tile). The buffers
+ * define the clip envelopes of the layer's geometries and the buffer of the layer's query.
+ */
+final class MVTLayerBuffer {
+
+    private final int pointBuffer;
+
+    private final int lineBuffer;
+
+    private final int polygonBuffer;
+
+    private final Envelope pointEnvelope;
+
+    private final Envelope lineEnvelope;
+
+    private final Envelope polygonEnvelope;
+
+    private MVTLayerBuffer(Envelope tileBBOX, int pointBuffer, int lineBuffer, int polygonBuffer) {
+        this.pointBuffer = pointBuffer;
+        this.lineBuffer = lineBuffer;
+        this.polygonBuffer = polygonBuffer;
+        this.pointEnvelope = expand(tileBBOX, pointBuffer);
+        this.lineEnvelope = expand(tileBBOX, lineBuffer);
+        this.polygonEnvelope = expand(tileBBOX, polygonBuffer);
+    }
+
+    /**
+     * Creates the buffers of the layer.
+     *
+     * @param layerConfiguration the configuration of the layer, may be null
+     * @param defaultBuffer the buffer of the request, applied to the geometry types without a
+     *     configured buffer
+     * @param tileBBOX the unbuffered tile in tile units
+     * @return the buffers or null if the layer does not configure any buffer
+     */
+    static MVTLayerBuffer of(
+            MVTLayerConfiguration layerConfiguration, int defaultBuffer, Envelope tileBBOX) {
+        if (layerConfiguration == null || !layerConfiguration.isBufferConfigured()) {
+            return null;
+        }
+        int buffer = valueOf(layerConfiguration.getBuffer(), defaultBuffer);
+        return new MVTLayerBuffer(
+                tileBBOX,
+                valueOf(layerConfiguration.getPointBuffer(), buffer),
+                valueOf(layerConfiguration.getLineBuffer(), buffer),
+                valueOf(layerConfiguration.getPolygonBuffer(), buffer));
+    }
+
+    private static int valueOf(Integer buffer, int defaultBuffer) {
+        return Math.max(0, buffer != null ? buffer : defaultBuffer);
+    }
+
+    private static Envelope expand(Envelope tileBBOX, int buffer) {
+        Envelope envelope = new Envelope(tileBBOX);
+        envelope.expandBy(buffer);
+        return envelope;
+    }
+
+    /**
+     * @param geometry the geometry in tile units
+     * @return the clip envelope of the geometry's type
+     */
+    Envelope getClipEnvelope(Geometry geometry) {
+        switch (geometry.getDimension()) {
+            case 0:
+                return pointEnvelope;
+            case 1:
+                return lineEnvelope;
+            default:
+                return polygonEnvelope;
+        }
+    }
+
+    /** @return the clip envelope of points */
+    Envelope getPointEnvelope() {
+        return pointEnvelope;
+    }
+
+    /**
+     * Returns the buffer of the layer's query. Only the buffer of the geometry type bound by the
+     * schema is used, the largest buffer if the schema allows mixed geometry types.
+     *
+     * @param geometryBinding the geometry binding of the layer's schema
+     * @return the buffer in tile units
+     */
+    int getQueryBuffer(Class<?> geometryBinding) {
+        if (Point.class.equals(geometryBinding) || MultiPoint.class.equals(geometryBinding)) {
+            return pointBuffer;
+        }
+        if (LineString.class.equals(geometryBinding)
+                || MultiLineString.class.equals(geometryBinding)) {
+            return lineBuffer;
+        }
+        if (Polygon.class.equals(geometryBinding) || MultiPolygon.class.equals(geometryBinding)) {
+            return polygonBuffer;
+        }
+        return Math.max(pointBuffer, Math.max(lineBuffer, polygonBuffer));
+    }
+}
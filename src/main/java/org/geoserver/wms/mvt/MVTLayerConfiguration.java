@@ -0,0 +1,729 @@
+package org.geoserver.wms.mvt;
+
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Per layer configuration of the MVT encoding. The configurations are registered in the
+ * application context (see {@link MVTStreamingMapResponse#setLayerConfigurations(java.util.Map)})
+ * and are looked up by the prefixed layer name or by the feature type name. Unset (null) values
+ * mean that the default behaviour applies.
+ */
+public class MVTLayerConfiguration {
+
+    /** the attributes written to the tile, null means that all attributes are written */
+    private List<String> attributes;
+
+    /** cell size of the point aggregation grid in tile units, null or 0 disables aggregation */
+    private Double aggregationGridSize;
+
+    /** numeric attributes aggregated per grid cell */
+    private List<String> aggregationAttributes;
+
+    /** maximum zoom level the points are aggregated at, null means all zoom levels */
+    private Integer aggregationMaxZoom;
+
+    /** cell size of the thinning grid in tile units, null or 0 disables thinning */
+    private Double densityGridSize;
+
+    /** maximum number of features kept per thinning grid cell */
+    private Integer densityMaxFeatures;
+
+    /** numeric attribute ranking the features when thinning, null to rank by feature id */
+    private String densityRankAttribute;
+
+    /** maximum zoom level the features are thinned out at, null means all zoom levels */
+    private Integer densityMaxZoom;
+
+    /** cell size of the grid accumulating skipped small polygons, null or 0 drops them */
+    private Double smallPolygonGridSize;
+
+    /** attributes whose values define the groups of coalesced features, null disables coalescing */
+    private List<String> coalesceAttributes;
+
+    /** maximum zoom level the features are coalesced at, null means all zoom levels */
+    private Integer coalesceMaxZoom;
+
+    /** maximum number of encoded bytes of the layer, null means unlimited */
+    private Integer maxBytes;
+
+    /** maximum number of features of the layer, null means unlimited */
+    private Integer maxFeatures;
+
+    /** maximum number of vertices of the layer, null means unlimited */
+    private Integer maxVertices;
+
+    /** numeric attribute ranking the features when the layer exceeds its budget */
+    private String rankAttribute;
+
+    /** maximum number of vertices of a single feature, null means unlimited */
+    private Integer maxFeatureVertices;
+
+    /** processing time of a single feature in milliseconds before a fast simplification is used */
+    private Integer featureDeadline;
+
+    /** number of coordinate units across the tile, null means the default extent (4096) */
+    private Integer extent;
+
+    /** extents keyed by the minimum zoom level they apply from, resolved into the extent */
+    private Map<Integer, Integer> zoomExtents;
+
+    /** buffer of the layer in pixels, null means the buffer of the request */
+    private Integer buffer;
+
+    /** buffers keyed by the minimum zoom level they apply from, resolved into the buffer */
+    private Map<Integer, Integer> zoomBuffers;
+
+    /** buffer of points in pixels, null means the buffer of the layer */
+    private Integer pointBuffer;
+
+    /** buffer of lines in pixels, null means the buffer of the layer */
+    private Integer lineBuffer;
+
+    /** buffer of polygons in pixels, null means the buffer of the layer */
+    private Integer polygonBuffer;
+
+    /** feature type of the layer's store the features are read from, null means the layer's own */
+    private String sourceTypeName;
+
+    /** source feature types keyed by the minimum zoom level they apply from */
+    private Map<Integer, String> zoomSourceTypeNames;
+
+    /** geometry attribute written to the tile, null means the default geometry */
+    private String geometryAttribute;
+
+    /** geometry attributes keyed by the minimum zoom level they apply from */
+    private Map<Integer, String> zoomGeometryAttributes;
+
+    /** zoom level the data gains no detail beyond, null means all zoom levels are queried */
+    private Integer maxNativeZoom;
+
+    public MVTLayerConfiguration() {}
+
+    /**
+     * Copy constructor, used to apply request specific overrides without changing the configured
+     * instance.
+     *
+     * @param other the configuration to copy
+     */
+    public MVTLayerConfiguration(MVTLayerConfiguration other) {
+        this.attributes = other.attributes;
+        this.aggregationGridSize = other.aggregationGridSize;
+        this.aggregationAttributes = other.aggregationAttributes;
+        this.aggregationMaxZoom = other.aggregationMaxZoom;
+        this.densityGridSize = other.densityGridSize;
+        this.densityMaxFeatures = other.densityMaxFeatures;
+        this.densityRankAttribute = other.densityRankAttribute;
+        this.densityMaxZoom = other.densityMaxZoom;
+        this.smallPolygonGridSize = other.smallPolygonGridSize;
+        this.coalesceAttributes = other.coalesceAttributes;
+        this.coalesceMaxZoom = other.coalesceMaxZoom;
+        this.maxBytes = other.maxBytes;
+        this.maxFeatures = other.maxFeatures;
+        this.maxVertices = other.maxVertices;
+        this.rankAttribute = other.rankAttribute;
+        this.maxFeatureVertices = other.maxFeatureVertices;
+        this.featureDeadline = other.featureDeadline;
+        this.extent = other.extent;
+        this.zoomExtents = other.zoomExtents;
+        this.buffer = other.buffer;
+        this.zoomBuffers = other.zoomBuffers;
+        this.pointBuffer = other.pointBuffer;
+        this.lineBuffer = other.lineBuffer;
+        this.polygonBuffer = other.polygonBuffer;
+        this.sourceTypeName = other.sourceTypeName;
+        this.zoomSourceTypeNames = other.zoomSourceTypeNames;
+        this.geometryAttribute = other.geometryAttribute;
+        this.zoomGeometryAttributes = other.zoomGeometryAttributes;
+        this.maxNativeZoom = other.maxNativeZoom;
+    }
+
+    /**
+     * Overrides the values of this configuration with the values set in the other configuration.
+     *
+     * @param overrides the configuration containing the overriding values, typically built from
+     *     request parameters
+     */
+    public void override(MVTLayerConfiguration overrides) {
+        if (overrides.attributes != null) {
+            this.attributes = overrides.attributes;
+        }
+        if (overrides.aggregationGridSize != null) {
+            this.aggregationGridSize = overrides.aggregationGridSize;
+        }
+        if (overrides.aggregationAttributes != null) {
+            this.aggregationAttributes = overrides.aggregationAttributes;
+        }
+        if (overrides.aggregationMaxZoom != null) {
+            this.aggregationMaxZoom = overrides.aggregationMaxZoom;
+        }
+        if (overrides.densityGridSize != null) {
+            this.densityGridSize = overrides.densityGridSize;
+        }
+        if (overrides.densityMaxFeatures != null) {
+            this.densityMaxFeatures = overrides.densityMaxFeatures;
+        }
+        if (overrides.densityRankAttribute != null) {
+            this.densityRankAttribute = overrides.densityRankAttribute;
+        }
+        if (overrides.densityMaxZoom != null) {
+            this.densityMaxZoom = overrides.densityMaxZoom;
+        }
+        if (overrides.smallPolygonGridSize != null) {
+            this.smallPolygonGridSize = overrides.smallPolygonGridSize;
+        }
+        if (overrides.coalesceAttributes != null) {
+            this.coalesceAttributes = overrides.coalesceAttributes;
+        }
+        if (overrides.coalesceMaxZoom != null) {
+            this.coalesceMaxZoom = overrides.coalesceMaxZoom;
+        }
+        if (overrides.maxBytes != null) {
+            this.maxBytes = overrides.maxBytes;
+        }
+        if (overrides.maxFeatures != null) {
+            this.maxFeatures = overrides.maxFeatures;
+        }
+        if (overrides.maxVertices != null) {
+            this.maxVertices = overrides.maxVertices;
+        }
+        if (overrides.rankAttribute != null) {
+            this.rankAttribute = overrides.rankAttribute;
+        }
+        if (overrides.maxFeatureVertices != null) {
+            this.maxFeatureVertices = overrides.maxFeatureVertices;
+        }
+        if (overrides.featureDeadline != null) {
+            this.featureDeadline = overrides.featureDeadline;
+        }
+        if (overrides.extent != null) {
+            // an explicitly requested extent applies to all zoom levels
+            this.extent = overrides.extent;
+            this.zoomExtents = null;
+        }
+        if (overrides.zoomExtents != null) {
+            this.zoomExtents = overrides.zoomExtents;
+        }
+        if (overrides.buffer != null) {
+            this.buffer = overrides.buffer;
+            this.zoomBuffers = null;
+        }
+        if (overrides.zoomBuffers != null) {
+            this.zoomBuffers = overrides.zoomBuffers;
+        }
+        if (overrides.pointBuffer != null) {
+            this.pointBuffer = overrides.pointBuffer;
+        }
+        if (overrides.lineBuffer != null) {
+            this.lineBuffer = overrides.lineBuffer;
+        }
+        if (overrides.polygonBuffer != null) {
+            this.polygonBuffer = overrides.polygonBuffer;
+        }
+        if (overrides.sourceTypeName != null) {
+            this.sourceTypeName = overrides.sourceTypeName;
+            this.zoomSourceTypeNames = null;
+        }
+        if (overrides.zoomSourceTypeNames != null) {
+            this.zoomSourceTypeNames = overrides.zoomSourceTypeNames;
+        }
+        if (overrides.geometryAttribute != null) {
+            this.geometryAttribute = overrides.geometryAttribute;
+            this.zoomGeometryAttributes = null;
+        }
+        if (overrides.zoomGeometryAttributes != null) {
+            this.zoomGeometryAttributes = overrides.zoomGeometryAttributes;
+        }
+        if (overrides.maxNativeZoom != null) {
+            this.maxNativeZoom = overrides.maxNativeZoom;
+        }
+    }
+
+    /**
+     * Resolves the zoom dependent values of this configuration.
+     *
+     * @param zoomLevel the requested zoom level
+     */
+    void applyZoomLevel(int zoomLevel) {
+        if (aggregationMaxZoom != null && zoomLevel > aggregationMaxZoom) {
+            this.aggregationGridSize = null;
+        }
+        if (densityMaxZoom != null && zoomLevel > densityMaxZoom) {
+            this.densityGridSize = null;
+        }
+        if (coalesceMaxZoom != null && zoomLevel > coalesceMaxZoom) {
+            this.coalesceAttributes = null;
+        }
+        Integer zoomExtent = getZoomValue(zoomExtents, zoomLevel);
+        if (zoomExtent != null) {
+            this.extent = zoomExtent;
+        }
+        Integer zoomBuffer = getZoomValue(zoomBuffers, zoomLevel);
+        if (zoomBuffer != null) {
+            this.buffer = zoomBuffer;
+        }
+        String zoomSourceTypeName = getZoomValue(zoomSourceTypeNames, zoomLevel);
+        if (zoomSourceTypeName != null) {
+            this.sourceTypeName = zoomSourceTypeName;
+        }
+        String zoomGeometryAttribute = getZoomValue(zoomGeometryAttributes, zoomLevel);
+        if (zoomGeometryAttribute != null) {
+            this.geometryAttribute = zoomGeometryAttribute;
+        }
+    }
+
+    /**
+     * @param zoomValues values keyed by the minimum zoom level they apply from
+     * @param zoomLevel the requested zoom level
+     * @return the value applying to the zoom level or null if there is none
+     */
+    private static <T> T getZoomValue(Map<Integer, T> zoomValues, int zoomLevel) {
+        if (zoomValues == null || zoomValues.isEmpty()) {
+            return null;
+        }
+        Map.Entry<Integer, T> entry = new TreeMap<>(zoomValues).floorEntry(zoomLevel);
+        return entry != null ? entry.getValue() : null;
+    }
+
+    public List<String> getAttributes() {
+        return attributes;
+    }
+
+    /**
+     * Whitelist of attributes to be fetched from the datastore and written to the tile. The
+     * geometry and the attributes needed to evaluate the style are fetched anyway but only the
+     * whitelisted ones are encoded.
+     *
+     * @param attributes the attribute names, null to write all attributes
+     */
+    public void setAttributes(List<String> attributes) {
+        this.attributes = attributes;
+    }
+
+    public Double getAggregationGridSize() {
+        return aggregationGridSize;
+    }
+
+    /**
+     * Enables the aggregation of points. Points are snapped into a grid of the given cell size
+     * (in tile units, the tile has 256 units) and one point feature is written per occupied cell.
+     *
+     * @param aggregationGridSize the cell size, null or 0 to disable the aggregation
+     */
+    public void setAggregationGridSize(Double aggregationGridSize) {
+        this.aggregationGridSize = aggregationGridSize;
+    }
+
+    /** @return true if points of the layer are aggregated */
+    boolean isAggregationEnabled() {
+        return aggregationGridSize != null && aggregationGridSize > 0;
+    }
+
+    public List<String> getAggregationAttributes() {
+        return aggregationAttributes;
+    }
+
+    /**
+     * Numeric attributes aggregated per grid cell. For each attribute the sum, minimum and maximum
+     * are written (as {@code <attribute>_sum}, {@code <attribute>_min} and {@code
+     * <attribute>_max}) in addition to the point count.
+     *
+     * @param aggregationAttributes the attribute names
+     */
+    public void setAggregationAttributes(List<String> aggregationAttributes) {
+        this.aggregationAttributes = aggregationAttributes;
+    }
+
+    public Integer getAggregationMaxZoom() {
+        return aggregationMaxZoom;
+    }
+
+    /**
+     * Maximum zoom level at which points are aggregated, above the points are written unchanged.
+     *
+     * @param aggregationMaxZoom the zoom level, null to aggregate at all zoom levels
+     */
+    public void setAggregationMaxZoom(Integer aggregationMaxZoom) {
+        this.aggregationMaxZoom = aggregationMaxZoom;
+    }
+
+    public Double getDensityGridSize() {
+        return densityGridSize;
+    }
+
+    /**
+     * Enables the thinning of dense point layers. At most {@link #getDensityMaxFeatures()} points
+     * are kept per cell of a grid of the given cell size (in tile units, use a divisor of 256).
+     * Unlike the aggregation the kept points are written with their own attributes. Since the
+     * grid is aligned to the tile origin, the points kept at a zoom level are also kept at all
+     * higher zoom levels.
+     *
+     * @param densityGridSize the cell size, null or 0 to disable the thinning
+     */
+    public void setDensityGridSize(Double densityGridSize) {
+        this.densityGridSize = densityGridSize;
+    }
+
+    /** @return true if points of the layer are thinned out */
+    boolean isDensityFilterEnabled() {
+        return densityGridSize != null
+                && densityGridSize > 0
+                && densityMaxFeatures != null
+                && densityMaxFeatures > 0;
+    }
+
+    public Integer getDensityMaxFeatures() {
+        return densityMaxFeatures;
+    }
+
+    /**
+     * Maximum number of points kept per grid cell when thinning.
+     *
+     * @param densityMaxFeatures the number of points
+     */
+    public void setDensityMaxFeatures(Integer densityMaxFeatures) {
+        this.densityMaxFeatures = densityMaxFeatures;
+    }
+
+    public String getDensityRankAttribute() {
+        return densityRankAttribute;
+    }
+
+    /**
+     * Numeric attribute choosing the points kept per grid cell, points with higher values are
+     * kept first. Without a rank attribute the points are chosen by a stable hash of the feature
+     * id.
+     *
+     * @param densityRankAttribute the attribute name, null to choose by feature id
+     */
+    public void setDensityRankAttribute(String densityRankAttribute) {
+        this.densityRankAttribute = densityRankAttribute;
+    }
+
+    public Integer getDensityMaxZoom() {
+        return densityMaxZoom;
+    }
+
+    /**
+     * Maximum zoom level at which points are thinned out, above all points are written.
+     *
+     * @param densityMaxZoom the zoom level, null to thin out at all zoom levels
+     */
+    public void setDensityMaxZoom(Integer densityMaxZoom) {
+        this.densityMaxZoom = densityMaxZoom;
+    }
+
+    public Double getSmallPolygonGridSize() {
+        return smallPolygonGridSize;
+    }
+
+    /**
+     * Accumulates polygons smaller than the small geometry threshold instead of dropping them.
+     * The area of the skipped polygons is summed up per cell of a grid of the given cell size (in
+     * tile units) and a square of the accumulated area is written once it reaches the threshold.
+     *
+     * @param smallPolygonGridSize the cell size, null or 0 to drop small polygons
+     */
+    public void setSmallPolygonGridSize(Double smallPolygonGridSize) {
+        this.smallPolygonGridSize = smallPolygonGridSize;
+    }
+
+    public List<String> getCoalesceAttributes() {
+        return coalesceAttributes;
+    }
+
+    /**
+     * Coalesces the lines and polygons of features sharing the values of the given attributes
+     * into one feature per group (lines are merged, polygons are unioned). The coalesced features
+     * carry the given attributes only.
+     *
+     * @param coalesceAttributes the attribute names, null to disable coalescing
+     */
+    public void setCoalesceAttributes(List<String> coalesceAttributes) {
+        this.coalesceAttributes = coalesceAttributes;
+    }
+
+    /** @return true if lines and polygons of the layer are coalesced */
+    boolean isCoalescingEnabled() {
+        return coalesceAttributes != null && !coalesceAttributes.isEmpty();
+    }
+
+    public Integer getCoalesceMaxZoom() {
+        return coalesceMaxZoom;
+    }
+
+    /**
+     * Maximum zoom level at which features are coalesced, above the features are written
+     * unchanged.
+     *
+     * @param coalesceMaxZoom the zoom level, null to coalesce at all zoom levels
+     */
+    public void setCoalesceMaxZoom(Integer coalesceMaxZoom) {
+        this.coalesceMaxZoom = coalesceMaxZoom;
+    }
+
+    public Integer getMaxBytes() {
+        return maxBytes;
+    }
+
+    /**
+     * Maximum number of encoded bytes of the layer. A layer exceeding its budget is degraded step
+     * by step: the generalisation factor is raised, the small geometry threshold is raised, the
+     * lowest ranked features are dropped and finally the layer is truncated. The applied
+     * degradations are recorded in the layer {@link VectorTileEncoder#DEGRADATION_LAYER}.
+     *
+     * @param maxBytes the number of bytes, null for unlimited
+     */
+    public void setMaxBytes(Integer maxBytes) {
+        this.maxBytes = maxBytes;
+    }
+
+    public Integer getMaxFeatures() {
+        return maxFeatures;
+    }
+
+    /**
+     * Maximum number of features of the layer, see {@link #setMaxBytes(Integer)}. Reading the
+     * features stops once the layer is full.
+     *
+     * @param maxFeatures the number of features, null for unlimited
+     */
+    public void setMaxFeatures(Integer maxFeatures) {
+        this.maxFeatures = maxFeatures;
+    }
+
+    public Integer getMaxVertices() {
+        return maxVertices;
+    }
+
+    /**
+     * Maximum number of vertices of the layer, see {@link #setMaxBytes(Integer)}.
+     *
+     * @param maxVertices the number of vertices, null for unlimited
+     */
+    public void setMaxVertices(Integer maxVertices) {
+        this.maxVertices = maxVertices;
+    }
+
+    public String getRankAttribute() {
+        return rankAttribute;
+    }
+
+    /**
+     * Numeric attribute ranking the features of the layer. The features are read in descending
+     * rank order and the lowest ranked features are dropped first when the layer or tile exceeds
+     * its budget.
+     *
+     * @param rankAttribute the attribute name, null to keep the features in stream order
+     */
+    public void setRankAttribute(String rankAttribute) {
+        this.rankAttribute = rankAttribute;
+    }
+
+    public Integer getMaxFeatureVertices() {
+        return maxFeatureVertices;
+    }
+
+    /**
+     * Maximum number of vertices of a single feature. Larger geometries are first reduced to one
+     * vertex per pixel of the encoded tile, then simplified with a raised tolerance until they fit.
+     *
+     * @param maxFeatureVertices the number of vertices, null for unlimited
+     */
+    public void setMaxFeatureVertices(Integer maxFeatureVertices) {
+        this.maxFeatureVertices = maxFeatureVertices;
+    }
+
+    public Integer getFeatureDeadline() {
+        return featureDeadline;
+    }
+
+    /**
+     * Processing time of a single feature exceeding {@link #getMaxFeatureVertices()} after which
+     * the topology preserving simplification is replaced by a fast Douglas-Peucker simplification.
+     *
+     * @param featureDeadline the time in milliseconds, null for no deadline
+     */
+    public void setFeatureDeadline(Integer featureDeadline) {
+        this.featureDeadline = featureDeadline;
+    }
+
+    public Integer getExtent() {
+        return extent;
+    }
+
+    /**
+     * Number of coordinate units across the tile the geometries of the layer are quantized to. A
+     * smaller extent (e.g. 512) encodes each vertex with fewer bytes and is usually sufficient at
+     * low zoom levels, clients scale the layer by its extent.
+     *
+     * @param extent the extent, null for the default extent (4096)
+     */
+    public void setExtent(Integer extent) {
+        this.extent = extent;
+    }
+
+    public Map<Integer, Integer> getZoomExtents() {
+        return zoomExtents;
+    }
+
+    /**
+     * Zoom dependent extents, keyed by the minimum zoom level the extent applies from. E.g. {@code
+     * {0=512, 9=4096}} encodes the layer with an extent of 512 up to zoom level 8 and with 4096
+     * above. Zoom levels below the lowest key use {@link #getExtent()}.
+     *
+     * @param zoomExtents the extents keyed by minimum zoom level, null to use {@link #getExtent()}
+     */
+    public void setZoomExtents(Map<Integer, Integer> zoomExtents) {
+        this.zoomExtents = zoomExtents;
+    }
+
+    public Integer getBuffer() {
+        return buffer;
+    }
+
+    /**
+     * Buffer of the layer in pixels, replacing the buffer of the request for this layer. The
+     * buffer widens the layer's query and its clip envelope, e.g. labelled points need a large
+     * buffer while polygons need very little.
+     *
+     * @param buffer the buffer, null for the buffer of the request
+     */
+    public void setBuffer(Integer buffer) {
+        this.buffer = buffer;
+    }
+
+    public Map<Integer, Integer> getZoomBuffers() {
+        return zoomBuffers;
+    }
+
+    /**
+     * Zoom dependent buffers, keyed by the minimum zoom level the buffer applies from (see {@link
+     * #setZoomExtents(Map)}). Zoom levels below the lowest key use {@link #getBuffer()}.
+     *
+     * @param zoomBuffers the buffers keyed by minimum zoom level, null to use {@link #getBuffer()}
+     */
+    public void setZoomBuffers(Map<Integer, Integer> zoomBuffers) {
+        this.zoomBuffers = zoomBuffers;
+    }
+
+    public Integer getPointBuffer() {
+        return pointBuffer;
+    }
+
+    /**
+     * Buffer of point geometries in pixels.
+     *
+     * @param pointBuffer the buffer, null for the buffer of the layer
+     */
+    public void setPointBuffer(Integer pointBuffer) {
+        this.pointBuffer = pointBuffer;
+    }
+
+    public Integer getLineBuffer() {
+        return lineBuffer;
+    }
+
+    /**
+     * Buffer of line geometries in pixels.
+     *
+     * @param lineBuffer the buffer, null for the buffer of the layer
+     */
+    public void setLineBuffer(Integer lineBuffer) {
+        this.lineBuffer = lineBuffer;
+    }
+
+    public Integer getPolygonBuffer() {
+        return polygonBuffer;
+    }
+
+    /**
+     * Buffer of polygon geometries in pixels.
+     *
+     * @param polygonBuffer the buffer, null for the buffer of the layer
+     */
+    public void setPolygonBuffer(Integer polygonBuffer) {
+        this.polygonBuffer = polygonBuffer;
+    }
+
+    /** @return true if the layer replaces the buffer of the request for any geometry type */
+    boolean isBufferConfigured() {
+        return buffer != null || pointBuffer != null || lineBuffer != null || polygonBuffer != null;
+    }
+
+    public String getSourceTypeName() {
+        return sourceTypeName;
+    }
+
+    /**
+     * Feature type of the layer's store the features are read from instead of the layer's own
+     * feature type, e.g. a pre-generalized table. The feature type has to provide the attributes
+     * used by the style, the definition query and this configuration. The features are written
+     * with the name of the layer.
+     *
+     * @param sourceTypeName the feature type name, null to read the layer's own feature type
+     */
+    public void setSourceTypeName(String sourceTypeName) {
+        this.sourceTypeName = sourceTypeName;
+    }
+
+    public Map<Integer, String> getZoomSourceTypeNames() {
+        return zoomSourceTypeNames;
+    }
+
+    /**
+     * Zoom dependent source feature types, keyed by the minimum zoom level the feature type is
+     * read from (see {@link #setZoomExtents(Map)}). E.g. {@code {0=roads_gen, 9=roads}} reads a
+     * pre-generalized table up to zoom level 8 and the full resolution table above.
+     *
+     * @param zoomSourceTypeNames the feature type names keyed by minimum zoom level
+     */
+    public void setZoomSourceTypeNames(Map<Integer, String> zoomSourceTypeNames) {
+        this.zoomSourceTypeNames = zoomSourceTypeNames;
+    }
+
+    public String getGeometryAttribute() {
+        return geometryAttribute;
+    }
+
+    /**
+     * Geometry attribute used instead of the default geometry, e.g. a simplified or centroid
+     * column. The attribute is used for the BBOX filter of the query and written as the geometry
+     * of the features.
+     *
+     * @param geometryAttribute the attribute name, null for the default geometry
+     */
+    public void setGeometryAttribute(String geometryAttribute) {
+        this.geometryAttribute = geometryAttribute;
+    }
+
+    public Map<Integer, String> getZoomGeometryAttributes() {
+        return zoomGeometryAttributes;
+    }
+
+    /**
+     * Zoom dependent geometry attributes, keyed by the minimum zoom level the attribute is used
+     * from (see {@link #setZoomExtents(Map)}).
+     *
+     * @param zoomGeometryAttributes the attribute names keyed by minimum zoom level
+     */
+    public void setZoomGeometryAttributes(Map<Integer, String> zoomGeometryAttributes) {
+        this.zoomGeometryAttributes = zoomGeometryAttributes;
+    }
+
+    public Integer getMaxNativeZoom() {
+        return maxNativeZoom;
+    }
+
+    /**
+     * Zoom level the data of the layer gains no detail beyond, e.g. 14 for parcels. Tiles above
+     * this zoom level are sliced from the ancestor tile at this zoom level, which is rendered once
+     * and cached, instead of querying the datastore with ever smaller bounding boxes.
+     *
+     * @param maxNativeZoom the zoom level, null to query the layer at all zoom levels
+     */
+    public void setMaxNativeZoom(Integer maxNativeZoom) {
+        this.maxNativeZoom = maxNativeZoom;
+    }
+}
@@ -0,0 +1,193 @@
+package org.geoserver.wms.mvt;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import org.geotools.api.feature.simple.SimpleFeature;
+import org.locationtech.jts.geom.Coordinate;
+import org.locationtech.jts.geom.GeometryFactory;
+
+/**
+ * Aggregates points into a grid in tile space. Per occupied cell the number of points, their mean
+ * position and the sum, minimum and maximum of numeric attributes are collected. The cells are
+ * kept in a primitive open addressing hash map, so memory and output size are bounded by the grid
+ * resolution instead of the number of points.
+ *
+ * <p>The grid is aligned to the tile origin, so cells in the buffer of adjacent tiles coincide.
+ */
+final class MVTPointAggregator {
+
+    static final String COUNT_ATTRIBUTE = "count";
+
+    private static final int INITIAL_CAPACITY = 256;
+
+    /** number of values per cell and attribute: sum, min, max */
+    private static final int STRIDE = 3;
+
+    private final double gridSize;
+
+    private final String[] attributes;
+
+    private long[] keys;
+
+    private boolean[] used;
+
+    private int[] counts;
+
+    private double[] sumX;
+
+    private double[] sumY;
+
+    private double[] values;
+
+    private int size;
+
+    /**
+     * Creates the aggregator.
+     *
+     * @param gridSize the cell size in tile units
+     * @param attributes the numeric attributes to be aggregated, may be null
+     */
+    MVTPointAggregator(double gridSize, List<String> attributes) {
+        this.gridSize = gridSize;
+        this.attributes = attributes != null ? attributes.toArray(new String[0]) : new String[0];
+        allocate(INITIAL_CAPACITY);
+    }
+
+    private void allocate(int capacity) {
+        keys = new long[capacity];
+        used = new boolean[capacity];
+        counts = new int[capacity];
+        sumX = new double[capacity];
+        sumY = new double[capacity];
+        values = new double[capacity * attributes.length * STRIDE];
+    }
+
+    /**
+     * Adds a point in tile coordinates.
+     *
+     * @param x the x coordinate in tile units
+     * @param y the y coordinate in tile units
+     * @param feature the feature the point belongs to, source of the aggregated attributes
+     */
+    void add(double x, double y, SimpleFeature feature) {
+        long cellX = (long) Math.floor(x / gridSize);
+        long cellY = (long) Math.floor(y / gridSize);
+        int slot = getOrAddSlot((cellX << 32) ^ (cellY & 0xFFFFFFFFL));
+        counts[slot]++;
+        sumX[slot] += x;
+        sumY[slot] += y;
+        for (int i = 0; i < attributes.length; i++) {
+            Object value = feature.getAttribute(attributes[i]);
+            if (value instanceof Number) {
+                double number = ((Number) value).doubleValue();
+                int offset = (slot * attributes.length + i) * STRIDE;
+                values[offset] += number;
+                values[offset + 1] = Math.min(values[offset + 1], number);
+                values[offset + 2] = Math.max(values[offset + 2], number);
+            }
+        }
+    }
+
+    private int getOrAddSlot(long key) {
+        int mask = keys.length - 1;
+        int slot = hash(key) & mask;
+        while (used[slot]) {
+            if (keys[slot] == key) {
+                return slot;
+            }
+            slot = (slot + 1) & mask;
+        }
+        if ((size + 1) * 2 > keys.length) {
+            grow();
+            return getOrAddSlot(key);
+        }
+        used[slot] = true;
+        keys[slot] = key;
+        counts[slot] = 0;
+        sumX[slot] = 0;
+        sumY[slot] = 0;
+        for (int i = 0; i < attributes.length; i++) {
+            int offset = (slot * attributes.length + i) * STRIDE;
+            values[offset] = 0;
+            values[offset + 1] = Double.POSITIVE_INFINITY;
+            values[offset + 2] = Double.NEGATIVE_INFINITY;
+        }
+        size++;
+        return slot;
+    }
+
+    private static int hash(long key) {
+        long hash = key * 0x9E3779B97F4A7C15L;
+        return (int) (hash ^ (hash >>> 32));
+    }
+
+    private void grow() {
+        long[] oldKeys = keys;
+        boolean[] oldUsed = used;
+        int[] oldCounts = counts;
+        double[] oldSumX = sumX;
+        double[] oldSumY = sumY;
+        double[] oldValues = values;
+        allocate(oldKeys.length * 2);
+        int mask = keys.length - 1;
+        int stride = attributes.length * STRIDE;
+        for (int oldSlot = 0; oldSlot < oldKeys.length; oldSlot++) {
+            if (!oldUsed[oldSlot]) {
+                continue;
+            }
+            int slot = hash(oldKeys[oldSlot]) & mask;
+            while (used[slot]) {
+                slot = (slot + 1) & mask;
+            }
+            used[slot] = true;
+            keys[slot] = oldKeys[oldSlot];
+            counts[slot] = oldCounts[oldSlot];
+            sumX[slot] = oldSumX[oldSlot];
+            sumY[slot] = oldSumY[oldSlot];
+            System.arraycopy(oldValues, oldSlot * stride, values, slot * stride, stride);
+        }
+    }
+
+    /** @return the number of occupied cells */
+    int size() {
+        return size;
+    }
+
+    /**
+     * Writes one point feature per occupied cell to the encoder and resets the aggregator.
+     *
+     * @param encoder the encoder to write to
+     * @param layerName the name of the layer
+     * @return true if at least one feature has been written
+     */
+    boolean writeTo(VectorTileEncoder encoder, String layerName) {
+        GeometryFactory geometryFactory = new GeometryFactory();
+        boolean written = size > 0;
+        for (int slot = 0; slot < keys.length; slot++) {
+            if (!used[slot]) {
+                continue;
+            }
+            Map<String, Object> attributeMap = new LinkedHashMap<>();
+            attributeMap.put(COUNT_ATTRIBUTE, counts[slot]);
+            for (int i = 0; i < attributes.length; i++) {
+                int offset = (slot * attributes.length + i) * STRIDE;
+                // no value present in this cell
+                if (values[offset + 1] > values[offset + 2]) {
+                    continue;
+                }
+                attributeMap.put(attributes[i] + "_sum", values[offset]);
+                attributeMap.put(attributes[i] + "_min", values[offset + 1]);
+                attributeMap.put(attributes[i] + "_max", values[offset + 2]);
+            }
+            Coordinate position =
+                    new Coordinate(sumX[slot] / counts[slot], sumY[slot] / counts[slot]);
+            encoder.addFeature(
+                    layerName, attributeMap, null, geometryFactory.createPoint(position));
+        }
+        Arrays.fill(used, false);
+        size = 0;
+        return written;
+    }
+}
@@ -0,0 +1,348 @@
+package org.geoserver.wms.mvt;
+
+import static org.geoserver.wms.mvt.MVTStreamingMapResponse.DEFAULT_GENERALISATION_FACTOR;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Logger;
+import org.geotools.geometry.jts.GeometryClipper;
+import org.geotools.util.logging.Logging;
+import org.locationtech.jts.geom.Coordinate;
+import org.locationtech.jts.geom.Envelope;
+import org.locationtech.jts.geom.Geometry;
+import org.locationtech.jts.geom.GeometryFactory;
+import org.locationtech.jts.geom.LineString;
+import org.locationtech.jts.geom.Point;
+import org.locationtech.jts.operation.linemerge.LineMerger;
+import org.locationtech.jts.operation.union.UnaryUnionOp;
+
+/**
+ * Builds a tile pyramid bottom up. Only the tiles of the highest zoom level are rendered from the
+ * datastore, each parent tile is derived from its four children: their layers are decoded and
+ * merged, the geometries are scaled by 0.5 and simplified again with the generalisation factor of
+ * the parent's zoom level, and small geometries are dropped like in rendered tiles. Low zoom
+ * levels, usually the most expensive to render, become the cheapest ones to seed.
+ *
+ * <p>Each child contributes the part of its features within its quadrant of the parent (and the
+ * parent's buffer on the outer sides), so features crossing the quadrants are not duplicated.
+ * Fragments of the same feature (same layer and feature id) are stitched: polygons are unioned,
+ * lines merged.
+ */
+public class MVTPyramidBuilder {
+
+    private static final Logger LOGGER = Logging.getLogger(MVTPyramidBuilder.class);
+
+    private static final GeometryFactory GEOMETRY_FACTORY = new GeometryFactory();
+
+    /** size of a tile in tile units */
+    private static final int TILE_SIZE = 256;
+
+    /** Renders the tiles of the highest zoom level, e.g. by a GetMap request. */
+    public interface TileRenderer {
+
+        /**
+         * @param zoomLevel the zoom level
+         * @param column the tile column
+         * @param row the tile row
+         * @return the encoded tile, null or empty if the tile is empty
+         * @throws IOException if the tile cannot be rendered
+         */
+        byte[] render(int zoomLevel, long column, long row) throws IOException;
+    }
+
+    /** Receives the tiles of the pyramid, e.g. to store them in a tile cache. */
+    public interface TileWriter {
+
+        /**
+         * @param zoomLevel the zoom level
+         * @param column the tile column
+         * @param row the tile row
+         * @param tile the encoded tile, empty if the tile is empty
+         * @throws IOException if the tile cannot be stored
+         */
+        void write(int zoomLevel, long column, long row, byte[] tile) throws IOException;
+    }
+
+    private final Map<Integer, Double> genFactors;
+
+    private final double smallGeometryThreshold;
+
+    private int buffer;
+
+    private boolean avoidEmptyProto;
+
+    private MVTBudget tileBudget;
+
+    /**
+     * @param genFactors generalisation factors per zoom level, the default factor applies to the
+     *     zoom levels without a factor
+     * @param smallGeometryThreshold threshold in length / area below which geometries are dropped
+     */
+    public MVTPyramidBuilder(Map<Integer, Double> genFactors, double smallGeometryThreshold) {
+        this.genFactors = genFactors;
+        this.smallGeometryThreshold = smallGeometryThreshold;
+    }
+
+    /**
+     * Builds the tile and all its descendants down to the highest zoom level. The tiles are
+     * written depth first, every parent after its children.
+     *
+     * @param zoomLevel the zoom level of the tile
+     * @param column the column of the tile
+     * @param row the row of the tile
+     * @param maxZoomLevel the highest zoom level, rendered by the renderer
+     * @param renderer renders the tiles of the highest zoom level
+     * @param writer receives the tiles
+     * @return the encoded tile
+     * @throws IOException if a tile cannot be rendered, decoded or written
+     */
+    public byte[] build(
+            int zoomLevel,
+            long column,
+            long row,
+            int maxZoomLevel,
+            TileRenderer renderer,
+            TileWriter writer)
+            throws IOException {
+        byte[] tile;
+        if (zoomLevel >= maxZoomLevel) {
+            tile = renderer.render(zoomLevel, column, row);
+        } else {
+            byte[][] children = new byte[4][];
+            for (int i = 0; i < 4; i++) {
+                children[i] =
+                        build(
+                                zoomLevel + 1,
+                                2 * column + i % 2,
+                                2 * row + i / 2,
+                                maxZoomLevel,
+                                renderer,
+                                writer);
+            }
+            tile = merge(zoomLevel, children);
+        }
+        if (tile == null) {
+            tile = new byte[0];
+        }
+        writer.write(zoomLevel, column, row, tile);
+        return tile;
+    }
+
+    /**
+     * Derives a tile from its four children.
+     *
+     * @param zoomLevel the zoom level of the tile
+     * @param children the encoded children, top left, top right, bottom left and bottom right,
+     *     null or empty if a child is empty
+     * @return the encoded tile
+     * @throws IOException if a child cannot be decoded
+     */
+    public byte[] merge(int zoomLevel, byte[][] children) throws IOException {
+        VectorTileEncoder encoder =
+                new VectorTileEncoder(
+                        4096,
+                        new Envelope(-buffer, TILE_SIZE + buffer, -buffer, TILE_SIZE + buffer),
+                        avoidEmptyProto,
+                        genFactors != null && genFactors.get(zoomLevel) != null
+                                ? genFactors.get(zoomLevel)
+                                : DEFAULT_GENERALISATION_FACTOR,
+                        smallGeometryThreshold);
+        encoder.setTileBudget(tileBudget);
+        // fragments per layer, keyed by feature id
+        Map<String, Map<Object, Fragments>> layers = new LinkedHashMap<>();
+        for (int i = 0; i < children.length; i++) {
+            if (children[i] == null || children[i].length == 0) {
+                continue;
+            }
+            VectorTile.Tile child = VectorTile.Tile.parseFrom(children[i]);
+            for (VectorTile.Tile.Layer layer : child.getLayersList()) {
+                if (VectorTileEncoder.DEGRADATION_LAYER.equals(layer.getName())) {
+                    // the parent records its own degradations
+                    continue;
+                }
+                encoder.setLayerExtent(layer.getName(), layer.getExtent());
+                Map<Object, Fragments> fragments =
+                        layers.computeIfAbsent(layer.getName(), name -> new LinkedHashMap<>());
+                for (MVTTileDecoder.Feature feature : MVTTileDecoder.decode(layer)) {
+                    Geometry geometry =
+                            toParent(feature.geometry, layer.getExtent(), i % 2, i / 2);
+                    if (geometry == null) {
+                        continue;
+                    }
+                    // features without id cannot be stitched
+                    Object key = feature.id != null ? feature.id : new Object();
+                    fragments.computeIfAbsent(key, k -> new Fragments(feature)).add(geometry);
+                }
+            }
+        }
+        for (Map.Entry<String, Map<Object, Fragments>> e : layers.entrySet()) {
+            if (avoidEmptyProto) {
+                encoder.getOrAddLayer(e.getKey());
+            }
+            for (Fragments fragments : e.getValue().values()) {
+                fragments.writeTo(encoder, e.getKey());
+            }
+        }
+        LOGGER.fine("merged " + layers.size() + " layers into a tile at zoom level " + zoomLevel);
+        return encoder.encode();
+    }
+
+    /**
+     * Clips the geometry of a child to its quadrant and transforms it to the tile units of the
+     * parent. The outer sides of the quadrant are not clipped, the encoder of the parent clips
+     * to the parent's buffer. Points on the inner borders belong to the quadrant right or below.
+     *
+     * @param geometry the geometry in the integer coordinates of the child
+     * @param extent the extent of the child's layer
+     * @param column the column of the child within the parent, 0 or 1
+     * @param row the row of the child within the parent, 0 or 1
+     * @return the geometry in the tile units of the parent or null if it is outside the quadrant
+     */
+    static Geometry toParent(Geometry geometry, int extent, int column, int row) {
+        double outside = 2.0 * extent;
+        Envelope quadrant =
+                new Envelope(
+                        column == 0 ? -outside : 0,
+                        column == 0 ? extent : extent + outside,
+                        row == 0 ? -outside : 0,
+                        row == 0 ? extent : extent + outside);
+        Geometry clipped;
+        if (geometry.getDimension() == 0) {
+            List<Point> points = new ArrayList<>();
+            for (Coordinate coordinate : geometry.getCoordinates()) {
+                if ((column == 0 ? coordinate.x < extent : coordinate.x >= 0)
+                        && (row == 0 ? coordinate.y < extent : coordinate.y >= 0)) {
+                    points.add(GEOMETRY_FACTORY.createPoint(coordinate));
+                }
+            }
+            clipped = points.isEmpty() ? null : GEOMETRY_FACTORY.buildGeometry(points);
+        } else {
+            clipped = new GeometryClipper(quadrant).clipSafe(geometry, false, 0);
+        }
+        if (clipped == null || clipped.isEmpty()) {
+            return null;
+        }
+        double scale = TILE_SIZE / 2.0 / extent;
+        // the decoded geometries are not shared, they can be transformed in place
+        clipped.apply(
+                (Coordinate coordinate) -> {
+                    coordinate.x = (column * extent + coordinate.x) * scale;
+                    coordinate.y = (row * extent + coordinate.y) * scale;
+                });
+        clipped.geometryChanged();
+        return clipped;
+    }
+
+    public int getBuffer() {
+        return buffer;
+    }
+
+    /**
+     * Buffer of the derived tiles in tile units. It should not be larger than half of the buffer
+     * of the rendered tiles, since the children cover the parent's buffer with their own buffer.
+     *
+     * @param buffer the buffer
+     */
+    public void setBuffer(int buffer) {
+        this.buffer = Math.max(0, buffer);
+    }
+
+    public boolean isAvoidEmptyProto() {
+        return avoidEmptyProto;
+    }
+
+    /**
+     * Whether derived tiles without features contain the layer messages of their children instead
+     * of being empty, like the ENV parameter {@code avoid_empty_proto}.
+     *
+     * @param avoidEmptyProto true to write the layer messages
+     */
+    public void setAvoidEmptyProto(boolean avoidEmptyProto) {
+        this.avoidEmptyProto = avoidEmptyProto;
+    }
+
+    /**
+     * Limits the derived tiles like rendered tiles are limited (see {@link
+     * MVTStreamingMapResponse#setMaxTileBytes(Integer)}).
+     *
+     * @param maxBytes the number of bytes, null for unlimited
+     * @param maxFeatures the number of features, null for unlimited
+     * @param maxVertices the number of vertices, null for unlimited
+     */
+    public void setTileLimits(Integer maxBytes, Integer maxFeatures, Integer maxVertices) {
+        this.tileBudget = MVTBudget.of(maxBytes, maxFeatures, maxVertices);
+    }
+
+    /** The fragments of a feature in the four children, per geometry dimension. */
+    private static final class Fragments {
+
+        final MVTTileDecoder.Feature feature;
+
+        final List<Geometry> points = new ArrayList<>();
+
+        final List<Geometry> lines = new ArrayList<>();
+
+        final List<Geometry> polygons = new ArrayList<>();
+
+        Fragments(MVTTileDecoder.Feature feature) {
+            this.feature = feature;
+        }
+
+        void add(Geometry geometry) {
+            switch (geometry.getDimension()) {
+                case 0:
+                    points.add(geometry);
+                    break;
+                case 1:
+                    lines.add(geometry);
+                    break;
+                default:
+                    polygons.add(geometry);
+            }
+        }
+
+        void writeTo(VectorTileEncoder encoder, String layerName) {
+            String id = feature.getIdString();
+            if (!points.isEmpty()) {
+                encoder.addFeature(layerName, feature.attributes, id, combine(points));
+            }
+            if (!lines.isEmpty()) {
+                encoder.addFeature(layerName, feature.attributes, id, mergeLines());
+            }
+            if (!polygons.isEmpty()) {
+                encoder.addFeature(layerName, feature.attributes, id, unionPolygons());
+            }
+        }
+
+        private Geometry combine(List<Geometry> geometries) {
+            return geometries.size() == 1
+                    ? geometries.get(0)
+                    : GEOMETRY_FACTORY.buildGeometry(geometries);
+        }
+
+        private Geometry mergeLines() {
+            if (lines.size() == 1) {
+                return lines.get(0);
+            }
+            LineMerger merger = new LineMerger();
+            merger.add(lines);
+            List<LineString> merged = new ArrayList<>(merger.getMergedLineStrings());
+            return GEOMETRY_FACTORY.buildGeometry(merged);
+        }
+
+        private Geometry unionPolygons() {
+            if (polygons.size() == 1) {
+                return polygons.get(0);
+            }
+            try {
+                return UnaryUnionOp.union(polygons, GEOMETRY_FACTORY);
+            } catch (RuntimeException e) {
+                LOGGER.fine("Fragments cannot be unioned, concatenating them: " + e.getMessage());
+                return combine(polygons);
+            }
+        }
+    }
+}
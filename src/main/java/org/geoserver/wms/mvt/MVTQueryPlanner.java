@@ -0,0 +1,268 @@
+package org.geoserver.wms.mvt;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import org.geotools.api.filter.And;
+import org.geotools.api.filter.BinaryLogicOperator;
+import org.geotools.api.filter.Filter;
+import org.geotools.api.filter.FilterFactory;
+import org.geotools.api.filter.Not;
+import org.geotools.api.filter.Or;
+import org.geotools.api.filter.PropertyIsEqualTo;
+import org.geotools.api.filter.expression.Expression;
+import org.geotools.api.filter.expression.Function;
+import org.geotools.api.filter.expression.Literal;
+import org.geotools.api.filter.expression.PropertyName;
+import org.geotools.factory.CommonFactoryFinder;
+import org.geotools.filter.visitor.DefaultFilterVisitor;
+import org.geotools.filter.visitor.SimplifyingFilterVisitor;
+
+/**
+ * Builds the filter sent to the datastore from the filters of the rules in scale. The filter
+ * selects a superset of the features matched by the rules, the exact rule evaluation is done by
+ * {@link MVTStylePlan} while writing the features.
+ *
+ * <p>Parts of rule filters that datastores usually cannot translate (filters containing functions)
+ * are relaxed to {@link Filter#INCLUDE}, so they do not turn the whole query into a post filter.
+ * IN lists are expanded into equal comparisons and merged per property, terms shared by all rules
+ * are factored out and the result is simplified with a {@link SimplifyingFilterVisitor}.
+ */
+final class MVTQueryPlanner {
+
+    private static final FilterFactory FF = CommonFactoryFinder.getFilterFactory();
+
+    private MVTQueryPlanner() {}
+
+    /**
+     * Builds the query filter for the rules in scale.
+     *
+     * @param ruleFilters the filters of the rules in scale that have a filter
+     * @return the filter, {@link Filter#INCLUDE} if all features are needed or {@link
+     *     Filter#EXCLUDE} if no feature can match
+     */
+    static Filter buildQueryFilter(List<Filter> ruleFilters) {
+        List<Filter> relaxed = new ArrayList<>();
+        for (Filter ruleFilter : ruleFilters) {
+            Filter filter = relax(ruleFilter);
+            if (filter == Filter.INCLUDE) {
+                return Filter.INCLUDE;
+            }
+            if (filter != Filter.EXCLUDE) {
+                relaxed.add(filter);
+            }
+        }
+        if (relaxed.isEmpty()) {
+            return Filter.EXCLUDE;
+        }
+        Filter filter = simplify(relaxed.size() == 1 ? relaxed.get(0) : FF.or(relaxed));
+        filter = factorOut(mergeInLists(filter));
+        return simplify(filter);
+    }
+
+    private static Filter simplify(Filter filter) {
+        return (Filter) filter.accept(new SimplifyingFilterVisitor(), null);
+    }
+
+    /**
+     * Relaxes the filter to a filter that can be handled by datastores and matches at least the
+     * same features.
+     */
+    private static Filter relax(Filter filter) {
+        if (filter == null || filter == Filter.INCLUDE || filter == Filter.EXCLUDE) {
+            return filter == null ? Filter.INCLUDE : filter;
+        }
+        if (filter instanceof And) {
+            List<Filter> children = new ArrayList<>();
+            for (Filter child : ((And) filter).getChildren()) {
+                Filter relaxed = relax(child);
+                if (relaxed == Filter.EXCLUDE) {
+                    return Filter.EXCLUDE;
+                }
+                if (relaxed != Filter.INCLUDE) {
+                    children.add(relaxed);
+                }
+            }
+            return combine(children, true);
+        }
+        if (filter instanceof Or) {
+            List<Filter> children = new ArrayList<>();
+            for (Filter child : ((Or) filter).getChildren()) {
+                Filter relaxed = relax(child);
+                if (relaxed == Filter.INCLUDE) {
+                    return Filter.INCLUDE;
+                }
+                if (relaxed != Filter.EXCLUDE) {
+                    children.add(relaxed);
+                }
+            }
+            return children.isEmpty() ? Filter.EXCLUDE : combine(children, false);
+        }
+        if (filter instanceof Not) {
+            // a relaxed filter matches more features, its negation would match less
+            Filter child = ((Not) filter).getFilter();
+            Filter expanded = expandInFunction(child);
+            return !containsFunction(expanded) ? FF.not(expanded) : Filter.INCLUDE;
+        }
+        Filter expanded = expandInFunction(filter);
+        return !containsFunction(expanded) ? expanded : Filter.INCLUDE;
+    }
+
+    private static Filter combine(List<Filter> children, boolean and) {
+        if (children.isEmpty()) {
+            return Filter.INCLUDE;
+        }
+        if (children.size() == 1) {
+            return children.get(0);
+        }
+        return and ? FF.and(children) : FF.or(children);
+    }
+
+    /** Expands {@code in(property, literal, ...) = true} into an OR of equal comparisons. */
+    private static Filter expandInFunction(Filter filter) {
+        if (!(filter instanceof PropertyIsEqualTo)) {
+            return filter;
+        }
+        PropertyIsEqualTo equalTo = (PropertyIsEqualTo) filter;
+        Expression function = equalTo.getExpression1();
+        Expression result = equalTo.getExpression2();
+        if (function instanceof Literal) {
+            function = equalTo.getExpression2();
+            result = equalTo.getExpression1();
+        }
+        if (!(function instanceof Function)
+                || !(result instanceof Literal)
+                || !Boolean.TRUE.equals(((Literal) result).evaluate(null, Boolean.class))
+                || !((Function) function).getName().toLowerCase().matches("in\\d*")) {
+            return filter;
+        }
+        List<Expression> parameters = ((Function) function).getParameters();
+        if (parameters.size() < 2 || !(parameters.get(0) instanceof PropertyName)) {
+            return filter;
+        }
+        List<Filter> equals = new ArrayList<>();
+        for (Expression parameter : parameters.subList(1, parameters.size())) {
+            if (!(parameter instanceof Literal)) {
+                return filter;
+            }
+            equals.add(FF.equals(parameters.get(0), parameter));
+        }
+        return combine(equals, false);
+    }
+
+    private static boolean containsFunction(Filter filter) {
+        boolean[] found = {false};
+        filter.accept(
+                new DefaultFilterVisitor() {
+                    @Override
+                    public Object visit(Function expression, Object data) {
+                        found[0] = true;
+                        return data;
+                    }
+                },
+                null);
+        return found[0];
+    }
+
+    /**
+     * Merges the equal comparisons of an OR per property, removing duplicate values, e.g. {@code
+     * (frc IN (1, 2)) OR (frc IN (2, 3))} results in {@code frc = 1 OR frc = 2 OR frc = 3}.
+     */
+    private static Filter mergeInLists(Filter filter) {
+        if (filter instanceof And) {
+            List<Filter> children = new ArrayList<>();
+            for (Filter child : ((And) filter).getChildren()) {
+                children.add(mergeInLists(child));
+            }
+            return FF.and(children);
+        }
+        if (!(filter instanceof Or)) {
+            return filter;
+        }
+        Map<String, Set<Object>> inLists = new LinkedHashMap<>();
+        List<Filter> children = new ArrayList<>();
+        for (Filter child : ((Or) filter).getChildren()) {
+            String propertyName = getEqualToPropertyName(child);
+            if (propertyName != null) {
+                PropertyIsEqualTo equalTo = (PropertyIsEqualTo) child;
+                Literal literal =
+                        (Literal)
+                                (equalTo.getExpression2() instanceof Literal
+                                        ? equalTo.getExpression2()
+                                        : equalTo.getExpression1());
+                inLists.computeIfAbsent(propertyName, key -> new LinkedHashSet<>())
+                        .add(literal.getValue());
+            } else {
+                children.add(mergeInLists(child));
+            }
+        }
+        for (Map.Entry<String, Set<Object>> inList : inLists.entrySet()) {
+            for (Object value : inList.getValue()) {
+                children.add(FF.equals(FF.property(inList.getKey()), FF.literal(value)));
+            }
+        }
+        return combine(children, false);
+    }
+
+    /** @return the property name of a case sensitive property = literal comparison or null */
+    private static String getEqualToPropertyName(Filter filter) {
+        if (!(filter instanceof PropertyIsEqualTo)
+                || !((PropertyIsEqualTo) filter).isMatchingCase()) {
+            return null;
+        }
+        Expression expression1 = ((PropertyIsEqualTo) filter).getExpression1();
+        Expression expression2 = ((PropertyIsEqualTo) filter).getExpression2();
+        if (expression1 instanceof PropertyName && expression2 instanceof Literal) {
+            return ((PropertyName) expression1).getPropertyName();
+        }
+        if (expression2 instanceof PropertyName && expression1 instanceof Literal) {
+            return ((PropertyName) expression2).getPropertyName();
+        }
+        return null;
+    }
+
+    /**
+     * Factors out the terms shared by all branches of an OR, e.g. {@code (A AND B) OR (A AND C)}
+     * results in {@code A AND (B OR C)}, which lets the datastore use an index on A.
+     */
+    private static Filter factorOut(Filter filter) {
+        if (!(filter instanceof Or)) {
+            return filter;
+        }
+        List<Filter> branches = ((Or) filter).getChildren();
+        List<Set<Filter>> conjunctions = new ArrayList<>();
+        Set<Filter> shared = null;
+        for (Filter branch : branches) {
+            Set<Filter> conjunction = new LinkedHashSet<>();
+            if (branch instanceof And) {
+                conjunction.addAll(((BinaryLogicOperator) branch).getChildren());
+            } else {
+                conjunction.add(branch);
+            }
+            conjunctions.add(conjunction);
+            if (shared == null) {
+                shared = new LinkedHashSet<>(conjunction);
+            } else {
+                shared.retainAll(conjunction);
+            }
+        }
+        if (shared == null || shared.isEmpty()) {
+            return filter;
+        }
+        List<Filter> remaining = new ArrayList<>();
+        for (Set<Filter> conjunction : conjunctions) {
+            conjunction.removeAll(shared);
+            if (conjunction.isEmpty()) {
+                // one branch consists of the shared terms only, it absorbs the other branches
+                return combine(new ArrayList<>(shared), true);
+            }
+            remaining.add(combine(new ArrayList<>(conjunction), true));
+        }
+        List<Filter> factored = new ArrayList<>(shared);
+        factored.add(mergeInLists(combine(remaining, false)));
+        return combine(factored, true);
+    }
+}
@@ -0,0 +1,612 @@
+package org.geoserver.wms.mvt;
+
+import java.io.InterruptedIOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+import org.geoserver.ows.HttpErrorCodeException;
+import org.geotools.util.logging.Logging;
+
+/**
+ * Limits the number of concurrent tile queries per datastore and per layer, so tile requests
+ * cannot exhaust the connection pools shared with the other services. Requests exceeding a limit
+ * wait in a bounded queue until a running query finishes. A request is rejected with an {@link
+ * OverloadedException} (HTTP 503) if a queue is full or its permits are not granted within {@link
+ * #setMaxWait(long)}.
+ *
+ * <p>Datastores are named by workspace and store name (e.g. {@code topp:postgis}), layers by
+ * their prefixed name (e.g. {@code topp:roads}). Layers and stores without a limit are not
+ * queued.
+ *
+ * <p>Requests are sorted into the lanes {@link Lane#INTERACTIVE}, {@link Lane#PREFETCH} and
+ * {@link Lane#SEED}, sharing the permits by their weights. A full queue rejects the last queued
+ * request of a lower lane to admit a request of a higher lane, so background work uses idle
+ * capacity without delaying interactive requests.
+ */
+public class MVTRenderScheduler {
+
+    private static final Logger LOGGER = Logging.getLogger(MVTRenderScheduler.class);
+
+    private final Map<String, Queue> dataStoreQueues = new ConcurrentHashMap<>();
+
+    private final Map<String, Queue> layerQueues = new ConcurrentHashMap<>();
+
+    private Map<String, Integer> dataStoreLimits = Collections.emptyMap();
+
+    private Map<String, Integer> layerLimits = Collections.emptyMap();
+
+    private Integer defaultDataStoreLimit;
+
+    private Integer defaultLayerLimit;
+
+    private int maxQueued = 50;
+
+    private long maxWait = 10000;
+
+    private int retryAfter = 5;
+
+    private Map<Lane, Integer> laneWeights = new EnumMap<>(Lane.class);
+
+    private int interactiveReserve = 1;
+
+    public MVTRenderScheduler() {
+        laneWeights.put(Lane.INTERACTIVE, 8);
+        laneWeights.put(Lane.PREFETCH, 2);
+        laneWeights.put(Lane.SEED, 1);
+    }
+
+    /**
+     * Acquires the permits to query the layers for an interactive request, see {@link
+     * #acquire(Collection, Collection, Lane)}.
+     */
+    public Permit acquire(Collection<String> dataStores, Collection<String> layers)
+            throws InterruptedIOException {
+        return acquire(dataStores, layers, Lane.INTERACTIVE);
+    }
+
+    /**
+     * Acquires the permits to query the layers. The permits are acquired in the order of the
+     * names and are held until the returned permit is closed.
+     *
+     * @param dataStores the names of the queried datastores
+     * @param layers the names of the queried layers
+     * @param lane the lane of the request
+     * @return the permit to be closed once the queries are finished
+     * @throws OverloadedException if a queue is full, the request is pre-empted by a request of
+     *     higher priority or the permits are not granted in time
+     * @throws InterruptedIOException if the thread is interrupted while waiting
+     */
+    public Permit acquire(Collection<String> dataStores, Collection<String> layers, Lane lane)
+            throws InterruptedIOException {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(maxWait);
+        Permit permit = new Permit(lane);
+        try {
+            for (String dataStore : dataStores) {
+                Integer limit = getLimit(dataStoreLimits, defaultDataStoreLimit, dataStore);
+                acquire(dataStoreQueues, limit, dataStore, deadline, permit);
+            }
+            for (String layer : layers) {
+                Integer limit = getLimit(layerLimits, defaultLayerLimit, layer);
+                acquire(layerQueues, limit, layer, deadline, permit);
+            }
+        } catch (InterruptedException e) {
+            permit.close();
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("interrupted while waiting for a query permit");
+        } catch (RuntimeException e) {
+            permit.close();
+            throw e;
+        }
+        return permit;
+    }
+
+    private static Integer getLimit(
+            Map<String, Integer> limits, Integer defaultLimit, String name) {
+        return limits.containsKey(name) ? limits.get(name) : defaultLimit;
+    }
+
+    private void acquire(
+            Map<String, Queue> queues, Integer limit, String name, long deadline, Permit permit)
+            throws InterruptedException {
+        if (limit == null || limit <= 0) {
+            return;
+        }
+        Queue queue =
+                queues.computeIfAbsent(
+                        name,
+                        n -> new Queue(n, limit, maxQueued, interactiveReserve, laneWeights));
+        Admission admission = queue.acquire(permit.lane, deadline);
+        if (admission == Admission.ADMITTED) {
+            permit.queues.add(queue);
+            return;
+        }
+        String message;
+        if (admission == Admission.QUEUE_FULL) {
+            message = "too many tile requests queued for " + name;
+        } else if (admission == Admission.PREEMPTED) {
+            message = "tile request for " + name + " pre-empted by a request of higher priority";
+        } else {
+            message = "tile request not admitted for " + name + " within " + maxWait + " ms";
+        }
+        LOGGER.fine(message);
+        throw new OverloadedException(message, retryAfter);
+    }
+
+    /** @return the queues of the datastores with a limit, keyed by datastore name */
+    public Map<String, Queue> getDataStoreQueues() {
+        return Collections.unmodifiableMap(dataStoreQueues);
+    }
+
+    /** @return the queues of the layers with a limit, keyed by layer name */
+    public Map<String, Queue> getLayerQueues() {
+        return Collections.unmodifiableMap(layerQueues);
+    }
+
+    public Map<String, Integer> getDataStoreLimits() {
+        return dataStoreLimits;
+    }
+
+    /**
+     * Maximum number of concurrent tile queries per datastore.
+     *
+     * @param dataStoreLimits the limits keyed by workspace and store name (e.g. {@code
+     *     topp:postgis}), 0 for unlimited
+     */
+    public void setDataStoreLimits(Map<String, Integer> dataStoreLimits) {
+        this.dataStoreLimits = dataStoreLimits != null ? dataStoreLimits : Collections.emptyMap();
+    }
+
+    public Map<String, Integer> getLayerLimits() {
+        return layerLimits;
+    }
+
+    /**
+     * Maximum number of concurrent tile queries per layer.
+     *
+     * @param layerLimits the limits keyed by prefixed layer name, 0 for unlimited
+     */
+    public void setLayerLimits(Map<String, Integer> layerLimits) {
+        this.layerLimits = layerLimits != null ? layerLimits : Collections.emptyMap();
+    }
+
+    public Integer getDefaultDataStoreLimit() {
+        return defaultDataStoreLimit;
+    }
+
+    /**
+     * Maximum number of concurrent tile queries of datastores without a configured limit.
+     *
+     * @param defaultDataStoreLimit the limit, null for unlimited
+     */
+    public void setDefaultDataStoreLimit(Integer defaultDataStoreLimit) {
+        this.defaultDataStoreLimit = defaultDataStoreLimit;
+    }
+
+    public Integer getDefaultLayerLimit() {
+        return defaultLayerLimit;
+    }
+
+    /**
+     * Maximum number of concurrent tile queries of layers without a configured limit.
+     *
+     * @param defaultLayerLimit the limit, null for unlimited
+     */
+    public void setDefaultLayerLimit(Integer defaultLayerLimit) {
+        this.defaultLayerLimit = defaultLayerLimit;
+    }
+
+    public int getMaxQueued() {
+        return maxQueued;
+    }
+
+    /**
+     * Maximum number of requests waiting in each queue. Further requests are rejected at once.
+     *
+     * @param maxQueued the number of requests
+     */
+    public void setMaxQueued(int maxQueued) {
+        this.maxQueued = maxQueued;
+    }
+
+    public long getMaxWait() {
+        return maxWait;
+    }
+
+    /**
+     * Maximum time a request waits for its permits.
+     *
+     * @param maxWait the time in milliseconds
+     */
+    public void setMaxWait(long maxWait) {
+        this.maxWait = maxWait;
+    }
+
+    public int getRetryAfter() {
+        return retryAfter;
+    }
+
+    /**
+     * Time after which rejected clients should retry, sent as {@code Retry-After} header.
+     *
+     * @param retryAfter the time in seconds
+     */
+    public void setRetryAfter(int retryAfter) {
+        this.retryAfter = retryAfter;
+    }
+
+    public Map<Lane, Integer> getLaneWeights() {
+        return laneWeights;
+    }
+
+    /**
+     * Weights of the lanes sharing the permits of a queue. A lane with twice the weight of
+     * another lane is admitted twice as often while both are waiting; a lane alone uses all
+     * permits (except the reserved ones).
+     *
+     * @param laneWeights the weights keyed by lane, lanes without weight have weight 1
+     */
+    public void setLaneWeights(Map<Lane, Integer> laneWeights) {
+        this.laneWeights = new EnumMap<>(Lane.class);
+        if (laneWeights != null) {
+            this.laneWeights.putAll(laneWeights);
+        }
+    }
+
+    public int getInteractiveReserve() {
+        return interactiveReserve;
+    }
+
+    /**
+     * Number of permits of each queue reserved for interactive requests, so background work
+     * cannot delay them. At least one permit is left to the background lanes.
+     *
+     * @param interactiveReserve the number of permits
+     */
+    public void setInteractiveReserve(int interactiveReserve) {
+        this.interactiveReserve = interactiveReserve;
+    }
+
+    /** The lanes of tile work, in the order of their priority. */
+    public enum Lane {
+        /** requests of interactive clients */
+        INTERACTIVE,
+        /** tiles requested ahead of their display, e.g. around the viewport */
+        PREFETCH,
+        /** seeding jobs and cache warmers */
+        SEED;
+
+        /**
+         * @param value the name of the lane, case insensitive
+         * @return the lane, interactive if the value is null or not the name of a lane
+         */
+        public static Lane parse(Object value) {
+            if (value == null) {
+                return INTERACTIVE;
+            }
+            try {
+                return valueOf(value.toString().trim().toUpperCase());
+            } catch (IllegalArgumentException e) {
+                return INTERACTIVE;
+            }
+        }
+    }
+
+    private enum Admission {
+        ADMITTED,
+        QUEUE_FULL,
+        PREEMPTED,
+        TIMEOUT
+    }
+
+    /** The permits held by a request, released when closed. */
+    public static final class Permit implements AutoCloseable {
+
+        private final Lane lane;
+
+        private final List<Queue> queues = new ArrayList<>();
+
+        private Permit(Lane lane) {
+            this.lane = lane;
+        }
+
+        @Override
+        public void close() {
+            for (int i = queues.size() - 1; i >= 0; i--) {
+                queues.get(i).release(lane);
+            }
+            queues.clear();
+        }
+    }
+
+    /**
+     * The requests running and waiting for a datastore or a layer. Permits are handed to the
+     * waiting requests by stride scheduling: each lane advances its pass by the inverse of its
+     * weight per admitted request and the waiting lane with the lowest pass is admitted next, in
+     * arrival order within the lane. Background lanes cannot use the permits reserved for
+     * interactive requests.
+     */
+    public static final class Queue {
+
+        /** the pass advanced per admitted request of a lane with weight 1 */
+        private static final long STRIDE = 1 << 20;
+
+        private final String name;
+
+        private final int limit;
+
+        private final int maxQueued;
+
+        private final int backgroundLimit;
+
+        private final Map<Lane, ArrayDeque<Waiter>> waiters = new EnumMap<>(Lane.class);
+
+        private final long[] strides = new long[Lane.values().length];
+
+        private final long[] passes = new long[Lane.values().length];
+
+        /** the pass of the lane admitted last */
+        private long virtualTime;
+
+        private int active;
+
+        private int backgroundActive;
+
+        private int depth;
+
+        private final long[] admitted = new long[Lane.values().length];
+
+        private final long[] waitTimes = new long[Lane.values().length];
+
+        private long rejected;
+
+        private long preempted;
+
+        private long timeouts;
+
+        private long maxWaitTime;
+
+        Queue(String name, int limit, int maxQueued, int reserved, Map<Lane, Integer> weights) {
+            this.name = name;
+            this.limit = limit;
+            this.maxQueued = maxQueued;
+            this.backgroundLimit = Math.max(1, limit - reserved);
+            for (Lane lane : Lane.values()) {
+                waiters.put(lane, new ArrayDeque<>());
+                Integer weight = weights.get(lane);
+                strides[lane.ordinal()] = STRIDE / Math.max(1, weight != null ? weight : 1);
+            }
+        }
+
+        synchronized Admission acquire(Lane lane, long deadline) throws InterruptedException {
+            if (depth >= maxQueued && !canAdmit(lane) && !preempt(lane)) {
+                rejected++;
+                return Admission.QUEUE_FULL;
+            }
+            Waiter waiter = new Waiter(lane);
+            ArrayDeque<Waiter> laneWaiters = waiters.get(lane);
+            if (laneWaiters.isEmpty()) {
+                // an idle lane does not save up its share
+                passes[lane.ordinal()] = Math.max(passes[lane.ordinal()], virtualTime);
+            }
+            laneWaiters.add(waiter);
+            depth++;
+            dispatch();
+            long start = System.nanoTime();
+            try {
+                while (waiter.admission == null) {
+                    long remaining = deadline - System.nanoTime();
+                    if (remaining <= 0) {
+                        remove(waiter);
+                        timeouts++;
+                        return Admission.TIMEOUT;
+                    }
+                    TimeUnit.NANOSECONDS.timedWait(this, remaining);
+                }
+            } catch (InterruptedException e) {
+                if (waiter.admission == Admission.ADMITTED) {
+                    release(lane);
+                } else if (waiter.admission == null) {
+                    remove(waiter);
+                }
+                throw e;
+            }
+            if (waiter.admission == Admission.ADMITTED) {
+                long waitTime = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+                waitTimes[lane.ordinal()] += waitTime;
+                maxWaitTime = Math.max(maxWaitTime, waitTime);
+                admitted[lane.ordinal()]++;
+            }
+            return waiter.admission;
+        }
+
+        synchronized void release(Lane lane) {
+            active--;
+            if (lane != Lane.INTERACTIVE) {
+                backgroundActive--;
+            }
+            dispatch();
+        }
+
+        private boolean canAdmit(Lane lane) {
+            return active < limit
+                    && (lane == Lane.INTERACTIVE || backgroundActive < backgroundLimit);
+        }
+
+        /** Admits the waiting requests as long as permits are available. */
+        private void dispatch() {
+            boolean dispatched = false;
+            while (true) {
+                Lane next = null;
+                for (Lane lane : Lane.values()) {
+                    if (!waiters.get(lane).isEmpty()
+                            && canAdmit(lane)
+                            && (next == null || passes[lane.ordinal()] < passes[next.ordinal()])) {
+                        next = lane;
+                    }
+                }
+                if (next == null) {
+                    break;
+                }
+                Waiter waiter = waiters.get(next).poll();
+                depth--;
+                virtualTime = passes[next.ordinal()];
+                passes[next.ordinal()] += strides[next.ordinal()];
+                active++;
+                if (next != Lane.INTERACTIVE) {
+                    backgroundActive++;
+                }
+                waiter.admission = Admission.ADMITTED;
+                dispatched = true;
+            }
+            if (dispatched) {
+                notifyAll();
+            }
+        }
+
+        /**
+         * Rejects the request queued last in the lowest lane below the given lane, making room
+         * for a request of higher priority.
+         */
+        private boolean preempt(Lane lane) {
+            Lane[] lanes = Lane.values();
+            for (int i = lanes.length - 1; i > lane.ordinal(); i--) {
+                Waiter waiter = waiters.get(lanes[i]).pollLast();
+                if (waiter != null) {
+                    depth--;
+                    waiter.admission = Admission.PREEMPTED;
+                    preempted++;
+                    notifyAll();
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        private void remove(Waiter waiter) {
+            if (waiters.get(waiter.lane).remove(waiter)) {
+                depth--;
+            }
+        }
+
+        /** @return the name of the datastore or layer */
+        public String getName() {
+            return name;
+        }
+
+        /** @return the maximum number of concurrent queries */
+        public int getLimit() {
+            return limit;
+        }
+
+        /** @return the number of running queries */
+        public synchronized int getActive() {
+            return active;
+        }
+
+        /** @return the number of waiting requests */
+        public synchronized int getDepth() {
+            return depth;
+        }
+
+        /**
+         * @param lane the lane
+         * @return the number of waiting requests of the lane
+         */
+        public synchronized int getDepth(Lane lane) {
+            return waiters.get(lane).size();
+        }
+
+        /** @return the number of admitted requests */
+        public synchronized long getAdmitted() {
+            long sum = 0;
+            for (long count : admitted) {
+                sum += count;
+            }
+            return sum;
+        }
+
+        /**
+         * @param lane the lane
+         * @return the number of admitted requests of the lane
+         */
+        public synchronized long getAdmitted(Lane lane) {
+            return admitted[lane.ordinal()];
+        }
+
+        /** @return the number of requests rejected because the queue was full */
+        public synchronized long getRejected() {
+            return rejected;
+        }
+
+        /** @return the number of queued requests rejected for requests of higher priority */
+        public synchronized long getPreempted() {
+            return preempted;
+        }
+
+        /** @return the number of requests rejected because they waited too long */
+        public synchronized long getTimeouts() {
+            return timeouts;
+        }
+
+        /** @return the average time in milliseconds admitted requests waited */
+        public synchronized double getAverageWaitTime() {
+            long sum = 0;
+            for (long waitTime : waitTimes) {
+                sum += waitTime;
+            }
+            long count = getAdmitted();
+            return count > 0 ? (double) sum / count : 0;
+        }
+
+        /**
+         * @param lane the lane
+         * @return the average time in milliseconds admitted requests of the lane waited
+         */
+        public synchronized double getAverageWaitTime(Lane lane) {
+            long count = admitted[lane.ordinal()];
+            return count > 0 ? (double) waitTimes[lane.ordinal()] / count : 0;
+        }
+
+        /** @return the longest time in milliseconds an admitted request waited */
+        public synchronized long getMaxWaitTime() {
+            return maxWaitTime;
+        }
+    }
+
+    private static final class Waiter {
+
+        final Lane lane;
+
+        /** null while waiting */
+        Admission admission;
+
+        Waiter(Lane lane) {
+            this.lane = lane;
+        }
+    }
+
+    /** Thrown if a tile request is not admitted, answered with HTTP 503. */
+    public static class OverloadedException extends HttpErrorCodeException {
+
+        private static final long serialVersionUID = 1L;
+
+        private final int retryAfter;
+
+        OverloadedException(String message, int retryAfter) {
+            super(503, message);
+            this.retryAfter = retryAfter;
+        }
+
+        /** @return the time in seconds after which the client should retry */
+        public int getRetryAfter() {
+            return retryAfter;
+        }
+    }
+}
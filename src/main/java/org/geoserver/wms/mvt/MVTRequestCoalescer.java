@@ -0,0 +1,158 @@
+package org.geoserver.wms.mvt;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.geoserver.platform.ClientStreamAbortedException;
+import org.geotools.util.logging.Logging;
+
+/**
+ * Coalesces concurrent requests for the same tile. The first request renders the tile, the
+ * requests arriving while it is rendered wait for its bytes instead of rendering the tile again.
+ * Nothing is cached, the tile is forgotten as soon as it is rendered.
+ *
+ * <p>A waiting request renders the tile on its own if the first request does not finish within
+ * {@link #setTimeout(long)}. If the first request fails, the waiting requests fail with the same
+ * exception, unless the first request was cancelled by its client: the waiting requests render the
+ * tile again then.
+ */
+public class MVTRequestCoalescer {
+
+    private static final Logger LOGGER = Logging.getLogger(MVTRequestCoalescer.class);
+
+    /** tiles being rendered, keyed by tile key */
+    private final Map<String, CompletableFuture<Object>> renderings = new ConcurrentHashMap<>();
+
+    private final AtomicLong renders = new AtomicLong();
+
+    private final AtomicLong savedRenders = new AtomicLong();
+
+    private final AtomicLong timeouts = new AtomicLong();
+
+    private final AtomicLong failures = new AtomicLong();
+
+    private long timeout = 30000;
+
+    /**
+     * Returns the tile rendered by a concurrent request for the same key, or renders it.
+     *
+     * @param key the canonical key of the tile, requests with the same key get the same tile
+     * @param renderer renders the tile, all renderers of a key return the same type
+     * @return the rendered tile
+     * @throws IOException if the tile cannot be rendered
+     */
+    @SuppressWarnings("unchecked")
+    public <T> T render(String key, Callable<T> renderer) throws IOException {
+        CompletableFuture<Object> created = new CompletableFuture<>();
+        CompletableFuture<Object> rendering = renderings.putIfAbsent(key, created);
+        if (rendering == null) {
+            renders.incrementAndGet();
+            try {
+                T tile = call(renderer);
+                created.complete(tile);
+                return tile;
+            } catch (ClientStreamAbortedException e) {
+                // not a failure of the tile
+                created.completeExceptionally(e);
+                throw e;
+            } catch (IOException | RuntimeException e) {
+                failures.incrementAndGet();
+                created.completeExceptionally(e);
+                throw e;
+            } finally {
+                renderings.remove(key, created);
+                if (!created.isDone()) {
+                    created.completeExceptionally(
+                            new IOException("rendering of tile " + key + " was aborted"));
+                }
+            }
+        }
+        try {
+            T tile = (T) rendering.get(timeout, TimeUnit.MILLISECONDS);
+            savedRenders.incrementAndGet();
+            return tile;
+        } catch (TimeoutException e) {
+            timeouts.incrementAndGet();
+            LOGGER.log(
+                    Level.FINE,
+                    "tile {0} not rendered within {1} ms, rendering it again",
+                    new Object[] {key, timeout});
+            renders.incrementAndGet();
+            return call(renderer);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("interrupted while waiting for tile " + key);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof ClientStreamAbortedException) {
+                // the first request was cancelled, its waiting requests are still interested
+                return render(key, renderer);
+            }
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new IOException("tile " + key + " cannot be rendered", cause);
+        }
+    }
+
+    private static <T> T call(Callable<T> renderer) throws IOException {
+        try {
+            return renderer.call();
+        } catch (IOException | RuntimeException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new IOException(e);
+        }
+    }
+
+    /** @return the number of tiles being rendered */
+    public int getRenderingCount() {
+        return renderings.size();
+    }
+
+    /** @return the number of tiles rendered, including the renders after a timeout */
+    public long getRenders() {
+        return renders.get();
+    }
+
+    /** @return the number of requests answered with the tile rendered by another request */
+    public long getSavedRenders() {
+        return savedRenders.get();
+    }
+
+    /** @return the number of requests which stopped waiting for another request */
+    public long getTimeouts() {
+        return timeouts.get();
+    }
+
+    /** @return the number of failed renders, each failing all waiting requests */
+    public long getFailures() {
+        return failures.get();
+    }
+
+    public long getTimeout() {
+        return timeout;
+    }
+
+    /**
+     * Maximum time to wait for the tile rendered by another request. The waiting request renders
+     * the tile on its own afterwards.
+     *
+     * @param timeout the time in milliseconds
+     */
+    public void setTimeout(long timeout) {
+        this.timeout = timeout;
+    }
+}
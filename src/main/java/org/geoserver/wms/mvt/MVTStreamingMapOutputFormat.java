@@ -2,6 +2,7 @@ package org.geoserver.wms.mvt;
 
 import java.io.IOException;
 import java.util.Set;
+import org.geoserver.catalog.Catalog;
 import org.geoserver.platform.ServiceException;
 import org.geoserver.wms.GetMapOutputFormat;
 import org.geoserver.wms.MapProducerCapabilities;
@@ -14,6 +15,13 @@ public class MVTStreamingMapOutputFormat implements GetMapOutputFormat {
             // new MapProducerCapabilities(false, false, false, false, null);
             new MapProducerCapabilities(false, false, false);
 
+    private final Catalog catalog;
+
+    /** @param catalog the catalog resolving the feature types layers are routed to */
+    public MVTStreamingMapOutputFormat(Catalog catalog) {
+        this.catalog = catalog;
+    }
+
     /**
      * @return {@code ["application/x-protobuf", "application/pbf", "application/mvt"]}
      * @see org.geoserver.wms.GetMapOutputFormat#getOutputFormatNames()
@@ -34,6 +42,7 @@ public class MVTStreamingMapOutputFormat implements GetMapOutputFormat {
     public StreamingMVTMap produceMap(WMSMapContent mapContent)
             throws ServiceException, IOException {
         StreamingMVTMap mvt = new StreamingMVTMap(mapContent);
+        mvt.setCatalog(catalog);
         mvt.setMimeType(getMimeType());
         mvt.setContentDispositionHeader(mapContent, ".pbf", false);
         return mvt;
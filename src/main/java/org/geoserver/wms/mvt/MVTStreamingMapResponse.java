@@ -1,16 +1,26 @@
 package org.geoserver.wms.mvt;
 
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Map;
+import java.util.TreeMap;
 import java.util.logging.Logger;
+import javax.servlet.http.HttpServletResponse;
 import org.apache.commons.lang.math.NumberUtils;
+import org.geoserver.ows.Dispatcher;
+import org.geoserver.ows.Request;
 import org.geoserver.platform.Operation;
 import org.geoserver.platform.ServiceException;
 import org.geoserver.wms.GeneralisationLevel;
 import org.geoserver.wms.GetMapRequest;
 import org.geoserver.wms.map.AbstractMapResponse;
 import org.geotools.util.logging.Logging;
+import org.locationtech.jts.geom.Envelope;
+import org.springframework.security.core.Authentication;
+import org.springframework.security.core.context.SecurityContextHolder;
 
 /**
  * The Streaming Map Response using the StreamingMVTMap for retrieving and encoding the features.
@@ -19,20 +29,68 @@ public class MVTStreamingMapResponse extends AbstractMapResponse {
 
     private static final Logger LOGGER = Logging.getLogger(MVTStreamingMapResponse.class);
 
+    private static final String CACHE_CONTROL = "Cache-Control";
+
+    private static final String RETRY_AFTER = "Retry-After";
+
     public static final double DEFAULT_GENERALISATION_FACTOR = 0.1;
     public static final double DEFAULT_SMALL_GEOMETRY_THRESHOLD = 0.05;
+    public static final int DEFAULT_EMPTY_TILE_MAX_AGE = 86400;
     public static final String PARAM_GENERALISATION_FACTOR = "gen_factor";
     public static final String PARAM_GENERALISATION_LEVEL = "gen_level";
     public static final String PARAM_SMALL_GEOM_THRESHOLD = "small_geom_threshold";
+    public static final String PARAM_SMALL_GEOM_ACCUMULATE = "small_geom_accumulate";
     public static final String AVOID_EMPTY_PROTO = "avoid_empty_proto";
+    public static final String PARAM_ATTRIBUTES = "attributes";
+    public static final String PARAM_AGGREGATE = "aggregate";
+    public static final String PARAM_AGGREGATE_ATTRIBUTES = "aggregate_attributes";
+    public static final String PARAM_COALESCE = "coalesce";
+    public static final String PARAM_EXTENT = "extent";
+    public static final String PARAM_PRIORITY = "priority";
 
     private GeneralisationLevel defaultGenLevel;
     private Map<GeneralisationLevel, Map<Integer, Double>> generalisationTables;
+    private Map<String, MVTLayerConfiguration> layerConfigurations;
+    private Integer maxTileBytes;
+    private Integer maxTileFeatures;
+    private Integer maxTileVertices;
+    private Integer emptyTileMaxAge = DEFAULT_EMPTY_TILE_MAX_AGE;
+    private MVTEmptyTileIndex emptyTileIndex;
+    private MVTRequestCoalescer requestCoalescer;
+    private MVTRenderScheduler renderScheduler;
+    private Integer renderDeadline;
+    private boolean streamLayers;
 
     public MVTStreamingMapResponse() {
         super(StreamingMVTMap.class, MVT.OUTPUT_FORMATS);
     }
 
+    @Override
+    public String[][] getHeaders(Object value, Operation operation) throws ServiceException {
+        String[][] headers = super.getHeaders(value, operation);
+        if (emptyTileMaxAge == null || emptyTileMaxAge <= 0) {
+            return headers;
+        }
+        StreamingMVTMap map = (StreamingMVTMap) value;
+        // the bounds are checked once per request, with the configuration the tile is encoded with
+        map.setLayerConfigurations(layerConfigurations);
+        map.setRequestConfiguration(getRequestConfiguration(operation));
+        if (!map.isOutsideLayerBounds()) {
+            return headers;
+        }
+        // the tile stays empty until the bounds of a layer change, replace any cache header
+        List<String[]> emptyTileHeaders = new ArrayList<>();
+        if (headers != null) {
+            for (String[] header : headers) {
+                if (!CACHE_CONTROL.equalsIgnoreCase(header[0])) {
+                    emptyTileHeaders.add(header);
+                }
+            }
+        }
+        emptyTileHeaders.add(new String[] {CACHE_CONTROL, "max-age=" + emptyTileMaxAge});
+        return emptyTileHeaders.toArray(new String[0][]);
+    }
+
     @Override
     public void write(Object value, OutputStream output, Operation operation)
             throws IOException, ServiceException {
@@ -44,11 +102,17 @@ public class MVTStreamingMapResponse extends AbstractMapResponse {
         Double genFactor = null;
         Double smallGeometryThreshold = DEFAULT_SMALL_GEOMETRY_THRESHOLD;
         Boolean avoidEmptyProto = false;
+        MVTLayerConfiguration requestConfiguration = getRequestConfiguration(operation);
 
         Map<Integer, Double> genFactorTable = getGenFactorForGenLevel(defaultGenLevel);
+        String tileKey = null;
+        MVTRenderScheduler.Lane renderLane = MVTRenderScheduler.Lane.INTERACTIVE;
         if (operation.getParameters()[0] instanceof GetMapRequest) {
             // check configuration based on parameters
             GetMapRequest request = (GetMapRequest) operation.getParameters()[0];
+            if (requestCoalescer != null) {
+                tileKey = getTileKey(request);
+            }
             // if a generalisation factor is given we use it
             Object reqGenFactor = request.getEnv().get(PARAM_GENERALISATION_FACTOR);
             Object reqGenLevel = request.getEnv().get(PARAM_GENERALISATION_LEVEL);
@@ -75,25 +139,218 @@ public class MVTStreamingMapResponse extends AbstractMapResponse {
             if (reqAvoidEmptyProto != null) {
                 avoidEmptyProto = Boolean.parseBoolean(reqAvoidEmptyProto.toString());
             }
+            // lane of the request in the render scheduler (interactive, prefetch or seed)
+            renderLane = MVTRenderScheduler.Lane.parse(request.getEnv().get(PARAM_PRIORITY));
+        }
+        map.setLayerConfigurations(layerConfigurations);
+        map.setRequestConfiguration(requestConfiguration);
+        map.setTileBudget(MVTBudget.of(maxTileBytes, maxTileFeatures, maxTileVertices));
+        map.setEmptyTileIndex(emptyTileIndex);
+        map.setRenderScheduler(renderScheduler);
+        map.setRenderLane(renderLane);
+        map.setStreamLayers(streamLayers);
+        if (renderDeadline != null && renderDeadline > 0) {
+            map.setRenderDeadline(System.nanoTime() + renderDeadline * 1000000L);
+        }
+        // rendering stops once the client is gone
+        Request dispatched = Dispatcher.REQUEST.get();
+        if (dispatched != null && dispatched.getHttpRequest() != null) {
+            MVTCancellationToken cancellationToken =
+                    MVTCancellationToken.of(dispatched.getHttpRequest());
+            map.setCancellationToken(cancellationToken);
+            output = cancellationToken.watch(output);
+            // the tiles of a batch request share their queries
+            map.setTileBatch(MVTTileBatch.get(dispatched.getHttpRequest()));
         }
         try {
-            // passed in generlalisation factor is overriding default configuration (table for
-            // zooms)
-            if (genFactor != null) {
-                map.encode(output, avoidEmptyProto, smallGeometryThreshold, genFactor);
-            } else {
-                map.encode(
+            if (tileKey == null && map.getRenderDeadline() == null) {
+                encode(
+                        map,
                         output,
                         avoidEmptyProto,
                         smallGeometryThreshold,
-                        genFactorTable,
-                        DEFAULT_GENERALISATION_FACTOR);
+                        genFactor,
+                        genFactorTable);
+                return;
+            }
+            RenderedTile tile;
+            if (tileKey != null) {
+                final boolean avoidEmpty = avoidEmptyProto;
+                final double threshold = smallGeometryThreshold;
+                final Double factor = genFactor;
+                final Map<Integer, Double> factorTable = genFactorTable;
+                // concurrent requests for the same tile get the tile of the first request
+                tile =
+                        requestCoalescer.render(
+                                tileKey,
+                                () -> render(map, avoidEmpty, threshold, factor, factorTable));
+            } else {
+                tile =
+                        render(
+                                map,
+                                avoidEmptyProto,
+                                smallGeometryThreshold,
+                                genFactor,
+                                genFactorTable);
+            }
+            if (tile.partial) {
+                // the tile is complete once rendered within the deadline
+                setHeader(CACHE_CONTROL, "no-store");
             }
+            output.write(tile.bytes);
+        } catch (MVTRenderScheduler.OverloadedException e) {
+            setHeader(RETRY_AFTER, String.valueOf(e.getRetryAfter()));
+            throw e;
         } finally {
             map.dispose();
         }
     }
 
+    /**
+     * Sets a header of the response while nothing has been written. Nothing is written before the
+     * queries are admitted, and buffered tiles are written once all features are processed.
+     *
+     * @param name the name of the header
+     * @param value the value of the header
+     */
+    private void setHeader(String name, String value) {
+        Request request = Dispatcher.REQUEST.get();
+        HttpServletResponse response = request != null ? request.getHttpResponse() : null;
+        if (response != null && !response.isCommitted()) {
+            response.setHeader(name, value);
+        }
+    }
+
+    /** Renders the tile into a buffer, so its headers can be set after rendering. */
+    private RenderedTile render(
+            StreamingMVTMap map,
+            boolean avoidEmptyProto,
+            double smallGeometryThreshold,
+            Double genFactor,
+            Map<Integer, Double> genFactorTable)
+            throws IOException {
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        encode(map, buffer, avoidEmptyProto, smallGeometryThreshold, genFactor, genFactorTable);
+        return new RenderedTile(buffer.toByteArray(), map.isPartial());
+    }
+
+    private void encode(
+            StreamingMVTMap map,
+            OutputStream output,
+            boolean avoidEmptyProto,
+            double smallGeometryThreshold,
+            Double genFactor,
+            Map<Integer, Double> genFactorTable)
+            throws IOException {
+        // passed in generlalisation factor is overriding default configuration (table for
+        // zooms)
+        if (genFactor != null) {
+            map.encode(output, avoidEmptyProto, smallGeometryThreshold, genFactor);
+        } else {
+            map.encode(
+                    output,
+                    avoidEmptyProto,
+                    smallGeometryThreshold,
+                    genFactorTable,
+                    DEFAULT_GENERALISATION_FACTOR);
+        }
+    }
+
+    /**
+     * Builds the canonical key of the requested tile: the request parameters with upper case
+     * names in alphabetical order, the parsed bounding box and ENV variables, and the name of the
+     * authenticated user, as data security rules may grant users different features.
+     *
+     * @param request the request
+     * @return the key or null if the request has no parameters
+     */
+    private String getTileKey(GetMapRequest request) {
+        Map<String, String> rawKvp = request.getRawKvp();
+        if (rawKvp == null || rawKvp.isEmpty()) {
+            return null;
+        }
+        Map<String, String> parameters = new TreeMap<>();
+        for (Map.Entry<String, String> parameter : rawKvp.entrySet()) {
+            parameters.put(parameter.getKey().toUpperCase(), parameter.getValue());
+        }
+        // the same tile can be requested with differently formatted coordinates and variables
+        Envelope bbox = request.getBbox();
+        if (bbox != null) {
+            String coordinates =
+                    bbox.getMinX() + "," + bbox.getMinY() + "," + bbox.getMaxX() + ",";
+            parameters.put("BBOX", coordinates + bbox.getMaxY());
+        }
+        if (request.getEnv() != null) {
+            // requests of all priorities get the same tile
+            Map<String, Object> env = new TreeMap<>(request.getEnv());
+            env.remove(PARAM_PRIORITY);
+            parameters.put("ENV", env.toString());
+        }
+        Authentication authentication = SecurityContextHolder.getContext().getAuthentication();
+        String user = authentication != null ? authentication.getName() : "";
+        return user + parameters;
+    }
+
+    /**
+     * Reads the layer configuration overrides of the request from its ENV parameters.
+     *
+     * @param operation the GetMap operation
+     * @return the configuration applied to all layers of the request
+     */
+    private MVTLayerConfiguration getRequestConfiguration(Operation operation) {
+        MVTLayerConfiguration requestConfiguration = new MVTLayerConfiguration();
+        if (!(operation.getParameters()[0] instanceof GetMapRequest)) {
+            return requestConfiguration;
+        }
+        GetMapRequest request = (GetMapRequest) operation.getParameters()[0];
+        // grid size for accumulating small polygons instead of dropping them
+        Object reqAccumulate = request.getEnv().get(PARAM_SMALL_GEOM_ACCUMULATE);
+        if (reqAccumulate != null && NumberUtils.isNumber(reqAccumulate.toString())) {
+            requestConfiguration.setSmallPolygonGridSize(
+                    NumberUtils.toDouble(reqAccumulate.toString()));
+        }
+        // comma separated list of attributes to be written for all layers
+        Object reqAttributes = request.getEnv().get(PARAM_ATTRIBUTES);
+        if (reqAttributes != null) {
+            requestConfiguration.setAttributes(parseAttributes(reqAttributes.toString()));
+        }
+        // grid size for point aggregation and the attributes to be aggregated
+        Object reqAggregate = request.getEnv().get(PARAM_AGGREGATE);
+        if (reqAggregate != null && NumberUtils.isNumber(reqAggregate.toString())) {
+            requestConfiguration.setAggregationGridSize(
+                    NumberUtils.toDouble(reqAggregate.toString()));
+        }
+        Object reqAggregateAttributes = request.getEnv().get(PARAM_AGGREGATE_ATTRIBUTES);
+        if (reqAggregateAttributes != null) {
+            requestConfiguration.setAggregationAttributes(
+                    parseAttributes(reqAggregateAttributes.toString()));
+        }
+        // comma separated list of attributes lines and polygons are coalesced by
+        Object reqCoalesce = request.getEnv().get(PARAM_COALESCE);
+        if (reqCoalesce != null) {
+            requestConfiguration.setCoalesceAttributes(parseAttributes(reqCoalesce.toString()));
+        }
+        // number of coordinate units across the tile for all layers
+        Object reqExtent = request.getEnv().get(PARAM_EXTENT);
+        if (reqExtent != null && NumberUtils.isDigits(reqExtent.toString())) {
+            int extent = NumberUtils.toInt(reqExtent.toString());
+            if (extent > 0) {
+                requestConfiguration.setExtent(extent);
+            }
+        }
+        return requestConfiguration;
+    }
+
+    private List<String> parseAttributes(String reqAttributes) {
+        List<String> attributes = new ArrayList<>();
+        for (String attribute : reqAttributes.split(",")) {
+            if (!attribute.trim().isEmpty()) {
+                attributes.add(attribute.trim());
+            }
+        }
+        return attributes;
+    }
+
     private Map<Integer, Double> getGenFactorForGenLevel(GeneralisationLevel genLevel) {
         return generalisationTables.get(genLevel);
     }
@@ -128,4 +385,154 @@ public class MVTStreamingMapResponse extends AbstractMapResponse {
             Map<GeneralisationLevel, Map<Integer, Double>> generalisationTables) {
         this.generalisationTables = generalisationTables;
     }
+
+    public Map<String, MVTLayerConfiguration> getLayerConfigurations() {
+        return layerConfigurations;
+    }
+
+    public void setLayerConfigurations(Map<String, MVTLayerConfiguration> layerConfigurations) {
+        this.layerConfigurations = layerConfigurations;
+    }
+
+    public Integer getMaxTileBytes() {
+        return maxTileBytes;
+    }
+
+    /**
+     * Maximum number of encoded bytes of a tile. Tiles exceeding the limit are degraded like layers
+     * exceeding their budget (see {@link MVTLayerConfiguration#setMaxBytes(Integer)}).
+     *
+     * @param maxTileBytes the number of bytes, null for unlimited
+     */
+    public void setMaxTileBytes(Integer maxTileBytes) {
+        this.maxTileBytes = maxTileBytes;
+    }
+
+    public Integer getMaxTileFeatures() {
+        return maxTileFeatures;
+    }
+
+    /**
+     * Maximum number of features of a tile, see {@link #setMaxTileBytes(Integer)}.
+     *
+     * @param maxTileFeatures the number of features, null for unlimited
+     */
+    public void setMaxTileFeatures(Integer maxTileFeatures) {
+        this.maxTileFeatures = maxTileFeatures;
+    }
+
+    public Integer getMaxTileVertices() {
+        return maxTileVertices;
+    }
+
+    /**
+     * Maximum number of vertices of a tile, see {@link #setMaxTileBytes(Integer)}.
+     *
+     * @param maxTileVertices the number of vertices, null for unlimited
+     */
+    public void setMaxTileVertices(Integer maxTileVertices) {
+        this.maxTileVertices = maxTileVertices;
+    }
+
+    public Integer getEmptyTileMaxAge() {
+        return emptyTileMaxAge;
+    }
+
+    /**
+     * Maximum age in seconds of tiles outside of the bounds of all requested layers, sent as
+     * {@code Cache-Control} header. Such tiles are written without querying any layer.
+     *
+     * @param emptyTileMaxAge the age in seconds, null or 0 to keep the cache headers of the layers
+     */
+    public void setEmptyTileMaxAge(Integer emptyTileMaxAge) {
+        this.emptyTileMaxAge = emptyTileMaxAge;
+    }
+
+    public MVTEmptyTileIndex getEmptyTileIndex() {
+        return emptyTileIndex;
+    }
+
+    /**
+     * Index of the tiles known to be empty per layer. Layers known to be empty in a requested tile
+     * are not queried.
+     *
+     * @param emptyTileIndex the index, null to query all layers
+     */
+    public void setEmptyTileIndex(MVTEmptyTileIndex emptyTileIndex) {
+        this.emptyTileIndex = emptyTileIndex;
+    }
+
+    public MVTRequestCoalescer getRequestCoalescer() {
+        return requestCoalescer;
+    }
+
+    /**
+     * Coalesces concurrent requests for the same tile, so the tile is rendered once.
+     *
+     * @param requestCoalescer the coalescer, null to render every request
+     */
+    public void setRequestCoalescer(MVTRequestCoalescer requestCoalescer) {
+        this.requestCoalescer = requestCoalescer;
+    }
+
+    public MVTRenderScheduler getRenderScheduler() {
+        return renderScheduler;
+    }
+
+    /**
+     * Limits the concurrent queries per datastore and layer, rejecting requests with HTTP 503 once
+     * the queues are full.
+     *
+     * @param renderScheduler the scheduler, null if unlimited
+     */
+    public void setRenderScheduler(MVTRenderScheduler renderScheduler) {
+        this.renderScheduler = renderScheduler;
+    }
+
+    public Integer getRenderDeadline() {
+        return renderDeadline;
+    }
+
+    /**
+     * Maximum time to render a tile. Once it passed no further features are read, the tile
+     * contains the features processed so far, the degradation {@code deadline} is recorded and
+     * the tile is sent with {@code Cache-Control: no-store}.
+     *
+     * @param renderDeadline the time in milliseconds, null or 0 for no deadline
+     */
+    public void setRenderDeadline(Integer renderDeadline) {
+        this.renderDeadline = renderDeadline;
+    }
+
+    public boolean isStreamLayers() {
+        return streamLayers;
+    }
+
+    /**
+     * Whether each layer of a tile is written to the client as soon as its features are read.
+     * Layers are encoded and their features released as soon as they are read in any case, so
+     * only the features of one layer are kept in memory; without streaming the encoded layers are
+     * buffered and the tile is written at once. With streaming errors while reading a later layer
+     * cannot be reported as service exception, as the response is already committed.
+     *
+     * @param streamLayers true to write the layers one at a time, false to write tiles at once
+     *     (default)
+     */
+    public void setStreamLayers(boolean streamLayers) {
+        this.streamLayers = streamLayers;
+    }
+
+    /** An encoded tile. */
+    private static final class RenderedTile {
+
+        final byte[] bytes;
+
+        /** true if the render deadline passed before all features were processed */
+        final boolean partial;
+
+        RenderedTile(byte[] bytes, boolean partial) {
+            this.bytes = bytes;
+            this.partial = partial;
+        }
+    }
 }
@@ -0,0 +1,319 @@
+package org.geoserver.wms.mvt;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.function.Predicate;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.geotools.api.feature.simple.SimpleFeature;
+import org.geotools.api.feature.simple.SimpleFeatureType;
+import org.geotools.api.filter.Filter;
+import org.geotools.api.filter.expression.Expression;
+import org.geotools.api.style.FeatureTypeStyle;
+import org.geotools.api.style.Rule;
+import org.geotools.api.style.Style;
+import org.geotools.api.style.Symbolizer;
+import org.geotools.styling.AbstractSymbolizer;
+import org.geotools.util.logging.Logging;
+import org.locationtech.jts.geom.Geometry;
+
+/**
+ * Compiled form of a {@link Style} for a scale denominator. Only the rules in scale are kept, the
+ * geometry expressions of their symbolizers are grouped, so that every distinct expression is
+ * evaluated at most once per feature and no geometry comparison is needed to skip duplicates.
+ *
+ * <p>Plans are immutable and cached across requests per style instance and set of rules in scale
+ * (the scale denominators of the tiles of one zoom level differ slightly, the rules in scale do
+ * not). The filters of a cached plan are evaluated generically, {@link #bind(SimpleFeatureType)}
+ * returns a plan with filters compiled for a feature type.
+ */
+final class MVTStylePlan {
+
+    private static final Logger LOGGER = Logging.getLogger(MVTStylePlan.class);
+
+    /** Plan that does not produce any geometry (e.g. no style or no rule in scale) */
+    static final MVTStylePlan EMPTY =
+            new MVTStylePlan(
+                    Collections.emptyList(), Collections.emptyList(), new BitSet(), Filter.EXCLUDE);
+
+    /** index of the default geometry within the geometry expressions */
+    private static final int DEFAULT_GEOMETRY = 0;
+
+    private static final Cache<Style, ConcurrentMap<BitSet, MVTStylePlan>> CACHE =
+            CacheBuilder.newBuilder().weakKeys().maximumSize(1000).build();
+
+    /** the in scale rules that have a filter */
+    private final List<PlannedRule> filteredRules;
+
+    /** the distinct geometry expressions, the first one (null) stands for the default geometry */
+    private final List<Expression> geometryExpressions;
+
+    /** expression indices used by the rules without filter (applied to every feature) */
+    private final BitSet unconditionalExpressions;
+
+    /** the filter to be sent to the datastore (see {@link MVTQueryPlanner}) */
+    private final Filter queryFilter;
+
+    private MVTStylePlan(
+            List<PlannedRule> filteredRules,
+            List<Expression> geometryExpressions,
+            BitSet unconditionalExpressions,
+            Filter queryFilter) {
+        this.filteredRules = filteredRules;
+        this.geometryExpressions = geometryExpressions;
+        this.unconditionalExpressions = unconditionalExpressions;
+        this.queryFilter = queryFilter;
+    }
+
+    /**
+     * Returns the (cached) plan for the style at the scale denominator.
+     *
+     * @param style the style, may be null
+     * @param scaleDenominator the current scale denominator
+     * @return the plan, never null
+     */
+    static MVTStylePlan get(Style style, double scaleDenominator) {
+        if (style == null) {
+            return EMPTY;
+        }
+        BitSet rulesInScale = getRulesInScale(style, scaleDenominator);
+        if (rulesInScale.isEmpty()) {
+            return EMPTY;
+        }
+        try {
+            return CACHE.get(style, ConcurrentHashMap::new)
+                    .computeIfAbsent(rulesInScale, key -> compile(style, key));
+        } catch (ExecutionException e) {
+            LOGGER.log(Level.WARNING, "style plan could not be cached", e);
+            return compile(style, rulesInScale);
+        }
+    }
+
+    /**
+     * Determines the rules of the style that are in scale. Rules are numbered in the order of the
+     * feature type styles and their rules.
+     */
+    private static BitSet getRulesInScale(Style style, double scaleDenominator) {
+        BitSet rulesInScale = new BitSet();
+        int index = 0;
+        for (FeatureTypeStyle featureTypeStyle : style.featureTypeStyles()) {
+            for (Rule rule : featureTypeStyle.rules()) {
+                if (ruleInScale(rule, scaleDenominator)) {
+                    rulesInScale.set(index);
+                }
+                index++;
+            }
+        }
+        return rulesInScale;
+    }
+
+    /**
+     * This method evaluates the rule against the current scale denominator.
+     *
+     * @param rule the current rule to be checked
+     * @param currentScaleDenominator the current scale denominator
+     * @return true if the current rule matches to the current scale denominator, otherwise false
+     */
+    static boolean ruleInScale(Rule rule, double currentScaleDenominator) {
+        // true if within range or no cale denominator set
+        boolean inScale = true;
+        if (rule.getMinScaleDenominator() > 0
+                && currentScaleDenominator < rule.getMinScaleDenominator()) {
+            inScale = false;
+        }
+        if (rule.getMaxScaleDenominator() < Double.POSITIVE_INFINITY
+                && currentScaleDenominator > rule.getMaxScaleDenominator()) {
+            inScale = false;
+        }
+        return inScale;
+    }
+
+    private static MVTStylePlan compile(Style style, BitSet rulesInScale) {
+        List<Expression> geometryExpressions = new ArrayList<>();
+        geometryExpressions.add(null);
+        List<PlannedRule> filteredRules = new ArrayList<>();
+        BitSet unconditionalExpressions = new BitSet();
+        int index = 0;
+        for (FeatureTypeStyle featureTypeStyle : style.featureTypeStyles()) {
+            for (Rule rule : featureTypeStyle.rules()) {
+                if (rulesInScale.get(index++)) {
+                    Filter filter = rule.getFilter();
+                    if (filter == Filter.EXCLUDE) {
+                        continue;
+                    }
+                    BitSet expressions = getGeometryExpressions(rule, geometryExpressions);
+                    if (filter == null || filter == Filter.INCLUDE) {
+                        unconditionalExpressions.or(expressions);
+                    } else if (!expressions.isEmpty()) {
+                        filteredRules.add(
+                                new PlannedRule(filter, filter::evaluate, expressions));
+                    }
+                }
+            }
+        }
+        if (filteredRules.isEmpty() && unconditionalExpressions.isEmpty()) {
+            return EMPTY;
+        }
+        Filter queryFilter = Filter.INCLUDE;
+        if (unconditionalExpressions.isEmpty()) {
+            List<Filter> ruleFilters = new ArrayList<>();
+            for (PlannedRule rule : filteredRules) {
+                ruleFilters.add(rule.filter);
+            }
+            queryFilter = MVTQueryPlanner.buildQueryFilter(ruleFilters);
+        }
+        return new MVTStylePlan(
+                filteredRules, geometryExpressions, unconditionalExpressions, queryFilter);
+    }
+
+    /**
+     * Registers the geometry expressions of the rule's symbolizers in the list of distinct
+     * expressions. A rule without symbolizers uses the default geometry.
+     *
+     * @return the indices of the expressions used by the rule
+     */
+    private static BitSet getGeometryExpressions(Rule rule, List<Expression> geometryExpressions) {
+        BitSet expressions = new BitSet();
+        if (rule.symbolizers() == null || rule.symbolizers().isEmpty()) {
+            expressions.set(DEFAULT_GEOMETRY);
+            return expressions;
+        }
+        for (Symbolizer symbolizer : rule.symbolizers()) {
+            if (symbolizer instanceof AbstractSymbolizer) {
+                Expression geometryExpression = ((AbstractSymbolizer) symbolizer).getGeometry();
+                int expressionIndex = geometryExpressions.indexOf(geometryExpression);
+                if (expressionIndex < 0) {
+                    expressionIndex = geometryExpressions.size();
+                    geometryExpressions.add(geometryExpression);
+                }
+                expressions.set(expressionIndex);
+            }
+        }
+        return expressions;
+    }
+
+    /**
+     * Returns a plan evaluating the filters with predicates compiled for the feature type (see
+     * {@link MVTFilterCompiler}).
+     *
+     * @param schema the type of the features to be evaluated
+     * @return the bound plan
+     */
+    MVTStylePlan bind(SimpleFeatureType schema) {
+        if (filteredRules.isEmpty() || schema == null) {
+            return this;
+        }
+        List<PlannedRule> boundRules = new ArrayList<>(filteredRules.size());
+        for (PlannedRule rule : filteredRules) {
+            boundRules.add(
+                    new PlannedRule(
+                            rule.filter,
+                            MVTFilterCompiler.compile(rule.filter, schema),
+                            rule.expressions));
+        }
+        return new MVTStylePlan(
+                boundRules, geometryExpressions, unconditionalExpressions, queryFilter);
+    }
+
+    /**
+     * Returns the filter to be sent to the datastore. It matches at least all features the rules in
+     * scale match, the exact evaluation is done by {@link #getGeometries(SimpleFeature)}.
+     *
+     * @return the filter, {@link Filter#INCLUDE} if all features are needed or {@link
+     *     Filter#EXCLUDE} if the layer does not need to be queried at all
+     */
+    Filter getQueryFilter() {
+        return queryFilter;
+    }
+
+    /** @return true if the plan never produces a geometry */
+    boolean isEmpty() {
+        return this == EMPTY;
+    }
+
+    /**
+     * All geometries that are generated for the feature by the rules in scale are returned by this
+     * method. If a rule has no symbolizer the default geometry is used.
+     *
+     * @param feature the feature that should be rendered
+     * @return the distinct geometries produced by the matching rules
+     */
+    List<Geometry> getGeometries(SimpleFeature feature) {
+        if (isEmpty() || feature == null) {
+            return Collections.emptyList();
+        }
+        BitSet expressions = unconditionalExpressions;
+        if (!filteredRules.isEmpty()) {
+            expressions = (BitSet) unconditionalExpressions.clone();
+            for (PlannedRule rule : filteredRules) {
+                if (rule.predicate.test(feature)) {
+                    expressions.or(rule.expressions);
+                }
+            }
+        }
+        if (expressions.cardinality() == 1 && expressions.get(DEFAULT_GEOMETRY)) {
+            Geometry geometry = (Geometry) feature.getDefaultGeometry();
+            return geometry != null
+                    ? Collections.singletonList(geometry)
+                    : Collections.emptyList();
+        }
+        List<Geometry> geometryList = new ArrayList<>(expressions.cardinality());
+        for (int i = expressions.nextSetBit(0); i >= 0; i = expressions.nextSetBit(i + 1)) {
+            Geometry geometry = findGeometry(feature, geometryExpressions.get(i));
+            // different expressions may still return the same geometry instance (e.g. the name
+            // of the default geometry), an identity check is sufficient for those
+            if (geometry != null && !containsInstance(geometryList, geometry)) {
+                geometryList.add(geometry);
+            }
+        }
+        return geometryList;
+    }
+
+    private static boolean containsInstance(List<Geometry> geometryList, Geometry geometry) {
+        for (Geometry geometryInList : geometryList) {
+            if (geometryInList == geometry) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Finds the geometric attribute requested by the symbolizer. Adapted from {@link
+     * org.geotools.renderer.lite.StreamingRenderer}
+     *
+     * @param feature the feature
+     * @param geometryExpression the geometry expression of the symbolizer, may be null
+     * @return The geometry requested in the symbolizer, or the default geometry if none is
+     *     specified
+     */
+    private static Geometry findGeometry(SimpleFeature feature, Expression geometryExpression) {
+        if (geometryExpression == null) {
+            return (Geometry) feature.getDefaultGeometry();
+        }
+        return geometryExpression.evaluate(feature, Geometry.class);
+    }
+
+    /** An in scale rule with a filter and the indices of its geometry expressions */
+    private static final class PlannedRule {
+
+        final Filter filter;
+
+        final Predicate<SimpleFeature> predicate;
+
+        final BitSet expressions;
+
+        PlannedRule(Filter filter, Predicate<SimpleFeature> predicate, BitSet expressions) {
+            this.filter = filter;
+            this.predicate = predicate;
+            this.expressions = expressions;
+        }
+    }
+}
@@ -0,0 +1,197 @@
+package org.geoserver.wms.mvt;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.logging.Logger;
+import javax.servlet.ServletRequest;
+import org.geotools.data.collection.ListFeatureCollection;
+import org.geotools.data.simple.SimpleFeatureCollection;
+import org.geotools.data.simple.SimpleFeatureIterator;
+import org.geotools.util.logging.Logging;
+
+/**
+ * Range of slippy map tiles of one zoom level rendered by one request, e.g. the tiles of a
+ * viewport. The tiles of the batch share their queries: the first tile reads the features of a
+ * layer for the whole batch and keeps them in memory, the other tiles of the batch filter them.
+ * Layers with more than {@link #setMaxFeatures(int)} features in the batch are queried per tile.
+ *
+ * <p>The batch of a request is kept as request attribute and lives as long as the request.
+ */
+public class MVTTileBatch {
+
+    private static final Logger LOGGER = Logging.getLogger(MVTTileBatch.class);
+
+    /** name of the request attribute holding the batch */
+    public static final String REQUEST_ATTRIBUTE = MVTTileBatch.class.getName();
+
+    private final int zoomLevel;
+
+    private final long minColumn;
+
+    private final long minRow;
+
+    private final long maxColumn;
+
+    private final long maxRow;
+
+    private int maxFeatures = 50000;
+
+    /** features read for the batch keyed by query, null values for queries exceeding the limit */
+    private final Map<String, SimpleFeatureCollection> features = new HashMap<>();
+
+    private int queries;
+
+    private int sharedQueries;
+
+    /**
+     * @param zoomLevel the zoom level of the tiles
+     * @param minColumn the first column
+     * @param minRow the first row
+     * @param maxColumn the last column
+     * @param maxRow the last row
+     */
+    public MVTTileBatch(int zoomLevel, long minColumn, long minRow, long maxColumn, long maxRow) {
+        this.zoomLevel = zoomLevel;
+        this.minColumn = minColumn;
+        this.minRow = minRow;
+        this.maxColumn = maxColumn;
+        this.maxRow = maxRow;
+    }
+
+    /**
+     * Returns the batch of the request.
+     *
+     * @param request the request
+     * @return the batch or null if the request renders a single tile
+     */
+    public static MVTTileBatch get(ServletRequest request) {
+        Object batch = request.getAttribute(REQUEST_ATTRIBUTE);
+        return batch instanceof MVTTileBatch ? (MVTTileBatch) batch : null;
+    }
+
+    /**
+     * Binds the batch to the request, the tiles rendered for the request share their queries.
+     *
+     * @param request the request
+     */
+    public void bind(ServletRequest request) {
+        request.setAttribute(REQUEST_ATTRIBUTE, this);
+    }
+
+    /**
+     * @param zoomLevel the zoom level of the tile
+     * @param column the column of the tile
+     * @param row the row of the tile
+     * @return true if the tile is part of the batch
+     */
+    public boolean contains(int zoomLevel, long column, long row) {
+        return zoomLevel == this.zoomLevel
+                && column >= minColumn
+                && column <= maxColumn
+                && row >= minRow
+                && row <= maxRow;
+    }
+
+    /**
+     * Returns the features read for the batch, reading them on the first call for the query.
+     *
+     * @param key the key of the query, the same for all tiles of the batch
+     * @param loader reads the features of the whole batch into memory, see {@link
+     *     #read(SimpleFeatureCollection)}
+     * @return the features in memory or null if they exceed the limit and have to be read per tile
+     * @throws IOException if the features cannot be read
+     */
+    synchronized SimpleFeatureCollection getFeatures(
+            String key, Callable<SimpleFeatureCollection> loader) throws IOException {
+        if (features.containsKey(key)) {
+            SimpleFeatureCollection shared = features.get(key);
+            if (shared != null) {
+                sharedQueries++;
+            }
+            return shared;
+        }
+        SimpleFeatureCollection loaded;
+        try {
+            loaded = loader.call();
+        } catch (IOException | RuntimeException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new IOException(e);
+        }
+        queries++;
+        if (loaded == null) {
+            LOGGER.fine("more than " + maxFeatures + " features, querying per tile: " + key);
+        }
+        features.put(key, loaded);
+        return loaded;
+    }
+
+    /**
+     * Reads the features into memory.
+     *
+     * @param collection the features of the whole batch
+     * @return the features in memory or null if there are more than the maximum number of features
+     */
+    SimpleFeatureCollection read(SimpleFeatureCollection collection) {
+        ListFeatureCollection list = new ListFeatureCollection(collection.getSchema());
+        try (SimpleFeatureIterator iterator = collection.features()) {
+            while (iterator.hasNext()) {
+                if (list.size() >= maxFeatures) {
+                    return null;
+                }
+                list.add(iterator.next());
+            }
+        }
+        return list;
+    }
+
+    public int getZoomLevel() {
+        return zoomLevel;
+    }
+
+    public long getMinColumn() {
+        return minColumn;
+    }
+
+    public long getMinRow() {
+        return minRow;
+    }
+
+    public long getMaxColumn() {
+        return maxColumn;
+    }
+
+    public long getMaxRow() {
+        return maxRow;
+    }
+
+    /** @return the number of tiles of the batch */
+    public long getSize() {
+        return (maxColumn - minColumn + 1) * (maxRow - minRow + 1);
+    }
+
+    /** @return the number of queries reading features for the whole batch */
+    public synchronized int getQueries() {
+        return queries;
+    }
+
+    /** @return the number of tiles answered from the features read for the batch */
+    public synchronized int getSharedQueries() {
+        return sharedQueries;
+    }
+
+    public int getMaxFeatures() {
+        return maxFeatures;
+    }
+
+    /**
+     * Maximum number of features per layer kept in memory for the batch.
+     *
+     * @param maxFeatures the number of features
+     */
+    public void setMaxFeatures(int maxFeatures) {
+        this.maxFeatures = maxFeatures;
+    }
+}
@@ -0,0 +1,145 @@
+package org.geoserver.wms.mvt;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Compressed set of tiles of one zoom level. The tiles are numbered along a Hilbert curve, so
+ * neighbouring tiles get close indices, and the indices are stored in containers of 2^16 indices
+ * each (the scheme of roaring bitmaps): a sorted array while a container holds few indices, a
+ * plain bitmap once the array would be larger than the bitmap.
+ *
+ * <p>Instances are thread safe.
+ */
+final class MVTTileBitmap {
+
+    /** number of indices of an array container before it is converted to a bitmap container */
+    private static final int MAX_ARRAY_SIZE = 4096;
+
+    /** number of longs of a bitmap container */
+    private static final int BITMAP_SIZE = (1 << 16) / 64;
+
+    private final int zoomLevel;
+
+    /** containers keyed by the high bits of the tile index */
+    private final Map<Long, Container> containers = new HashMap<>();
+
+    private long cardinality;
+
+    /** @param zoomLevel the zoom level of the tiles */
+    MVTTileBitmap(int zoomLevel) {
+        this.zoomLevel = zoomLevel;
+    }
+
+    /**
+     * Adds a tile.
+     *
+     * @param x the tile column
+     * @param y the tile row
+     */
+    synchronized void add(long x, long y) {
+        long index = hilbertIndex(zoomLevel, x, y);
+        Container container = containers.computeIfAbsent(index >>> 16, key -> new Container());
+        if (container.add((char) index)) {
+            cardinality++;
+        }
+    }
+
+    /**
+     * @param x the tile column
+     * @param y the tile row
+     * @return true if the tile has been added
+     */
+    synchronized boolean contains(long x, long y) {
+        long index = hilbertIndex(zoomLevel, x, y);
+        Container container = containers.get(index >>> 16);
+        return container != null && container.contains((char) index);
+    }
+
+    /** @return the number of tiles */
+    synchronized long getCardinality() {
+        return cardinality;
+    }
+
+    /**
+     * Computes the index of the tile along the Hilbert curve filling the tiles of the zoom level.
+     *
+     * @param zoomLevel the zoom level
+     * @param x the tile column
+     * @param y the tile row
+     * @return the index, between 0 and 4^zoomLevel - 1
+     */
+    static long hilbertIndex(int zoomLevel, long x, long y) {
+        long n = 1L << zoomLevel;
+        long index = 0;
+        for (long s = n >>> 1; s > 0; s >>>= 1) {
+            long rx = (x & s) > 0 ? 1 : 0;
+            long ry = (y & s) > 0 ? 1 : 0;
+            index += s * s * ((3 * rx) ^ ry);
+            // rotate the quadrant
+            if (ry == 0) {
+                if (rx == 1) {
+                    x = n - 1 - x;
+                    y = n - 1 - y;
+                }
+                long t = x;
+                x = y;
+                y = t;
+            }
+        }
+        return index;
+    }
+
+    /** The low 16 bits of the indices sharing the same high bits. */
+    private static final class Container {
+
+        /** sorted low bits, null once converted to a bitmap */
+        private char[] array = new char[4];
+
+        private int size;
+
+        private long[] bitmap;
+
+        /** @return true if the value has not been contained before */
+        boolean add(char value) {
+            if (bitmap != null) {
+                long word = bitmap[value >>> 6];
+                bitmap[value >>> 6] = word | (1L << value);
+                return word != bitmap[value >>> 6];
+            }
+            int position = Arrays.binarySearch(array, 0, size, value);
+            if (position >= 0) {
+                return false;
+            }
+            if (size == MAX_ARRAY_SIZE) {
+                toBitmap();
+                return add(value);
+            }
+            position = -position - 1;
+            if (size == array.length) {
+                array = Arrays.copyOf(array, Math.min(MAX_ARRAY_SIZE, size * 2));
+            }
+            System.arraycopy(array, position, array, position + 1, size - position);
+            array[position] = value;
+            size++;
+            return true;
+        }
+
+        boolean contains(char value) {
+            if (bitmap != null) {
+                return (bitmap[value >>> 6] & (1L << value)) != 0;
+            }
+            return Arrays.binarySearch(array, 0, size, value) >= 0;
+        }
+
+        private void toBitmap() {
+            bitmap = new long[BITMAP_SIZE];
+            for (int i = 0; i < size; i++) {
+                bitmap[array[i] >>> 6] |= 1L << array[i];
+            }
+            array = null;
+            size = 0;
+        }
+    }
+}
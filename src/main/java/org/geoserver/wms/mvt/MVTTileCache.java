@@ -0,0 +1,111 @@
+package org.geoserver.wms.mvt;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+/**
+ * In memory cache of decoded tiles. Entries expire after a maximum age and the oldest entries are
+ * evicted once the cache is full. Concurrent requests for a missing tile wait for the first one
+ * loading it, so each tile is loaded once.
+ */
+final class MVTTileCache {
+
+    private final int maxEntries;
+
+    private final long maxAge;
+
+    private final Map<String, Entry> entries = new ConcurrentHashMap<>();
+
+    /**
+     * @param maxEntries the maximum number of cached tiles
+     * @param maxAge the time in seconds after which a tile is loaded again
+     */
+    MVTTileCache(int maxEntries, long maxAge) {
+        this.maxEntries = maxEntries;
+        this.maxAge = maxAge * 1000;
+    }
+
+    /**
+     * Returns the cached tile, loading it if it is not cached or expired.
+     *
+     * @param key the key of the tile
+     * @param loader loads the tile
+     * @return the tile
+     * @throws IOException if the tile cannot be loaded
+     */
+    VectorTile.Tile get(String key, Callable<VectorTile.Tile> loader) throws IOException {
+        Entry entry = entries.get(key);
+        if (entry != null && System.currentTimeMillis() - entry.created > maxAge) {
+            entries.remove(key, entry);
+            entry = null;
+        }
+        if (entry == null) {
+            Entry created = new Entry(loader);
+            entry = entries.putIfAbsent(key, created);
+            if (entry == null) {
+                entry = created;
+                evict();
+                created.task.run();
+            }
+        }
+        try {
+            return entry.task.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("interrupted while loading tile " + key);
+        } catch (ExecutionException e) {
+            // do not cache failures, the next request loads the tile again
+            entries.remove(key, entry);
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new IOException("tile " + key + " cannot be loaded", cause);
+        }
+    }
+
+    /** Removes all tiles. */
+    void clear() {
+        entries.clear();
+    }
+
+    /** @return the number of cached tiles */
+    int size() {
+        return entries.size();
+    }
+
+    private void evict() {
+        while (entries.size() > maxEntries) {
+            Map.Entry<String, Entry> oldest = null;
+            for (Map.Entry<String, Entry> e : entries.entrySet()) {
+                if (oldest == null || e.getValue().created < oldest.getValue().created) {
+                    oldest = e;
+                }
+            }
+            if (oldest == null) {
+                return;
+            }
+            entries.remove(oldest.getKey(), oldest.getValue());
+        }
+    }
+
+    /** A cached tile, loaded by the first request. */
+    private static final class Entry {
+
+        final FutureTask<VectorTile.Tile> task;
+
+        final long created = System.currentTimeMillis();
+
+        Entry(Callable<VectorTile.Tile> loader) {
+            this.task = new FutureTask<>(loader);
+        }
+    }
+}
@@ -0,0 +1,295 @@
+package org.geoserver.wms.mvt;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import org.geotools.geometry.jts.GeometryClipper;
+import org.locationtech.jts.geom.Coordinate;
+import org.locationtech.jts.geom.Envelope;
+import org.locationtech.jts.geom.Geometry;
+import org.locationtech.jts.geom.GeometryFactory;
+import org.locationtech.jts.geom.LineString;
+import org.locationtech.jts.geom.LinearRing;
+import org.locationtech.jts.geom.Point;
+import org.locationtech.jts.geom.Polygon;
+
+/**
+ * Decodes the layers of vector tiles, so tiles can be derived from other tiles (e.g. sliced from
+ * an ancestor tile) without querying the datastore. Geometries are decoded in the integer
+ * coordinates of the layer with the origin top left, like they are encoded by the {@link
+ * VectorTileEncoder}.
+ */
+final class MVTTileDecoder {
+
+    private static final GeometryFactory GEOMETRY_FACTORY = new GeometryFactory();
+
+    private MVTTileDecoder() {}
+
+    /**
+     * Decodes the features of the layer. Features without a valid geometry are skipped.
+     *
+     * @param layer the layer
+     * @return the features, the geometries in the coordinates of the layer's extent
+     */
+    static List<Feature> decode(VectorTile.Tile.Layer layer) {
+        List<Feature> features = new ArrayList<>(layer.getFeaturesCount());
+        for (VectorTile.Tile.Feature feature : layer.getFeaturesList()) {
+            Geometry geometry = decodeGeometry(feature.getType(), feature.getGeometryList());
+            if (geometry == null) {
+                continue;
+            }
+            Map<String, Object> attributes = new LinkedHashMap<>();
+            for (int i = 0; i + 1 < feature.getTagsCount(); i += 2) {
+                Object value = decodeValue(layer.getValues(feature.getTags(i + 1)));
+                if (value != null) {
+                    attributes.put(layer.getKeys(feature.getTags(i)), value);
+                }
+            }
+            features.add(
+                    new Feature(feature.hasId() ? feature.getId() : null, attributes, geometry));
+        }
+        return features;
+    }
+
+    /**
+     * Slices the features of a tile's descendant out of the layer. The geometries are clipped to
+     * the buffered descendant in the integer coordinates of the layer, then scaled to the tile
+     * units of the descendant.
+     *
+     * @param layer the layer of the ancestor tile
+     * @param zoomDelta the number of zoom levels between the ancestor and the descendant
+     * @param column the column of the descendant within the ancestor, starting with 0 left
+     * @param row the row of the descendant within the ancestor, starting with 0 top
+     * @param tileSize the size of the descendant in tile units
+     * @param buffer the buffer of the descendant in tile units
+     * @return the features in the tile units of the descendant
+     */
+    static List<Feature> slice(
+            VectorTile.Tile.Layer layer,
+            int zoomDelta,
+            long column,
+            long row,
+            double tileSize,
+            double buffer) {
+        double cellSize = layer.getExtent() / (double) (1L << zoomDelta);
+        double minX = column * cellSize;
+        double minY = row * cellSize;
+        double margin = buffer * cellSize / tileSize;
+        Envelope window =
+                new Envelope(
+                        minX - margin,
+                        minX + cellSize + margin,
+                        minY - margin,
+                        minY + cellSize + margin);
+        GeometryClipper clipper = new GeometryClipper(window);
+        double scale = tileSize / cellSize;
+        List<Feature> features = new ArrayList<>();
+        for (Feature feature : decode(layer)) {
+            if (!window.intersects(feature.geometry.getEnvelopeInternal())) {
+                continue;
+            }
+            Geometry clipped = clipper.clipSafe(feature.geometry, false, 0);
+            if (clipped == null || clipped.isEmpty()) {
+                continue;
+            }
+            // the decoded geometries are not shared, they can be transformed in place
+            clipped.apply(
+                    (Coordinate coordinate) -> {
+                        coordinate.x = (coordinate.x - minX) * scale;
+                        coordinate.y = (coordinate.y - minY) * scale;
+                    });
+            clipped.geometryChanged();
+            features.add(new Feature(feature.id, feature.attributes, clipped));
+        }
+        return features;
+    }
+
+    /**
+     * Decodes the geometry commands of a feature.
+     *
+     * @param type the geometry type
+     * @param commands the commands and parameters
+     * @return the geometry or null if the commands do not describe a valid geometry
+     */
+    static Geometry decodeGeometry(VectorTile.Tile.GeomType type, List<Integer> commands) {
+        List<List<Coordinate>> parts = new ArrayList<>();
+        List<Coordinate> part = null;
+        int x = 0;
+        int y = 0;
+        int i = 0;
+        while (i < commands.size()) {
+            int commandAndLength = commands.get(i++);
+            int command = commandAndLength & 0x7;
+            int length = commandAndLength >>> 3;
+            if (command == Command.ClosePath) {
+                if (part != null && !part.isEmpty()) {
+                    part.add(new Coordinate(part.get(0)));
+                }
+                continue;
+            }
+            if (command != Command.MoveTo && command != Command.LineTo) {
+                return null;
+            }
+            for (int n = 0; n < length && i + 1 < commands.size(); n++) {
+                x += zigZagDecode(commands.get(i++));
+                y += zigZagDecode(commands.get(i++));
+                if (command == Command.MoveTo) {
+                    part = new ArrayList<>();
+                    parts.add(part);
+                } else if (part == null) {
+                    return null;
+                }
+                part.add(new Coordinate(x, y));
+            }
+        }
+        switch (type) {
+            case POINT:
+                return toPoints(parts);
+            case LINESTRING:
+                return toLines(parts);
+            case POLYGON:
+                return toPolygons(parts);
+            default:
+                return null;
+        }
+    }
+
+    private static Geometry toPoints(List<List<Coordinate>> parts) {
+        List<Point> points = new ArrayList<>();
+        for (List<Coordinate> part : parts) {
+            points.add(GEOMETRY_FACTORY.createPoint(part.get(0)));
+        }
+        if (points.isEmpty()) {
+            return null;
+        }
+        return points.size() == 1
+                ? points.get(0)
+                : GEOMETRY_FACTORY.createMultiPoint(points.toArray(new Point[0]));
+    }
+
+    private static Geometry toLines(List<List<Coordinate>> parts) {
+        List<LineString> lines = new ArrayList<>();
+        for (List<Coordinate> part : parts) {
+            if (part.size() > 1) {
+                lines.add(GEOMETRY_FACTORY.createLineString(part.toArray(new Coordinate[0])));
+            }
+        }
+        if (lines.isEmpty()) {
+            return null;
+        }
+        return lines.size() == 1
+                ? lines.get(0)
+                : GEOMETRY_FACTORY.createMultiLineString(lines.toArray(new LineString[0]));
+    }
+
+    /**
+     * Builds the polygons of the rings. Exterior rings have a positive area in the tile
+     * coordinates and start a new polygon, the following rings with a negative area are its
+     * holes.
+     */
+    private static Geometry toPolygons(List<List<Coordinate>> parts) {
+        List<Polygon> polygons = new ArrayList<>();
+        LinearRing shell = null;
+        List<LinearRing> holes = new ArrayList<>();
+        for (List<Coordinate> part : parts) {
+            double area = signedArea(part);
+            if (part.size() < 4 || area == 0) {
+                continue;
+            }
+            LinearRing ring = GEOMETRY_FACTORY.createLinearRing(part.toArray(new Coordinate[0]));
+            if (area > 0) {
+                if (shell != null) {
+                    polygons.add(createPolygon(shell, holes));
+                }
+                shell = ring;
+                holes = new ArrayList<>();
+            } else if (shell != null) {
+                holes.add(ring);
+            }
+        }
+        if (shell != null) {
+            polygons.add(createPolygon(shell, holes));
+        }
+        if (polygons.isEmpty()) {
+            return null;
+        }
+        return polygons.size() == 1
+                ? polygons.get(0)
+                : GEOMETRY_FACTORY.createMultiPolygon(polygons.toArray(new Polygon[0]));
+    }
+
+    private static Polygon createPolygon(LinearRing shell, List<LinearRing> holes) {
+        return GEOMETRY_FACTORY.createPolygon(shell, holes.toArray(new LinearRing[0]));
+    }
+
+    private static double signedArea(List<Coordinate> ring) {
+        double sum = 0;
+        for (int i = 0; i + 1 < ring.size(); i++) {
+            Coordinate c1 = ring.get(i);
+            Coordinate c2 = ring.get(i + 1);
+            sum += c1.x * c2.y - c2.x * c1.y;
+        }
+        return sum / 2;
+    }
+
+    /**
+     * Decodes a value. Integers are decoded to the type they are encoded from by the {@link
+     * VectorTileEncoder}, so they are encoded the same way again.
+     *
+     * @param value the value message
+     * @return the value or null if the message has no value
+     */
+    static Object decodeValue(VectorTile.Tile.Value value) {
+        if (value.hasStringValue()) {
+            return value.getStringValue();
+        }
+        if (value.hasFloatValue()) {
+            return value.getFloatValue();
+        }
+        if (value.hasDoubleValue()) {
+            return value.getDoubleValue();
+        }
+        if (value.hasIntValue()) {
+            long intValue = value.getIntValue();
+            return intValue == (int) intValue ? (Object) (int) intValue : (Object) intValue;
+        }
+        if (value.hasUintValue()) {
+            return value.getUintValue();
+        }
+        if (value.hasSintValue()) {
+            return value.getSintValue();
+        }
+        if (value.hasBoolValue()) {
+            return value.getBoolValue();
+        }
+        return null;
+    }
+
+    static int zigZagDecode(int n) {
+        return (n >>> 1) ^ -(n & 1);
+    }
+
+    /** A decoded feature. */
+    static final class Feature {
+
+        /** the id or null if the feature has no id */
+        final Long id;
+
+        final Map<String, Object> attributes;
+
+        final Geometry geometry;
+
+        Feature(Long id, Map<String, Object> attributes, Geometry geometry) {
+            this.id = id;
+            this.attributes = Collections.unmodifiableMap(attributes);
+            this.geometry = geometry;
+        }
+
+        /** @return the id as expected by the encoder, null if the feature has no id */
+        String getIdString() {
+            return id != null ? id.toString() : null;
+        }
+    }
+}
@@ -1,35 +1,32 @@
 package org.geoserver.wms.mvt;
 
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.util.*;
 import java.util.logging.Level;
 import java.util.logging.Logger;
-import org.geotools.api.feature.Feature;
 import org.geotools.api.feature.Property;
 import org.geotools.api.feature.simple.SimpleFeature;
-import org.geotools.api.filter.Filter;
-import org.geotools.api.filter.expression.Expression;
+import org.geotools.api.feature.simple.SimpleFeatureType;
 import org.geotools.api.filter.spatial.BBOX;
 import org.geotools.api.referencing.FactoryException;
 import org.geotools.api.referencing.crs.CoordinateReferenceSystem;
 import org.geotools.api.referencing.operation.MathTransform;
 import org.geotools.api.referencing.operation.TransformException;
-import org.geotools.api.style.FeatureTypeStyle;
-import org.geotools.api.style.Rule;
 import org.geotools.api.style.Style;
-import org.geotools.api.style.Symbolizer;
-import org.geotools.factory.CommonFactoryFinder;
 import org.geotools.feature.FeatureCollection;
 import org.geotools.feature.FeatureIterator;
 import org.geotools.geometry.jts.JTS;
 import org.geotools.geometry.jts.ReferencedEnvelope;
 import org.geotools.referencing.CRS;
-import org.geotools.styling.AbstractSymbolizer;
 import org.geotools.util.logging.Logging;
 import org.locationtech.jts.geom.Coordinate;
 import org.locationtech.jts.geom.Envelope;
 import org.locationtech.jts.geom.Geometry;
+import org.locationtech.jts.geom.GeometryCollection;
+import org.locationtech.jts.geom.MultiPoint;
+import org.locationtech.jts.geom.Point;
 
 /**
  * Class is not stateless. Writer transforms the geometries into the local tile coordinate System.
@@ -41,6 +38,9 @@ public class MVTWriter {
 
     private static final Logger LOGGER = Logging.getLogger(MVTWriter.class);
 
+    /** extent of the layers without a configured extent */
+    static final int DEFAULT_EXTENT = 4096;
+
     static {
         try {
             TARGET_CRS = CRS.decode("EPSG:3857");
@@ -58,12 +58,33 @@ public class MVTWriter {
     /** The bounding box of the target (tile local) system */
     private final Envelope targetBBOX;
 
+    /** The unbuffered bounding box of the target (tile local) system */
+    private final Envelope tileBBOX;
+
+    /** The buffer of the request in target units */
+    private final int bufferSize;
+
     /** scale in x direction */
     private final double xScale;
 
     /** scale in y direction */
     private final double yScale;
 
+    /** configurations of the layers to be written, keyed by layer name */
+    private final Map<String, MVTLayerConfiguration> layerConfigurations = new LinkedHashMap<>();
+
+    /** names of the layers whose query returned no feature */
+    private final Set<String> emptyLayers = new LinkedHashSet<>();
+
+    /** features sliced from ancestor tiles, keyed by layer name */
+    private final Map<String, List<MVTTileDecoder.Feature>> slicedLayers = new LinkedHashMap<>();
+
+    /** signals that the client is gone, null if the request cannot be cancelled */
+    private MVTCancellationToken cancellationToken;
+
+    /** whether finished layers are written before the tile is complete */
+    private boolean streamLayers;
+
     /**
      * Retrieves an instance of the MVTWriter.
      *
@@ -195,6 +216,8 @@ public class MVTWriter {
             double genFactor,
             double smallGeometryThreshold)
             throws TransformException, FactoryException {
+        this.tileBBOX = targetBBOX;
+        this.bufferSize = Math.max(0, bufferSize);
         if (sourceBBOX instanceof ReferencedEnvelope) {
             sourceBBOX = ((ReferencedEnvelope) sourceBBOX).transform(TARGET_CRS, true);
         } else {
@@ -217,7 +240,7 @@ public class MVTWriter {
         this.yScale = this.calculateYFactor();
         this.vectorTileEncoder =
                 new VectorTileEncoder(
-                        4096,
+                        DEFAULT_EXTENT,
                         targetBBOX,
                         includeLayersOnEmptyFeatureList,
                         genFactor,
@@ -230,6 +253,8 @@ public class MVTWriter {
             CoordinateReferenceSystem sourceCRS,
             int bufferSize)
             throws TransformException, FactoryException {
+        this.tileBBOX = targetBBOX;
+        this.bufferSize = Math.max(0, bufferSize);
         MathTransform transform = CRS.findMathTransform(sourceCRS, TARGET_CRS);
         sourceBBOX = JTS.transform(sourceBBOX, transform);
         if (bufferSize > 0) {
@@ -249,6 +274,36 @@ public class MVTWriter {
         this.vectorTileEncoder = new VectorTileEncoder(targetBBOX);
     }
 
+    /**
+     * Returns the bounding box of the layer's query, buffered by the buffer configured for the
+     * layer (see {@link MVTLayerConfiguration#setBuffer(Integer)}) or by the buffer of the request.
+     * The layer configuration has to be set before.
+     *
+     * @param layerName the name of the layer
+     * @param geometryBinding the geometry binding of the layer's schema
+     * @return a referenced envelope containing the bounds with the buffer of the layer
+     */
+    public ReferencedEnvelope getSourceBBOXWithBuffer(String layerName, Class<?> geometryBinding) {
+        ReferencedEnvelope bbox = new ReferencedEnvelope(this.sourceBBOX, TARGET_CRS);
+        MVTLayerBuffer layerBuffer = getLayerBuffer(layerName);
+        if (layerBuffer != null) {
+            // the source bbox is buffered by the buffer of the request, adjust to the layer's
+            int delta = layerBuffer.getQueryBuffer(geometryBinding) - bufferSize;
+            bbox.expandBy(delta / xScale, delta / yScale);
+        }
+        return bbox;
+    }
+
+    /**
+     * Creates the buffers of the layer if the layer configures its own buffer.
+     *
+     * @param layerName the name of the layer
+     * @return the buffers or null if the buffer of the request applies
+     */
+    private MVTLayerBuffer getLayerBuffer(String layerName) {
+        return MVTLayerBuffer.of(layerConfigurations.get(layerName), bufferSize, tileBBOX);
+    }
+
     /**
      * Buffers the sourceBBOX in the same relation like the buffer has to the targetBBOX.
      *
@@ -300,6 +355,282 @@ public class MVTWriter {
         return deltaTarget / deltaSource;
     }
 
+    /**
+     * Sets the budget of the whole tile. When the tile exceeds the budget it is degraded, see
+     * {@link VectorTileEncoder#getDegradations()}.
+     *
+     * @param tileBudget the budget, null if the tile is unlimited
+     */
+    void setTileBudget(MVTBudget tileBudget) {
+        this.vectorTileEncoder.setTileBudget(tileBudget);
+    }
+
+    /**
+     * Returns the layers whose query returned no feature at all, independent of the features
+     * skipped while encoding. Available after the features have been written.
+     *
+     * @return the layer names
+     */
+    public Set<String> getEmptyLayers() {
+        return Collections.unmodifiableSet(emptyLayers);
+    }
+
+    /**
+     * Sets the configuration of a layer, e.g. the attributes that should be written to the tile.
+     *
+     * @param layerName the name of the layer (feature type name)
+     * @param layerConfiguration the configuration to be applied when writing the layer
+     */
+    public void setLayerConfiguration(String layerName, MVTLayerConfiguration layerConfiguration) {
+        this.layerConfigurations.put(layerName, layerConfiguration);
+    }
+
+    /**
+     * Adds the features of a layer sliced from the layer of an ancestor tile instead of features
+     * read from the datastore. The features are clipped to this tile buffered by the largest
+     * buffer of the layer and are written with the features of the other layers.
+     *
+     * @param layerName the name of the layer, its configuration has to be set before
+     * @param ancestorLayer the layer of the ancestor tile
+     * @param zoomDelta the number of zoom levels between the ancestor tile and this tile
+     * @param column the column of this tile within the ancestor tile
+     * @param row the row of this tile within the ancestor tile
+     */
+    void addSlicedLayer(
+            String layerName,
+            VectorTile.Tile.Layer ancestorLayer,
+            int zoomDelta,
+            long column,
+            long row) {
+        MVTLayerBuffer layerBuffer = getLayerBuffer(layerName);
+        int buffer = layerBuffer != null ? layerBuffer.getQueryBuffer(Object.class) : bufferSize;
+        slicedLayers.put(
+                layerName,
+                MVTTileDecoder.slice(
+                        ancestorLayer, zoomDelta, column, row, tileBBOX.getWidth(), buffer));
+    }
+
+    /**
+     * Returns the attributes to be written for the layer.
+     *
+     * @param layerName the name of the layer
+     * @return the attribute names or null if all attributes should be written
+     */
+    private Set<String> getOutputAttributes(String layerName) {
+        MVTLayerConfiguration layerConfiguration = layerConfigurations.get(layerName);
+        if (layerConfiguration == null || layerConfiguration.getAttributes() == null) {
+            return null;
+        }
+        return new HashSet<>(layerConfiguration.getAttributes());
+    }
+
+    /**
+     * Returns the budget of the layer.
+     *
+     * @param layerConfiguration the configuration of the layer, may be null
+     * @return the budget or null if the layer is unlimited
+     */
+    private MVTBudget getBudget(MVTLayerConfiguration layerConfiguration) {
+        if (layerConfiguration == null) {
+            return null;
+        }
+        return MVTBudget.of(
+                layerConfiguration.getMaxBytes(),
+                layerConfiguration.getMaxFeatures(),
+                layerConfiguration.getMaxVertices());
+    }
+
+    /**
+     * Creates the point aggregator for the layer if aggregation is enabled.
+     *
+     * @param layerName the name of the layer
+     * @return the aggregator or null if the points of the layer are not aggregated
+     */
+    private MVTPointAggregator getPointAggregator(String layerName) {
+        MVTLayerConfiguration layerConfiguration = layerConfigurations.get(layerName);
+        if (layerConfiguration == null || !layerConfiguration.isAggregationEnabled()) {
+            return null;
+        }
+        return new MVTPointAggregator(
+                layerConfiguration.getAggregationGridSize(),
+                layerConfiguration.getAggregationAttributes());
+    }
+
+    /**
+     * Adds the points of the feature to the aggregator. The points are transformed to the tile
+     * local system without copying the geometries, points outside of the (buffered) tile are
+     * skipped.
+     *
+     * @param aggregator the aggregator of the layer
+     * @param geometryList the geometries of the feature
+     * @param feature the feature
+     * @param pointBBOX the clip envelope of points in the tile local system
+     * @return true if the geometries have been aggregated, false if they are not (only) points
+     */
+    private boolean aggregatePoints(
+            MVTPointAggregator aggregator,
+            List<Geometry> geometryList,
+            SimpleFeature feature,
+            Envelope pointBBOX) {
+        for (Geometry geometry : geometryList) {
+            if (!(geometry instanceof Point) && !(geometry instanceof MultiPoint)) {
+                return false;
+            }
+        }
+        for (Geometry geometry : geometryList) {
+            for (Coordinate coordinate : geometry.getCoordinates()) {
+                double x = toTargetX(coordinate.x);
+                double y = toTargetY(coordinate.y);
+                if (pointBBOX.contains(x, y)) {
+                    aggregator.add(x, y, feature);
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Creates the density filter for the layer if thinning is enabled.
+     *
+     * @param layerName the name of the layer
+     * @return the filter or null if the features of the layer are not thinned out
+     */
+    private MVTDensityFilter getDensityFilter(String layerName) {
+        MVTLayerConfiguration layerConfiguration = layerConfigurations.get(layerName);
+        if (layerConfiguration == null || !layerConfiguration.isDensityFilterEnabled()) {
+            return null;
+        }
+        return new MVTDensityFilter(
+                layerConfiguration.getDensityGridSize(),
+                layerConfiguration.getDensityMaxFeatures(),
+                layerConfiguration.getDensityRankAttribute());
+    }
+
+    /**
+     * Offers a point feature to the density filter. Only the location of the first point is
+     * transformed to the tile local system, the geometries of the kept features are processed
+     * after all features of the layer have been read. Points outside of the (buffered) tile are
+     * skipped.
+     *
+     * @param densityFilter the density filter of the layer
+     * @param geometryList the geometries of the feature
+     * @param feature the feature
+     * @param pointBBOX the clip envelope of points in the tile local system
+     * @return true if the feature has been handled, false if its geometries are not (only) points
+     */
+    private boolean thinPoints(
+            MVTDensityFilter densityFilter,
+            List<Geometry> geometryList,
+            SimpleFeature feature,
+            Envelope pointBBOX) {
+        for (Geometry geometry : geometryList) {
+            if (!(geometry instanceof Point) && !(geometry instanceof MultiPoint)) {
+                return false;
+            }
+        }
+        Geometry first = geometryList.get(0);
+        if (first.isEmpty()) {
+            return true;
+        }
+        Coordinate coordinate = first.getCoordinate();
+        double x = toTargetX(coordinate.x);
+        double y = toTargetY(coordinate.y);
+        if (pointBBOX.contains(x, y)) {
+            densityFilter.offer(x, y, feature, geometryList);
+        }
+        return true;
+    }
+
+    /**
+     * Creates the feature coalescer for the layer if coalescing is enabled.
+     *
+     * @param layerName the name of the layer
+     * @return the coalescer or null if the features of the layer are not coalesced
+     */
+    private MVTFeatureCoalescer getFeatureCoalescer(String layerName) {
+        MVTLayerConfiguration layerConfiguration = layerConfigurations.get(layerName);
+        if (layerConfiguration == null || !layerConfiguration.isCoalescingEnabled()) {
+            return null;
+        }
+        return new MVTFeatureCoalescer(layerConfiguration.getCoalesceAttributes());
+    }
+
+    /**
+     * Transforms the lines or polygons of the feature to the tile local system and adds them to
+     * the coalescer.
+     *
+     * @param coalescer the coalescer of the layer
+     * @param geometryList the geometries of the feature
+     * @param feature the feature
+     * @return true if the geometries have been coalesced, false if they are not (only) lines or
+     *     polygons
+     */
+    private boolean coalesce(
+            MVTFeatureCoalescer coalescer, List<Geometry> geometryList, SimpleFeature feature) {
+        List<Geometry> transformed = new ArrayList<>(geometryList.size());
+        for (Geometry geometry : geometryList) {
+            if (geometry.getDimension() == 0
+                    || geometry.getClass().equals(GeometryCollection.class)) {
+                return false;
+            }
+        }
+        for (Geometry geometry : geometryList) {
+            transformed.add(transFormGeometry(geometry));
+        }
+        coalescer.add(feature, transformed);
+        return true;
+    }
+
+    /**
+     * Sets the render deadline of the tile. Once it passed no further features are read, the tile
+     * contains the features processed so far and the deadline degradation.
+     *
+     * @param renderDeadline the deadline in {@link System#nanoTime()} units, null for none
+     */
+    void setRenderDeadline(Long renderDeadline) {
+        vectorTileEncoder.setRenderDeadline(renderDeadline);
+    }
+
+    /** @return true if the render deadline passed before all features were processed */
+    public boolean isPartial() {
+        return vectorTileEncoder.isPartial();
+    }
+
+    /**
+     * Sets the token signalling that the client is gone. Once cancelled no further features are
+     * read and nothing is written.
+     *
+     * @param cancellationToken the token, null if the request cannot be cancelled
+     */
+    void setCancellationToken(MVTCancellationToken cancellationToken) {
+        this.cancellationToken = cancellationToken;
+    }
+
+    /**
+     * @param layerName the name of the layer
+     * @return the number of features of the layer kept in memory, 0 once the layer is written
+     */
+    int getFeatureCount(String layerName) {
+        return vectorTileEncoder.getFeatureCount(layerName);
+    }
+
+    private boolean isCancelled() {
+        return cancellationToken != null && cancellationToken.isCancelled();
+    }
+
+    /**
+     * Sets whether each layer is written to the output as soon as its features are read. Finished
+     * layers are always encoded and their features released, so only the features of one layer
+     * are kept in memory; without streaming the encoded layers are buffered and written with the
+     * tile, so errors while reading a later layer can still be reported. Tiles with a tile budget
+     * keep all layers until they are encoded, as the budget is shared by all layers.
+     *
+     * @param streamLayers true to write finished layers before the tile is complete
+     */
+    void setStreamLayers(boolean streamLayers) {
+        this.streamLayers = streamLayers;
+    }
+
     /**
      * Returns all features of the featurecollections in the MVT PBF format as byte array.
      *
@@ -307,8 +638,9 @@ public class MVTWriter {
      * @return byte[] containing the information in the MVT format
      */
     public byte[] adaptFeatures(
-            Map<FeatureCollection, Style> featureCollectionStyleMap, double scaleDenominator) {
-        this.addFeaturesToEncoder(featureCollectionStyleMap, scaleDenominator);
+            Map<FeatureCollection, Style> featureCollectionStyleMap, double scaleDenominator)
+            throws IOException {
+        this.addFeaturesToEncoder(featureCollectionStyleMap, scaleDenominator, null);
         return this.vectorTileEncoder.encode();
     }
 
@@ -324,7 +656,24 @@ public class MVTWriter {
             double scaleDenominator,
             OutputStream outputStream)
             throws IOException {
-        this.addFeaturesToEncoder(featureCollectionStyleMap, scaleDenominator);
+        // finished layers are encoded right away, the bytes are far smaller than the features
+        ByteArrayOutputStream encodedLayers = null;
+        OutputStream layerStream = null;
+        if (vectorTileEncoder.isLayerStreamable()) {
+            if (streamLayers) {
+                layerStream = outputStream;
+            } else {
+                encodedLayers = new ByteArrayOutputStream();
+                layerStream = encodedLayers;
+            }
+        }
+        this.addFeaturesToEncoder(featureCollectionStyleMap, scaleDenominator, layerStream);
+        if (cancellationToken != null) {
+            cancellationToken.checkCancelled();
+        }
+        if (encodedLayers != null) {
+            encodedLayers.writeTo(outputStream);
+        }
         this.vectorTileEncoder.encode(outputStream);
     }
 
@@ -336,33 +685,124 @@ public class MVTWriter {
      *     style
      */
     private void addFeaturesToEncoder(
-            Map<FeatureCollection, Style> featureCollectionStyleMap, double scaleDenominator) {
+            Map<FeatureCollection, Style> featureCollectionStyleMap,
+            double scaleDenominator,
+            OutputStream layerStream)
+            throws IOException {
         boolean atLeastOneFeatureAdded = false;
+        // a layer is finished with the last collection of its name
+        Map<String, FeatureCollection> lastCollections = new HashMap<>();
+        for (FeatureCollection featureCollection : featureCollectionStyleMap.keySet()) {
+            lastCollections.put(
+                    featureCollection.getSchema().getName().getLocalPart(), featureCollection);
+        }
         for (FeatureCollection featureCollection : featureCollectionStyleMap.keySet()) {
             String layerName = featureCollection.getSchema().getName().getLocalPart();
+            if (isCancelled()) {
+                break;
+            }
+            if (vectorTileEncoder.isRenderDeadlineExceeded()) {
+                // the features are read lazily, the layer is not queried at all
+                LOGGER.fine("render deadline exceeded, skipping layer " + layerName);
+                continue;
+            }
             Style featureStyle = featureCollectionStyleMap.get(featureCollection);
+            Set<String> outputAttributes = getOutputAttributes(layerName);
+            MVTStylePlan stylePlan = MVTStylePlan.get(featureStyle, scaleDenominator);
+            if (stylePlan.isEmpty()) {
+                // no rule applies, features would not produce any geometry
+                continue;
+            }
+            MVTPointAggregator aggregator = getPointAggregator(layerName);
+            MVTDensityFilter densityFilter = getDensityFilter(layerName);
+            MVTFeatureCoalescer coalescer = getFeatureCoalescer(layerName);
+            MVTLayerConfiguration layerConfiguration = layerConfigurations.get(layerName);
+            MVTLayerBuffer layerBuffer = configureEncoder(layerName, layerConfiguration);
+            MVTBudget budget = vectorTileEncoder.getLayerBudget(layerName);
+            Envelope pointBBOX = layerBuffer != null ? layerBuffer.getPointEnvelope() : targetBBOX;
+            String rankAttribute =
+                    layerConfiguration != null ? layerConfiguration.getRankAttribute() : null;
+            // filters are compiled for the type of the features, usually once per layer
+            SimpleFeatureType boundType = null;
+            MVTStylePlan boundPlan = stylePlan;
             try (FeatureIterator<SimpleFeature> it = featureCollection.features()) {
+                if (!it.hasNext()) {
+                    emptyLayers.add(layerName);
+                }
                 while (it.hasNext()) {
+                    if (isCancelled()) {
+                        // closing the iterator closes the statement of the query
+                        LOGGER.fine("request cancelled, stop reading layer " + layerName);
+                        break;
+                    }
+                    if (vectorTileEncoder.isRenderDeadlineExceeded()) {
+                        // write the features processed so far
+                        break;
+                    }
+                    if (budget != null
+                            && budget.isFeatureLimitReached(
+                                    vectorTileEncoder.getFeatureCount(layerName))) {
+                        // features are streamed in rank order, the remaining ones would be
+                        // dropped anyway
+                        vectorTileEncoder.addDegradation(
+                                rankAttribute != null
+                                        ? VectorTileEncoder.DEGRADATION_RANK
+                                        : VectorTileEncoder.DEGRADATION_TRUNCATE);
+                        break;
+                    }
                     SimpleFeature feature = null;
                     try {
                         feature = it.next();
-                        Collection<Property> propertiesList = feature.getProperties();
-                        Map<String, Object> attributeMap = new HashMap<>();
-                        for (Property property : propertiesList) {
-                            if (!(property.getValue() instanceof Geometry)) {
-                                attributeMap.put(
-                                        property.getName().toString(), property.getValue());
-                            }
+                        if (feature.getFeatureType() != boundType) {
+                            boundType = feature.getFeatureType();
+                            boundPlan = stylePlan.bind(boundType);
                         }
                         // Process GeometryTransformations in Symbolizers. It is possible to render
                         // the same geometry
                         // with more than one symbolizer. Therefore a list is returned.
-                        List<Geometry> geometryList =
-                                processSymbolizers(featureStyle, feature, scaleDenominator);
-                        for (Geometry geometry : geometryList) {
-                            geometry = transFormGeometry(geometry);
-                            this.vectorTileEncoder.addFeature(
-                                    layerName, attributeMap, feature.getID(), geometry);
+                        List<Geometry> geometryList = boundPlan.getGeometries(feature);
+                        if (geometryList.isEmpty()) {
+                            continue;
+                        }
+                        if (aggregator != null
+                                && aggregatePoints(aggregator, geometryList, feature, pointBBOX)) {
+                            continue;
+                        }
+                        if (densityFilter != null
+                                && thinPoints(densityFilter, geometryList, feature, pointBBOX)) {
+                            continue;
+                        }
+                        if (coalescer != null && coalesce(coalescer, geometryList, feature)) {
+                            continue;
+                        }
+                        if (addFeature(
+                                layerName,
+                                feature,
+                                geometryList,
+                                outputAttributes,
+                                rankAttribute)) {
+                            atLeastOneFeatureAdded = true;
+                        }
+                    } catch (IllegalStateException ex) {
+                        LOGGER.warning(ex.getMessage());
+                    }
+                }
+            }
+            if (aggregator != null && aggregator.writeTo(vectorTileEncoder, layerName)) {
+                atLeastOneFeatureAdded = true;
+            }
+            if (coalescer != null && coalescer.writeTo(vectorTileEncoder, layerName)) {
+                atLeastOneFeatureAdded = true;
+            }
+            if (densityFilter != null) {
+                for (MVTDensityFilter.Candidate candidate : densityFilter.drain()) {
+                    try {
+                        if (addFeature(
+                                layerName,
+                                candidate.feature,
+                                candidate.geometryList,
+                                outputAttributes,
+                                rankAttribute)) {
                             atLeastOneFeatureAdded = true;
                         }
                     } catch (IllegalStateException ex) {
@@ -370,10 +810,27 @@ public class MVTWriter {
                     }
                 }
             }
+            if (layerStream != null && lastCollections.get(layerName) == featureCollection) {
+                // write the finished layer and release its features
+                vectorTileEncoder.writeLayer(layerName, layerStream);
+            }
+        }
+        for (Map.Entry<String, List<MVTTileDecoder.Feature>> e : slicedLayers.entrySet()) {
+            if (addSlicedFeatures(e.getKey(), e.getValue())) {
+                atLeastOneFeatureAdded = true;
+            }
+            if (layerStream != null && !lastCollections.containsKey(e.getKey())) {
+                vectorTileEncoder.writeLayer(e.getKey(), layerStream);
+            }
         }
         if (!atLeastOneFeatureAdded && vectorTileEncoder.isIncludeLayersOnEmptyFeatureList()) {
+            // configured layers include the ones that have not been queried at all
+            Set<String> layerNames = new LinkedHashSet<>(layerConfigurations.keySet());
             for (FeatureCollection featureCollection : featureCollectionStyleMap.keySet()) {
-                String layerName = featureCollection.getSchema().getName().getLocalPart();
+                layerNames.add(featureCollection.getSchema().getName().getLocalPart());
+            }
+            layerNames.removeIf(vectorTileEncoder::isLayerWritten);
+            for (String layerName : layerNames) {
                 LOGGER.fine(
                         "adding empty layer message cause no feature messages present, layernname: "
                                 + layerName);
@@ -383,84 +840,93 @@ public class MVTWriter {
     }
 
     /**
-     * All geometries that are generated by this style with the symbolizers are returned by this
-     * method. If no symbolizer has been defined the original geometry is returned.
-     *
-     * @param style the style for the feature containing all rules
-     * @param feature the feature that should be rendered
-     * @return all geometries that can be generated by the symbolizers or the original geometry if
-     *     no symbolizers are defined
-     */
-    private List<Geometry> processSymbolizers(
-            Style style, SimpleFeature feature, double currentScaleDenominator) {
-        List<Geometry> geometryList = new ArrayList<>();
-        if (style != null && feature != null) {
-            for (FeatureTypeStyle featureTypeStyle : style.featureTypeStyles()) {
-                for (Rule rule : featureTypeStyle.rules()) {
-                    if (ruleInScale(rule, currentScaleDenominator)) {
-                        Filter filter = rule.getFilter();
-                        // If no filter is present or the feature evaluates positive against the
-                        // filter
-                        if (filter == null || filter.evaluate(feature)) {
-                            Geometry geometry = null;
-                            // If no symbolizers are present, get the default geometry
-                            if (rule.symbolizers() == null || rule.symbolizers().isEmpty()) {
-                                geometry = (Geometry) feature.getDefaultGeometry();
-                                if (geometry != null) {
-                                    geometryList.add(geometry);
-                                }
-                                // If symbolizers are present get the geometry from the symbolizers
-                                // (especially
-                                // if geometric expressions have to be executed
-                            } else {
-                                for (Symbolizer symbolizer : rule.symbolizers()) {
-                                    if (symbolizer instanceof AbstractSymbolizer) {
-                                        boolean duplicateGeometry = false;
-                                        geometry =
-                                                findGeometry(
-                                                        feature, (AbstractSymbolizer) symbolizer);
-                                        // Check for duplicate geometries, e.g. if you use a
-                                        // ordinary wms style with
-                                        // foreground and background rendering then the geometries
-                                        // could be duplicate.
-                                        for (Geometry geometryInList : geometryList) {
-                                            if (geometry.equals(geometryInList)) {
-                                                duplicateGeometry = true;
-                                            }
-                                        }
-                                        if (!duplicateGeometry && geometry != null) {
-                                            geometryList.add(geometry);
-                                        }
-                                    }
-                                }
-                            }
-                        }
-                    }
-                }
+     * Applies the configuration of the layer to the encoder: the accumulation of small polygons,
+     * the budget, the vertex limit, the extent and the buffers.
+     *
+     * @param layerName the name of the layer
+     * @param layerConfiguration the configuration of the layer, may be null
+     * @return the buffers of the layer or null if the buffer of the request applies
+     */
+    private MVTLayerBuffer configureEncoder(
+            String layerName, MVTLayerConfiguration layerConfiguration) {
+        if (layerConfiguration != null && layerConfiguration.getSmallPolygonGridSize() != null) {
+            vectorTileEncoder.accumulateSmallPolygons(
+                    layerName, layerConfiguration.getSmallPolygonGridSize());
+        }
+        vectorTileEncoder.setLayerBudget(layerName, getBudget(layerConfiguration));
+        if (layerConfiguration != null) {
+            vectorTileEncoder.setFeatureVertexLimit(
+                    layerName,
+                    layerConfiguration.getMaxFeatureVertices(),
+                    layerConfiguration.getFeatureDeadline());
+            vectorTileEncoder.setLayerExtent(layerName, layerConfiguration.getExtent());
+        }
+        MVTLayerBuffer layerBuffer = getLayerBuffer(layerName);
+        vectorTileEncoder.setLayerBuffer(layerName, layerBuffer);
+        return layerBuffer;
+    }
+
+    /**
+     * Adds the features sliced from an ancestor tile to the encoder. The geometries are in tile
+     * units already, the attributes have been selected when the ancestor tile was written.
+     *
+     * @param layerName the name of the layer
+     * @param features the sliced features
+     * @return true if at least one feature has been added
+     */
+    private boolean addSlicedFeatures(String layerName, List<MVTTileDecoder.Feature> features) {
+        MVTLayerConfiguration layerConfiguration = layerConfigurations.get(layerName);
+        configureEncoder(layerName, layerConfiguration);
+        String rankAttribute =
+                layerConfiguration != null ? layerConfiguration.getRankAttribute() : null;
+        for (MVTTileDecoder.Feature feature : features) {
+            double rank = Double.NEGATIVE_INFINITY;
+            if (rankAttribute != null && feature.attributes.get(rankAttribute) instanceof Number) {
+                rank = ((Number) feature.attributes.get(rankAttribute)).doubleValue();
             }
+            vectorTileEncoder.addFeature(
+                    layerName, feature.attributes, feature.getIdString(), feature.geometry, rank);
         }
-        return geometryList;
+        return !features.isEmpty();
     }
 
     /**
-     * This method evaluates the rule against the current scale denominator.
+     * Transforms the geometries of the feature and adds them to the encoder.
      *
-     * @param rule the current rule to be checked
-     * @param currentScaleDenominator the current scale denominator
-     * @return true if the current rule matches to the current scale denominator, otherwise false
+     * @param layerName the name of the layer
+     * @param feature the feature
+     * @param geometryList the geometries produced by the style
+     * @param outputAttributes the attributes to be written, null for all attributes
+     * @param rankAttribute the numeric attribute ranking the features, may be null
+     * @return true if at least one geometry has been added
      */
-    private boolean ruleInScale(Rule rule, double currentScaleDenominator) {
-        // true if within range or no cale denominator set
-        boolean inScale = true;
-        if (rule.getMinScaleDenominator() > 0
-                && currentScaleDenominator < rule.getMinScaleDenominator()) {
-            inScale = false;
+    private boolean addFeature(
+            String layerName,
+            SimpleFeature feature,
+            List<Geometry> geometryList,
+            Set<String> outputAttributes,
+            String rankAttribute) {
+        Collection<Property> propertiesList = feature.getProperties();
+        Map<String, Object> attributeMap = new HashMap<>();
+        for (Property property : propertiesList) {
+            if (!(property.getValue() instanceof Geometry)
+                    && (outputAttributes == null
+                            || outputAttributes.contains(property.getName().getLocalPart()))) {
+                attributeMap.put(property.getName().toString(), property.getValue());
+            }
+        }
+        double rank = Double.NEGATIVE_INFINITY;
+        if (rankAttribute != null && feature.getAttribute(rankAttribute) instanceof Number) {
+            rank = ((Number) feature.getAttribute(rankAttribute)).doubleValue();
         }
-        if (rule.getMaxScaleDenominator() < Double.POSITIVE_INFINITY
-                && currentScaleDenominator > rule.getMaxScaleDenominator()) {
-            inScale = false;
+        boolean added = false;
+        for (Geometry geometry : geometryList) {
+            geometry = transFormGeometry(geometry);
+            this.vectorTileEncoder.addFeature(
+                    layerName, attributeMap, feature.getID(), geometry, rank);
+            added = true;
         }
-        return inScale;
+        return added;
     }
 
     /**
@@ -490,11 +956,8 @@ public class MVTWriter {
         // TODO maybe also {@link RendererUtilities#worldToScreenTransform(Envelope, Rectangle)} can
         // be used for this operation
         for (Coordinate coordinate : geometry.getCoordinates()) {
-            coordinate.x = targetBBOX.getMinX() + ((coordinate.x - sourceBBOX.getMinX()) * xScale);
-            coordinate.y =
-                    targetBBOX.getMinY()
-                            + (targetBBOX.getHeight()
-                                    - ((coordinate.y - sourceBBOX.getMinY()) * yScale));
+            coordinate.x = toTargetX(coordinate.x);
+            coordinate.y = toTargetY(coordinate.y);
         }
         // forces e.g. cached internal envelope to be discarded! otherwise the envelope could
         // be in wrong CRS (can happen if an e.g. a sld function calls getEnvelope() or
@@ -504,35 +967,24 @@ public class MVTWriter {
     }
 
     /**
-     * Finds the geometric attribute requested by the symbolizer. Method copied from {@link
-     * org.geotools.renderer.lite.StreamingRenderer#findGeometry(Object,
-     * org.geotools.styling.Symbolizer)}
+     * Transforms a x coordinate to the tile local system.
      *
-     * @param drawMe the feature
-     * @param s the symbolizer
-     * @return The geometry requested in the symbolizer, or the default geometry if none is
-     *     specified
+     * @param x the x coordinate in the target CRS
+     * @return the x coordinate in tile units
      */
-    private Geometry findGeometry(Object drawMe, AbstractSymbolizer s) {
-        Expression geomExpr = s.getGeometry();
-
-        // get the geometry
-        Geometry geom;
-        if (geomExpr == null) {
-            if (drawMe instanceof SimpleFeature) {
-                geom = (Geometry) ((SimpleFeature) drawMe).getDefaultGeometry();
-            } else if (drawMe instanceof Feature) {
-                geom = (Geometry) ((Feature) drawMe).getDefaultGeometryProperty().getValue();
-            } else {
-                geom =
-                        CommonFactoryFinder.getFilterFactory()
-                                .property("")
-                                .evaluate(drawMe, Geometry.class);
-            }
-        } else {
-            geom = geomExpr.evaluate(drawMe, Geometry.class);
-        }
+    private double toTargetX(double x) {
+        return targetBBOX.getMinX() + ((x - sourceBBOX.getMinX()) * xScale);
+    }
 
-        return geom;
+    /**
+     * Transforms a y coordinate to the tile local system, the y axis is mirrored since the origin
+     * of the tile is top left.
+     *
+     * @param y the y coordinate in the target CRS
+     * @return the y coordinate in tile units
+     */
+    private double toTargetY(double y) {
+        return targetBBOX.getMinY()
+                + (targetBBOX.getHeight() - ((y - sourceBBOX.getMinY()) * yScale));
     }
 }
@@ -5,29 +5,50 @@ import java.io.IOException;
 import java.io.OutputStream;
 import java.math.RoundingMode;
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.logging.Logger;
+import org.geoserver.catalog.Catalog;
+import org.geoserver.catalog.FeatureTypeInfo;
+import org.geoserver.catalog.StoreInfo;
+import org.geoserver.wms.GetMapRequest;
+import org.geoserver.wms.MapLayerInfo;
 import org.geoserver.wms.WMSMapContent;
 import org.geoserver.wms.WebMap;
 import org.geotools.api.data.Query;
 import org.geotools.api.data.SimpleFeatureSource;
 import org.geotools.api.feature.simple.SimpleFeatureType;
+import org.geotools.api.feature.type.AttributeDescriptor;
+import org.geotools.api.feature.type.GeometryDescriptor;
 import org.geotools.api.filter.Filter;
 import org.geotools.api.filter.FilterFactory;
-import org.geotools.api.filter.spatial.BBOX;
+import org.geotools.api.filter.sort.SortOrder;
 import org.geotools.api.referencing.FactoryException;
 import org.geotools.api.referencing.operation.TransformException;
-import org.geotools.api.style.FeatureTypeStyle;
-import org.geotools.api.style.Rule;
 import org.geotools.api.style.Style;
 import org.geotools.data.DataUtilities;
+import org.geotools.data.simple.SimpleFeatureCollection;
+import org.geotools.data.store.ReTypingFeatureCollection;
 import org.geotools.factory.CommonFactoryFinder;
 import org.geotools.feature.FeatureCollection;
+import org.geotools.feature.simple.SimpleFeatureTypeBuilder;
 import org.geotools.geometry.jts.ReferencedEnvelope;
 import org.geotools.map.Layer;
+import org.geotools.referencing.CRS;
+import org.geotools.referencing.crs.DefaultGeographicCRS;
+import org.geotools.styling.StyleAttributeExtractor;
 import org.geotools.util.logging.Logging;
+import org.locationtech.jts.geom.Envelope;
+import org.springframework.security.core.Authentication;
+import org.springframework.security.core.context.SecurityContextHolder;
 
 /**
  * Adapted WebMap implementation. Gets the style and retrieves filter rules. These rules are
@@ -41,6 +62,83 @@ public class StreamingMVTMap extends WebMap {
      */
     private static int targetBinaryCRSTileSize = 256;
 
+    /** configurations per layer, keyed by prefixed layer name or feature type name */
+    private Map<String, MVTLayerConfiguration> layerConfigurations = Collections.emptyMap();
+
+    /** request parameters overriding the configuration of all layers */
+    private MVTLayerConfiguration requestConfiguration = new MVTLayerConfiguration();
+
+    /** budget of the whole tile, null if the tile is unlimited */
+    private MVTBudget tileBudget;
+
+    /** generalisation factors per zoom level, null if a generalisation factor is requested */
+    private Map<Integer, Double> genFactors;
+
+    /** tiles known to be empty, null if empty tiles are not remembered */
+    private MVTEmptyTileIndex emptyTileIndex;
+
+    /** limits the concurrent queries per datastore and layer, null if unlimited */
+    private MVTRenderScheduler renderScheduler;
+
+    /** the lane of the request in the render scheduler */
+    private MVTRenderScheduler.Lane renderLane = MVTRenderScheduler.Lane.INTERACTIVE;
+
+    /** the render deadline in {@link System#nanoTime()} units, null for none */
+    private Long renderDeadline;
+
+    /** whether the render deadline passed before all features were processed */
+    private boolean partial;
+
+    /** signals that the client is gone, null if the request cannot be cancelled */
+    private MVTCancellationToken cancellationToken;
+
+    /** the tiles rendered by the request sharing their queries, null for a single tile */
+    private MVTTileBatch tileBatch;
+
+    /** whether finished layers are written before the tile is complete */
+    private boolean streamLayers;
+
+    /** the catalog of the request, resolves feature types the layers are routed to */
+    private Catalog catalog;
+
+    /** whether the tile is outside of the bounds of all layers, null if not yet computed */
+    private Boolean outsideLayerBounds;
+
+    /**
+     * per layer whether the buffered tile is outside of the bounds of its source, computed once
+     * for the headers and the encoding of the request
+     */
+    private final Map<Layer, Boolean> layersOutsideBounds = new IdentityHashMap<>();
+
+    /** half of the width of the web mercator world in meters */
+    private static final double MERCATOR_HALF_WORLD = 20037508.342789244;
+
+    /** latitudes beyond the limits of the web mercator projection cannot be transformed */
+    private static final Envelope MERCATOR_LAT_LON_BOUNDS =
+            new Envelope(-180, 180, -85.0511287798, 85.0511287798);
+
+    /** maximum number of entries of the static caches before they are reset */
+    private static final int MAX_CACHED_ENTRIES = 1000;
+
+    /**
+     * lat/lon bounds of the layers transformed to the target CRS, keyed by the lat/lon bounds so
+     * changed bounds are transformed again
+     */
+    private static final Map<ReferencedEnvelope, Envelope> LAYER_BOUNDS =
+            new ConcurrentHashMap<>();
+
+    /**
+     * payloads of empty tiles containing the layer messages only, keyed by the layer names and
+     * their extents
+     */
+    private static final Map<String, byte[]> EMPTY_TILES = new ConcurrentHashMap<>();
+
+    /**
+     * tiles at the max native zoom level of a layer, sliced into the tiles above, keyed by the
+     * user, the prefixed layer name, the style, the tile and the request parameters
+     */
+    private static final MVTTileCache ANCESTOR_TILES = new MVTTileCache(100, 300);
+
     /** @param context the map context, can be {@code null} is there's _really_ no context around */
     public StreamingMVTMap(WMSMapContent context) {
         super(context);
@@ -66,6 +164,7 @@ public class StreamingMVTMap extends WebMap {
             double fallBackGen)
             throws IOException {
         int zoomLevel = getZoomLevel(this.mapContent.getScaleDenominator());
+        this.genFactors = genFactors;
         double genFactor;
         if (zoomLevel >= 1 && zoomLevel <= 20) {
             genFactor = genFactors.get(zoomLevel);
@@ -109,95 +208,1111 @@ public class StreamingMVTMap extends WebMap {
                             avoidEmptyProto,
                             genFactor,
                             smallGeometryThreshold);
-            Map<FeatureCollection, Style> featureCollectionStyleMap = new HashMap<>();
-            FilterFactory ff = CommonFactoryFinder.getFilterFactory();
+            mvtWriter.setTileBudget(tileBudget);
+            mvtWriter.setRenderDeadline(renderDeadline);
+            mvtWriter.setCancellationToken(cancellationToken);
+            mvtWriter.setStreamLayers(streamLayers);
+            Map<FeatureCollection, Style> featureCollectionStyleMap = new LinkedHashMap<>();
+            double scaleDenominator = this.mapContent.getScaleDenominator();
+            int zoomLevel = getZoomLevel(scaleDenominator);
+            List<String> layerNames = new ArrayList<>();
+            // extents of the layers, null for the default extent
+            Map<String, Integer> layerExtents = new LinkedHashMap<>();
+            int layersSkipped = 0;
+            // zoom level, column and row of the requested tile, null if it is not a plain tile
+            long[] tile = getTile();
+            // queried layers by feature type name and generations of their empty tiles
+            Map<String, Layer> queriedLayersByType = new LinkedHashMap<>();
+            Map<String, Long> emptyTileGenerations = new LinkedHashMap<>();
+            List<Layer> queriedLayers = new ArrayList<>();
             // Iterate through all layers. Layers can be requested through WMS with comma separation
             for (Layer layer : this.mapContent.layers()) {
-                SimpleFeatureSource featureSource = (SimpleFeatureSource) layer.getFeatureSource();
+                checkCancelled();
+                SimpleFeatureSource layerSource = (SimpleFeatureSource) layer.getFeatureSource();
+                SimpleFeatureType layerSchema = layerSource.getSchema();
+                MVTLayerConfiguration layerConfiguration =
+                        getLayerConfiguration(layer, layerSchema, zoomLevel);
+                mvtWriter.setLayerConfiguration(layerSchema.getTypeName(), layerConfiguration);
+                layerNames.add(layerSchema.getTypeName());
+                layerExtents.put(layerSchema.getTypeName(), layerConfiguration.getExtent());
+                // the features may be read from an alternate feature type of the layer's store
+                SimpleFeatureSource featureSource =
+                        getFeatureSource(layer, layerSource, layerConfiguration);
                 SimpleFeatureType schema = featureSource.getSchema();
-                String defaultGeometry = schema.getGeometryDescriptor().getName().getLocalPart();
+                GeometryDescriptor geometryDescriptor =
+                        getGeometryDescriptor(schema, layerConfiguration);
+                MVTStylePlan stylePlan = MVTStylePlan.get(layer.getStyle(), scaleDenominator);
+                Filter styleFilter = stylePlan.getQueryFilter();
+                if (styleFilter == Filter.EXCLUDE) {
+                    // no rule of the style can match at this scale, skip the query
+                    LOGGER.fine("no rule in scale, skipping layer " + schema.getTypeName());
+                    continue;
+                }
                 // Retrieve rendering area. In case of a buffer the extent is the buffered extent
-                // and not the requested
-                // extent.
-                renderingArea =
-                        mvtWriter.getSourceBBOXWithBuffer() != null
-                                ? mvtWriter.getSourceBBOXWithBuffer()
-                                : renderingArea;
-                BBOX bboxFilter = ff.bbox(ff.property(defaultGeometry), renderingArea);
-                Query bboxQuery = new Query(schema.getTypeName(), bboxFilter);
-                Query definitionQuery = layer.getQuery();
-                Query finalQuery =
-                        new Query(
-                                DataUtilities.mixQueries(definitionQuery, bboxQuery, "mvtEncoder"));
-                if (layer.getStyle() != null) {
-                    // Add Style Filters to the request
-                    Filter styleFilter =
-                            getFeatureFilterFromStyle(
-                                    layer.getStyle(), ff, this.mapContent.getScaleDenominator());
-                    if (styleFilter != null) {
-                        Query filterQuery = new Query(schema.getTypeName(), styleFilter);
-                        finalQuery =
-                                new Query(
-                                        DataUtilities.mixQueries(
-                                                finalQuery, filterQuery, "mvtEncoder"));
+                // (of the layer) and not the requested extent.
+                ReferencedEnvelope queryArea =
+                        mvtWriter.getSourceBBOXWithBuffer(
+                                layerSchema.getTypeName(),
+                                geometryDescriptor.getType().getBinding());
+                if (isOutsideLayerBounds(layer, layerConfiguration, queryArea)) {
+                    // the query cannot return any feature
+                    LOGGER.fine("tile outside of bounds, skipping layer " + schema.getTypeName());
+                    layersSkipped++;
+                    continue;
+                }
+                if (tile != null && emptyTileIndex != null) {
+                    String layerName = getPrefixedName(layer);
+                    // taken before the query, a transaction committed meanwhile drops the mark
+                    emptyTileGenerations.put(
+                            layerSchema.getTypeName(), emptyTileIndex.getGeneration(layerName));
+                    if (emptyTileIndex.isEmpty(
+                            layerName,
+                            getStyleName(layer),
+                            getUser(),
+                            (int) tile[0],
+                            tile[1],
+                            tile[2])) {
+                        LOGGER.fine(
+                                "tile known to be empty, skipping layer " + schema.getTypeName());
+                        layersSkipped++;
+                        continue;
                     }
                 }
-                finalQuery.setCoordinateSystemReproject(MVTWriter.TARGET_CRS);
-                finalQuery.setHints(definitionQuery.getHints());
-                finalQuery.setSortBy(definitionQuery.getSortBy());
-                finalQuery.setStartIndex(definitionQuery.getStartIndex());
-                // Retrieve feature collection from the layer
+                Integer maxNativeZoom = layerConfiguration.getMaxNativeZoom();
+                if (tile != null
+                        && maxNativeZoom != null
+                        && zoomLevel > maxNativeZoom
+                        && zoomLevel - maxNativeZoom <= tile[0]) {
+                    // the data gains no detail above the max native zoom, slice the ancestor tile
+                    sliceAncestorTile(
+                            mvtWriter,
+                            layer,
+                            tile,
+                            zoomLevel - maxNativeZoom,
+                            genFactor,
+                            smallGeometryThreshold);
+                    continue;
+                }
+                queriedLayersByType.put(layerSchema.getTypeName(), layer);
+                queriedLayers.add(layer);
                 featureCollectionStyleMap.put(
-                        featureSource.getFeatures(finalQuery), layer.getStyle());
+                        getFeatures(
+                                layer,
+                                featureSource,
+                                geometryDescriptor,
+                                layerConfiguration,
+                                styleFilter,
+                                queryArea,
+                                tile),
+                        layer.getStyle());
+            }
+            if (layersSkipped > 0 && layersSkipped == layerNames.size()) {
+                writeEmptyTile(out, avoidEmptyProto, layerExtents);
+                return;
+            }
+            // Write all features to the output stream, the queries run while writing
+            // a cancelled request does not need to wait for permits
+            checkCancelled();
+            try (MVTRenderScheduler.Permit permit = admit(queriedLayers)) {
+                mvtWriter.writeFeatures(featureCollectionStyleMap, scaleDenominator, out);
+            }
+            partial = mvtWriter.isPartial();
+            if (tile != null && emptyTileIndex != null) {
+                for (String typeName : mvtWriter.getEmptyLayers()) {
+                    Layer layer = queriedLayersByType.get(typeName);
+                    if (layer == null) {
+                        continue;
+                    }
+                    emptyTileIndex.markEmpty(
+                            getPrefixedName(layer),
+                            getStyleName(layer),
+                            getUser(),
+                            (int) tile[0],
+                            tile[1],
+                            tile[2],
+                            emptyTileGenerations.get(typeName));
+                }
             }
-            // Write all features to the output stream
-            mvtWriter.writeFeatures(
-                    featureCollectionStyleMap, this.mapContent.getScaleDenominator(), out);
         } catch (TransformException | FactoryException e) {
             LOGGER.warning(e.getMessage());
         }
     }
 
-    private int getZoomLevel(double scale) {
-        double maxRes = 156543.03;
-        double rs = scale / (96 * 39.37);
-        int zoom = LongMath.log2((long) (maxRes / rs), RoundingMode.HALF_UP);
-        return zoom;
+    /**
+     * Builds the query of the layer from its definition query, the buffered tile and the filter of
+     * its style, and retrieves the features. Tiles of a {@link MVTTileBatch} filter the features
+     * read for the whole batch.
+     *
+     * @param layer the map layer
+     * @param featureSource the feature source the features are read from
+     * @param geometryDescriptor the geometry attribute used for the query and the output
+     * @param layerConfiguration the effective configuration of the layer
+     * @param styleFilter the filter of the style's rules in scale
+     * @param queryArea the buffered tile of the layer in the target CRS
+     * @param tile the zoom level, column and row of the tile, null if it is not a plain tile
+     * @return the features, named like the layer's feature type
+     * @throws IOException
+     */
+    private SimpleFeatureCollection getFeatures(
+            Layer layer,
+            SimpleFeatureSource featureSource,
+            GeometryDescriptor geometryDescriptor,
+            MVTLayerConfiguration layerConfiguration,
+            Filter styleFilter,
+            ReferencedEnvelope queryArea,
+            long[] tile)
+            throws IOException {
+        SimpleFeatureSource layerSource = (SimpleFeatureSource) layer.getFeatureSource();
+        SimpleFeatureType schema = featureSource.getSchema();
+        SimpleFeatureCollection features = null;
+        if (tile != null
+                && tileBatch != null
+                && tileBatch.contains((int) tile[0], tile[1], tile[2])) {
+            features =
+                    getBatchFeatures(
+                            layer,
+                            featureSource,
+                            geometryDescriptor,
+                            layerConfiguration,
+                            styleFilter,
+                            queryArea,
+                            tile);
+        }
+        if (features == null) {
+            // Retrieve feature collection from the layer
+            features =
+                    featureSource.getFeatures(
+                            getQuery(
+                                    layer,
+                                    featureSource,
+                                    geometryDescriptor,
+                                    layerConfiguration,
+                                    styleFilter,
+                                    queryArea));
+        }
+        if (featureSource != layerSource || geometryDescriptor != schema.getGeometryDescriptor()) {
+            // write the routed features with the layer's name and chosen geometry
+            features =
+                    retype(
+                            features,
+                            layerSource.getSchema().getTypeName(),
+                            geometryDescriptor.getLocalName());
+        }
+        return features;
     }
 
     /**
-     * Retrieve Filter information from the Layer Style. TODO maybe there is a better method to do
-     * that e.g. using a {@link org.geotools.styling.StyleVisitor}
+     * Builds the query of the layer from its definition query, the area and the filter of its
+     * style.
      *
-     * @param style the style of the layer
-     * @param ff the filter factory to create (concat) filters
-     * @param currentScaleDenominator the current scale denominator of the reuquested tiles
-     * @return The filter containing all relevant filters for the current solutions or null if no
-     *     filter is difined.
+     * @param layer the map layer
+     * @param featureSource the feature source the features are read from
+     * @param geometryDescriptor the geometry attribute used for the query and the output
+     * @param layerConfiguration the effective configuration of the layer
+     * @param styleFilter the filter of the style's rules in scale
+     * @param area the queried area in the target CRS, null to build the query without area
+     * @return the query
      */
-    private Filter getFeatureFilterFromStyle(
-            Style style, FilterFactory ff, double currentScaleDenominator) {
-        List<Filter> filter = new ArrayList<>();
-        for (FeatureTypeStyle featureTypeStyle : style.featureTypeStyles()) {
-            for (Rule rule : featureTypeStyle.rules()) {
-                if ((rule.getMaxScaleDenominator() < Double.POSITIVE_INFINITY
-                                && currentScaleDenominator < rule.getMaxScaleDenominator())
-                        || (rule.getMinScaleDenominator() > 0
-                                && currentScaleDenominator > rule.getMinScaleDenominator())) {
-                    if (rule.getFilter() != null) {
-                        filter.add(rule.getFilter());
-                    }
-                } else if (rule.getMinScaleDenominator() == 0
-                        && rule.getMaxScaleDenominator() == Double.POSITIVE_INFINITY) {
-                    // No Scale denominator defined so render all
-                    if (rule.getFilter() == null) {
-                        return null;
-                    } else {
-                        filter.add(rule.getFilter());
-                    }
+    private Query getQuery(
+            Layer layer,
+            SimpleFeatureSource featureSource,
+            GeometryDescriptor geometryDescriptor,
+            MVTLayerConfiguration layerConfiguration,
+            Filter styleFilter,
+            ReferencedEnvelope area) {
+        FilterFactory ff = CommonFactoryFinder.getFilterFactory();
+        SimpleFeatureSource layerSource = (SimpleFeatureSource) layer.getFeatureSource();
+        SimpleFeatureType schema = featureSource.getSchema();
+        String defaultGeometry = geometryDescriptor.getLocalName();
+        Filter bboxFilter =
+                area != null ? ff.bbox(ff.property(defaultGeometry), area) : Filter.INCLUDE;
+        Query bboxQuery = new Query(schema.getTypeName(), bboxFilter);
+        Query definitionQuery = layer.getQuery();
+        if (featureSource != layerSource && definitionQuery.getTypeName() != null) {
+            definitionQuery = new Query(definitionQuery);
+            definitionQuery.setTypeName(schema.getTypeName());
+        }
+        Query finalQuery =
+                new Query(DataUtilities.mixQueries(definitionQuery, bboxQuery, "mvtEncoder"));
+        if (styleFilter != Filter.INCLUDE) {
+            // Add Style Filters to the request
+            Query filterQuery = new Query(schema.getTypeName(), styleFilter);
+            finalQuery = new Query(DataUtilities.mixQueries(finalQuery, filterQuery, "mvtEncoder"));
+        }
+        finalQuery.setCoordinateSystemReproject(MVTWriter.TARGET_CRS);
+        finalQuery.setHints(definitionQuery.getHints());
+        finalQuery.setSortBy(definitionQuery.getSortBy());
+        String rankAttribute = layerConfiguration.getRankAttribute();
+        if ((finalQuery.getSortBy() == null || finalQuery.getSortBy().length == 0)
+                && rankAttribute != null
+                && schema.getDescriptor(rankAttribute) != null) {
+            // stream the highest ranked features first, so budgets can stop reading early
+            finalQuery.setSortBy(ff.sort(rankAttribute, SortOrder.DESCENDING));
+        }
+        finalQuery.setStartIndex(definitionQuery.getStartIndex());
+        String[] propertyNames =
+                getPropertyNames(schema, defaultGeometry, layer.getStyle(), layerConfiguration);
+        if (propertyNames != null) {
+            finalQuery.setPropertyNames(propertyNames);
+        }
+        return finalQuery;
+    }
+
+    /**
+     * Filters the features of the tile from the features read for the whole tile batch. The
+     * first tile of the batch reads the features of the buffered batch area.
+     *
+     * @param layer the map layer
+     * @param featureSource the feature source the features are read from
+     * @param geometryDescriptor the geometry attribute used for the query and the output
+     * @param layerConfiguration the effective configuration of the layer
+     * @param styleFilter the filter of the style's rules in scale
+     * @param queryArea the buffered tile of the layer in the target CRS
+     * @param tile the zoom level, column and row of the tile
+     * @return the features of the tile or null if they have to be queried for the tile
+     * @throws IOException
+     */
+    private SimpleFeatureCollection getBatchFeatures(
+            Layer layer,
+            SimpleFeatureSource featureSource,
+            GeometryDescriptor geometryDescriptor,
+            MVTLayerConfiguration layerConfiguration,
+            Filter styleFilter,
+            ReferencedEnvelope queryArea,
+            long[] tile)
+            throws IOException {
+        Query query =
+                getQuery(
+                        layer,
+                        featureSource,
+                        geometryDescriptor,
+                        layerConfiguration,
+                        styleFilter,
+                        null);
+        if (query.getStartIndex() != null || !query.isMaxFeaturesUnlimited()) {
+            // paging applies to the features of each tile
+            return null;
+        }
+        double tileSize = 2 * MERCATOR_HALF_WORLD / (1L << tile[0]);
+        // the buffer of the layer in tile units, part of the key as layers may have own buffers
+        long buffer =
+                Math.round(
+                        (queryArea.getWidth() - tileSize)
+                                / 2
+                                / tileSize
+                                * getExtent(layerConfiguration));
+        String key = featureSource.getName() + "/" + buffer + "/" + query;
+        SimpleFeatureCollection batchFeatures =
+                tileBatch.getFeatures(
+                        key,
+                        () -> {
+                            checkCancelled();
+                            ReferencedEnvelope batchArea =
+                                    new ReferencedEnvelope(
+                                            queryArea.getMinX()
+                                                    - (tile[1] - tileBatch.getMinColumn())
+                                                            * tileSize,
+                                            queryArea.getMaxX()
+                                                    + (tileBatch.getMaxColumn() - tile[1])
+                                                            * tileSize,
+                                            queryArea.getMinY()
+                                                    - (tileBatch.getMaxRow() - tile[2]) * tileSize,
+                                            queryArea.getMaxY()
+                                                    + (tile[2] - tileBatch.getMinRow()) * tileSize,
+                                            MVTWriter.TARGET_CRS);
+                            Query batchQuery =
+                                    getQuery(
+                                            layer,
+                                            featureSource,
+                                            geometryDescriptor,
+                                            layerConfiguration,
+                                            styleFilter,
+                                            batchArea);
+                            try (MVTRenderScheduler.Permit permit =
+                                    admit(Collections.singletonList(layer))) {
+                                return tileBatch.read(featureSource.getFeatures(batchQuery));
+                            }
+                        });
+        if (batchFeatures == null) {
+            return null;
+        }
+        FilterFactory ff = CommonFactoryFinder.getFilterFactory();
+        return batchFeatures.subCollection(
+                ff.bbox(ff.property(geometryDescriptor.getLocalName()), queryArea));
+    }
+
+    /**
+     * Adds the layer to the tile by slicing the layer's ancestor tile at its max native zoom
+     * level. The ancestor tile is rendered once with the configuration and the style of the
+     * layer at the max native zoom level and cached.
+     *
+     * @param mvtWriter the writer of the requested tile
+     * @param layer the map layer
+     * @param tile the zoom level, column and row of the requested tile
+     * @param zoomDelta the number of zoom levels between the ancestor tile and the requested tile
+     * @param genFactor the generalisation factor of the request, used for the ancestor tile if no
+     *     generalisation table applies
+     * @param smallGeometryThreshold threshold for skipping small geometries
+     * @throws IOException
+     */
+    private void sliceAncestorTile(
+            MVTWriter mvtWriter,
+            Layer layer,
+            long[] tile,
+            int zoomDelta,
+            double genFactor,
+            double smallGeometryThreshold)
+            throws IOException {
+        String typeName = layer.getFeatureSource().getSchema().getName().getLocalPart();
+        int ancestorZoom = (int) tile[0] - zoomDelta;
+        long ancestorColumn = tile[1] >> zoomDelta;
+        long ancestorRow = tile[2] >> zoomDelta;
+        // the features of the layer depend on the access rules of the user
+        String key =
+                String.join(
+                        "/",
+                        getUser(),
+                        getPrefixedName(layer),
+                        typeName,
+                        layer.getStyle() != null ? layer.getStyle().getName() : null,
+                        String.valueOf(ancestorZoom),
+                        String.valueOf(ancestorColumn),
+                        String.valueOf(ancestorRow),
+                        String.valueOf(this.mapContent.getBuffer()),
+                        String.valueOf(new TreeMap<>(this.mapContent.getRequest().getEnv())));
+        VectorTile.Tile ancestorTile =
+                ANCESTOR_TILES.get(
+                        key,
+                        () -> {
+                            try (MVTRenderScheduler.Permit permit =
+                                    admit(Collections.singletonList(layer))) {
+                                return renderAncestorTile(
+                                        layer,
+                                        ancestorZoom,
+                                        ancestorColumn,
+                                        ancestorRow,
+                                        zoomDelta,
+                                        genFactor,
+                                        smallGeometryThreshold);
+                            }
+                        });
+        for (VectorTile.Tile.Layer ancestorLayer : ancestorTile.getLayersList()) {
+            if (ancestorLayer.getName().equals(typeName)) {
+                mvtWriter.addSlicedLayer(
+                        typeName,
+                        ancestorLayer,
+                        zoomDelta,
+                        tile[1] - (ancestorColumn << zoomDelta),
+                        tile[2] - (ancestorRow << zoomDelta));
+            }
+        }
+    }
+
+    /**
+     * Renders the layer into a tile of the web mercator tile grid.
+     *
+     * @param layer the map layer
+     * @param zoomLevel the zoom level of the tile grid
+     * @param column the column of the tile
+     * @param row the row of the tile
+     * @param zoomDelta the number of zoom levels between the tile and the requested tile
+     * @param genFactor the generalisation factor if no generalisation table applies
+     * @param smallGeometryThreshold threshold for skipping small geometries
+     * @return the tile containing the layer only
+     * @throws IOException
+     * @throws TransformException
+     * @throws FactoryException
+     */
+    private VectorTile.Tile renderAncestorTile(
+            Layer layer,
+            int zoomLevel,
+            long column,
+            long row,
+            int zoomDelta,
+            double genFactor,
+            double smallGeometryThreshold)
+            throws IOException, TransformException, FactoryException {
+        double tileSize = 2 * MERCATOR_HALF_WORLD / (1L << zoomLevel);
+        ReferencedEnvelope bbox =
+                new ReferencedEnvelope(
+                        -MERCATOR_HALF_WORLD + column * tileSize,
+                        -MERCATOR_HALF_WORLD + (column + 1) * tileSize,
+                        MERCATOR_HALF_WORLD - (row + 1) * tileSize,
+                        MERCATOR_HALF_WORLD - row * tileSize,
+                        MVTWriter.TARGET_CRS);
+        // the configuration, generalisation and style of the max native zoom level apply
+        double scaleDenominator = this.mapContent.getScaleDenominator() * (1L << zoomDelta);
+        int nativeZoom = getZoomLevel(this.mapContent.getScaleDenominator()) - zoomDelta;
+        if (genFactors != null && genFactors.get(nativeZoom) != null) {
+            genFactor = genFactors.get(nativeZoom);
+        }
+        MVTWriter mvtWriter =
+                MVTWriter.getInstance(
+                        bbox,
+                        MVTWriter.TARGET_CRS,
+                        targetBinaryCRSTileSize,
+                        targetBinaryCRSTileSize,
+                        this.mapContent.getBuffer(),
+                        false,
+                        genFactor,
+                        smallGeometryThreshold);
+        SimpleFeatureSource layerSource = (SimpleFeatureSource) layer.getFeatureSource();
+        SimpleFeatureType layerSchema = layerSource.getSchema();
+        MVTLayerConfiguration layerConfiguration =
+                getLayerConfiguration(layer, layerSchema, nativeZoom);
+        mvtWriter.setLayerConfiguration(layerSchema.getTypeName(), layerConfiguration);
+        Filter styleFilter = MVTStylePlan.get(layer.getStyle(), scaleDenominator).getQueryFilter();
+        if (styleFilter == Filter.EXCLUDE) {
+            return VectorTile.Tile.getDefaultInstance();
+        }
+        SimpleFeatureSource featureSource =
+                getFeatureSource(layer, layerSource, layerConfiguration);
+        GeometryDescriptor geometryDescriptor =
+                getGeometryDescriptor(featureSource.getSchema(), layerConfiguration);
+        ReferencedEnvelope queryArea =
+                mvtWriter.getSourceBBOXWithBuffer(
+                        layerSchema.getTypeName(), geometryDescriptor.getType().getBinding());
+        SimpleFeatureCollection features =
+                getFeatures(
+                        layer,
+                        featureSource,
+                        geometryDescriptor,
+                        layerConfiguration,
+                        styleFilter,
+                        queryArea,
+                        null);
+        LOGGER.fine(
+                "rendering ancestor tile "
+                        + zoomLevel
+                        + "/"
+                        + column
+                        + "/"
+                        + row
+                        + " of layer "
+                        + layerSchema.getTypeName());
+        return VectorTile.Tile.parseFrom(
+                mvtWriter.adaptFeatures(
+                        Collections.<FeatureCollection, Style>singletonMap(
+                                features, layer.getStyle()),
+                        scaleDenominator));
+    }
+
+    private void checkCancelled() throws IOException {
+        if (cancellationToken != null) {
+            cancellationToken.checkCancelled();
+        }
+    }
+
+    /**
+     * Acquires the permits of the render scheduler to query the layers, see {@link
+     * MVTRenderScheduler}.
+     *
+     * @param layers the queried map layers
+     * @return the permit to be closed once the queries are finished, null if unlimited
+     * @throws IOException if the thread is interrupted while waiting
+     */
+    private MVTRenderScheduler.Permit admit(List<Layer> layers) throws IOException {
+        if (renderScheduler == null || layers.isEmpty()) {
+            return null;
+        }
+        Set<String> dataStores = new TreeSet<>();
+        Set<String> layerNames = new TreeSet<>();
+        for (Layer layer : layers) {
+            MapLayerInfo layerInfo = getMapLayerInfo(layer);
+            if (layerInfo == null) {
+                layerNames.add(layer.getFeatureSource().getSchema().getName().getLocalPart());
+                continue;
+            }
+            layerNames.add(layerInfo.getName());
+            StoreInfo store =
+                    layerInfo.getResource() != null ? layerInfo.getResource().getStore() : null;
+            if (store != null) {
+                dataStores.add(store.getWorkspace().getName() + ":" + store.getName());
+            }
+        }
+        return renderScheduler.acquire(dataStores, layerNames, renderLane);
+    }
+
+    /**
+     * Checks whether the requested tile is outside of the catalog bounds of the feature types all
+     * layers are read from. Such a tile is empty without querying any layer and can be cached for
+     * a long time.
+     *
+     * @return true if the buffered tile does not intersect the bounds of any layer
+     */
+    public boolean isOutsideLayerBounds() {
+        if (outsideLayerBounds == null) {
+            outsideLayerBounds = computeOutsideLayerBounds();
+        }
+        return outsideLayerBounds;
+    }
+
+    private boolean computeOutsideLayerBounds() {
+        List<Layer> layers = this.mapContent.layers();
+        if (layers.isEmpty()) {
+            return false;
+        }
+        try {
+            MVTWriter mvtWriter =
+                    MVTWriter.getInstance(
+                            this.mapContent.getRenderingArea(),
+                            this.mapContent.getCoordinateReferenceSystem(),
+                            targetBinaryCRSTileSize,
+                            targetBinaryCRSTileSize,
+                            this.mapContent.getBuffer());
+            int zoomLevel = getZoomLevel(this.mapContent.getScaleDenominator());
+            for (Layer layer : layers) {
+                // the same query area as in encode, for the feature source actually queried
+                SimpleFeatureSource layerSource = (SimpleFeatureSource) layer.getFeatureSource();
+                SimpleFeatureType layerSchema = layerSource.getSchema();
+                MVTLayerConfiguration layerConfiguration =
+                        getLayerConfiguration(layer, layerSchema, zoomLevel);
+                mvtWriter.setLayerConfiguration(layerSchema.getTypeName(), layerConfiguration);
+                SimpleFeatureType schema =
+                        getFeatureSource(layer, layerSource, layerConfiguration).getSchema();
+                ReferencedEnvelope queryArea =
+                        mvtWriter.getSourceBBOXWithBuffer(
+                                layerSchema.getTypeName(),
+                                getGeometryDescriptor(schema, layerConfiguration)
+                                        .getType()
+                                        .getBinding());
+                if (!isOutsideLayerBounds(layer, layerConfiguration, queryArea)) {
+                    return false;
+                }
+            }
+            return true;
+        } catch (IOException e) {
+            // the request fails when the layer is encoded
+            LOGGER.fine(e.getMessage());
+            return false;
+        } catch (TransformException | FactoryException e) {
+            LOGGER.warning(e.getMessage());
+            return false;
+        }
+    }
+
+    /**
+     * Returns the slippy map tile of the request. Requests that do not match a tile of the web
+     * mercator tile grid or that filter the layers (where an empty result does not apply to other
+     * requests for the tile) have no tile.
+     *
+     * @return the zoom level, column and row or null if the request is not a plain tile request
+     */
+    private long[] getTile() {
+        GetMapRequest request = this.mapContent.getRequest();
+        if (request == null
+                || !isEmpty(request.getFilter())
+                || !isEmpty(request.getCQLFilter())
+                || !isEmpty(request.getFeatureId())
+                || !isEmpty(request.getViewParams())
+                || !isEmpty(request.getTime())
+                || !isEmpty(request.getElevation())
+                || request.getSld() != null
+                || request.getSldBody() != null) {
+            return null;
+        }
+        ReferencedEnvelope area = this.mapContent.getRenderingArea();
+        if (area == null
+                || !CRS.equalsIgnoreMetadata(
+                        area.getCoordinateReferenceSystem(), MVTWriter.TARGET_CRS)) {
+            return null;
+        }
+        double worldSize = 2 * MERCATOR_HALF_WORLD;
+        int zoomLevel = (int) Math.round(Math.log(worldSize / area.getWidth()) / Math.log(2));
+        if (zoomLevel < 0 || zoomLevel > 30) {
+            return null;
+        }
+        double tileSize = worldSize / (1L << zoomLevel);
+        double column = (area.getMinX() + MERCATOR_HALF_WORLD) / tileSize;
+        double row = (MERCATOR_HALF_WORLD - area.getMaxY()) / tileSize;
+        double tolerance = 1e-6;
+        if (Math.abs(area.getWidth() - tileSize) > tileSize * tolerance
+                || Math.abs(area.getHeight() - tileSize) > tileSize * tolerance
+                || Math.abs(column - Math.round(column)) > tolerance
+                || Math.abs(row - Math.round(row)) > tolerance) {
+            return null;
+        }
+        return new long[] {zoomLevel, Math.round(column), Math.round(row)};
+    }
+
+    private static boolean isEmpty(List<?> list) {
+        return list == null || list.isEmpty();
+    }
+
+    /**
+     * Checks the buffered tile against the lat/lon bounds in the catalog of the feature type the
+     * layer is read from. The result is computed once per request and layer, the bounds are
+     * transformed to the target CRS once and cached.
+     *
+     * @param layer the map layer
+     * @param layerConfiguration the effective configuration of the layer
+     * @param queryArea the buffered tile of the layer in the target CRS
+     * @return true if the tile does not intersect the bounds, false if it does or the bounds are
+     *     unknown
+     */
+    private boolean isOutsideLayerBounds(
+            Layer layer, MVTLayerConfiguration layerConfiguration, ReferencedEnvelope queryArea) {
+        Boolean outside = layersOutsideBounds.get(layer);
+        if (outside == null) {
+            outside = isOutsideBounds(getLatLonBounds(layer, layerConfiguration), queryArea);
+            layersOutsideBounds.put(layer, outside);
+        }
+        return outside;
+    }
+
+    /**
+     * @param latLonBounds the lat/lon bounds of the feature type, may be null
+     * @param queryArea the buffered tile in the target CRS
+     * @return true if the tile does not intersect the bounds, false if it does or the bounds are
+     *     unknown
+     */
+    private static boolean isOutsideBounds(
+            ReferencedEnvelope latLonBounds, ReferencedEnvelope queryArea) {
+        if (latLonBounds == null || latLonBounds.isNull() || latLonBounds.isEmpty()) {
+            return false;
+        }
+        Envelope bounds = LAYER_BOUNDS.get(latLonBounds);
+        if (bounds == null) {
+            try {
+                Envelope mercatorBounds = latLonBounds.intersection(MERCATOR_LAT_LON_BOUNDS);
+                bounds =
+                        mercatorBounds.isNull()
+                                ? new Envelope()
+                                : new ReferencedEnvelope(mercatorBounds, DefaultGeographicCRS.WGS84)
+                                        .transform(MVTWriter.TARGET_CRS, true);
+            } catch (TransformException | FactoryException e) {
+                LOGGER.fine("layer bounds cannot be transformed: " + e.getMessage());
+                return false;
+            }
+            if (LAYER_BOUNDS.size() > MAX_CACHED_ENTRIES) {
+                LAYER_BOUNDS.clear();
+            }
+            LAYER_BOUNDS.put(latLonBounds, bounds);
+        }
+        return !bounds.intersects(queryArea);
+    }
+
+    /**
+     * Looks up the lat/lon bounds of the feature type the layer is read from in the catalog, the
+     * type the layer configuration routes the layer to or else the layer's own one. The layer is
+     * matched by its prefixed name (title of the map layer).
+     *
+     * @param layer the map layer
+     * @param layerConfiguration the effective configuration of the layer
+     * @return the bounds or null if the feature type is not found
+     */
+    private ReferencedEnvelope getLatLonBounds(
+            Layer layer, MVTLayerConfiguration layerConfiguration) {
+        MapLayerInfo layerInfo = getMapLayerInfo(layer);
+        if (layerInfo == null || layerInfo.getResource() == null) {
+            return null;
+        }
+        String sourceTypeName = layerConfiguration.getSourceTypeName();
+        if (sourceTypeName == null
+                || sourceTypeName.equals(
+                        layer.getFeatureSource().getSchema().getName().getLocalPart())) {
+            return layerInfo.getResource().getLatLonBoundingBox();
+        }
+        FeatureTypeInfo sourceType = getSourceType(layerInfo, sourceTypeName);
+        return sourceType != null ? sourceType.getLatLonBoundingBox() : null;
+    }
+
+    /**
+     * Looks up the requested catalog layer of the map layer by its prefixed name (title of the
+     * map layer).
+     *
+     * @param layer the map layer
+     * @return the catalog layer or null if the layer is not found
+     */
+    private MapLayerInfo getMapLayerInfo(Layer layer) {
+        if (this.mapContent.getRequest() == null || layer.getTitle() == null) {
+            return null;
+        }
+        for (MapLayerInfo layerInfo : this.mapContent.getRequest().getLayers()) {
+            if (layer.getTitle().equals(layerInfo.getName())) {
+                return layerInfo;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Returns the prefixed name of the catalog layer of the map layer, the qualified name of its
+     * features if the catalog layer is not found.
+     *
+     * @param layer the map layer
+     * @return the name
+     */
+    private String getPrefixedName(Layer layer) {
+        MapLayerInfo layerInfo = getMapLayerInfo(layer);
+        if (layerInfo != null) {
+            return layerInfo.getName();
+        }
+        return layer.getFeatureSource().getSchema().getName().getURI();
+    }
+
+    private static String getStyleName(Layer layer) {
+        return layer.getStyle() != null ? layer.getStyle().getName() : null;
+    }
+
+    /** @return the extent the layer is encoded with */
+    private static int getExtent(MVTLayerConfiguration layerConfiguration) {
+        Integer extent = layerConfiguration.getExtent();
+        return extent != null && extent > 0 ? extent : MVTWriter.DEFAULT_EXTENT;
+    }
+
+    /** @return the name of the authenticated user, empty for anonymous requests */
+    private static String getUser() {
+        Authentication authentication = SecurityContextHolder.getContext().getAuthentication();
+        return authentication != null ? authentication.getName() : "";
+    }
+
+    /**
+     * Writes a tile without features. The payload is empty unless empty protobufs should be
+     * avoided, in which case it contains the layer messages only, with the extents the layers are
+     * encoded with otherwise; it is computed once per set of layer names and extents.
+     *
+     * @param out the outputstream to write to
+     * @param avoidEmptyProto whether to write the layer messages
+     * @param layerExtents the extents keyed by the names of the layers, null for the default
+     * @throws IOException
+     */
+    private void writeEmptyTile(
+            OutputStream out, boolean avoidEmptyProto, Map<String, Integer> layerExtents)
+            throws IOException {
+        if (!avoidEmptyProto) {
+            return;
+        }
+        String key = layerExtents.toString();
+        byte[] payload = EMPTY_TILES.get(key);
+        if (payload == null) {
+            VectorTileEncoder encoder =
+                    new VectorTileEncoder(
+                            MVTWriter.DEFAULT_EXTENT,
+                            new Envelope(0, targetBinaryCRSTileSize, 0, targetBinaryCRSTileSize),
+                            true,
+                            0,
+                            0);
+            for (Map.Entry<String, Integer> layerExtent : layerExtents.entrySet()) {
+                encoder.getOrAddLayer(layerExtent.getKey());
+                encoder.setLayerExtent(layerExtent.getKey(), layerExtent.getValue());
+            }
+            payload = encoder.encode();
+            if (EMPTY_TILES.size() > MAX_CACHED_ENTRIES) {
+                EMPTY_TILES.clear();
+            }
+            EMPTY_TILES.put(key, payload);
+        }
+        out.write(payload);
+    }
+
+    /**
+     * Returns the feature source the features of the layer are read from. This is the layer's own
+     * feature source unless the layer configuration routes the request to another feature type of
+     * the same store (see {@link MVTLayerConfiguration#setSourceTypeName(String)}). The routed
+     * feature type is looked up in the catalog, so its features are reprojected, filtered and
+     * secured like the ones of the layer.
+     *
+     * @param layer the map layer
+     * @param layerSource the feature source of the layer
+     * @param layerConfiguration the effective configuration of the layer
+     * @return the feature source to read from
+     * @throws IOException if the routed feature type is not available
+     */
+    private SimpleFeatureSource getFeatureSource(
+            Layer layer, SimpleFeatureSource layerSource, MVTLayerConfiguration layerConfiguration)
+            throws IOException {
+        String sourceTypeName = layerConfiguration.getSourceTypeName();
+        String layerName = layerSource.getSchema().getName().getLocalPart();
+        if (sourceTypeName == null || sourceTypeName.equals(layerName)) {
+            return layerSource;
+        }
+        FeatureTypeInfo sourceType = getSourceType(getMapLayerInfo(layer), sourceTypeName);
+        if (sourceType == null) {
+            throw new IOException(
+                    "source feature type "
+                            + sourceTypeName
+                            + " of layer "
+                            + layerName
+                            + " not found in the store of the layer");
+        }
+        return (SimpleFeatureSource) sourceType.getFeatureSource(null, null);
+    }
+
+    /**
+     * Looks up the feature type a layer is routed to in the store of the layer.
+     *
+     * @param layerInfo the catalog layer, may be null
+     * @param sourceTypeName the name of the routed feature type
+     * @return the feature type or null if it is not found
+     */
+    private FeatureTypeInfo getSourceType(MapLayerInfo layerInfo, String sourceTypeName) {
+        FeatureTypeInfo featureType = layerInfo != null ? layerInfo.getFeature() : null;
+        if (catalog == null || featureType == null) {
+            return null;
+        }
+        return catalog.getFeatureTypeByDataStore(featureType.getStore(), sourceTypeName);
+    }
+
+    /**
+     * Returns the geometry attribute used for the query and the output, the default geometry
+     * unless the layer configuration chooses another one (see {@link
+     * MVTLayerConfiguration#setGeometryAttribute(String)}).
+     *
+     * @param schema the schema of the feature source read from
+     * @param layerConfiguration the effective configuration of the layer
+     * @return the descriptor of the geometry attribute
+     */
+    private GeometryDescriptor getGeometryDescriptor(
+            SimpleFeatureType schema, MVTLayerConfiguration layerConfiguration) {
+        String geometryAttribute = layerConfiguration.getGeometryAttribute();
+        if (geometryAttribute != null) {
+            AttributeDescriptor descriptor = schema.getDescriptor(geometryAttribute);
+            if (descriptor instanceof GeometryDescriptor) {
+                return (GeometryDescriptor) descriptor;
+            }
+            LOGGER.warning(
+                    "geometry attribute "
+                            + geometryAttribute
+                            + " not found in "
+                            + schema.getTypeName()
+                            + ", using the default geometry");
+        }
+        return schema.getGeometryDescriptor();
+    }
+
+    /**
+     * Retypes the features to the name of the layer and the chosen default geometry, so routed
+     * features are written like the features of the layer itself.
+     *
+     * @param features the features read
+     * @param typeName the name of the layer's feature type
+     * @param geometryAttribute the geometry attribute to be written
+     * @return the retyped features
+     */
+    private SimpleFeatureCollection retype(
+            SimpleFeatureCollection features, String typeName, String geometryAttribute) {
+        SimpleFeatureTypeBuilder builder = new SimpleFeatureTypeBuilder();
+        builder.init(features.getSchema());
+        builder.setName(typeName);
+        builder.setDefaultGeometry(geometryAttribute);
+        return new ReTypingFeatureCollection(features, builder.buildFeatureType());
+    }
+
+    /**
+     * Looks up the configuration of the layer and applies the request specific overrides. The
+     * prefixed layer name (title of the map layer) is preferred over the feature type name.
+     *
+     * @param layer the map layer
+     * @param schema the schema of the layer's feature source
+     * @param zoomLevel the requested zoom level
+     * @return the effective configuration of the layer, never null
+     */
+    private MVTLayerConfiguration getLayerConfiguration(
+            Layer layer, SimpleFeatureType schema, int zoomLevel) {
+        MVTLayerConfiguration configured = null;
+        if (layer.getTitle() != null) {
+            configured = layerConfigurations.get(layer.getTitle());
+        }
+        if (configured == null) {
+            configured = layerConfigurations.get(schema.getTypeName());
+        }
+        MVTLayerConfiguration layerConfiguration =
+                configured != null
+                        ? new MVTLayerConfiguration(configured)
+                        : new MVTLayerConfiguration();
+        layerConfiguration.override(requestConfiguration);
+        layerConfiguration.applyZoomLevel(zoomLevel);
+        return layerConfiguration;
+    }
+
+    /**
+     * Computes the property names to be requested from the datastore. Besides the requested
+     * attributes the geometry, the aggregated attributes, the rank attribute of the thinning, the
+     * coalescing key attributes, the rank attribute and all attributes needed by the style
+     * (filters and geometry expressions) are added. Attributes not present in the schema are
+     * ignored.
+     *
+     * @param schema the schema of the layer
+     * @param geometryAttribute the geometry attribute written to the tile
+     * @param style the style of the layer, may be null
+     * @param layerConfiguration the effective configuration of the layer
+     * @return the property names or null if all properties should be retrieved
+     */
+    private String[] getPropertyNames(
+            SimpleFeatureType schema,
+            String geometryAttribute,
+            Style style,
+            MVTLayerConfiguration layerConfiguration) {
+        if (layerConfiguration.getAttributes() == null) {
+            return null;
+        }
+        Set<String> propertyNames = new LinkedHashSet<>();
+        propertyNames.add(geometryAttribute);
+        List<String> attributes = new ArrayList<>(layerConfiguration.getAttributes());
+        if (layerConfiguration.isAggregationEnabled()
+                && layerConfiguration.getAggregationAttributes() != null) {
+            attributes.addAll(layerConfiguration.getAggregationAttributes());
+        }
+        if (layerConfiguration.isDensityFilterEnabled()
+                && layerConfiguration.getDensityRankAttribute() != null) {
+            attributes.add(layerConfiguration.getDensityRankAttribute());
+        }
+        if (layerConfiguration.isCoalescingEnabled()) {
+            attributes.addAll(layerConfiguration.getCoalesceAttributes());
+        }
+        if (layerConfiguration.getRankAttribute() != null) {
+            attributes.add(layerConfiguration.getRankAttribute());
+        }
+        for (String attribute : attributes) {
+            if (schema.getDescriptor(attribute) != null) {
+                propertyNames.add(attribute);
+            }
+        }
+        if (style != null) {
+            StyleAttributeExtractor extractor = new StyleAttributeExtractor();
+            style.accept(extractor);
+            for (String attribute : extractor.getAttributeNameSet()) {
+                if (schema.getDescriptor(attribute) != null) {
+                    propertyNames.add(attribute);
                 }
             }
         }
-        return filter.isEmpty() ? null : ff.or(filter);
+        return propertyNames.toArray(new String[0]);
+    }
+
+    public Map<String, MVTLayerConfiguration> getLayerConfigurations() {
+        return layerConfigurations;
+    }
+
+    /**
+     * Sets the per layer configurations.
+     *
+     * @param layerConfigurations configurations keyed by prefixed layer name or feature type name
+     */
+    public void setLayerConfigurations(Map<String, MVTLayerConfiguration> layerConfigurations) {
+        this.layerConfigurations =
+                layerConfigurations != null ? layerConfigurations : Collections.emptyMap();
+    }
+
+    public MVTLayerConfiguration getRequestConfiguration() {
+        return requestConfiguration;
+    }
+
+    /**
+     * Sets the configuration built from the request parameters. Its values override the
+     * configuration of all layers.
+     *
+     * @param requestConfiguration the request configuration
+     */
+    public void setRequestConfiguration(MVTLayerConfiguration requestConfiguration) {
+        this.requestConfiguration =
+                requestConfiguration != null ? requestConfiguration : new MVTLayerConfiguration();
+    }
+
+    /**
+     * Sets the budget of the whole tile.
+     *
+     * @param tileBudget the budget, null if the tile is unlimited
+     */
+    void setTileBudget(MVTBudget tileBudget) {
+        this.tileBudget = tileBudget;
+    }
+
+    /**
+     * Sets the catalog looking up the feature types layers are routed to, the secured catalog of
+     * the request so routed layers are subject to the same access rules.
+     *
+     * @param catalog the catalog
+     */
+    void setCatalog(Catalog catalog) {
+        this.catalog = catalog;
+    }
+
+    /**
+     * Sets the index of tiles known to be empty. Layers known to be empty in the requested tile
+     * are not queried, layer queries returning no feature are recorded.
+     *
+     * @param emptyTileIndex the index, null to query all layers
+     */
+    void setEmptyTileIndex(MVTEmptyTileIndex emptyTileIndex) {
+        this.emptyTileIndex = emptyTileIndex;
+    }
+
+    /**
+     * Sets the scheduler limiting the concurrent queries per datastore and layer.
+     *
+     * @param renderScheduler the scheduler, null if unlimited
+     */
+    void setRenderScheduler(MVTRenderScheduler renderScheduler) {
+        this.renderScheduler = renderScheduler;
+    }
+
+    /**
+     * Sets the lane of the request in the render scheduler.
+     *
+     * @param renderLane the lane, null for interactive requests
+     */
+    void setRenderLane(MVTRenderScheduler.Lane renderLane) {
+        this.renderLane = renderLane != null ? renderLane : MVTRenderScheduler.Lane.INTERACTIVE;
+    }
+
+    /**
+     * Sets the render deadline of the tile. Once it passed no further features are read and the
+     * features processed so far are written.
+     *
+     * @param renderDeadline the deadline in {@link System#nanoTime()} units, null for none
+     */
+    void setRenderDeadline(Long renderDeadline) {
+        this.renderDeadline = renderDeadline;
+    }
+
+    /** @return the render deadline in {@link System#nanoTime()} units, null for none */
+    Long getRenderDeadline() {
+        return renderDeadline;
+    }
+
+    /**
+     * Sets the token signalling that the client is gone. Once cancelled the rendering stops, the
+     * feature iterators are closed and {@link #encode} fails with a {@link
+     * org.geoserver.platform.ClientStreamAbortedException}.
+     *
+     * @param cancellationToken the token, null if the request cannot be cancelled
+     */
+    void setCancellationToken(MVTCancellationToken cancellationToken) {
+        this.cancellationToken = cancellationToken;
+    }
+
+    /**
+     * Sets the batch of tiles rendered by the request, see {@link MVTTileBatch}.
+     *
+     * @param tileBatch the batch, null for a single tile
+     */
+    void setTileBatch(MVTTileBatch tileBatch) {
+        this.tileBatch = tileBatch;
+    }
+
+    /**
+     * Sets whether each layer is written as soon as its features are read.
+     *
+     * @param streamLayers true to write the layers one at a time
+     */
+    void setStreamLayers(boolean streamLayers) {
+        this.streamLayers = streamLayers;
+    }
+
+    /**
+     * @return true if the render deadline passed before all features of the encoded tile were
+     *     processed
+     */
+    public boolean isPartial() {
+        return partial;
+    }
+
+    private int getZoomLevel(double scale) {
+        double maxRes = 156543.03;
+        double rs = scale / (96 * 39.37);
+        int zoom = LongMath.log2((long) (maxRes / rs), RoundingMode.HALF_UP);
+        return zoom;
     }
 }
@@ -1,14 +1,18 @@
 package org.geoserver.wms.mvt;
 
+import static org.geoserver.wms.mvt.MVTStreamingMapResponse.DEFAULT_GENERALISATION_FACTOR;
 import static org.geoserver.wms.mvt.MVTStreamingMapResponse.DEFAULT_SMALL_GEOMETRY_THRESHOLD;
 
+import com.google.protobuf.CodedOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import org.apache.commons.lang.math.NumberUtils;
@@ -28,6 +32,7 @@ import org.locationtech.jts.geom.MultiPoint;
 import org.locationtech.jts.geom.MultiPolygon;
 import org.locationtech.jts.geom.Point;
 import org.locationtech.jts.geom.Polygon;
+import org.locationtech.jts.simplify.DouglasPeuckerSimplifier;
 import org.locationtech.jts.simplify.TopologyPreservingSimplifier;
 
 /**
@@ -36,10 +41,58 @@ import org.locationtech.jts.simplify.TopologyPreservingSimplifier;
  */
 public class VectorTileEncoder {
 
+    /** name of the layer recording the degradations applied to keep the tile within its budgets */
+    public static final String DEGRADATION_LAYER = "mvt_degradation";
+
+    /** attribute of the degradation layer's feature listing the applied degradations */
+    public static final String DEGRADATION_ATTRIBUTE = "degradations";
+
+    /** the generalisation factor has been raised */
+    public static final String DEGRADATION_GEN_FACTOR = "gen_factor";
+
+    /** the small geometry threshold has been raised */
+    public static final String DEGRADATION_SMALL_GEOM_THRESHOLD = "small_geom_threshold";
+
+    /** the lowest ranked features have been dropped */
+    public static final String DEGRADATION_RANK = "rank";
+
+    /** the last features (in stream order) have been dropped */
+    public static final String DEGRADATION_TRUNCATE = "truncate";
+
+    /** the render deadline passed, the features not processed by then are missing */
+    public static final String DEGRADATION_DEADLINE = "deadline";
+
+    /**
+     * a geometry did not fit into the vertex limit of its layer with the regular simplification, it
+     * was simplified without preserving its topology or dropped
+     */
+    public static final String DEGRADATION_VERTEX_LIMIT = "vertex_limit";
+
+    /** number of times the generalisation factor and the small geometry threshold are raised */
+    private static final int DEGRADATION_STEPS = 3;
+
+    /** factor the generalisation factor and the small geometry threshold are raised with */
+    private static final double DEGRADATION_MULTIPLIER = 4;
+
+    /** maximum number of times the tolerance is raised to fit a feature into its vertex limit */
+    private static final int MAX_SIMPLIFICATION_STEPS = 8;
+
     private final Map<String, Layer> layers = new LinkedHashMap<>();
 
+    /** names of the layers written before the tile was complete */
+    private final Set<String> writtenLayers = new LinkedHashSet<>();
+
     private final int extent;
 
+    /** extents of the layers differing from the default extent, keyed by layer name */
+    private final Map<String, Integer> layerExtents = new LinkedHashMap<>();
+
+    /** buffers of the layers differing from the buffer of the encoder, keyed by layer name */
+    private final Map<String, MVTLayerBuffer> layerBuffers = new LinkedHashMap<>();
+
+    /** extent of the layer whose features are currently encoded */
+    private int encodingExtent;
+
     private final Geometry clipGeometry;
 
     /** autoscale limits the coordinatesystem of the tiles to 256 */
@@ -50,6 +103,27 @@ public class VectorTileEncoder {
 
     private boolean includeLayersOnEmptyFeatureList = false;
 
+    /** budgets of the layers, keyed by layer name */
+    private final Map<String, MVTBudget> layerBudgets = new LinkedHashMap<>();
+
+    /** budget of the whole tile, null if the tile is unlimited */
+    private MVTBudget tileBudget;
+
+    /** maximum number of vertices of a single feature per layer */
+    private final Map<String, Integer> featureVertexLimits = new LinkedHashMap<>();
+
+    /** processing deadline of a single feature per layer in nanoseconds */
+    private final Map<String, Long> featureDeadlines = new LinkedHashMap<>();
+
+    /** the degradations applied to keep the tile within its budgets */
+    private final Set<String> degradations = new LinkedHashSet<>();
+
+    /** the render deadline of the tile in {@link System#nanoTime()} units, null for none */
+    private Long renderDeadline;
+
+    /** accumulators of skipped small polygons per layer, layers without skip small polygons */
+    private final Map<String, MVTAreaAccumulator> areaAccumulators = new LinkedHashMap<>();
+
     private static final Logger LOGGER = Logging.getLogger(VectorTileEncoder.class);
 
     /**
@@ -87,6 +161,7 @@ public class VectorTileEncoder {
             double smallGeometryThreshold) {
         this.autoScale = true;
         this.extent = extent;
+        this.encodingExtent = extent;
         this.clipGeometry = JTS.toGeometry(targetBbox);
         this.includeLayersOnEmptyFeatureList = includeLayersOnEmptyFeatureList;
         this.simplificationFactor = simplificationFactor;
@@ -158,6 +233,40 @@ public class VectorTileEncoder {
      */
     public void addFeature(
             String layerName, Map<String, ?> attributes, String idString, Geometry geometry) {
+        addFeature(layerName, attributes, idString, geometry, Double.NEGATIVE_INFINITY);
+    }
+
+    /**
+     * Add a feature with layer name, some attributes, a Geometry and a rank. When a budget of the
+     * layer or tile is exceeded the features with the lowest rank are dropped first.
+     *
+     * @param layerName name of the layer to be added
+     * @param attributes all attributes of the feature
+     * @param geometry the target geometry
+     * @param rank the rank of the feature, higher ranked features are kept longer
+     */
+    public void addFeature(
+            String layerName,
+            Map<String, ?> attributes,
+            String idString,
+            Geometry geometry,
+            double rank) {
+        addFeature(layerName, attributes, idString, geometry, rank, System.nanoTime());
+    }
+
+    /**
+     * Adds a feature or a part of a split feature.
+     *
+     * @param start the time the feature entered the encoder in nanoseconds, the feature deadline
+     *     of the layer is measured from it
+     */
+    private void addFeature(
+            String layerName,
+            Map<String, ?> attributes,
+            String idString,
+            Geometry geometry,
+            double rank,
+            long start) {
 
         // if enabled always add the layer even if probably no feature will be added (avoid 0 byte
         // protobufs)
@@ -165,22 +274,42 @@ public class VectorTileEncoder {
             getOrAddLayer(layerName);
         }
 
+        // skip small polygons before splitting and clipping them, the area of a polygon is never
+        // larger than the area of its envelope
+        if (this.smallGeometryThreshold > 0
+                && (geometry instanceof Polygon || geometry instanceof MultiPolygon)) {
+            Envelope envelope = geometry.getEnvelopeInternal();
+            if (envelope.getArea() < this.smallGeometryThreshold) {
+                skipSmallPolygon(layerName, attributes, geometry, envelope);
+                return;
+            }
+        }
+
+        // drop vertices of huge geometries encoded to the same position before clipping them
+        Integer maxVertices = featureVertexLimits.get(layerName);
+        if (maxVertices != null && geometry.getNumPoints() > maxVertices) {
+            geometry = MVTGridDecimator.decimate(geometry, 256.0 / getExtent(layerName));
+            if (geometry == null) {
+                return;
+            }
+        }
+
         // split up MultiPolygon and GeometryCollection (without subclasses)
         if (geometry instanceof MultiPolygon
                 || geometry.getClass().equals(GeometryCollection.class)) {
-            splitAndAddFeatures(layerName, attributes, idString, (GeometryCollection) geometry);
+            splitAndAddFeatures(
+                    layerName, attributes, idString, (GeometryCollection) geometry, rank, start);
             return;
         }
 
         // skip small Polygon/LineString.
         if (this.smallGeometryThreshold > 0) {
-            if (geometry instanceof Polygon && geometry.getArea() < this.smallGeometryThreshold) {
-                //                LOGGER.fine(
-                //                        "skiped geometry, area was: "
-                //                                + geometry.getArea()
-                //                                + " threshold was:"
-                //                                + smallGeometryThreshold);
-                return;
+            if (geometry instanceof Polygon) {
+                if (geometry.getArea() < this.smallGeometryThreshold) {
+                    skipSmallPolygon(
+                            layerName, attributes, geometry, geometry.getEnvelopeInternal());
+                    return;
+                }
             }
             if (geometry instanceof LineString
                     && geometry.getLength() < this.smallGeometryThreshold) {
@@ -194,12 +323,18 @@ public class VectorTileEncoder {
         }
 
         // clip geometry
+        MVTLayerBuffer layerBuffer = layerBuffers.get(layerName);
         if (geometry instanceof Point) {
-            if (!clipCovers(geometry)) {
+            if (layerBuffer != null
+                    ? !layerBuffer.getClipEnvelope(geometry).covers(geometry.getCoordinate())
+                    : !clipCovers(geometry)) {
                 return;
             }
         } else {
-            geometry = clipGeometry(geometry);
+            geometry =
+                    layerBuffer != null
+                            ? clipGeometry(geometry, layerBuffer.getClipEnvelope(geometry))
+                            : clipGeometry(geometry);
             if (geometry == null) {
                 return;
             }
@@ -208,7 +343,8 @@ public class VectorTileEncoder {
         // if clipping result in MultiPolygon, then split once more
         if (geometry instanceof MultiPolygon
                 || geometry.getClass().equals(GeometryCollection.class)) {
-            splitAndAddFeatures(layerName, attributes, idString, (GeometryCollection) geometry);
+            splitAndAddFeatures(
+                    layerName, attributes, idString, (GeometryCollection) geometry, rank, start);
             return;
         }
 
@@ -221,33 +357,31 @@ public class VectorTileEncoder {
 
         // generalize geometry (less memory) use TopolyPreservingSimplifier to prevent null
         // geometries
-        if (this.simplificationFactor > 0) {
-            try {
-                geometry =
-                        TopologyPreservingSimplifier.simplify(geometry, this.simplificationFactor);
-            } catch (Exception e) {
-                LOGGER.warning("Geometry cannot be simplified!! " + geometry.toString());
-                if (geometry instanceof LineString) {
-                    List<Coordinate> coordinates = new ArrayList<>();
-                    for (Coordinate coordinate : geometry.getCoordinates()) {
-                        if (coordinate.x > 0 && coordinate.y > 0) {
-                            coordinates.add(coordinate);
-                        }
-                    }
-                    GeometryFactory gm = new GeometryFactory();
-                    geometry =
-                            gm.createLineString(
-                                    coordinates.toArray(new Coordinate[coordinates.size()]));
-                }
+        if (maxVertices != null && geometry.getNumPoints() > maxVertices) {
+            geometry =
+                    simplifyToLimit(
+                            geometry,
+                            maxVertices,
+                            getExtent(layerName),
+                            featureDeadlines.get(layerName),
+                            start);
+            if (geometry == null || geometry.isEmpty()) {
+                return;
             }
-            if (geometry instanceof Polygon) {
-                // Known bug in TopologyPreservingSimplifier
-                // (see
-                // https://locationtech.github.io/jts/javadoc/org/locationtech/jts/simplify/TopologyPreservingSimplifier.html)
-                if (!geometry.isValid()) {
-                    geometry = checkPolygonRingsIntersecting((Polygon) geometry);
-                }
+            // the fast simplification may split polygons
+            if (geometry instanceof MultiPolygon
+                    || geometry.getClass().equals(GeometryCollection.class)) {
+                splitAndAddFeatures(
+                        layerName,
+                        attributes,
+                        idString,
+                        (GeometryCollection) geometry,
+                        rank,
+                        start);
+                return;
             }
+        } else if (this.simplificationFactor > 0) {
+            geometry = simplify(geometry, this.simplificationFactor);
         }
 
         for (Coordinate coordinate : geometry.getCoordinates()) {
@@ -275,11 +409,209 @@ public class VectorTileEncoder {
             feature.tags.add(layer.value(e.getValue()));
         }
         feature.id = parseId(idString);
+        feature.rank = rank;
 
         layer.features.add(feature);
     }
 
+    /**
+     * Simplifies the geometry with a tolerance raised until it has at most the given number of
+     * vertices. Once the deadline is exceeded the fast {@link DouglasPeuckerSimplifier} is used
+     * instead of the {@link TopologyPreservingSimplifier}. Geometries still exceeding the limit
+     * after {@link #MAX_SIMPLIFICATION_STEPS} are simplified with the fast simplification until
+     * they fit, lines collapse to their end points and polygons vanish at the latest once the
+     * tolerance exceeds the size of the geometry. Geometries that cannot be simplified (e.g.
+     * multi points) are dropped.
+     *
+     * @param geometry the geometry in tile units
+     * @param maxVertices the maximum number of vertices
+     * @param layerExtent the extent of the layer
+     * @param deadline the processing deadline in nanoseconds, null for no deadline
+     * @param start the time the feature entered the encoder in nanoseconds
+     * @return the simplified geometry, null if it is dropped
+     */
+    private Geometry simplifyToLimit(
+            Geometry geometry, int maxVertices, int layerExtent, Long deadline, long start) {
+        Envelope envelope = geometry.getEnvelopeInternal();
+        double size = Math.hypot(envelope.getWidth(), envelope.getHeight());
+        // below the size of a pixel simplification has no visible effect
+        double tolerance = Math.max(simplificationFactor, 256.0 / layerExtent);
+        boolean fast = false;
+        for (int step = 0; step < MAX_SIMPLIFICATION_STEPS; step++) {
+            fast =
+                    fast
+                            || (deadline != null && System.nanoTime() - start > deadline)
+                            || isRenderDeadlineExceeded();
+            geometry =
+                    fast
+                            ? DouglasPeuckerSimplifier.simplify(geometry, tolerance)
+                            : simplify(geometry, tolerance);
+            if (geometry.getNumPoints() <= maxVertices) {
+                break;
+            }
+            tolerance *= 2;
+        }
+        if (fast) {
+            LOGGER.fine(
+                    "simplification deadline exceeded, used fast simplification after "
+                            + (System.nanoTime() - start) / 1000000
+                            + "ms");
+        }
+        if (geometry.getNumPoints() <= maxVertices) {
+            return geometry;
+        }
+        LOGGER.fine(
+                "vertex limit of "
+                        + maxVertices
+                        + " reached after "
+                        + MAX_SIMPLIFICATION_STEPS
+                        + " steps, simplifying without preserving topology");
+        degradations.add(DEGRADATION_VERTEX_LIMIT);
+        while (geometry.getNumPoints() > maxVertices && tolerance <= size) {
+            geometry = DouglasPeuckerSimplifier.simplify(geometry, tolerance);
+            tolerance *= 2;
+        }
+        if (geometry.getNumPoints() > maxVertices) {
+            LOGGER.fine("dropped feature exceeding the vertex limit of " + maxVertices);
+            return null;
+        }
+        return geometry;
+    }
+
+    /**
+     * Limits the number of vertices of single features of the layer. Larger geometries are
+     * pre-decimated to the encoding grid and simplified with a raised tolerance until they fit.
+     *
+     * @param layerName the name of the layer
+     * @param maxVertices the maximum number of vertices, null for no limit
+     * @param deadlineMillis the processing time of a feature after which a fast, not topology
+     *     preserving simplification is used, null for no deadline
+     */
+    void setFeatureVertexLimit(String layerName, Integer maxVertices, Integer deadlineMillis) {
+        if (maxVertices != null && maxVertices > 0) {
+            featureVertexLimits.put(layerName, maxVertices);
+        } else {
+            featureVertexLimits.remove(layerName);
+        }
+        if (deadlineMillis != null && deadlineMillis >= 0) {
+            featureDeadlines.put(layerName, deadlineMillis * 1000000L);
+        } else {
+            featureDeadlines.remove(layerName);
+        }
+    }
+
+    /**
+     * Sets the extent of the layer, the number of coordinate units across the tile the geometries
+     * of the layer are quantized to. Low zoom levels rarely need the default precision, a smaller
+     * extent produces smaller coordinate deltas and thus fewer bytes per vertex.
+     *
+     * @param layerName the name of the layer
+     * @param layerExtent the extent, null to use the extent of the encoder
+     */
+    void setLayerExtent(String layerName, Integer layerExtent) {
+        if (layerExtent != null && layerExtent > 0) {
+            layerExtents.put(layerName, layerExtent);
+        } else {
+            layerExtents.remove(layerName);
+        }
+    }
+
+    /**
+     * Sets the buffers of the layer, replacing the clip envelope of the encoder for the layer's
+     * geometries.
+     *
+     * @param layerName the name of the layer
+     * @param layerBuffer the buffers, null to clip to the envelope of the encoder
+     */
+    void setLayerBuffer(String layerName, MVTLayerBuffer layerBuffer) {
+        if (layerBuffer != null) {
+            layerBuffers.put(layerName, layerBuffer);
+        } else {
+            layerBuffers.remove(layerName);
+        }
+    }
+
+    /**
+     * @param layerName the name of the layer
+     * @return the extent of the layer
+     */
+    int getExtent(String layerName) {
+        return layerExtents.getOrDefault(layerName, extent);
+    }
+
+    /**
+     * Simplifies the geometry with a {@link TopologyPreservingSimplifier}.
+     *
+     * @param geometry the geometry in tile units
+     * @param factor the distance tolerance
+     * @return the simplified geometry
+     */
+    private Geometry simplify(Geometry geometry, double factor) {
+        try {
+            geometry = TopologyPreservingSimplifier.simplify(geometry, factor);
+        } catch (Exception e) {
+            LOGGER.warning("Geometry cannot be simplified!! " + geometry.toString());
+            if (geometry instanceof LineString) {
+                List<Coordinate> coordinates = new ArrayList<>();
+                for (Coordinate coordinate : geometry.getCoordinates()) {
+                    if (coordinate.x > 0 && coordinate.y > 0) {
+                        coordinates.add(coordinate);
+                    }
+                }
+                GeometryFactory gm = new GeometryFactory();
+                geometry =
+                        gm.createLineString(
+                                coordinates.toArray(new Coordinate[coordinates.size()]));
+            }
+        }
+        if (geometry instanceof Polygon) {
+            // Known bug in TopologyPreservingSimplifier
+            // (see
+            // https://locationtech.github.io/jts/javadoc/org/locationtech/jts/simplify/TopologyPreservingSimplifier.html)
+            if (!geometry.isValid()) {
+                geometry = checkPolygonRingsIntersecting((Polygon) geometry);
+            }
+        }
+        return geometry;
+    }
+
+    /**
+     * Accumulates the small polygons of the layer in a grid instead of skipping them. Once the
+     * accumulated area of skipped polygons in a cell reaches the small geometry threshold a square
+     * of that area is added to the layer, carrying the attributes of the last skipped polygon.
+     *
+     * @param layerName the name of the layer
+     * @param gridSize the cell size in tile units
+     */
+    public void accumulateSmallPolygons(String layerName, double gridSize) {
+        if (smallGeometryThreshold > 0 && gridSize > 0) {
+            areaAccumulators.put(
+                    layerName, new MVTAreaAccumulator(gridSize, smallGeometryThreshold));
+        }
+    }
+
+    /**
+     * Handles a polygon below the small geometry threshold. The polygon is dropped unless small
+     * polygons of the layer are accumulated, the area of the polygon (not of its envelope) is
+     * accumulated then.
+     */
+    private void skipSmallPolygon(
+            String layerName, Map<String, ?> attributes, Geometry polygon, Envelope envelope) {
+        MVTAreaAccumulator accumulator = areaAccumulators.get(layerName);
+        if (accumulator == null || !clipGeometry.getEnvelopeInternal().intersects(envelope)) {
+            return;
+        }
+        Geometry square = accumulator.add(envelope, polygon.getArea());
+        if (square != null) {
+            addFeature(layerName, attributes, null, square);
+        }
+    }
+
     protected Long parseId(String idString) {
+        // features without id, e.g. aggregated ones
+        if (idString == null) {
+            return null;
+        }
         // assume id is last part after a . (dot) in idString. Geoserver assembles feature ids
         // by using layername.featureId
         String[] tokens = idString.split("\\.");
@@ -315,7 +647,11 @@ public class VectorTileEncoder {
      * @return clipped geometry
      */
     protected Geometry clipGeometry(Geometry geometry) {
-        final GeometryClipper clipper = new GeometryClipper(clipGeometry.getEnvelopeInternal());
+        return clipGeometry(geometry, clipGeometry.getEnvelopeInternal());
+    }
+
+    private Geometry clipGeometry(Geometry geometry, Envelope clipEnvelope) {
+        final GeometryClipper clipper = new GeometryClipper(clipEnvelope);
         geometry = clipper.clipSafe(geometry, false, 0);
         return geometry;
     }
@@ -324,10 +660,12 @@ public class VectorTileEncoder {
             String layerName,
             Map<String, ?> attributes,
             String idString,
-            GeometryCollection geometry) {
+            GeometryCollection geometry,
+            double rank,
+            long start) {
         for (int i = 0; i < geometry.getNumGeometries(); i++) {
             Geometry subGeometry = geometry.getGeometryN(i);
-            addFeature(layerName, attributes, idString, subGeometry);
+            addFeature(layerName, attributes, idString, subGeometry, rank, start);
         }
     }
 
@@ -408,60 +746,365 @@ public class VectorTileEncoder {
     }
 
     private VectorTile.Tile retrieveVectorTile() {
+        applyBudgets();
+
         VectorTile.Tile.Builder tileBuilder = VectorTile.Tile.newBuilder();
 
         for (Map.Entry<String, Layer> e : layers.entrySet()) {
-            String layerName = e.getKey();
-            Layer layer = e.getValue();
-
-            VectorTile.Tile.Layer.Builder layerBuilder = VectorTile.Tile.Layer.newBuilder();
-            layerBuilder.setVersion(2);
-            layerBuilder.setName(layerName);
-
-            layerBuilder.addAllKeys(layer.keys());
-
-            for (Object value : layer.values()) {
-                VectorTile.Tile.Value.Builder valueBuilder = VectorTile.Tile.Value.newBuilder();
-                if (value instanceof String) {
-                    valueBuilder.setStringValue((String) value);
-                } else if (value instanceof Integer) {
-                    valueBuilder.setIntValue((Integer) value);
-                } else if (value instanceof Long) {
-                    valueBuilder.setSintValue((Long) value);
-                } else if (value instanceof Float) {
-                    valueBuilder.setFloatValue((Float) value);
-                } else if (value instanceof Double) {
-                    valueBuilder.setDoubleValue((Double) value);
-                } else if (value instanceof Boolean) {
-                    valueBuilder.setBoolValue((Boolean) value);
-                } else {
-                    valueBuilder.setStringValue(value.toString());
-                }
-                layerBuilder.addValues(valueBuilder.build());
+            tileBuilder.addLayers(buildLayer(e.getKey(), e.getValue()));
+        }
+        return tileBuilder.build();
+    }
+
+    /**
+     * Whether finished layers can be written before the tile is complete. The budget of the tile
+     * is shared by all layers, so the layers are kept until the tile is encoded.
+     *
+     * @return true if layers can be written by {@link #writeLayer(String, OutputStream)}
+     */
+    boolean isLayerStreamable() {
+        return tileBudget == null;
+    }
+
+    /**
+     * Writes the finished layer as field of the tile and releases its features. The budget of the
+     * layer is applied first. Since a tile is a sequence of layer fields, the written layers and
+     * the remaining layers written by {@link #encode(OutputStream)} form a valid tile.
+     *
+     * @param layerName the name of the layer, no features are added to it afterwards
+     * @param outputStream the stream to write the layer to
+     * @throws IOException
+     */
+    void writeLayer(String layerName, OutputStream outputStream) throws IOException {
+        Layer layer = layers.remove(layerName);
+        areaAccumulators.remove(layerName);
+        if (layer == null) {
+            return;
+        }
+        writtenLayers.add(layerName);
+        MVTBudget budget = layerBudgets.get(layerName);
+        if (budget != null) {
+            degrade(Collections.singletonMap(layerName, layer), budget);
+        }
+        CodedOutputStream output = CodedOutputStream.newInstance(outputStream);
+        output.writeMessage(VectorTile.Tile.LAYERS_FIELD_NUMBER, buildLayer(layerName, layer));
+        output.flush();
+        outputStream.flush();
+    }
+
+    /**
+     * @param layerName the name of the layer
+     * @return true if the layer has been written by {@link #writeLayer(String, OutputStream)}
+     */
+    boolean isLayerWritten(String layerName) {
+        return writtenLayers.contains(layerName);
+    }
+
+    private VectorTile.Tile.Layer buildLayer(String layerName, Layer layer) {
+        VectorTile.Tile.Layer.Builder layerBuilder = buildLayerHeader(layerName, layer);
+        int layerExtent = getExtent(layerName);
+        for (Feature feature : layer.features) {
+            layerBuilder.addFeatures(buildFeature(feature, layerExtent));
+        }
+        return layerBuilder.build();
+    }
+
+    /**
+     * Builds the layer without its features.
+     *
+     * @param layerName the name of the layer
+     * @param layer the layer
+     * @return the builder containing the keys and values of the layer
+     */
+    private VectorTile.Tile.Layer.Builder buildLayerHeader(String layerName, Layer layer) {
+        VectorTile.Tile.Layer.Builder layerBuilder = VectorTile.Tile.Layer.newBuilder();
+        layerBuilder.setVersion(2);
+        layerBuilder.setName(layerName);
+
+        layerBuilder.addAllKeys(layer.keys());
+
+        for (Object value : layer.values()) {
+            VectorTile.Tile.Value.Builder valueBuilder = VectorTile.Tile.Value.newBuilder();
+            if (value instanceof String) {
+                valueBuilder.setStringValue((String) value);
+            } else if (value instanceof Integer) {
+                valueBuilder.setIntValue((Integer) value);
+            } else if (value instanceof Long) {
+                valueBuilder.setSintValue((Long) value);
+            } else if (value instanceof Float) {
+                valueBuilder.setFloatValue((Float) value);
+            } else if (value instanceof Double) {
+                valueBuilder.setDoubleValue((Double) value);
+            } else if (value instanceof Boolean) {
+                valueBuilder.setBoolValue((Boolean) value);
+            } else {
+                valueBuilder.setStringValue(value.toString());
             }
+            layerBuilder.addValues(valueBuilder.build());
+        }
 
-            layerBuilder.setExtent(extent);
+        layerBuilder.setExtent(getExtent(layerName));
+        return layerBuilder;
+    }
+
+    /**
+     * Builds the feature message. The message is kept until the geometry or tags of the feature
+     * change, so measuring the size of a layer does not encode the features twice.
+     *
+     * @param feature the feature
+     * @param layerExtent the extent of the feature's layer
+     * @return the feature message
+     */
+    private VectorTile.Tile.Feature buildFeature(Feature feature, int layerExtent) {
+        if (feature.encoded == null) {
+            Geometry geometry = feature.geometry;
+            encodingExtent = layerExtent;
+
+            VectorTile.Tile.Feature.Builder featureBuilder = VectorTile.Tile.Feature.newBuilder();
+
+            featureBuilder.addAllTags(feature.tags);
+            featureBuilder.setType(toGeomType(geometry));
+            featureBuilder.addAllGeometry(commands(geometry));
+            if (feature.id != null) {
+                featureBuilder.setId(feature.id);
+            }
+            feature.encoded = featureBuilder.build();
+        }
+        return feature.encoded;
+    }
 
-            for (Feature feature : layer.features) {
+    /**
+     * Sets the budget of a layer. Budgets are applied when the tile is encoded.
+     *
+     * @param layerName the name of the layer
+     * @param budget the budget, null to remove the budget
+     */
+    void setLayerBudget(String layerName, MVTBudget budget) {
+        if (budget != null) {
+            layerBudgets.put(layerName, budget);
+        } else {
+            layerBudgets.remove(layerName);
+        }
+    }
 
-                Geometry geometry = feature.geometry;
+    /** @return the budget of the layer or null if the layer is unlimited */
+    MVTBudget getLayerBudget(String layerName) {
+        return layerBudgets.get(layerName);
+    }
 
-                VectorTile.Tile.Feature.Builder featureBuilder =
-                        VectorTile.Tile.Feature.newBuilder();
+    /**
+     * Sets the budget of the whole tile. Budgets are applied when the tile is encoded.
+     *
+     * @param tileBudget the budget, null if the tile is unlimited
+     */
+    void setTileBudget(MVTBudget tileBudget) {
+        this.tileBudget = tileBudget;
+    }
 
-                featureBuilder.addAllTags(feature.tags);
-                featureBuilder.setType(toGeomType(geometry));
-                featureBuilder.addAllGeometry(commands(geometry));
-                if (feature.id != null) {
-                    featureBuilder.setId(feature.id);
-                }
+    /**
+     * @param layerName the name of the layer
+     * @return the number of features added to the layer so far
+     */
+    int getFeatureCount(String layerName) {
+        Layer layer = layers.get(layerName);
+        return layer != null ? layer.features.size() : 0;
+    }
 
-                layerBuilder.addFeatures(featureBuilder.build());
+    /**
+     * Records a degradation applied to keep the tile within its budgets, e.g. when the writer
+     * stops reading features early.
+     *
+     * @param degradation the degradation, one of the DEGRADATION constants
+     */
+    void addDegradation(String degradation) {
+        degradations.add(degradation);
+    }
+
+    /** @return the degradations applied to keep the tile within its budgets */
+    public Set<String> getDegradations() {
+        return Collections.unmodifiableSet(degradations);
+    }
+
+    /**
+     * Sets the render deadline of the tile. Once it passed the expensive degradation steps are
+     * skipped and the writer stops adding features.
+     *
+     * @param renderDeadline the deadline in {@link System#nanoTime()} units, null for none
+     */
+    void setRenderDeadline(Long renderDeadline) {
+        this.renderDeadline = renderDeadline;
+    }
+
+    /**
+     * Checks the render deadline. The deadline degradation is recorded once the deadline passed.
+     *
+     * @return true if the render deadline passed
+     */
+    boolean isRenderDeadlineExceeded() {
+        if (renderDeadline == null) {
+            return false;
+        }
+        if (degradations.contains(DEGRADATION_DEADLINE)) {
+            return true;
+        }
+        if (System.nanoTime() - renderDeadline < 0) {
+            return false;
+        }
+        LOGGER.fine("render deadline exceeded, the tile is written partially");
+        degradations.add(DEGRADATION_DEADLINE);
+        return true;
+    }
+
+    /** @return true if the render deadline passed before all features were processed */
+    public boolean isPartial() {
+        return degradations.contains(DEGRADATION_DEADLINE);
+    }
+
+    /**
+     * Degrades the layers exceeding their budget, then the whole tile if it exceeds its budget.
+     * The applied degradations are recorded in the {@link #DEGRADATION_LAYER}.
+     */
+    private void applyBudgets() {
+        for (Map.Entry<String, MVTBudget> e : layerBudgets.entrySet()) {
+            Layer layer = layers.get(e.getKey());
+            if (layer != null) {
+                degrade(Collections.singletonMap(e.getKey(), layer), e.getValue());
+            }
+        }
+        if (tileBudget != null) {
+            Map<String, Layer> tileLayers = new LinkedHashMap<>(layers);
+            tileLayers.remove(DEGRADATION_LAYER);
+            degrade(tileLayers, tileBudget);
+        }
+        if (!degradations.isEmpty()) {
+            LOGGER.fine("tile exceeded its budget, applied degradations: " + degradations);
+            Layer layer = new Layer();
+            Feature feature = new Feature();
+            feature.geometry = new GeometryFactory().createPoint(new Coordinate(0, 0));
+            feature.tags.add(layer.key(DEGRADATION_ATTRIBUTE));
+            feature.tags.add(layer.value(String.join(",", degradations)));
+            layer.features.add(feature);
+            layers.put(DEGRADATION_LAYER, layer);
+        }
+    }
+
+    /**
+     * Steps through the degradations until the layers fit into the budget: raising the
+     * generalisation factor, raising the small geometry threshold, dropping the lowest ranked
+     * features and finally truncating the layers.
+     *
+     * @param budgetLayers the layers sharing the budget, keyed by name
+     * @param budget the budget
+     */
+    private void degrade(Map<String, Layer> budgetLayers, MVTBudget budget) {
+        long[] usage = measure(budgetLayers);
+        if (budget.fits(usage[0], usage[1], usage[2])) {
+            return;
+        }
+        // generalisation does not reduce the number of features
+        double factor = Math.max(simplificationFactor, DEFAULT_GENERALISATION_FACTOR);
+        for (int step = 0;
+                step < DEGRADATION_STEPS
+                        && !budget.fits(usage[0], 0, usage[2])
+                        && !isRenderDeadlineExceeded();
+                step++) {
+            factor *= DEGRADATION_MULTIPLIER;
+            degradations.add(DEGRADATION_GEN_FACTOR);
+            for (Layer layer : budgetLayers.values()) {
+                for (Feature feature : layer.features) {
+                    if (feature.geometry.getDimension() > 0) {
+                        feature.geometry = simplify(feature.geometry, factor);
+                        feature.encoded = null;
+                    }
+                }
+            }
+            usage = measure(budgetLayers);
+        }
+        double threshold = Math.max(smallGeometryThreshold, DEFAULT_SMALL_GEOMETRY_THRESHOLD);
+        for (int step = 0;
+                step < DEGRADATION_STEPS
+                        && !budget.fits(usage[0], usage[1], usage[2])
+                        && !isRenderDeadlineExceeded();
+                step++) {
+            threshold *= DEGRADATION_MULTIPLIER;
+            double stepThreshold = threshold;
+            degradations.add(DEGRADATION_SMALL_GEOM_THRESHOLD);
+            for (Layer layer : budgetLayers.values()) {
+                if (layer.features.removeIf(feature -> isSmall(feature.geometry, stepThreshold))) {
+                    layer.compact();
+                }
             }
+            usage = measure(budgetLayers);
+        }
+        // lowest ranked features last, the sort is stable so unranked features keep their order
+        for (Layer layer : budgetLayers.values()) {
+            layer.features.sort((f1, f2) -> Double.compare(f2.rank, f1.rank));
+        }
+        while (!budget.fits(usage[0], usage[1], usage[2])) {
+            Layer largest = null;
+            for (Layer layer : budgetLayers.values()) {
+                if (largest == null || layer.features.size() > largest.features.size()) {
+                    largest = layer;
+                }
+            }
+            if (largest == null || largest.features.isEmpty()) {
+                break;
+            }
+            // drop the excess share of the largest layer, then measure again since dropped
+            // features may release keys and values
+            List<Feature> features = largest.features;
+            double excess = budget.getExcess(usage[0], usage[1], usage[2]);
+            int drop = Math.max(1, (int) Math.ceil(features.size() * excess));
+            List<Feature> dropped = features.subList(features.size() - drop, features.size());
+            for (Feature feature : dropped) {
+                degradations.add(
+                        feature.rank != Double.NEGATIVE_INFINITY
+                                ? DEGRADATION_RANK
+                                : DEGRADATION_TRUNCATE);
+            }
+            dropped.clear();
+            largest.compact();
+            usage = measure(budgetLayers);
+        }
+    }
 
-            tileBuilder.addLayers(layerBuilder.build());
+    private static boolean isSmall(Geometry geometry, double threshold) {
+        if (geometry instanceof Polygon || geometry instanceof MultiPolygon) {
+            return geometry.getArea() < threshold;
         }
-        return tileBuilder.build();
+        if (geometry instanceof LineString || geometry instanceof MultiLineString) {
+            return geometry.getLength() < threshold;
+        }
+        return false;
+    }
+
+    /**
+     * Measures the encoded size, the number of features and the number of vertices of the layers.
+     *
+     * @param budgetLayers the layers, keyed by name
+     * @return the number of bytes, features and vertices
+     */
+    private long[] measure(Map<String, Layer> budgetLayers) {
+        long[] usage = new long[3];
+        for (Map.Entry<String, Layer> e : budgetLayers.entrySet()) {
+            long layerSize = buildLayerHeader(e.getKey(), e.getValue()).build().getSerializedSize();
+            int layerExtent = getExtent(e.getKey());
+            for (Feature feature : e.getValue().features) {
+                layerSize += featureSize(feature, layerExtent);
+                usage[1]++;
+                usage[2] += feature.geometry.getNumPoints();
+            }
+            usage[0] +=
+                    CodedOutputStream.computeTagSize(VectorTile.Tile.LAYERS_FIELD_NUMBER)
+                            + CodedOutputStream.computeUInt64SizeNoTag(layerSize)
+                            + layerSize;
+        }
+        return usage;
+    }
+
+    private long featureSize(Feature feature, int layerExtent) {
+        return CodedOutputStream.computeMessageSize(
+                VectorTile.Tile.Layer.FEATURES_FIELD_NUMBER, buildFeature(feature, layerExtent));
     }
 
     static VectorTile.Tile.GeomType toGeomType(Geometry geometry) {
@@ -565,7 +1208,7 @@ public class VectorTileEncoder {
         int lineToIndex = 0;
         int lineToLength = 0;
 
-        double scale = autoScale ? (extent / 256.0) : 1.0;
+        double scale = autoScale ? (encodingExtent / 256.0) : 1.0;
 
         for (int i = 0; i < cs.length; i++) {
             Coordinate c = cs[i];
@@ -663,6 +1306,21 @@ public class VectorTileEncoder {
         public List<Object> values() {
             return Collections.unmodifiableList(new ArrayList<Object>(values.keySet()));
         }
+
+        /** Removes the keys and values not referenced by any feature and renumbers the tags. */
+        void compact() {
+            List<String> oldKeys = keys();
+            List<Object> oldValues = values();
+            keys.clear();
+            values.clear();
+            for (Feature feature : features) {
+                for (int i = 0; i < feature.tags.size(); i += 2) {
+                    feature.tags.set(i, key(oldKeys.get(feature.tags.get(i))));
+                    feature.tags.set(i + 1, value(oldValues.get(feature.tags.get(i + 1))));
+                }
+                feature.encoded = null;
+            }
+        }
     }
 
     private static final class Feature {
@@ -670,5 +1328,9 @@ public class VectorTileEncoder {
         Long id;
         Geometry geometry;
         final List<Integer> tags = new ArrayList<>();
+        double rank = Double.NEGATIVE_INFINITY;
+
+        /** the encoded feature, null if not yet encoded or changed since */
+        VectorTile.Tile.Feature encoded;
     }
 }
@@ -0,0 +1,66 @@
+package org.geoserver.slippymap;
+
+import javax.servlet.AsyncContext;
+import org.junit.Assert;
+import org.junit.Test;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpServletResponse;
+
+/** Test for asynchronous slippy map tile requests. */
+public class AsyncTileRequestTest {
+
+    @Test
+    public void testBufferedResponse() throws Exception {
+        MockHttpServletResponse response = new MockHttpServletResponse();
+        BufferedResponse buffered = new BufferedResponse(response);
+        buffered.setContentType("application/vnd.mapbox-vector-tile");
+        buffered.getOutputStream().write(new byte[] {1, 2, 3});
+        buffered.flushBuffer();
+
+        Assert.assertFalse(buffered.isCommitted());
+        Assert.assertArrayEquals(new byte[] {1, 2, 3}, buffered.toByteArray());
+        // headers are passed on, the body is not
+        Assert.assertEquals("application/vnd.mapbox-vector-tile", response.getContentType());
+        Assert.assertEquals(0, response.getContentAsByteArray().length);
+
+        buffered.sendError(404, "no such layer");
+        Assert.assertEquals(404, buffered.getErrorStatus());
+        Assert.assertEquals("no such layer", buffered.getErrorMessage());
+        Assert.assertEquals(0, buffered.toByteArray().length);
+        Assert.assertEquals(200, response.getStatus());
+    }
+
+    @Test
+    public void testDetachedResponse() throws Exception {
+        MockHttpServletResponse response = new MockHttpServletResponse();
+        BufferedResponse buffered = new BufferedResponse(response, true);
+        buffered.setContentType("application/vnd.mapbox-vector-tile");
+        buffered.setHeader("Cache-Control", "no-store");
+        buffered.setStatus(204);
+
+        // the tile keeps its status and content type, the response is not touched
+        Assert.assertEquals(204, buffered.getStatus());
+        Assert.assertEquals("application/vnd.mapbox-vector-tile", buffered.getContentType());
+        Assert.assertEquals(200, response.getStatus());
+        Assert.assertNull(response.getContentType());
+        Assert.assertNull(response.getHeader("Cache-Control"));
+    }
+
+    @Test
+    public void testReject() {
+        MockHttpServletRequest request = new MockHttpServletRequest();
+        request.setAsyncSupported(true);
+        MockHttpServletResponse response = new MockHttpServletResponse();
+        AsyncContext context = request.startAsync(request, response);
+        AsyncTileRequest tileRequest = new AsyncTileRequest(context, "/wms?REQUEST=GetMap");
+        context.addListener(tileRequest);
+
+        tileRequest.reject();
+        Assert.assertEquals(503, response.getStatus());
+        Assert.assertFalse(request.isAsyncStarted());
+
+        // the completed request is not rendered any more
+        tileRequest.run();
+        Assert.assertNull(response.getForwardedUrl());
+    }
+}
@@ -0,0 +1,61 @@
+package org.geoserver.wms.mvt;
+
+import java.util.Collections;
+import org.junit.Assert;
+import org.junit.Test;
+import org.locationtech.jts.geom.Coordinate;
+import org.locationtech.jts.geom.Envelope;
+import org.locationtech.jts.geom.Geometry;
+import org.locationtech.jts.geom.GeometryFactory;
+
+/** Test for the accumulation of skipped small polygons. */
+public class MVTAreaAccumulatorTest {
+
+    @Test
+    public void testSquareEmittedWhenThresholdReached() {
+        MVTAreaAccumulator accumulator = new MVTAreaAccumulator(16, 1);
+        // 0.25 units each, the fourth polygon reaches the threshold
+        Assert.assertNull(accumulator.add(new Envelope(1, 1.5, 1, 1.5), 0.25));
+        Assert.assertNull(accumulator.add(new Envelope(2, 2.5, 1, 1.5), 0.25));
+        Assert.assertNull(accumulator.add(new Envelope(1, 1.5, 2, 2.5), 0.25));
+        Geometry square = accumulator.add(new Envelope(2, 2.5, 2, 2.5), 0.25);
+        Assert.assertNotNull(square);
+        Assert.assertTrue(square.getArea() >= 1);
+        Assert.assertEquals(1.75, square.getCentroid().getX(), 1e-6);
+        Assert.assertEquals(1.75, square.getCentroid().getY(), 1e-6);
+        // the cell starts over
+        Assert.assertNull(accumulator.add(new Envelope(1, 1.5, 1, 1.5), 0.25));
+    }
+
+    @Test
+    public void testCellsAreSeparate() {
+        MVTAreaAccumulator accumulator = new MVTAreaAccumulator(16, 1);
+        Assert.assertNull(accumulator.add(new Envelope(1, 1.5, 1, 1.5), 0.6));
+        Assert.assertNull(accumulator.add(new Envelope(20, 20.5, 1, 1.5), 0.6));
+        Assert.assertNotNull(accumulator.add(new Envelope(3, 3.5, 1, 1.5), 0.6));
+    }
+
+    @Test
+    public void testPolygonAreaAccumulated() {
+        VectorTileEncoder encoder = new VectorTileEncoder(4096, 8, 0.1, 1);
+        encoder.accumulateSmallPolygons("buildings", 16);
+        // triangles of 0.405 units, half of the area of their envelopes
+        for (int i = 0; i < 2; i++) {
+            encoder.addFeature("buildings", Collections.emptyMap(), null, createTriangle(i));
+        }
+        Assert.assertEquals(0, encoder.getFeatureCount("buildings"));
+        encoder.addFeature("buildings", Collections.emptyMap(), null, createTriangle(2));
+        Assert.assertEquals(1, encoder.getFeatureCount("buildings"));
+    }
+
+    private Geometry createTriangle(int offset) {
+        return new GeometryFactory()
+                .createPolygon(
+                        new Coordinate[] {
+                            new Coordinate(1 + offset, 1),
+                            new Coordinate(1.9 + offset, 1),
+                            new Coordinate(1 + offset, 1.9),
+                            new Coordinate(1 + offset, 1)
+                        });
+    }
+}
@@ -0,0 +1,98 @@
+package org.geoserver.wms.mvt;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import org.junit.Assert;
+import org.junit.Test;
+import org.locationtech.jts.geom.Envelope;
+import org.locationtech.jts.io.WKTReader;
+
+/** Test for the degradation of layers and tiles exceeding their budget. */
+public class MVTBudgetTest {
+
+    @Test
+    public void testUnlimited() {
+        Assert.assertNull(MVTBudget.of(null, 0, -1));
+        Assert.assertTrue(MVTBudget.of(null, 10, null).fits(Long.MAX_VALUE, 10, Long.MAX_VALUE));
+        Assert.assertFalse(MVTBudget.of(null, 10, null).fits(0, 11, 0));
+    }
+
+    @Test
+    public void testDropLowestRankedFeatures() throws Exception {
+        VectorTileEncoder encoder = createEncoder();
+        encoder.setLayerBudget("roads", MVTBudget.of(null, 10, null));
+        addLines(encoder, "roads", true);
+
+        VectorTile.Tile tile = VectorTile.Tile.parseFrom(encoder.encode());
+        VectorTile.Tile.Layer layer = getLayer(tile, "roads");
+        Assert.assertEquals(10, layer.getFeaturesCount());
+        // the highest ranked features are kept
+        Set<Long> ids = new HashSet<>();
+        for (VectorTile.Tile.Feature feature : layer.getFeaturesList()) {
+            ids.add(feature.getId());
+        }
+        for (long id = 90; id < 100; id++) {
+            Assert.assertTrue(ids.contains(id));
+        }
+        Assert.assertTrue(encoder.getDegradations().contains(VectorTileEncoder.DEGRADATION_RANK));
+        Assert.assertNotNull(getLayer(tile, VectorTileEncoder.DEGRADATION_LAYER));
+    }
+
+    @Test
+    public void testTileBudget() throws Exception {
+        VectorTileEncoder encoder = createEncoder();
+        encoder.setTileBudget(MVTBudget.of(2000, null, null));
+        addLines(encoder, "roads", false);
+        addLines(encoder, "rivers", false);
+
+        byte[] bytes = encoder.encode();
+        // the degradation layer is not part of the budget
+        Assert.assertTrue(bytes.length < 2100);
+        Assert.assertTrue(
+                encoder.getDegradations().contains(VectorTileEncoder.DEGRADATION_TRUNCATE));
+        VectorTile.Tile tile = VectorTile.Tile.parseFrom(bytes);
+        VectorTile.Tile.Layer layer = getLayer(tile, VectorTileEncoder.DEGRADATION_LAYER);
+        Assert.assertEquals(
+                String.join(",", encoder.getDegradations()), layer.getValues(0).getStringValue());
+    }
+
+    @Test
+    public void testWithinBudget() throws Exception {
+        VectorTileEncoder encoder = createEncoder();
+        encoder.setLayerBudget("roads", MVTBudget.of(null, 100, null));
+        addLines(encoder, "roads", true);
+
+        VectorTile.Tile tile = VectorTile.Tile.parseFrom(encoder.encode());
+        Assert.assertEquals(1, tile.getLayersCount());
+        Assert.assertEquals(100, tile.getLayers(0).getFeaturesCount());
+        Assert.assertTrue(encoder.getDegradations().isEmpty());
+    }
+
+    private VectorTileEncoder createEncoder() {
+        return new VectorTileEncoder(4096, new Envelope(0, 256, 0, 256), false, 0.1, 0.05);
+    }
+
+    private void addLines(VectorTileEncoder encoder, String layerName, boolean ranked)
+            throws Exception {
+        WKTReader reader = new WKTReader();
+        for (int i = 0; i < 100; i++) {
+            double y = 1 + i * 2.5;
+            encoder.addFeature(
+                    layerName,
+                    Collections.singletonMap("name", layerName + " " + i),
+                    layerName + "." + i,
+                    reader.read("LINESTRING (1 " + y + ", 128 " + (y + 1) + ", 255 " + y + ")"),
+                    ranked ? i : Double.NEGATIVE_INFINITY);
+        }
+    }
+
+    private VectorTile.Tile.Layer getLayer(VectorTile.Tile tile, String name) {
+        for (VectorTile.Tile.Layer layer : tile.getLayersList()) {
+            if (layer.getName().equals(name)) {
+                return layer;
+            }
+        }
+        return null;
+    }
+}
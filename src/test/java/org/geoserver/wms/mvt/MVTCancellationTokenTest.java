@@ -0,0 +1,63 @@
+package org.geoserver.wms.mvt;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import org.geoserver.platform.ClientStreamAbortedException;
+import org.junit.Assert;
+import org.junit.Test;
+import org.springframework.mock.web.MockAsyncContext;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpServletResponse;
+
+/** Test for cancelling tile requests of clients that are gone. */
+public class MVTCancellationTokenTest {
+
+    @Test
+    public void testRequestAttribute() {
+        MockHttpServletRequest request = new MockHttpServletRequest();
+        MVTCancellationToken token = MVTCancellationToken.of(request);
+        Assert.assertSame(token, MVTCancellationToken.of(request));
+        Assert.assertFalse(token.isCancelled());
+    }
+
+    @Test
+    public void testFailedWrite() throws Exception {
+        MVTCancellationToken token = new MVTCancellationToken();
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        token.watch(bytes).write(new byte[] {1, 2, 3});
+        Assert.assertEquals(3, bytes.size());
+        Assert.assertFalse(token.isCancelled());
+
+        OutputStream broken =
+                new OutputStream() {
+                    @Override
+                    public void write(int b) throws IOException {
+                        throw new IOException("broken pipe");
+                    }
+                };
+        try {
+            token.watch(broken).write(new byte[] {1, 2, 3});
+            Assert.fail("the write should fail");
+        } catch (IOException e) {
+            Assert.assertEquals("broken pipe", e.getMessage());
+        }
+        Assert.assertTrue(token.isCancelled());
+        try {
+            token.checkCancelled();
+            Assert.fail("the request should be cancelled");
+        } catch (ClientStreamAbortedException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void testAsyncComplete() throws Exception {
+        MockHttpServletRequest request = new MockHttpServletRequest();
+        MockAsyncContext context = new MockAsyncContext(request, new MockHttpServletResponse());
+        MVTCancellationToken token = MVTCancellationToken.of(request);
+        context.addListener(token);
+        context.complete();
+        Assert.assertTrue(token.isCancelled());
+    }
+}
@@ -0,0 +1,84 @@
+package org.geoserver.wms.mvt;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import org.geotools.api.feature.simple.SimpleFeature;
+import org.geotools.api.feature.simple.SimpleFeatureType;
+import org.geotools.data.DataUtilities;
+import org.geotools.feature.simple.SimpleFeatureBuilder;
+import org.junit.Assert;
+import org.junit.Test;
+
+/** Test for the thinning of dense point layers. */
+public class MVTDensityFilterTest {
+
+    @Test
+    public void testMaxFeaturesPerCell() throws Exception {
+        List<SimpleFeature> features = createFeatures(100, true);
+        MVTDensityFilter filter = new MVTDensityFilter(128, 3, "rank");
+        for (SimpleFeature feature : features) {
+            filter.offer(10, 10, feature, Collections.emptyList());
+        }
+        List<MVTDensityFilter.Candidate> kept = filter.drain();
+        Assert.assertEquals(3, kept.size());
+        // highest ranks first
+        Assert.assertEquals(99, kept.get(0).feature.getAttribute("rank"));
+        Assert.assertEquals(98, kept.get(1).feature.getAttribute("rank"));
+        Assert.assertEquals(97, kept.get(2).feature.getAttribute("rank"));
+        Assert.assertTrue(filter.drain().isEmpty());
+    }
+
+    @Test
+    public void testKeptFeaturesAreKeptAtHigherZoom() throws Exception {
+        for (boolean ranked : new boolean[] {true, false}) {
+            List<SimpleFeature> features = createFeatures(2000, ranked);
+            Random random = new Random(42);
+            double[][] positions = new double[features.size()][];
+            for (int i = 0; i < positions.length; i++) {
+                positions[i] = new double[] {random.nextDouble() * 256, random.nextDouble() * 256};
+            }
+            String rankAttribute = ranked ? "rank" : null;
+            MVTDensityFilter parent = new MVTDensityFilter(32, 2, rankAttribute);
+            for (int i = 0; i < positions.length; i++) {
+                parent.offer(positions[i][0], positions[i][1], features.get(i), null);
+            }
+            // the four child tiles at the next zoom level, coordinates are doubled
+            Set<String> keptByChildren = new HashSet<>();
+            for (int tileX = 0; tileX < 2; tileX++) {
+                for (int tileY = 0; tileY < 2; tileY++) {
+                    MVTDensityFilter child = new MVTDensityFilter(32, 2, rankAttribute);
+                    for (int i = 0; i < positions.length; i++) {
+                        double x = positions[i][0] * 2 - tileX * 256;
+                        double y = positions[i][1] * 2 - tileY * 256;
+                        if (x >= 0 && x < 256 && y >= 0 && y < 256) {
+                            child.offer(x, y, features.get(i), null);
+                        }
+                    }
+                    for (MVTDensityFilter.Candidate candidate : child.drain()) {
+                        keptByChildren.add(candidate.feature.getID());
+                    }
+                }
+            }
+            List<MVTDensityFilter.Candidate> keptByParent = parent.drain();
+            Assert.assertEquals(2 * 8 * 8, keptByParent.size());
+            for (MVTDensityFilter.Candidate candidate : keptByParent) {
+                Assert.assertTrue(keptByChildren.contains(candidate.feature.getID()));
+            }
+        }
+    }
+
+    private List<SimpleFeature> createFeatures(int count, boolean ranked) throws Exception {
+        SimpleFeatureType schema = DataUtilities.createType("poi", "rank:Integer");
+        List<SimpleFeature> features = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            features.add(
+                    SimpleFeatureBuilder.build(
+                            schema, new Object[] {ranked ? i : null}, "poi." + i));
+        }
+        return features;
+    }
+}
@@ -0,0 +1,67 @@
+package org.geoserver.wms.mvt;
+
+import org.geoserver.catalog.impl.CatalogImpl;
+import org.junit.Assert;
+import org.junit.Test;
+
+/** Test for the index of empty tiles. */
+public class MVTEmptyTileIndexTest {
+
+    @Test
+    public void testMarkEmpty() {
+        MVTEmptyTileIndex index = new MVTEmptyTileIndex(new CatalogImpl());
+        long generation = index.getGeneration("cite:lines");
+        index.markEmpty("cite:lines", "line", "", 12, 2196, 1427, generation);
+
+        Assert.assertTrue(index.isEmpty("cite:lines", "line", "", 12, 2196, 1427));
+        Assert.assertFalse(index.isEmpty("cite:lines", "line", "", 12, 2197, 1427));
+        // the same layer name in another workspace, other styles and users are not affected
+        Assert.assertFalse(index.isEmpty("topp:lines", "line", "", 12, 2196, 1427));
+        Assert.assertFalse(index.isEmpty("cite:lines", "polygon", "", 12, 2196, 1427));
+        Assert.assertFalse(index.isEmpty("cite:lines", "line", "admin", 12, 2196, 1427));
+
+        index.invalidate("cite:lines");
+        Assert.assertFalse(index.isEmpty("cite:lines", "line", "", 12, 2196, 1427));
+    }
+
+    @Test
+    public void testStaleMark() {
+        MVTEmptyTileIndex index = new MVTEmptyTileIndex(new CatalogImpl());
+        // the query started before the layer was changed
+        long generation = index.getGeneration("cite:lines");
+        index.invalidate("cite:lines");
+        index.markEmpty("cite:lines", "line", "", 12, 2196, 1427, generation);
+        Assert.assertFalse(index.isEmpty("cite:lines", "line", "", 12, 2196, 1427));
+
+        generation = index.getGeneration("cite:lines");
+        index.clear();
+        index.markEmpty("cite:lines", "line", "", 12, 2196, 1427, generation);
+        Assert.assertFalse(index.isEmpty("cite:lines", "line", "", 12, 2196, 1427));
+
+        // other layers keep their generation
+        generation = index.getGeneration("cite:points");
+        index.invalidate("cite:lines");
+        index.markEmpty("cite:points", "point", "", 12, 2196, 1427, generation);
+        Assert.assertTrue(index.isEmpty("cite:points", "point", "", 12, 2196, 1427));
+    }
+
+    @Test
+    public void testLeastRecentlyUsedEvicted() throws Exception {
+        MVTEmptyTileIndex index = new MVTEmptyTileIndex(new CatalogImpl());
+        index.setMaxEntries(2);
+        long generation = index.getGeneration("cite:lines");
+        index.markEmpty("cite:lines", "line", "", 12, 2196, 1427, generation);
+        Thread.sleep(10);
+        index.markEmpty("cite:lines", "line", "", 13, 4392, 2854, generation);
+        Thread.sleep(10);
+        // the first bitmap is used again, the second one is the least recently used
+        Assert.assertTrue(index.isEmpty("cite:lines", "line", "", 12, 2196, 1427));
+        Thread.sleep(10);
+        index.markEmpty("cite:lines", "line", "", 14, 8784, 5708, generation);
+
+        Assert.assertEquals(2, index.size());
+        Assert.assertTrue(index.isEmpty("cite:lines", "line", "", 12, 2196, 1427));
+        Assert.assertFalse(index.isEmpty("cite:lines", "line", "", 13, 4392, 2854));
+        Assert.assertTrue(index.isEmpty("cite:lines", "line", "", 14, 8784, 5708));
+    }
+}
@@ -0,0 +1,46 @@
+package org.geoserver.wms.mvt;
+
+import java.util.Collections;
+import org.geotools.api.feature.simple.SimpleFeatureType;
+import org.geotools.data.DataUtilities;
+import org.geotools.feature.simple.SimpleFeatureBuilder;
+import org.junit.Assert;
+import org.junit.Test;
+import org.locationtech.jts.geom.Envelope;
+import org.locationtech.jts.io.WKTReader;
+
+/** Test for the coalescing of lines and polygons sharing key attributes. */
+public class MVTFeatureCoalescerTest {
+
+    @Test
+    public void testCoalesceByKeyAttributes() throws Exception {
+        SimpleFeatureType schema = DataUtilities.createType("roads", "frc:Integer,name:String");
+        WKTReader reader = new WKTReader();
+        MVTFeatureCoalescer coalescer = new MVTFeatureCoalescer(Collections.singletonList("frc"));
+        String[] geometries = {
+            "LINESTRING (10 10, 50 10)",
+            "LINESTRING (50 10, 90 50)",
+            "LINESTRING (90 50, 120 50)",
+            "POLYGON ((10 100, 50 100, 50 140, 10 140, 10 100))",
+            "POLYGON ((50 100, 90 100, 90 140, 50 140, 50 100))"
+        };
+        for (int i = 0; i < geometries.length; i++) {
+            coalescer.add(
+                    SimpleFeatureBuilder.build(
+                            schema, new Object[] {i < 3 ? 1 : 2, "road " + i}, "roads." + i),
+                    Collections.singletonList(reader.read(geometries[i])));
+        }
+        VectorTileEncoder encoder = new VectorTileEncoder(new Envelope(0, 256, 0, 256));
+        Assert.assertTrue(coalescer.writeTo(encoder, "roads"));
+
+        VectorTile.Tile tile = VectorTile.Tile.parseFrom(encoder.encode());
+        Assert.assertEquals(1, tile.getLayersCount());
+        VectorTile.Tile.Layer layer = tile.getLayers(0);
+        // one merged line and one unioned polygon, carrying the key attribute only
+        Assert.assertEquals(2, layer.getFeaturesCount());
+        Assert.assertEquals(Collections.singletonList("frc"), layer.getKeysList());
+        Assert.assertEquals(VectorTile.Tile.GeomType.LINESTRING, layer.getFeatures(0).getType());
+        Assert.assertEquals(VectorTile.Tile.GeomType.POLYGON, layer.getFeatures(1).getType());
+        Assert.assertFalse(coalescer.writeTo(encoder, "roads"));
+    }
+}
@@ -0,0 +1,101 @@
+package org.geoserver.wms.mvt;
+
+import java.util.ArrayList;
+import java.util.List;
+import org.geotools.api.feature.simple.SimpleFeature;
+import org.geotools.api.feature.simple.SimpleFeatureType;
+import org.geotools.api.filter.Filter;
+import org.geotools.data.DataUtilities;
+import org.geotools.feature.simple.SimpleFeatureBuilder;
+import org.geotools.filter.text.ecql.ECQL;
+import org.junit.Assert;
+import org.junit.Test;
+
+/** Test comparing compiled filters with the generic filter evaluation. */
+public class MVTFilterCompilerTest {
+
+    private static final String[] FILTERS = {
+        "frc = 2",
+        "frc = '2'",
+        "2 < frc",
+        "frc >= 3",
+        "frc <> 1",
+        "frc BETWEEN 1 AND 3",
+        "frc IN (0, 2, 4)",
+        "in(frc, 1, 3) = true",
+        "name LIKE 'Main%'",
+        "name = 'main street'",
+        "name IS NULL",
+        "frc > 1 AND NOT (name LIKE 'Side%')",
+        "frc = 0 OR name = 'Side road'",
+        "length > 10.5",
+        "length > 10",
+        "frc = 1.5",
+        "frc < 2.5",
+        "strToLowerCase(name) = 'main street'"
+    };
+
+    @Test
+    public void testCompiledFiltersMatchGenericEvaluation() throws Exception {
+        SimpleFeatureType schema =
+                DataUtilities.createType(
+                        "roads", "frc:Integer,name:String,length:Double,geom:LineString:srid=3857");
+        List<SimpleFeature> features = new ArrayList<>();
+        Object[][] values = {
+            {0, "Main street", 5.0},
+            {1, "Side road", 10.5},
+            {2, "Main avenue", 11.0},
+            {3, null, 100.0},
+            {4, "Side street", null},
+            {null, "Main square", 0.0}
+        };
+        for (int i = 0; i < values.length; i++) {
+            features.add(SimpleFeatureBuilder.build(schema, values[i], "roads." + i));
+        }
+        for (String cql : FILTERS) {
+            Filter filter = ECQL.toFilter(cql);
+            for (SimpleFeature feature : features) {
+                Assert.assertEquals(
+                        cql + " on " + feature.getID(),
+                        filter.evaluate(feature),
+                        MVTFilterCompiler.compile(filter, schema).test(feature));
+            }
+        }
+    }
+
+    @Test
+    public void testLongBeyondDoublePrecision() throws Exception {
+        SimpleFeatureType schema = DataUtilities.createType("ids", "id:Long");
+        SimpleFeature lower =
+                SimpleFeatureBuilder.build(schema, new Object[] {9007199254740992L}, "ids.0");
+        SimpleFeature upper =
+                SimpleFeatureBuilder.build(schema, new Object[] {9007199254740993L}, "ids.1");
+
+        Filter equals = ECQL.toFilter("id = 9007199254740993");
+        Assert.assertFalse(MVTFilterCompiler.compile(equals, schema).test(lower));
+        Assert.assertTrue(MVTFilterCompiler.compile(equals, schema).test(upper));
+        Filter greater = ECQL.toFilter("id > 9007199254740992");
+        Assert.assertFalse(MVTFilterCompiler.compile(greater, schema).test(lower));
+        Assert.assertTrue(MVTFilterCompiler.compile(greater, schema).test(upper));
+        Filter in = ECQL.toFilter("id IN (9007199254740993, 1)");
+        Assert.assertFalse(MVTFilterCompiler.compile(in, schema).test(lower));
+        Assert.assertTrue(MVTFilterCompiler.compile(in, schema).test(upper));
+    }
+
+    @Test
+    public void testFloatComparedAsFloat() throws Exception {
+        SimpleFeatureType schema = DataUtilities.createType("ratios", "ratio:Float");
+        SimpleFeature tenth = SimpleFeatureBuilder.build(schema, new Object[] {0.1f}, "ratios.0");
+        SimpleFeature fifth = SimpleFeatureBuilder.build(schema, new Object[] {0.2f}, "ratios.1");
+
+        Filter equals = ECQL.toFilter("ratio = 0.1");
+        Assert.assertTrue(MVTFilterCompiler.compile(equals, schema).test(tenth));
+        Assert.assertFalse(MVTFilterCompiler.compile(equals, schema).test(fifth));
+        Filter greater = ECQL.toFilter("ratio > 0.1");
+        Assert.assertFalse(MVTFilterCompiler.compile(greater, schema).test(tenth));
+        Assert.assertTrue(MVTFilterCompiler.compile(greater, schema).test(fifth));
+        Filter in = ECQL.toFilter("ratio IN (0.1, 0.3)");
+        Assert.assertTrue(MVTFilterCompiler.compile(in, schema).test(tenth));
+        Assert.assertFalse(MVTFilterCompiler.compile(in, schema).test(fifth));
+    }
+}
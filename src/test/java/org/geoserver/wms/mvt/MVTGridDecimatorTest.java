@@ -0,0 +1,85 @@
+package org.geoserver.wms.mvt;
+
+import java.util.Collections;
+import org.junit.Assert;
+import org.junit.Test;
+import org.locationtech.jts.geom.Coordinate;
+import org.locationtech.jts.geom.Envelope;
+import org.locationtech.jts.geom.Geometry;
+import org.locationtech.jts.geom.GeometryFactory;
+import org.locationtech.jts.geom.Polygon;
+
+/** Test for the vertex limit of single features. */
+public class MVTGridDecimatorTest {
+
+    private static final GeometryFactory GF = new GeometryFactory();
+
+    @Test
+    public void testDecimate() {
+        Polygon circle = createCircle(100000);
+        Geometry decimated = MVTGridDecimator.decimate(circle, 1.0 / 16);
+        Assert.assertTrue(decimated instanceof Polygon);
+        Assert.assertTrue(decimated.isValid());
+        // at most one vertex per pixel of the circumference
+        Assert.assertTrue(decimated.getNumPoints() < 2 * Math.PI * 100 * 16 * 2);
+        Assert.assertEquals(circle.getArea(), decimated.getArea(), circle.getArea() * 0.001);
+    }
+
+    @Test
+    public void testCollapsedPolygon() {
+        Polygon tiny =
+                GF.createPolygon(
+                        new Coordinate[] {
+                            new Coordinate(10, 10),
+                            new Coordinate(10.01, 10),
+                            new Coordinate(10.01, 10.01),
+                            new Coordinate(10, 10)
+                        });
+        Assert.assertNull(MVTGridDecimator.decimate(tiny, 1.0 / 16));
+    }
+
+    @Test
+    public void testFeatureVertexLimit() throws Exception {
+        VectorTileEncoder encoder =
+                new VectorTileEncoder(4096, new Envelope(0, 256, 0, 256), false, 0.1, 0.05);
+        encoder.setFeatureVertexLimit("coast", 200, null);
+        encoder.addFeature("coast", Collections.emptyMap(), "coast.1", createCircle(100000));
+
+        VectorTile.Tile tile = VectorTile.Tile.parseFrom(encoder.encode());
+        VectorTile.Tile.Feature feature = tile.getLayers(0).getFeatures(0);
+        // MoveTo, LineTo and ClosePath commands plus two parameters per vertex
+        Assert.assertTrue((feature.getGeometryCount() - 3) / 2 <= 200);
+    }
+
+    @Test
+    public void testFeatureVertexLimitReached() throws Exception {
+        // a zigzag line is not simplified by raising the tolerance a few times
+        Coordinate[] coordinates = new Coordinate[1000];
+        for (int i = 0; i < coordinates.length; i++) {
+            coordinates[i] = new Coordinate(i * 0.25, i % 2 == 0 ? 50 : 150);
+        }
+        VectorTileEncoder encoder =
+                new VectorTileEncoder(4096, new Envelope(0, 256, 0, 256), false, 0.1, 0.05);
+        encoder.setFeatureVertexLimit("border", 10, null);
+        encoder.addFeature(
+                "border", Collections.emptyMap(), "border.1", GF.createLineString(coordinates));
+
+        VectorTile.Tile tile = VectorTile.Tile.parseFrom(encoder.encode());
+        VectorTile.Tile.Feature feature = tile.getLayers(0).getFeatures(0);
+        // MoveTo and LineTo commands plus two parameters per vertex
+        Assert.assertTrue((feature.getGeometryCount() - 2) / 2 <= 10);
+        Assert.assertTrue(
+                encoder.getDegradations().contains(VectorTileEncoder.DEGRADATION_VERTEX_LIMIT));
+    }
+
+    private Polygon createCircle(int vertices) {
+        Coordinate[] coordinates = new Coordinate[vertices + 1];
+        for (int i = 0; i < vertices; i++) {
+            double angle = 2 * Math.PI * i / vertices;
+            coordinates[i] =
+                    new Coordinate(128 + 100 * Math.cos(angle), 128 + 100 * Math.sin(angle));
+        }
+        coordinates[vertices] = coordinates[0];
+        return GF.createPolygon(coordinates);
+    }
+}
@@ -0,0 +1,80 @@
+package org.geoserver.wms.mvt;
+
+import java.util.Collections;
+import org.junit.Assert;
+import org.junit.Test;
+import org.locationtech.jts.geom.Envelope;
+import org.locationtech.jts.geom.LineString;
+import org.locationtech.jts.geom.Point;
+import org.locationtech.jts.geom.Polygon;
+import org.locationtech.jts.io.WKTReader;
+
+/** Test for the buffers configured per layer and geometry type. */
+public class MVTLayerBufferTest {
+
+    private static final Envelope TILE = new Envelope(0, 256, 0, 256);
+
+    @Test
+    public void testBufferPerGeometryType() {
+        MVTLayerConfiguration configuration = new MVTLayerConfiguration();
+        Assert.assertNull(MVTLayerBuffer.of(configuration, 10, TILE));
+
+        configuration.setBuffer(2);
+        configuration.setPointBuffer(64);
+        MVTLayerBuffer layerBuffer = MVTLayerBuffer.of(configuration, 10, TILE);
+        Assert.assertEquals(new Envelope(-64, 320, -64, 320), layerBuffer.getPointEnvelope());
+        Assert.assertEquals(2, layerBuffer.getQueryBuffer(Polygon.class));
+        Assert.assertEquals(2, layerBuffer.getQueryBuffer(LineString.class));
+        Assert.assertEquals(64, layerBuffer.getQueryBuffer(Point.class));
+        // mixed geometry types are queried with the largest buffer
+        Assert.assertEquals(64, layerBuffer.getQueryBuffer(Object.class));
+    }
+
+    @Test
+    public void testZoomBuffers() {
+        MVTLayerConfiguration configuration = new MVTLayerConfiguration();
+        configuration.setZoomBuffers(Collections.singletonMap(12, 32));
+        MVTLayerConfiguration low = new MVTLayerConfiguration(configuration);
+        low.applyZoomLevel(11);
+        Assert.assertNull(MVTLayerBuffer.of(low, 10, TILE));
+        MVTLayerConfiguration high = new MVTLayerConfiguration(configuration);
+        high.applyZoomLevel(14);
+        Assert.assertEquals(32, MVTLayerBuffer.of(high, 10, TILE).getQueryBuffer(Polygon.class));
+    }
+
+    @Test
+    public void testClipEnvelope() throws Exception {
+        VectorTileEncoder encoder =
+                new VectorTileEncoder(4096, new Envelope(-10, 266, -10, 266), false, 0.1, 0.05);
+        MVTLayerConfiguration configuration = new MVTLayerConfiguration();
+        configuration.setPolygonBuffer(0);
+        configuration.setPointBuffer(64);
+        encoder.setLayerBuffer("places", MVTLayerBuffer.of(configuration, 10, TILE));
+        WKTReader reader = new WKTReader();
+        encoder.addFeature(
+                "places", Collections.emptyMap(), "places.1", reader.read("POINT (-30 128)"));
+        encoder.addFeature(
+                "places",
+                Collections.emptyMap(),
+                "places.2",
+                reader.read("POLYGON ((-20 100, 100 100, 100 200, -20 200, -20 100))"));
+
+        VectorTile.Tile tile = VectorTile.Tile.parseFrom(encoder.encode());
+        VectorTile.Tile.Layer layer = tile.getLayers(0);
+        // the point within the point buffer is kept, the polygon is clipped at the tile border
+        Assert.assertEquals(2, layer.getFeaturesCount());
+        VectorTile.Tile.Feature polygon = layer.getFeatures(1);
+        Assert.assertEquals(VectorTile.Tile.GeomType.POLYGON, polygon.getType());
+        // MoveTo, x, y, LineTo, then x and y deltas until the ClosePath
+        int x = decode(polygon.getGeometry(1));
+        Assert.assertTrue(x >= 0);
+        for (int i = 4; i < polygon.getGeometryCount() - 1; i += 2) {
+            x += decode(polygon.getGeometry(i));
+            Assert.assertTrue(x >= 0);
+        }
+    }
+
+    private static int decode(int zigZag) {
+        return (zigZag >>> 1) ^ -(zigZag & 1);
+    }
+}
@@ -0,0 +1,125 @@
+package org.geoserver.wms.mvt;
+
+import static org.geoserver.wms.mvt.MVTStreamingMapResponse.PARAM_SMALL_GEOM_THRESHOLD;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import javax.xml.namespace.QName;
+import org.geoserver.AbstractMVTTest;
+import org.geoserver.data.test.MockData;
+import org.geoserver.data.test.SystemTestData;
+import org.geoserver.platform.GeoServerExtensions;
+import org.junit.Assert;
+import org.junit.Test;
+import org.springframework.mock.web.MockHttpServletResponse;
+
+/** Test for the resolution of the zoom dependent layer configuration. */
+public class MVTLayerConfigurationTest extends AbstractMVTTest {
+
+    /** the lines of {@link #TEST_LINES} in EPSG:4326, in the same store */
+    public static QName TEST_LINES_4326 =
+            new QName(MockData.CITE_URI, "test_lines_4326", MockData.CITE_PREFIX);
+
+    @Override
+    protected void onSetUp(SystemTestData testData) throws Exception {
+        super.onSetUp(testData);
+        testData.addVectorLayer(
+                TEST_LINES_4326,
+                Collections.singletonMap(SystemTestData.LayerProperty.SRS, 4326),
+                "test_lines_4326.properties",
+                MVTLayerConfigurationTest.class,
+                getCatalog());
+    }
+
+    @Test
+    public void testZoomRouting() {
+        Map<Integer, String> sourceTypeNames = new HashMap<>();
+        sourceTypeNames.put(0, "roads_gen");
+        sourceTypeNames.put(9, "roads");
+        Map<Integer, String> geometryAttributes = new HashMap<>();
+        geometryAttributes.put(0, "the_geom_simplified");
+        MVTLayerConfiguration configured = new MVTLayerConfiguration();
+        configured.setZoomSourceTypeNames(sourceTypeNames);
+        configured.setZoomGeometryAttributes(geometryAttributes);
+        configured.setGeometryAttribute("the_geom");
+
+        MVTLayerConfiguration low = new MVTLayerConfiguration(configured);
+        low.applyZoomLevel(4);
+        Assert.assertEquals("roads_gen", low.getSourceTypeName());
+        Assert.assertEquals("the_geom_simplified", low.getGeometryAttribute());
+
+        MVTLayerConfiguration high = new MVTLayerConfiguration(configured);
+        high.applyZoomLevel(12);
+        Assert.assertEquals("roads", high.getSourceTypeName());
+        Assert.assertEquals("the_geom_simplified", high.getGeometryAttribute());
+
+        // the configured instance is not changed
+        Assert.assertNull(configured.getSourceTypeName());
+        Assert.assertEquals("the_geom", configured.getGeometryAttribute());
+    }
+
+    @Test
+    public void testZoomRoutingBelowLowestKey() {
+        MVTLayerConfiguration configured = new MVTLayerConfiguration();
+        configured.setSourceTypeName("roads_z0");
+        configured.setZoomSourceTypeNames(Collections.singletonMap(5, "roads_gen"));
+
+        MVTLayerConfiguration low = new MVTLayerConfiguration(configured);
+        low.applyZoomLevel(2);
+        Assert.assertEquals("roads_z0", low.getSourceTypeName());
+        MVTLayerConfiguration high = new MVTLayerConfiguration(configured);
+        high.applyZoomLevel(5);
+        Assert.assertEquals("roads_gen", high.getSourceTypeName());
+    }
+
+    @Test
+    public void testRoutedSourceInNativeCRS() throws Exception {
+        String request =
+                "wms?request=getmap&service=wms&version=1.1.1"
+                        + "&format="
+                        + MVT.MIME_TYPE
+                        + "&layers="
+                        + TEST_LINES.getPrefix()
+                        + ":"
+                        + TEST_LINES.getLocalPart()
+                        + "&styles="
+                        + STYLE_NAME
+                        + "&height=256&width=256"
+                        + "&bbox=1448023.063834379,6066042.5647115875,1457807.0034548815,6075826.50433209"
+                        + "&srs=EPSG:3857&buffer=10&env="
+                        + PARAM_SMALL_GEOM_THRESHOLD
+                        + ":-1";
+        VectorTile.Tile tile =
+                VectorTile.Tile.parseFrom(getAsServletResponse(request).getContentAsByteArray());
+        Assert.assertEquals(1, tile.getLayersCount());
+        Assert.assertTrue(tile.getLayers(0).getFeaturesCount() > 0);
+
+        MVTStreamingMapResponse response = GeoServerExtensions.bean(MVTStreamingMapResponse.class);
+        Map<String, MVTLayerConfiguration> configured = response.getLayerConfigurations();
+        MVTLayerConfiguration routed = new MVTLayerConfiguration();
+        routed.setSourceTypeName(TEST_LINES_4326.getLocalPart());
+        response.setLayerConfigurations(
+                Collections.singletonMap(
+                        TEST_LINES.getPrefix() + ":" + TEST_LINES.getLocalPart(), routed));
+        try {
+            // the tile is reprojected to the native CRS of the routed feature type
+            VectorTile.Tile routedTile =
+                    VectorTile.Tile.parseFrom(
+                            getAsServletResponse(request).getContentAsByteArray());
+            Assert.assertEquals(1, routedTile.getLayersCount());
+            Assert.assertEquals(TEST_LINES.getLocalPart(), routedTile.getLayers(0).getName());
+            Assert.assertEquals(
+                    tile.getLayers(0).getFeaturesCount(),
+                    routedTile.getLayers(0).getFeaturesCount());
+
+            // a missing routed feature type fails the request instead of reading the layer
+            routed.setSourceTypeName("missing");
+            MockHttpServletResponse missing = getAsServletResponse(request);
+            Assert.assertNotEquals(MVT.MIME_TYPE, missing.getContentType());
+            Assert.assertTrue(missing.getContentAsString().contains("missing"));
+        } finally {
+            response.setLayerConfigurations(configured);
+        }
+    }
+}
@@ -0,0 +1,61 @@
+package org.geoserver.wms.mvt;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import org.junit.Assert;
+import org.junit.Test;
+import org.locationtech.jts.geom.Envelope;
+import org.locationtech.jts.io.WKTReader;
+
+/** Test for the extent configured per layer and zoom range. */
+public class MVTLayerExtentTest {
+
+    @Test
+    public void testLayerExtent() throws Exception {
+        VectorTileEncoder encoder =
+                new VectorTileEncoder(4096, new Envelope(0, 256, 0, 256), false, 0.1, 0.05);
+        encoder.setLayerExtent("coarse", 512);
+        WKTReader reader = new WKTReader();
+        encoder.addFeature(
+                "coarse", Collections.emptyMap(), "coarse.1", reader.read("POINT (128 64)"));
+        encoder.addFeature(
+                "fine", Collections.emptyMap(), "fine.1", reader.read("POINT (128 64)"));
+
+        VectorTile.Tile tile = VectorTile.Tile.parseFrom(encoder.encode());
+        VectorTile.Tile.Layer coarse = tile.getLayers(0);
+        Assert.assertEquals(512, coarse.getExtent());
+        // MoveTo followed by the zigzag encoded coordinates
+        VectorTile.Tile.Feature point = coarse.getFeatures(0);
+        Assert.assertEquals(VectorTileEncoder.zigZagEncode(256), point.getGeometry(1));
+        Assert.assertEquals(VectorTileEncoder.zigZagEncode(128), point.getGeometry(2));
+        VectorTile.Tile.Layer fine = tile.getLayers(1);
+        Assert.assertEquals(4096, fine.getExtent());
+        Assert.assertEquals(
+                VectorTileEncoder.zigZagEncode(2048), fine.getFeatures(0).getGeometry(1));
+    }
+
+    @Test
+    public void testZoomExtents() {
+        Map<Integer, Integer> zoomExtents = new HashMap<>();
+        zoomExtents.put(0, 512);
+        zoomExtents.put(9, 4096);
+        MVTLayerConfiguration configured = new MVTLayerConfiguration();
+        configured.setZoomExtents(zoomExtents);
+
+        MVTLayerConfiguration low = new MVTLayerConfiguration(configured);
+        low.applyZoomLevel(8);
+        Assert.assertEquals(Integer.valueOf(512), low.getExtent());
+        MVTLayerConfiguration high = new MVTLayerConfiguration(configured);
+        high.applyZoomLevel(9);
+        Assert.assertEquals(Integer.valueOf(4096), high.getExtent());
+
+        // a requested extent applies to all zoom levels
+        MVTLayerConfiguration request = new MVTLayerConfiguration();
+        request.setExtent(1024);
+        MVTLayerConfiguration requested = new MVTLayerConfiguration(configured);
+        requested.override(request);
+        requested.applyZoomLevel(3);
+        Assert.assertEquals(Integer.valueOf(1024), requested.getExtent());
+    }
+}
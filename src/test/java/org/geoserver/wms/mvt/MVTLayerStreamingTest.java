@@ -0,0 +1,110 @@
+package org.geoserver.wms.mvt;
+
+import java.io.ByteArrayOutputStream;
+import java.util.Collections;
+import org.geotools.api.feature.simple.SimpleFeatureType;
+import org.geotools.api.style.Style;
+import org.geotools.data.DataUtilities;
+import org.geotools.data.collection.ListFeatureCollection;
+import org.geotools.feature.FeatureCollection;
+import org.geotools.feature.simple.SimpleFeatureBuilder;
+import org.geotools.styling.StyleBuilder;
+import org.junit.Assert;
+import org.junit.Test;
+import org.locationtech.jts.geom.Envelope;
+import org.locationtech.jts.io.WKTReader;
+
+/** Test for the encoding of tile layers as soon as their features are read. */
+public class MVTLayerStreamingTest {
+
+    @Test
+    public void testWriteLayers() throws Exception {
+        VectorTileEncoder encoder = createEncoder();
+        encoder.setLayerBudget("roads", MVTBudget.of(null, 10, null));
+        Assert.assertTrue(encoder.isLayerStreamable());
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        addLines(encoder, "roads", true);
+        encoder.writeLayer("roads", output);
+        // the written layer is released
+        Assert.assertEquals(0, encoder.getFeatureCount("roads"));
+        Assert.assertTrue(encoder.isLayerWritten("roads"));
+        addLines(encoder, "rivers", false);
+        encoder.encode(output);
+
+        // the same tile as encoded at once
+        VectorTileEncoder reference = createEncoder();
+        reference.setLayerBudget("roads", MVTBudget.of(null, 10, null));
+        addLines(reference, "roads", true);
+        addLines(reference, "rivers", false);
+        Assert.assertArrayEquals(reference.encode(), output.toByteArray());
+
+        VectorTile.Tile tile = VectorTile.Tile.parseFrom(output.toByteArray());
+        Assert.assertEquals(3, tile.getLayersCount());
+        Assert.assertEquals(10, getLayer(tile, "roads").getFeaturesCount());
+        Assert.assertEquals(100, getLayer(tile, "rivers").getFeaturesCount());
+        Assert.assertEquals(VectorTileEncoder.DEGRADATION_LAYER, tile.getLayers(2).getName());
+
+        // a tile budget is shared by all layers, they are written at once
+        encoder = createEncoder();
+        encoder.setTileBudget(MVTBudget.of(2000, null, null));
+        Assert.assertFalse(encoder.isLayerStreamable());
+    }
+
+    @Test
+    public void testWriteLayersBuffered() throws Exception {
+        SimpleFeatureType type =
+                DataUtilities.createType("roads", "geom:LineString:srid=3857,name:String");
+        ListFeatureCollection roads = new ListFeatureCollection(type);
+        WKTReader reader = new WKTReader();
+        for (int i = 0; i < 100; i++) {
+            double y = 1 + i * 2.5;
+            roads.add(
+                    SimpleFeatureBuilder.build(
+                            type,
+                            new Object[] {
+                                reader.read("LINESTRING (1 " + y + ", 255 " + y + ")"), "road " + i
+                            },
+                            "roads." + i));
+        }
+        StyleBuilder styleBuilder = new StyleBuilder();
+        Style style = styleBuilder.createStyle(styleBuilder.createLineSymbolizer());
+        MVTWriter writer =
+                MVTWriter.getInstance(
+                        new Envelope(0, 256, 0, 256), MVTWriter.TARGET_CRS, 256, 256, 0);
+
+        // without streaming the tile is written at once, but the layers are still released
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        writer.writeFeatures(
+                Collections.<FeatureCollection, Style>singletonMap(roads, style), 1000, output);
+        Assert.assertEquals(0, writer.getFeatureCount("roads"));
+        VectorTile.Tile tile = VectorTile.Tile.parseFrom(output.toByteArray());
+        Assert.assertEquals(100, getLayer(tile, "roads").getFeaturesCount());
+    }
+
+    private VectorTileEncoder createEncoder() {
+        return new VectorTileEncoder(4096, new Envelope(0, 256, 0, 256), false, 0.1, 0.05);
+    }
+
+    private void addLines(VectorTileEncoder encoder, String layerName, boolean ranked)
+            throws Exception {
+        WKTReader reader = new WKTReader();
+        for (int i = 0; i < 100; i++) {
+            double y = 1 + i * 2.5;
+            encoder.addFeature(
+                    layerName,
+                    Collections.singletonMap("name", layerName + " " + i),
+                    layerName + "." + i,
+                    reader.read("LINESTRING (1 " + y + ", 128 " + (y + 1) + ", 255 " + y + ")"),
+                    ranked ? i : Double.NEGATIVE_INFINITY);
+        }
+    }
+
+    private VectorTile.Tile.Layer getLayer(VectorTile.Tile tile, String name) {
+        for (VectorTile.Tile.Layer layer : tile.getLayersList()) {
+            if (layer.getName().equals(name)) {
+                return layer;
+            }
+        }
+        return null;
+    }
+}
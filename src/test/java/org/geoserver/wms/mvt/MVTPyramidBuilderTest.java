@@ -0,0 +1,92 @@
+package org.geoserver.wms.mvt;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import org.junit.Assert;
+import org.junit.Test;
+import org.locationtech.jts.geom.Coordinate;
+import org.locationtech.jts.geom.Envelope;
+import org.locationtech.jts.geom.Geometry;
+import org.locationtech.jts.geom.Polygon;
+import org.locationtech.jts.io.WKTReader;
+
+/** Test for deriving parent tiles from their children. */
+public class MVTPyramidBuilderTest {
+
+    private static final Map<Integer, Double> NO_GENERALISATION = Collections.singletonMap(0, 0d);
+
+    @Test
+    public void testStitchFragments() throws Exception {
+        // a parcel covering all four children
+        String parcel = "POLYGON ((-10 -10, 266 -10, 266 266, -10 266, -10 -10))";
+        byte[][] children = new byte[4][];
+        for (int i = 0; i < 4; i++) {
+            children[i] = encode("parcels", "parcels.1", parcel);
+        }
+        MVTPyramidBuilder builder = new MVTPyramidBuilder(NO_GENERALISATION, 0);
+        builder.setBuffer(4);
+
+        VectorTile.Tile tile = VectorTile.Tile.parseFrom(builder.merge(0, children));
+        Assert.assertEquals(1, tile.getLayersCount());
+        VectorTile.Tile.Layer layer = tile.getLayers(0);
+        Assert.assertEquals(1, layer.getFeaturesCount());
+        Assert.assertEquals(1, layer.getFeatures(0).getId());
+        List<MVTTileDecoder.Feature> features = MVTTileDecoder.decode(layer);
+        Geometry geometry = features.get(0).geometry;
+        Assert.assertTrue(geometry instanceof Polygon);
+        // clipped to the buffer of the parent
+        Assert.assertEquals(4224d * 4224d, geometry.getArea(), 0);
+    }
+
+    @Test
+    public void testPointsOnQuadrantBorders() throws Exception {
+        byte[][] children = new byte[4][];
+        // the same point within the buffers of the top children
+        children[0] = encode("places", "places.1", "POINT (256 100)");
+        children[1] = encode("places", "places.1", "POINT (0 100)");
+        children[3] = encode("places", "places.2", "POINT (10 10)");
+        MVTPyramidBuilder builder = new MVTPyramidBuilder(NO_GENERALISATION, 0);
+
+        VectorTile.Tile tile = VectorTile.Tile.parseFrom(builder.merge(0, children));
+        List<MVTTileDecoder.Feature> features = MVTTileDecoder.decode(tile.getLayers(0));
+        Assert.assertEquals(2, features.size());
+        Assert.assertEquals(new Coordinate(2048, 800), features.get(0).geometry.getCoordinate());
+        Assert.assertEquals(new Coordinate(2128, 2128), features.get(1).geometry.getCoordinate());
+    }
+
+    @Test
+    public void testBuild() throws Exception {
+        List<String> written = new ArrayList<>();
+        MVTPyramidBuilder builder = new MVTPyramidBuilder(NO_GENERALISATION, 0);
+        byte[] tile =
+                builder.build(
+                        0,
+                        0,
+                        0,
+                        2,
+                        (z, x, y) ->
+                                x == 3 && y == 3
+                                        ? encode("places", "places.1", "POINT (128 128)")
+                                        : null,
+                        (z, x, y, bytes) -> written.add(z + "/" + x + "/" + y));
+
+        Assert.assertEquals(16 + 4 + 1, written.size());
+        Assert.assertEquals("0/0/0", written.get(written.size() - 1));
+        List<MVTTileDecoder.Feature> features =
+                MVTTileDecoder.decode(VectorTile.Tile.parseFrom(tile).getLayers(0));
+        Assert.assertEquals(new Coordinate(3584, 3584), features.get(0).geometry.getCoordinate());
+    }
+
+    private static byte[] encode(String layerName, String id, String wkt) {
+        VectorTileEncoder encoder =
+                new VectorTileEncoder(4096, new Envelope(-10, 266, -10, 266), false, 0, 0);
+        try {
+            encoder.addFeature(layerName, Collections.emptyMap(), id, new WKTReader().read(wkt));
+        } catch (Exception e) {
+            throw new IllegalArgumentException(e);
+        }
+        return encoder.encode();
+    }
+}
@@ -0,0 +1,72 @@
+package org.geoserver.wms.mvt;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import org.geotools.api.feature.simple.SimpleFeature;
+import org.geotools.api.feature.simple.SimpleFeatureType;
+import org.geotools.api.filter.And;
+import org.geotools.api.filter.Filter;
+import org.geotools.api.filter.Or;
+import org.geotools.data.DataUtilities;
+import org.geotools.feature.simple.SimpleFeatureBuilder;
+import org.geotools.filter.text.ecql.ECQL;
+import org.junit.Assert;
+import org.junit.Test;
+
+/** Test for the query filter built from the style rules. */
+public class MVTQueryPlannerTest {
+
+    @Test
+    public void testNoRulesExcludes() {
+        Assert.assertEquals(
+                Filter.EXCLUDE, MVTQueryPlanner.buildQueryFilter(new ArrayList<Filter>()));
+    }
+
+    @Test
+    public void testMergeInLists() throws Exception {
+        Filter filter =
+                MVTQueryPlanner.buildQueryFilter(
+                        Arrays.asList(ECQL.toFilter("frc IN (1, 2)"), ECQL.toFilter("frc = 2")));
+        Assert.assertTrue(filter instanceof Or);
+        Assert.assertEquals(2, ((Or) filter).getChildren().size());
+        assertMatches(filter, new boolean[] {false, true, true, false});
+    }
+
+    @Test
+    public void testFactorOutSharedTerms() throws Exception {
+        Filter filter =
+                MVTQueryPlanner.buildQueryFilter(
+                        Arrays.asList(
+                                ECQL.toFilter("name = 'a' AND frc = 1"),
+                                ECQL.toFilter("name = 'a' AND frc = 3")));
+        Assert.assertTrue(filter instanceof And);
+        assertMatches(filter, new boolean[] {false, true, false, true});
+    }
+
+    @Test
+    public void testFunctionsAreRelaxed() throws Exception {
+        Filter filter =
+                MVTQueryPlanner.buildQueryFilter(
+                        Arrays.asList(
+                                ECQL.toFilter("frc = 1 AND strToLowerCase(name) = 'a'"),
+                                ECQL.toFilter("frc = 3")));
+        // the function is evaluated by the style plan only
+        assertMatches(filter, new boolean[] {false, true, false, true});
+        Assert.assertEquals(
+                Filter.INCLUDE,
+                MVTQueryPlanner.buildQueryFilter(
+                        Arrays.asList(ECQL.toFilter("strToLowerCase(name) = 'a'"))));
+    }
+
+    private void assertMatches(Filter filter, boolean[] expected) throws Exception {
+        SimpleFeatureType schema = DataUtilities.createType("roads", "frc:Integer,name:String");
+        List<SimpleFeature> features = new ArrayList<>();
+        for (int i = 0; i < expected.length; i++) {
+            features.add(SimpleFeatureBuilder.build(schema, new Object[] {i, "a"}, "roads." + i));
+        }
+        for (int i = 0; i < expected.length; i++) {
+            Assert.assertEquals(filter.toString(), expected[i], filter.evaluate(features.get(i)));
+        }
+    }
+}
@@ -0,0 +1,60 @@
+package org.geoserver.wms.mvt;
+
+import java.util.Collections;
+import org.junit.Assert;
+import org.junit.Test;
+import org.locationtech.jts.geom.Envelope;
+import org.locationtech.jts.io.WKTReader;
+
+/** Test for partial tiles written once the render deadline passed. */
+public class MVTRenderDeadlineTest {
+
+    @Test
+    public void testRenderDeadline() throws Exception {
+        VectorTileEncoder encoder = createEncoder();
+        encoder.setTileBudget(MVTBudget.of(2000, null, null));
+        addLines(encoder, "roads", false);
+        Assert.assertFalse(encoder.isPartial());
+        encoder.setRenderDeadline(System.nanoTime() - 1);
+
+        VectorTile.Tile tile = VectorTile.Tile.parseFrom(encoder.encode());
+        Assert.assertTrue(encoder.isPartial());
+        // the expensive degradation steps are skipped once the deadline passed
+        Assert.assertFalse(
+                encoder.getDegradations().contains(VectorTileEncoder.DEGRADATION_GEN_FACTOR));
+        Assert.assertTrue(
+                encoder.getDegradations().contains(VectorTileEncoder.DEGRADATION_TRUNCATE));
+        VectorTile.Tile.Layer layer = getLayer(tile, VectorTileEncoder.DEGRADATION_LAYER);
+        Assert.assertTrue(
+                layer.getValues(0)
+                        .getStringValue()
+                        .contains(VectorTileEncoder.DEGRADATION_DEADLINE));
+    }
+
+    private VectorTileEncoder createEncoder() {
+        return new VectorTileEncoder(4096, new Envelope(0, 256, 0, 256), false, 0.1, 0.05);
+    }
+
+    private void addLines(VectorTileEncoder encoder, String layerName, boolean ranked)
+            throws Exception {
+        WKTReader reader = new WKTReader();
+        for (int i = 0; i < 100; i++) {
+            double y = 1 + i * 2.5;
+            encoder.addFeature(
+                    layerName,
+                    Collections.singletonMap("name", layerName + " " + i),
+                    layerName + "." + i,
+                    reader.read("LINESTRING (1 " + y + ", 128 " + (y + 1) + ", 255 " + y + ")"),
+                    ranked ? i : Double.NEGATIVE_INFINITY);
+        }
+    }
+
+    private VectorTile.Tile.Layer getLayer(VectorTile.Tile tile, String name) {
+        for (VectorTile.Tile.Layer layer : tile.getLayersList()) {
+            if (layer.getName().equals(name)) {
+                return layer;
+            }
+        }
+        return null;
+    }
+}
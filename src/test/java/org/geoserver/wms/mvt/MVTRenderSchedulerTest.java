@@ -0,0 +1,139 @@
+package org.geoserver.wms.mvt;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import org.geoserver.wms.mvt.MVTRenderScheduler.Lane;
+import org.junit.Assert;
+import org.junit.Test;
+
+/** Test for limiting the concurrent queries per datastore and layer. */
+public class MVTRenderSchedulerTest {
+
+    private static final List<String> STORE = Collections.singletonList("topp:postgis");
+
+    private static final List<String> NO_LAYERS = Collections.emptyList();
+
+    @Test
+    public void testQueue() throws Exception {
+        MVTRenderScheduler scheduler = new MVTRenderScheduler();
+        scheduler.setDataStoreLimits(Collections.singletonMap("topp:postgis", 1));
+        scheduler.setMaxQueued(1);
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            MVTRenderScheduler.Permit first = scheduler.acquire(STORE, NO_LAYERS);
+            Future<MVTRenderScheduler.Permit> second =
+                    executor.submit(() -> scheduler.acquire(STORE, NO_LAYERS));
+            MVTRenderScheduler.Queue queue = scheduler.getDataStoreQueues().get("topp:postgis");
+            for (int i = 0; i < 100 && queue.getDepth() == 0; i++) {
+                Thread.sleep(10);
+            }
+            Assert.assertEquals(1, queue.getDepth());
+
+            // the queue is full, the third request is rejected at once
+            try {
+                scheduler.acquire(STORE, NO_LAYERS);
+                Assert.fail("the request should be rejected");
+            } catch (MVTRenderScheduler.OverloadedException e) {
+                Assert.assertEquals(503, e.getErrorCode());
+                Assert.assertEquals(5, e.getRetryAfter());
+            }
+
+            first.close();
+            second.get(5, TimeUnit.SECONDS).close();
+        } finally {
+            executor.shutdownNow();
+        }
+        MVTRenderScheduler.Queue queue = scheduler.getDataStoreQueues().get("topp:postgis");
+        Assert.assertEquals(0, queue.getActive());
+        Assert.assertEquals(0, queue.getDepth());
+        Assert.assertEquals(2, queue.getAdmitted());
+        Assert.assertEquals(1, queue.getRejected());
+    }
+
+    @Test
+    public void testTimeout() throws Exception {
+        MVTRenderScheduler scheduler = new MVTRenderScheduler();
+        scheduler.setDefaultLayerLimit(1);
+        scheduler.setMaxWait(50);
+        List<String> layers = Collections.singletonList("topp:roads");
+        try (MVTRenderScheduler.Permit permit = scheduler.acquire(STORE, layers)) {
+            scheduler.acquire(STORE, layers);
+            Assert.fail("the request should time out");
+        } catch (MVTRenderScheduler.OverloadedException e) {
+            Assert.assertEquals(503, e.getErrorCode());
+        }
+        Assert.assertEquals(1, scheduler.getLayerQueues().get("topp:roads").getTimeouts());
+        // stores without a limit are not queued
+        Assert.assertTrue(scheduler.getDataStoreQueues().isEmpty());
+        // the permit of the first request is released
+        scheduler.acquire(STORE, layers).close();
+    }
+
+    @Test
+    public void testPreemptBackgroundWork() throws Exception {
+        MVTRenderScheduler scheduler = new MVTRenderScheduler();
+        scheduler.setDefaultDataStoreLimit(1);
+        scheduler.setMaxQueued(1);
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            MVTRenderScheduler.Permit first = scheduler.acquire(STORE, NO_LAYERS);
+            Future<MVTRenderScheduler.Permit> seed =
+                    executor.submit(() -> scheduler.acquire(STORE, NO_LAYERS, Lane.SEED));
+            MVTRenderScheduler.Queue queue = scheduler.getDataStoreQueues().get("topp:postgis");
+            for (int i = 0; i < 100 && queue.getDepth() == 0; i++) {
+                Thread.sleep(10);
+            }
+            Assert.assertEquals(1, queue.getDepth(Lane.SEED));
+
+            // the interactive request takes the place of the queued seed request
+            Future<MVTRenderScheduler.Permit> interactive =
+                    executor.submit(() -> scheduler.acquire(STORE, NO_LAYERS));
+            try {
+                seed.get(5, TimeUnit.SECONDS);
+                Assert.fail("the seed request should be pre-empted");
+            } catch (ExecutionException e) {
+                Assert.assertTrue(e.getCause() instanceof MVTRenderScheduler.OverloadedException);
+            }
+            first.close();
+            interactive.get(5, TimeUnit.SECONDS).close();
+        } finally {
+            executor.shutdownNow();
+        }
+        MVTRenderScheduler.Queue queue = scheduler.getDataStoreQueues().get("topp:postgis");
+        Assert.assertEquals(1, queue.getPreempted());
+        Assert.assertEquals(2, queue.getAdmitted(Lane.INTERACTIVE));
+        Assert.assertEquals(0, queue.getAdmitted(Lane.SEED));
+    }
+
+    @Test
+    public void testInteractiveReserve() throws Exception {
+        MVTRenderScheduler scheduler = new MVTRenderScheduler();
+        scheduler.setDefaultDataStoreLimit(2);
+        scheduler.setMaxWait(50);
+        try (MVTRenderScheduler.Permit seed = scheduler.acquire(STORE, NO_LAYERS, Lane.SEED)) {
+            // the second permit is reserved for interactive requests
+            try {
+                scheduler.acquire(STORE, NO_LAYERS, Lane.PREFETCH);
+                Assert.fail("the prefetch request should time out");
+            } catch (MVTRenderScheduler.OverloadedException e) {
+                Assert.assertEquals(503, e.getErrorCode());
+            }
+            scheduler.acquire(STORE, NO_LAYERS).close();
+        }
+        MVTRenderScheduler.Queue queue = scheduler.getDataStoreQueues().get("topp:postgis");
+        Assert.assertEquals(1, queue.getTimeouts());
+        Assert.assertEquals(0, queue.getActive());
+    }
+
+    @Test
+    public void testParseLane() {
+        Assert.assertEquals(Lane.SEED, Lane.parse("seed"));
+        Assert.assertEquals(Lane.INTERACTIVE, Lane.parse("urgent"));
+        Assert.assertEquals(Lane.INTERACTIVE, Lane.parse(null));
+    }
+}
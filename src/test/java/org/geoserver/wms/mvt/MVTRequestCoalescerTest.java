@@ -0,0 +1,168 @@
+package org.geoserver.wms.mvt;
+
+import java.io.IOException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.geoserver.platform.ClientStreamAbortedException;
+import org.junit.Assert;
+import org.junit.Test;
+
+/** Test for coalescing concurrent requests for the same tile. */
+public class MVTRequestCoalescerTest {
+
+    @Test
+    public void testCoalesce() throws Exception {
+        MVTRequestCoalescer coalescer = new MVTRequestCoalescer();
+        CountDownLatch rendering = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        AtomicInteger renders = new AtomicInteger();
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            Future<byte[]> first =
+                    executor.submit(
+                            () ->
+                                    coalescer.render(
+                                            "tile",
+                                            () -> {
+                                                renders.incrementAndGet();
+                                                rendering.countDown();
+                                                release.await();
+                                                return new byte[] {1, 2};
+                                            }));
+            Assert.assertTrue(rendering.await(5, TimeUnit.SECONDS));
+            Future<byte[]> second =
+                    executor.submit(
+                            () ->
+                                    coalescer.render(
+                                            "tile",
+                                            () -> {
+                                                renders.incrementAndGet();
+                                                return new byte[] {3};
+                                            }));
+            // wait until the second request waits for the first one
+            Thread.sleep(100);
+            release.countDown();
+
+            Assert.assertArrayEquals(new byte[] {1, 2}, first.get(5, TimeUnit.SECONDS));
+            Assert.assertArrayEquals(new byte[] {1, 2}, second.get(5, TimeUnit.SECONDS));
+        } finally {
+            executor.shutdownNow();
+        }
+        Assert.assertEquals(1, renders.get());
+        Assert.assertEquals(1, coalescer.getRenders());
+        Assert.assertEquals(1, coalescer.getSavedRenders());
+        Assert.assertEquals(0, coalescer.getRenderingCount());
+
+        // nothing is cached
+        Assert.assertArrayEquals(new byte[] {3}, coalescer.render("tile", () -> new byte[] {3}));
+    }
+
+    @Test
+    public void testFailure() throws Exception {
+        MVTRequestCoalescer coalescer = new MVTRequestCoalescer();
+        CountDownLatch rendering = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            Future<byte[]> first =
+                    executor.submit(
+                            () ->
+                                    coalescer.render(
+                                            "tile",
+                                            () -> {
+                                                rendering.countDown();
+                                                release.await();
+                                                throw new IOException("store unavailable");
+                                            }));
+            Assert.assertTrue(rendering.await(5, TimeUnit.SECONDS));
+            Future<byte[]> second = executor.submit(() -> coalescer.render("tile", () -> null));
+            Thread.sleep(100);
+            release.countDown();
+
+            assertFailure(first);
+            assertFailure(second);
+        } finally {
+            executor.shutdownNow();
+        }
+        Assert.assertEquals(1, coalescer.getFailures());
+    }
+
+    @Test
+    public void testTimeout() throws Exception {
+        MVTRequestCoalescer coalescer = new MVTRequestCoalescer();
+        coalescer.setTimeout(50);
+        CountDownLatch rendering = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            executor.submit(
+                    () ->
+                            coalescer.render(
+                                    "tile",
+                                    () -> {
+                                        rendering.countDown();
+                                        release.await();
+                                        return new byte[] {1};
+                                    }));
+            Assert.assertTrue(rendering.await(5, TimeUnit.SECONDS));
+
+            // the waiting request renders the tile on its own
+            Assert.assertArrayEquals(
+                    new byte[] {2}, coalescer.render("tile", () -> new byte[] {2}));
+        } finally {
+            release.countDown();
+            executor.shutdownNow();
+        }
+        Assert.assertEquals(1, coalescer.getTimeouts());
+        Assert.assertEquals(2, coalescer.getRenders());
+    }
+
+    @Test
+    public void testCancelledFirstRequest() throws Exception {
+        MVTRequestCoalescer coalescer = new MVTRequestCoalescer();
+        CountDownLatch rendering = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            Future<byte[]> first =
+                    executor.submit(
+                            () ->
+                                    coalescer.render(
+                                            "tile",
+                                            () -> {
+                                                rendering.countDown();
+                                                release.await();
+                                                throw new ClientStreamAbortedException();
+                                            }));
+            Assert.assertTrue(rendering.await(5, TimeUnit.SECONDS));
+            Thread.sleep(100);
+            release.countDown();
+            try {
+                first.get(5, TimeUnit.SECONDS);
+                Assert.fail("the first request should be cancelled");
+            } catch (ExecutionException e) {
+                Assert.assertTrue(e.getCause() instanceof ClientStreamAbortedException);
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+        // the cancellation is not a failure of the tile
+        Assert.assertEquals(0, coalescer.getFailures());
+        Assert.assertArrayEquals(new byte[] {2}, coalescer.render("tile", () -> new byte[] {2}));
+    }
+
+    private static void assertFailure(Future<byte[]> request) throws Exception {
+        try {
+            request.get(5, TimeUnit.SECONDS);
+            Assert.fail("the request should fail");
+        } catch (ExecutionException e) {
+            Assert.assertTrue(e.getCause() instanceof IOException);
+            Assert.assertEquals("store unavailable", e.getCause().getMessage());
+        }
+    }
+}
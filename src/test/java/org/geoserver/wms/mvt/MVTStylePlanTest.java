@@ -0,0 +1,94 @@
+package org.geoserver.wms.mvt;
+
+import java.util.List;
+import org.geotools.api.feature.simple.SimpleFeature;
+import org.geotools.api.feature.simple.SimpleFeatureType;
+import org.geotools.api.style.Rule;
+import org.geotools.api.style.Style;
+import org.geotools.api.style.Symbolizer;
+import org.geotools.data.DataUtilities;
+import org.geotools.feature.simple.SimpleFeatureBuilder;
+import org.geotools.filter.text.ecql.ECQL;
+import org.geotools.styling.AbstractSymbolizer;
+import org.geotools.styling.StyleBuilder;
+import org.junit.Assert;
+import org.junit.Test;
+import org.locationtech.jts.geom.Geometry;
+import org.locationtech.jts.geom.Point;
+import org.locationtech.jts.io.WKTReader;
+
+/** Test for the compiled style plans. */
+public class MVTStylePlanTest {
+
+    private final StyleBuilder styleBuilder = new StyleBuilder();
+
+    @Test
+    public void testRulesOutOfScale() {
+        Style style = createStyle(styleBuilder.createRule(lineSymbolizer(), 0, 10000));
+
+        Assert.assertTrue(MVTStylePlan.get(style, 50000).isEmpty());
+        Assert.assertFalse(MVTStylePlan.get(style, 5000).isEmpty());
+        Assert.assertTrue(MVTStylePlan.get(null, 5000).isEmpty());
+    }
+
+    @Test
+    public void testSymbolizersSharingGeometry() throws Exception {
+        AbstractSymbolizer line = lineSymbolizer();
+        line.setGeometry(ECQL.toExpression("geom"));
+        AbstractSymbolizer text = (AbstractSymbolizer) styleBuilder.createTextSymbolizer();
+        text.setGeometry(ECQL.toExpression("geom"));
+        Style style =
+                createStyle(
+                        styleBuilder.createRule(new Symbolizer[] {line, text}),
+                        styleBuilder.createRule(lineSymbolizer()));
+        SimpleFeature feature = createFeature();
+
+        List<Geometry> geometries = MVTStylePlan.get(style, 5000).getGeometries(feature);
+        Assert.assertEquals(1, geometries.size());
+        Assert.assertSame(feature.getDefaultGeometry(), geometries.get(0));
+    }
+
+    @Test
+    public void testGeometryTransformation() throws Exception {
+        AbstractSymbolizer point = (AbstractSymbolizer) styleBuilder.createPointSymbolizer();
+        point.setGeometry(ECQL.toExpression("centroid(geom)"));
+        Style style = createStyle(styleBuilder.createRule(point));
+        SimpleFeature feature = createFeature();
+
+        List<Geometry> geometries = MVTStylePlan.get(style, 5000).getGeometries(feature);
+        Assert.assertEquals(1, geometries.size());
+        Geometry centroid = ((Geometry) feature.getDefaultGeometry()).getCentroid();
+        Assert.assertTrue(geometries.get(0) instanceof Point);
+        Assert.assertTrue(geometries.get(0).equalsExact(centroid));
+    }
+
+    @Test
+    public void testPlanCached() {
+        Style style = createStyle(styleBuilder.createRule(lineSymbolizer(), 0, 10000));
+
+        MVTStylePlan plan = MVTStylePlan.get(style, 5000);
+        Assert.assertSame(plan, MVTStylePlan.get(style, 5000));
+        // other scales with the same rules in scale share the plan
+        Assert.assertSame(plan, MVTStylePlan.get(style, 5001));
+        // another style instance gets its own plan
+        Style other = createStyle(styleBuilder.createRule(lineSymbolizer(), 0, 10000));
+        Assert.assertNotSame(plan, MVTStylePlan.get(other, 5000));
+    }
+
+    private AbstractSymbolizer lineSymbolizer() {
+        return (AbstractSymbolizer) styleBuilder.createLineSymbolizer();
+    }
+
+    private Style createStyle(Rule... rules) {
+        Style style = styleBuilder.createStyle();
+        style.featureTypeStyles().add(styleBuilder.createFeatureTypeStyle("roads", rules));
+        return style;
+    }
+
+    private SimpleFeature createFeature() throws Exception {
+        SimpleFeatureType schema =
+                DataUtilities.createType("roads", "geom:LineString:srid=3857,name:String");
+        Geometry line = new WKTReader().read("LINESTRING (0 0, 100 0, 100 50)");
+        return SimpleFeatureBuilder.build(schema, new Object[] {line, "Main street"}, "roads.1");
+    }
+}
@@ -1,11 +1,19 @@
 package org.geoserver.wms.mvt;
 
 import static org.geoserver.wms.mvt.MVTStreamingMapResponse.AVOID_EMPTY_PROTO;
+import static org.geoserver.wms.mvt.MVTStreamingMapResponse.PARAM_AGGREGATE;
+import static org.geoserver.wms.mvt.MVTStreamingMapResponse.PARAM_ATTRIBUTES;
+import static org.geoserver.wms.mvt.MVTStreamingMapResponse.PARAM_EXTENT;
 import static org.geoserver.wms.mvt.MVTStreamingMapResponse.PARAM_SMALL_GEOM_THRESHOLD;
 
 import java.io.InputStream;
+import java.util.Collections;
+import java.util.Map;
 import org.apache.commons.io.IOUtils;
 import org.geoserver.AbstractMVTTest;
+import org.geoserver.platform.GeoServerExtensions;
+import org.geoserver.slippymap.SlippyMapTileCalculator;
+import org.geotools.geometry.jts.ReferencedEnvelope;
 import org.junit.Assert;
 import org.junit.Ignore;
 import org.junit.Test;
@@ -234,4 +242,205 @@ public class MVTTest extends AbstractMVTTest {
         // every feature is filtered, returned content is a null / empty byte array
         Assert.assertTrue(contentNotEmpty.length > 0);
     }
+
+    @Test
+    public void testAttributeProjection() throws Exception {
+        String request =
+                "wms?request=getmap&service=wms&version=1.1.1"
+                        + "&format="
+                        + MVT.MIME_TYPE
+                        + "&layers="
+                        + TEST_LINES.getPrefix()
+                        + ":"
+                        + TEST_LINES.getLocalPart()
+                        + "&styles="
+                        + STYLE_NAME
+                        + "&height=256&width=256"
+                        + "&bbox=1448023.063834379,6066042.5647115875,1457807.0034548815,6075826.50433209&srs=EPSG:3857&buffer=10";
+
+        String requestAll = request + "&env=" + PARAM_SMALL_GEOM_THRESHOLD + ":-1";
+        VectorTile.Tile tileAll =
+                VectorTile.Tile.parseFrom(
+                        getAsServletResponse(requestAll).getContentAsByteArray());
+
+        String requestFrc =
+                request + "&env=" + PARAM_SMALL_GEOM_THRESHOLD + ":-1;" + PARAM_ATTRIBUTES + ":frc";
+        VectorTile.Tile tileFrc =
+                VectorTile.Tile.parseFrom(
+                        getAsServletResponse(requestFrc).getContentAsByteArray());
+
+        // without projection id and frc are encoded
+        Assert.assertEquals(1, tileAll.getLayersCount());
+        Assert.assertEquals(2, tileAll.getLayers(0).getKeysCount());
+        // with projection only the requested attribute is encoded, although the style needs frc
+        // and the id is still available
+        Assert.assertEquals(1, tileFrc.getLayersCount());
+        Assert.assertEquals(1, tileFrc.getLayers(0).getKeysCount());
+        Assert.assertTrue(tileFrc.getLayers(0).getKeys(0).endsWith("frc"));
+        Assert.assertEquals(
+                tileAll.getLayers(0).getFeaturesCount(), tileFrc.getLayers(0).getFeaturesCount());
+    }
+
+    @Test
+    public void testPointAggregation() throws Exception {
+        String request =
+                "wms?request=getmap&service=wms&version=1.1.1"
+                        + "&format="
+                        + MVT.MIME_TYPE
+                        + "&layers="
+                        + TEST_POINTS.getPrefix()
+                        + ":"
+                        + TEST_POINTS.getLocalPart()
+                        + "&styles="
+                        + STYLE_NAME
+                        + "&height=256&width=256"
+                        + "&bbox=1448023.063834379,6066042.5647115875,1457807.0034548815,6075826.50433209&srs=EPSG:3857&buffer=10";
+
+        VectorTile.Tile tilePoints =
+                VectorTile.Tile.parseFrom(getAsServletResponse(request).getContentAsByteArray());
+        VectorTile.Tile tileAggregated =
+                VectorTile.Tile.parseFrom(
+                        getAsServletResponse(request + "&env=" + PARAM_AGGREGATE + ":128")
+                                .getContentAsByteArray());
+
+        Assert.assertEquals(1, tilePoints.getLayersCount());
+        Assert.assertEquals(1, tileAggregated.getLayersCount());
+        VectorTile.Tile.Layer layer = tileAggregated.getLayers(0);
+        Assert.assertTrue(
+                layer.getFeaturesCount() <= tilePoints.getLayers(0).getFeaturesCount());
+        // every point is counted in exactly one cell
+        int countKey = layer.getKeysList().indexOf(MVTPointAggregator.COUNT_ATTRIBUTE);
+        Assert.assertTrue(countKey >= 0);
+        long count = 0;
+        for (VectorTile.Tile.Feature feature : layer.getFeaturesList()) {
+            for (int i = 0; i < feature.getTagsCount(); i += 2) {
+                if (feature.getTags(i) == countKey) {
+                    count += layer.getValues(feature.getTags(i + 1)).getIntValue();
+                }
+            }
+        }
+        Assert.assertEquals(tilePoints.getLayers(0).getFeaturesCount(), count);
+    }
+
+    @Test
+    public void testTileOutsideOfLayerBounds() throws Exception {
+        String request =
+                "wms?request=getmap&service=wms&version=1.1.1"
+                        + "&format="
+                        + MVT.MIME_TYPE
+                        + "&layers="
+                        + TEST_LINES.getPrefix()
+                        + ":"
+                        + TEST_LINES.getLocalPart()
+                        + "&styles="
+                        + STYLE_NAME
+                        + "&height=256&width=256"
+                        + "&bbox=-2504688.542848654,0,-2348145.508920613,156543.03392804097"
+                        + "&srs=EPSG:3857&buffer=10";
+
+        MockHttpServletResponse response = getAsServletResponse(request);
+        Assert.assertEquals(0, response.getContentAsByteArray().length);
+        Assert.assertEquals("max-age=86400", response.getHeader("Cache-Control"));
+
+        MockHttpServletResponse layersOnly =
+                getAsServletResponse(request + "&env=" + AVOID_EMPTY_PROTO + ":true");
+        VectorTile.Tile tile = VectorTile.Tile.parseFrom(layersOnly.getContentAsByteArray());
+        Assert.assertEquals(1, tile.getLayersCount());
+        Assert.assertEquals(0, tile.getLayers(0).getFeaturesCount());
+        Assert.assertEquals(4096, tile.getLayers(0).getExtent());
+
+        // the layer messages carry the extent the layer is encoded with
+        MockHttpServletResponse coarse =
+                getAsServletResponse(
+                        request
+                                + "&env="
+                                + AVOID_EMPTY_PROTO
+                                + ":true;"
+                                + PARAM_EXTENT
+                                + ":512");
+        tile = VectorTile.Tile.parseFrom(coarse.getContentAsByteArray());
+        Assert.assertEquals(512, tile.getLayers(0).getExtent());
+    }
+
+    @Test
+    public void testTileOutsideOfRoutedSourceBounds() throws Exception {
+        // inside of the bounds of the lines, east of the bounds of the points
+        ReferencedEnvelope bbox = SlippyMapTileCalculator.tile2boundingBox(35149, 22840, 16, 3857);
+        String request =
+                "wms?request=getmap&service=wms&version=1.1.1"
+                        + "&format="
+                        + MVT.MIME_TYPE
+                        + "&layers="
+                        + TEST_LINES.getPrefix()
+                        + ":"
+                        + TEST_LINES.getLocalPart()
+                        + "&styles="
+                        + STYLE_NAME
+                        + "&height=256&width=256"
+                        + "&bbox="
+                        + bbox.getMinX()
+                        + ","
+                        + bbox.getMinY()
+                        + ","
+                        + bbox.getMaxX()
+                        + ","
+                        + bbox.getMaxY()
+                        + "&srs=EPSG:3857";
+        Assert.assertNotEquals(
+                "max-age=86400", getAsServletResponse(request).getHeader("Cache-Control"));
+
+        MVTStreamingMapResponse mapResponse =
+                GeoServerExtensions.bean(MVTStreamingMapResponse.class);
+        Map<String, MVTLayerConfiguration> configured = mapResponse.getLayerConfigurations();
+        MVTLayerConfiguration routed = new MVTLayerConfiguration();
+        routed.setSourceTypeName(TEST_POINTS.getLocalPart());
+        mapResponse.setLayerConfigurations(
+                Collections.singletonMap(
+                        TEST_LINES.getPrefix() + ":" + TEST_LINES.getLocalPart(), routed));
+        try {
+            // the bounds of the routed feature type decide
+            MockHttpServletResponse response = getAsServletResponse(request);
+            Assert.assertEquals(0, response.getContentAsByteArray().length);
+            Assert.assertEquals("max-age=86400", response.getHeader("Cache-Control"));
+        } finally {
+            mapResponse.setLayerConfigurations(configured);
+        }
+    }
+
+    @Test
+    public void testEmptyLayerWithoutEmptyTileIndex() throws Exception {
+        // a plain tile inside of the layer bounds without features, no empty tile index configured
+        ReferencedEnvelope bbox = SlippyMapTileCalculator.tile2boundingBox(35145, 22838, 16, 3857);
+        String request =
+                "wms?request=getmap&service=wms&version=1.1.1"
+                        + "&format="
+                        + MVT.MIME_TYPE
+                        + "&layers="
+                        + TEST_LINES.getPrefix()
+                        + ":"
+                        + TEST_LINES.getLocalPart()
+                        + "&styles="
+                        + STYLE_NAME
+                        + "&height=256&width=256"
+                        + "&bbox="
+                        + bbox.getMinX()
+                        + ","
+                        + bbox.getMinY()
+                        + ","
+                        + bbox.getMaxX()
+                        + ","
+                        + bbox.getMaxY()
+                        + "&srs=EPSG:3857&env="
+                        + AVOID_EMPTY_PROTO
+                        + ":true";
+
+        MockHttpServletResponse response = getAsServletResponse(request);
+        Assert.assertEquals(200, response.getStatus());
+        Assert.assertEquals(MVT.MIME_TYPE, response.getContentType());
+        byte[] content = response.getContentAsByteArray();
+        Assert.assertFalse(new String(content, "UTF-8").contains("ServiceException"));
+        VectorTile.Tile tile = VectorTile.Tile.parseFrom(content);
+        Assert.assertEquals(1, tile.getLayersCount());
+        Assert.assertEquals(0, tile.getLayers(0).getFeaturesCount());
+    }
 }
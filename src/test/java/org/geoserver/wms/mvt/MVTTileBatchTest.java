@@ -0,0 +1,88 @@
+package org.geoserver.wms.mvt;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.geotools.api.feature.simple.SimpleFeature;
+import org.geotools.api.feature.simple.SimpleFeatureType;
+import org.geotools.data.DataUtilities;
+import org.geotools.data.simple.SimpleFeatureCollection;
+import org.geotools.feature.simple.SimpleFeatureBuilder;
+import org.junit.Assert;
+import org.junit.Test;
+import org.locationtech.jts.geom.Coordinate;
+import org.locationtech.jts.geom.GeometryFactory;
+import org.springframework.mock.web.MockHttpServletRequest;
+
+/** Test for sharing the queries of the tiles of a batch. */
+public class MVTTileBatchTest {
+
+    @Test
+    public void testContains() {
+        MVTTileBatch batch = new MVTTileBatch(12, 2196, 1427, 2198, 1428);
+        Assert.assertEquals(6, batch.getSize());
+        Assert.assertTrue(batch.contains(12, 2196, 1427));
+        Assert.assertTrue(batch.contains(12, 2198, 1428));
+        Assert.assertFalse(batch.contains(12, 2199, 1428));
+        Assert.assertFalse(batch.contains(13, 2196, 1427));
+
+        MockHttpServletRequest request = new MockHttpServletRequest();
+        Assert.assertNull(MVTTileBatch.get(request));
+        batch.bind(request);
+        Assert.assertSame(batch, MVTTileBatch.get(request));
+    }
+
+    @Test
+    public void testSharedFeatures() throws Exception {
+        MVTTileBatch batch = new MVTTileBatch(12, 2196, 1427, 2198, 1428);
+        SimpleFeatureCollection features = createFeatures(3);
+        AtomicInteger loads = new AtomicInteger();
+        for (int i = 0; i < 3; i++) {
+            SimpleFeatureCollection shared =
+                    batch.getFeatures(
+                            "roads",
+                            () -> {
+                                loads.incrementAndGet();
+                                return batch.read(features);
+                            });
+            Assert.assertEquals(3, shared.size());
+        }
+        Assert.assertEquals(1, loads.get());
+        Assert.assertEquals(1, batch.getQueries());
+        Assert.assertEquals(2, batch.getSharedQueries());
+    }
+
+    @Test
+    public void testMaxFeatures() throws Exception {
+        MVTTileBatch batch = new MVTTileBatch(12, 2196, 1427, 2198, 1428);
+        batch.setMaxFeatures(2);
+        SimpleFeatureCollection features = createFeatures(3);
+        AtomicInteger loads = new AtomicInteger();
+        for (int i = 0; i < 2; i++) {
+            // too many features, each tile queries its own
+            Assert.assertNull(
+                    batch.getFeatures(
+                            "roads",
+                            () -> {
+                                loads.incrementAndGet();
+                                return batch.read(features);
+                            }));
+        }
+        Assert.assertEquals(1, loads.get());
+        Assert.assertEquals(0, batch.getSharedQueries());
+    }
+
+    private static SimpleFeatureCollection createFeatures(int count) throws Exception {
+        SimpleFeatureType type =
+                DataUtilities.createType("roads", "geom:Point:srid=3857,name:String");
+        GeometryFactory geometryFactory = new GeometryFactory();
+        SimpleFeatureBuilder builder = new SimpleFeatureBuilder(type);
+        List<SimpleFeature> list = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            builder.add(geometryFactory.createPoint(new Coordinate(i, i)));
+            builder.add("road " + i);
+            list.add(builder.buildFeature("roads." + i));
+        }
+        return DataUtilities.collection(list);
+    }
+}
@@ -0,0 +1,55 @@
+package org.geoserver.wms.mvt;
+
+import java.util.HashSet;
+import java.util.Set;
+import org.junit.Assert;
+import org.junit.Test;
+
+/** Test for the compressed set of empty tiles. */
+public class MVTTileBitmapTest {
+
+    @Test
+    public void testHilbertIndex() {
+        int zoomLevel = 4;
+        Set<Long> indices = new HashSet<>();
+        for (long x = 0; x < 16; x++) {
+            for (long y = 0; y < 16; y++) {
+                long index = MVTTileBitmap.hilbertIndex(zoomLevel, x, y);
+                Assert.assertTrue(index >= 0 && index < 256);
+                indices.add(index);
+            }
+        }
+        Assert.assertEquals(256, indices.size());
+        // consecutive indices are neighbouring tiles
+        long[] xs = new long[256];
+        long[] ys = new long[256];
+        for (long x = 0; x < 16; x++) {
+            for (long y = 0; y < 16; y++) {
+                int index = (int) MVTTileBitmap.hilbertIndex(zoomLevel, x, y);
+                xs[index] = x;
+                ys[index] = y;
+            }
+        }
+        for (int i = 1; i < 256; i++) {
+            Assert.assertEquals(1, Math.abs(xs[i] - xs[i - 1]) + Math.abs(ys[i] - ys[i - 1]));
+        }
+    }
+
+    @Test
+    public void testAddAndContains() {
+        MVTTileBitmap bitmap = new MVTTileBitmap(14);
+        // enough tiles of one block to convert the array container to a bitmap container
+        for (long x = 0; x < 100; x++) {
+            for (long y = 0; y < 100; y += 2) {
+                bitmap.add(x, y);
+            }
+        }
+        bitmap.add(0, 0);
+        bitmap.add(16000, 9000);
+        Assert.assertEquals(5001, bitmap.getCardinality());
+        Assert.assertTrue(bitmap.contains(99, 98));
+        Assert.assertFalse(bitmap.contains(99, 99));
+        Assert.assertTrue(bitmap.contains(16000, 9000));
+        Assert.assertFalse(bitmap.contains(9000, 16000));
+    }
+}
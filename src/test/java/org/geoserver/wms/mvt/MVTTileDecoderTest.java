@@ -0,0 +1,84 @@
+package org.geoserver.wms.mvt;
+
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import org.junit.Assert;
+import org.junit.Test;
+import org.locationtech.jts.geom.Coordinate;
+import org.locationtech.jts.geom.Envelope;
+import org.locationtech.jts.geom.LineString;
+import org.locationtech.jts.geom.MultiPoint;
+import org.locationtech.jts.geom.Point;
+import org.locationtech.jts.geom.Polygon;
+import org.locationtech.jts.io.WKTReader;
+
+/** Test for decoding encoded layers and slicing them into descendant tiles. */
+public class MVTTileDecoderTest {
+
+    @Test
+    public void testDecode() throws Exception {
+        VectorTileEncoder encoder =
+                new VectorTileEncoder(4096, new Envelope(0, 256, 0, 256), false, 0, 0);
+        Map<String, Object> attributes = new LinkedHashMap<>();
+        attributes.put("name", "parcel");
+        attributes.put("count", 3);
+        attributes.put("total", 12345678901L);
+        attributes.put("area", 1.5d);
+        attributes.put("built", true);
+        WKTReader reader = new WKTReader();
+        encoder.addFeature(
+                "parcels",
+                attributes,
+                "parcels.7",
+                reader.read(
+                        "POLYGON ((10 10, 100 10, 100 100, 10 100, 10 10), "
+                                + "(20 20, 20 40, 40 40, 40 20, 20 20))"));
+        encoder.addFeature(
+                "parcels", attributes, "parcels.8", reader.read("MULTIPOINT ((1 2), (3 4))"));
+
+        VectorTile.Tile tile = VectorTile.Tile.parseFrom(encoder.encode());
+        List<MVTTileDecoder.Feature> features = MVTTileDecoder.decode(tile.getLayers(0));
+        Assert.assertEquals(2, features.size());
+
+        MVTTileDecoder.Feature polygon = features.get(0);
+        Assert.assertEquals(Long.valueOf(7), polygon.id);
+        Assert.assertEquals(attributes, polygon.attributes);
+        Assert.assertTrue(polygon.geometry instanceof Polygon);
+        Assert.assertEquals(1, ((Polygon) polygon.geometry).getNumInteriorRing());
+        // the coordinates are decoded in the units of the extent
+        Assert.assertEquals((8100 - 400) * 16 * 16, polygon.geometry.getArea(), 0);
+
+        MVTTileDecoder.Feature points = features.get(1);
+        Assert.assertTrue(points.geometry instanceof MultiPoint);
+        Assert.assertEquals(new Coordinate(48, 64), points.geometry.getCoordinates()[1]);
+    }
+
+    @Test
+    public void testSlice() throws Exception {
+        VectorTileEncoder encoder =
+                new VectorTileEncoder(4096, new Envelope(0, 256, 0, 256), false, 0, 0);
+        WKTReader reader = new WKTReader();
+        Map<String, Object> attributes = new LinkedHashMap<>();
+        encoder.addFeature(
+                "roads", attributes, "roads.1", reader.read("LINESTRING (0 64, 256 64)"));
+        encoder.addFeature("roads", attributes, "roads.2", reader.read("POINT (130 10)"));
+        VectorTile.Tile.Layer layer = VectorTile.Tile.parseFrom(encoder.encode()).getLayers(0);
+
+        // top right child, the line is clipped at the left border of the child
+        List<MVTTileDecoder.Feature> features = MVTTileDecoder.slice(layer, 1, 1, 0, 256, 0);
+        Assert.assertEquals(2, features.size());
+        LineString line = (LineString) features.get(0).geometry;
+        Assert.assertEquals(new Coordinate(0, 128), line.getCoordinateN(0));
+        Assert.assertEquals(new Coordinate(256, 128), line.getCoordinateN(1));
+        Assert.assertEquals(new Coordinate(4, 20), features.get(1).geometry.getCoordinate());
+
+        // the point is within the buffer of the top left child only
+        features = MVTTileDecoder.slice(layer, 1, 0, 0, 256, 8);
+        Assert.assertEquals(2, features.size());
+        Point point = (Point) features.get(1).geometry;
+        Assert.assertEquals(new Coordinate(260, 20), point.getCoordinate());
+        Assert.assertEquals(1, MVTTileDecoder.slice(layer, 1, 0, 0, 256, 0).size());
+        Assert.assertTrue(MVTTileDecoder.slice(layer, 1, 1, 1, 256, 8).isEmpty());
+    }
+}
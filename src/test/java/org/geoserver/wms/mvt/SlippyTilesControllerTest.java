@@ -1,7 +1,10 @@
 package org.geoserver.wms.mvt;
 
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
 import org.geoserver.AbstractMVTTest;
 import org.geoserver.slippymap.SlippyMapTileCalculator;
+import org.geoserver.slippymap.SlippyTilesController;
 import org.geotools.geometry.jts.ReferencedEnvelope;
 import org.junit.Assert;
 import org.junit.Test;
@@ -86,4 +89,50 @@ public class SlippyTilesControllerTest extends AbstractMVTTest {
         Assert.assertEquals(contentForwardedWms.length, contentWms.length);
         Assert.assertArrayEquals(contentForwardedWms, contentWms);
     }
+
+    @Test
+    public void testBatch() throws Exception {
+        String layer = TEST_LINES.getPrefix() + ":" + TEST_LINES.getLocalPart();
+        MockHttpServletResponse response =
+                getAsServletResponse(
+                        "/slippymap/" + layer + "/batch.pbf?tiles=12/2196/1427,12/2197/1427");
+        Assert.assertEquals(200, response.getStatus());
+        Assert.assertEquals(SlippyTilesController.BATCH_MIME_TYPE, response.getContentType());
+        // each tile is forwarded like a single tile request
+        Assert.assertEquals(
+                "/slippymap/" + layer + "/12/2197/1427.pbf", response.getForwardedUrl());
+
+        DataInputStream frames =
+                new DataInputStream(new ByteArrayInputStream(response.getContentAsByteArray()));
+        for (int x = 2196; x <= 2197; x++) {
+            Assert.assertEquals(12, frames.readInt());
+            Assert.assertEquals(x, frames.readInt());
+            Assert.assertEquals(1427, frames.readInt());
+            Assert.assertEquals(200, frames.readInt());
+            frames.readUTF();
+            int length = frames.readInt();
+            Assert.assertEquals(length, frames.skipBytes(length));
+        }
+        Assert.assertEquals(-1, frames.read());
+    }
+
+    @Test
+    public void testBatchRange() throws Exception {
+        String layer = TEST_LINES.getPrefix() + ":" + TEST_LINES.getLocalPart();
+        MockHttpServletResponse response =
+                getAsServletResponse(
+                        "/slippymap/"
+                                + layer
+                                + "/batch.pbf?z=12&minCol=2196&minRow=1427"
+                                + "&maxCol=2197&maxRow=1428");
+        Assert.assertEquals(200, response.getStatus());
+        Assert.assertEquals(
+                "/slippymap/" + layer + "/12/2197/1428.pbf", response.getForwardedUrl());
+
+        // tiles outside of the grid are rejected
+        response = getAsServletResponse("/slippymap/" + layer + "/batch.pbf?tiles=2/4/0");
+        Assert.assertEquals(400, response.getStatus());
+        response = getAsServletResponse("/slippymap/" + layer + "/batch.pbf?z=12&minCol=0");
+        Assert.assertEquals(400, response.getStatus());
+    }
 }